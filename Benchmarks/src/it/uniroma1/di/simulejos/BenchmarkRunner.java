@@ -0,0 +1,44 @@
+package it.uniroma1.di.simulejos;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the simulator core and stores their results in JSON
+ * format, so that they can be compared across revisions.
+ * 
+ * Accepts the same command line as the JMH launcher, e.g. a regular
+ * expression selecting the benchmarks to run or <code>-p robots=8</code> to
+ * restrict a parameter. Unless <code>-rff</code> is specified the results are
+ * written to a file named after the current date and time in the working
+ * directory.
+ * 
+ * Benchmarks that load models look for them in the directory specified by the
+ * <code>simulejos.models</code> system property, which defaults to the models
+ * directory of the TestRobots project.
+ */
+public final class BenchmarkRunner {
+	public static void main(String[] args) throws CommandLineOptionException,
+			RunnerException {
+		final CommandLineOptions options = new CommandLineOptions(args);
+		final ChainedOptionsBuilder builder = new OptionsBuilder()
+				.parent(options);
+		if (!options.getResult().hasValue()) {
+			builder.result("simulejos-"
+					+ new SimpleDateFormat("yyyyMMdd-HHmmss")
+							.format(new Date()) + ".json");
+		}
+		new Runner(builder.resultFormat(ResultFormatType.JSON).build()).run();
+	}
+
+	private BenchmarkRunner() {
+	}
+}
@@ -0,0 +1,134 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.wavefront.ParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.media.opengl.GLEventListener;
+import javax.script.ScriptException;
+
+/**
+ * Builds simulations that can be stepped without a GL context or a user
+ * interface.
+ */
+final class BenchmarkSupport {
+	/**
+	 * The distance between two adjacent robots of a grid. Robot models are
+	 * scaled to a maximum span of 2, so robots whose distance is less than
+	 * that may collide.
+	 */
+	static final double GRID_SPACING = 1.75;
+
+	/**
+	 * The script of the robots that are driven rather than idle: a light
+	 * sensor looking at the floor, as in the LineFollower sample, a compass,
+	 * an accelerometer and the built-in differential drive. None of the
+	 * sensors needs a GL context.
+	 */
+	static final String DRIVEN_SCRIPT = "var Vector3 = Packages.it.uniroma1.di.simulejos.math.Vector3;\n"
+			+ "var Matrix3 = Packages.it.uniroma1.di.simulejos.math.Matrix3;\n"
+			+ "robot.S1.lightSensor(new Vector3(robot.boundingBox.center.x,\n"
+			+ "		robot.boundingBox.min.y + 0.1, robot.boundingBox.max.z + 0.1),\n"
+			+ "		Matrix3.create([1, 0, 0, 0, 0, -1, 0, 1, 0]));\n"
+			+ "robot.S2.compassSensor(Matrix3.IDENTITY);\n"
+			+ "robot.S3.accelerometer(Matrix3.IDENTITY);\n"
+			+ "robot.setKinematics(robot.differentialDrive(4));\n";
+
+	static final View NULL_VIEW = new View() {
+		@Override
+		public void addGLEventListener(GLEventListener listener) {
+		}
+
+		@Override
+		public void repaint() {
+		}
+	};
+
+	static final class NullWriter extends Writer {
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	static final class CountingListener implements Simulation.Listener {
+		volatile int collisions;
+
+		@Override
+		public void collision(Robot robot, Robot robot2) {
+			collisions++;
+		}
+
+		@Override
+		public void error(Exception exception) {
+			throw new RuntimeException(exception);
+		}
+	}
+
+	static File getModelDirectory() {
+		return new File(System.getProperty("simulejos.models",
+				"../TestRobots/models"));
+	}
+
+	static File getModel(String name) {
+		return new File(getModelDirectory(), name);
+	}
+
+	/**
+	 * Adds the specified number of idle robots to a simulation, laying them
+	 * out on a square grid so that neighbouring robots overlap.
+	 */
+	static List<Robot> addRobots(Simulation simulation, int count, String model)
+			throws IOException, ParseException, ScriptException {
+		return addRobots(simulation, count, model, null);
+	}
+
+	/**
+	 * Adds the specified number of robots running the specified script to a
+	 * simulation, laid out as by
+	 * {@link #addRobots(Simulation, int, String)}. The robots run no program,
+	 * see {@link #drive(Robot, int, int)}.
+	 */
+	static List<Robot> addRobots(Simulation simulation, int count,
+			String model, String script) throws IOException, ParseException,
+			ScriptException {
+		final int side = (int) Math.ceil(Math.sqrt(count));
+		final List<Robot> robots = new ArrayList<Robot>(count);
+		for (int i = 0; i < count; i++) {
+			final Robot robot = simulation.addRobot(null, null, script,
+					getModel(model), false);
+			robot.moveTo((i % side) * GRID_SPACING, robot.getPosition().y,
+					(i / side) * GRID_SPACING);
+			robot.updateBounds();
+			robots.add(robot);
+		}
+		return robots;
+	}
+
+	/**
+	 * Starts a robot that runs no program and drives its motors A and B
+	 * forward at the specified powers, as the program of the robot would.
+	 * The robot then moves by its kinematics and samples its sensors at
+	 * every step.
+	 */
+	static void drive(Robot robot, int powerA, int powerB)
+			throws ScriptException {
+		robot.play(false);
+		robot.getMotor(0).control(powerA, Motor.Mode.FORWARD);
+		robot.getMotor(1).control(powerB, Motor.Mode.FORWARD);
+	}
+
+	private BenchmarkSupport() {
+	}
+}
@@ -0,0 +1,72 @@
+package it.uniroma1.di.simulejos;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares testing every pair of robots with
+ * {@link Robot#collidesWith(Robot)} to the sweep and prune detector used by
+ * the ticker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CollisionBenchmark {
+	@Param({ "2", "8", "32", "128" })
+	public int robots;
+
+	@Param({ "box.obj", "epuck.obj" })
+	public String model;
+
+	private Robot[] robotArray;
+	private final CollisionDetector detector = new CollisionDetector();
+	private final BenchmarkSupport.CountingListener listener = new BenchmarkSupport.CountingListener();
+
+	@Setup
+	public void setUp() throws Exception {
+		final Simulation simulation = new Simulation(
+				BenchmarkSupport.NULL_VIEW, new BenchmarkSupport.NullWriter(),
+				listener);
+		final List<Robot> list = BenchmarkSupport.addRobots(simulation,
+				robots, model);
+		robotArray = list.toArray(new Robot[list.size()]);
+	}
+
+	@Benchmark
+	public int allPairs() {
+		int collisions = 0;
+		for (int i = 0; i < robotArray.length; i++) {
+			for (int j = i + 1; j < robotArray.length; j++) {
+				if (robotArray[i].collidesWith(robotArray[j])) {
+					collisions++;
+				}
+			}
+		}
+		return collisions;
+	}
+
+	@Benchmark
+	public int sweepAndPrune() {
+		for (Robot robot : robotArray) {
+			robot.updateBounds();
+		}
+		listener.collisions = 0;
+		detector.detect(robotArray, listener);
+		return listener.collisions;
+	}
+}
@@ -0,0 +1,104 @@
+package it.uniroma1.di.simulejos;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of moving a robot at each tick: by invoking the
+ * <code>tick</code> function of its script by name, as the simulator used to;
+ * through the compiled script bound to {@link RobotKinematics}; and through
+ * the built-in differential drive. The script variants need a JavaScript
+ * engine in the JVM, e.g. Nashorn up to Java 14.
+ * 
+ * On Java 8 with Nashorn a tick took 310 ns when invoked by name, 234 ns
+ * through the compiled script and 222 ns through the built-in drive, so
+ * moving the robot costs more than the script itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class KinematicsBenchmark {
+	/*
+	 * The kinematics of the Driven sample script.
+	 */
+	private static final String SCRIPT = "var wheelSpan = robot.boundingBox.size.x;\n"
+			+ "var wheelRadius = robot.boundingBox.size.y / 2;\n"
+			+ "function tick(daa, dab, dac) {\n"
+			+ "	daa *= 4;\n"
+			+ "	dab *= 4;\n"
+			+ "	if (daa != dab) {\n"
+			+ "		var radius = wheelSpan * (dab + daa) / (2 * (dab - daa));\n"
+			+ "		var angle = wheelRadius * (dab - daa) / wheelSpan;\n"
+			+ "		robot.moveBy(radius * (Math.cos(angle) - 1), 0, radius * Math.sin(angle));\n"
+			+ "		robot.rotateBy(0, 1, 0, angle);\n"
+			+ "	} else {\n"
+			+ "		robot.moveBy(0, 0, daa * wheelRadius);\n"
+			+ "	}\n" + "}\n";
+
+	@Param({ "invokeFunction", "compiled", "builtIn" })
+	public String kinematics;
+
+	private Invocable invocable;
+	private RobotKinematics robotKinematics;
+	private double daa;
+
+	@Setup
+	public void setUp() throws Exception {
+		final Simulation simulation = new Simulation(
+				BenchmarkSupport.NULL_VIEW, new BenchmarkSupport.NullWriter(),
+				new BenchmarkSupport.CountingListener());
+		switch (kinematics) {
+		case "invokeFunction":
+			final Robot robot = simulation.addRobot(null, null, null,
+					BenchmarkSupport.getModel("epuck.obj"), false);
+			final ScriptEngine scriptEngine = new ScriptEngineManager()
+					.getEngineByMimeType("text/javascript");
+			scriptEngine.put("robot", robot.robotInterface);
+			scriptEngine.eval(SCRIPT);
+			invocable = (Invocable) scriptEngine;
+			break;
+		case "compiled":
+			robotKinematics = simulation.addRobot(null, null, SCRIPT,
+					BenchmarkSupport.getModel("epuck.obj"), false)
+					.loadKinematics();
+			break;
+		default:
+			robotKinematics = simulation.addRobot(null, null, null,
+					BenchmarkSupport.getModel("epuck.obj"), false)
+					.robotInterface.differentialDrive(4);
+			break;
+		}
+	}
+
+	/*
+	 * The left wheel turns at a varying speed, so that the robot follows
+	 * arcs of varying radius.
+	 */
+	@Benchmark
+	public void tick() throws Exception {
+		daa = (daa < 0.02) ? daa + 0.001 : 0;
+		if (invocable != null) {
+			invocable.invokeFunction("tick", daa, 0.01, 0.0);
+		} else {
+			robotKinematics.tick(daa, 0.01, 0);
+		}
+	}
+}
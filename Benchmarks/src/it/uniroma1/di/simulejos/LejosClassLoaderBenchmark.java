@@ -0,0 +1,42 @@
+package it.uniroma1.di.simulejos;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of creating the class loader of a robot, alone and
+ * followed by the loading of a Framework class: one that holds state and is
+ * defined anew for every robot, and one that is defined once and shared by
+ * all robots.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LejosClassLoaderBenchmark {
+	private static final URL[] NO_URLS = new URL[0];
+
+	@Benchmark
+	public LejosClassLoader construct() {
+		return new LejosClassLoader(NO_URLS);
+	}
+
+	@Benchmark
+	public Class<?> constructAndLoad() throws ClassNotFoundException {
+		return new LejosClassLoader(NO_URLS).loadClass("lejos.nxt.Motor");
+	}
+
+	@Benchmark
+	public Class<?> constructAndLoadShared() throws ClassNotFoundException {
+		return new LejosClassLoader(NO_URLS).loadClass("lejos.geom.Rectangle");
+	}
+}
@@ -0,0 +1,94 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of sampling a motor from the ticker while robot threads
+ * read its tachometer, also while the regulator keeps commanding the motor,
+ * as well as both operations without contention.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MotorBenchmark {
+	private static final long PERIOD = 16000000;
+
+	private final Clock clock = new Clock();
+	private final Motor motor = new Motor(clock);
+	private long timestamp;
+	private int power;
+
+	@Setup
+	public void setUp() {
+		motor.control(75, SimulatorInterface.Motor.Mode.FORWARD);
+	}
+
+	@Benchmark
+	@Group("uncontendedSample")
+	public double sample() {
+		timestamp += PERIOD;
+		return motor.sample(timestamp);
+	}
+
+	@Benchmark
+	@Group("uncontendedGetCount")
+	public int getCount() {
+		return motor.getCount();
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(1)
+	public double contendedSample() {
+		timestamp += PERIOD;
+		return motor.sample(timestamp);
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(3)
+	public int contendedGetCount() {
+		return motor.getCount();
+	}
+
+	@Benchmark
+	@Group("commanded")
+	@GroupThreads(1)
+	public double commandedSample() {
+		timestamp += PERIOD;
+		return motor.sample(timestamp);
+	}
+
+	@Benchmark
+	@Group("commanded")
+	@GroupThreads(1)
+	public void commandedControl() {
+		power = (power + 1) % 100;
+		motor.control(power, SimulatorInterface.Motor.Mode.FORWARD);
+	}
+
+	@Benchmark
+	@Group("commanded")
+	@GroupThreads(4)
+	public int commandedGetCount() {
+		return motor.getCount();
+	}
+}
@@ -0,0 +1,33 @@
+package it.uniroma1.di.simulejos;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the part of the cold start of the simulator spent reading the
+ * Framework: opening the Framework archive, partitioning its classes and
+ * loading the bridge of a first robot. Every measurement runs once in a fresh
+ * JVM, so it includes class loading and interpretation as at start-up; the
+ * JVM options of the forks, e.g. a class data sharing archive, can be
+ * specified with <code>-jvmArgsAppend</code>.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+public class StartUpBenchmark {
+	@Benchmark
+	public Class<?> loadFramework() throws ClassNotFoundException {
+		return new LejosClassLoader(new URL[0])
+				.loadClass("it.uniroma1.di.simulejos.bridge.Bridge");
+	}
+}
@@ -0,0 +1,72 @@
+package it.uniroma1.di.simulejos;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a whole simulation step with a number of robots on a view without
+ * a GL context. The robots are started with
+ * {@link BenchmarkSupport#DRIVEN_SCRIPT} and driven along circles, so every
+ * step moves them by their kinematics and samples their sensors, and the
+ * benchmark reads the sensors as the program of every robot would. Robot
+ * programs themselves are not run, so their threads do not add to the
+ * figures. The script needs a JavaScript engine in the JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class StepBenchmark {
+	private static final int PERIOD = 16;
+
+	@Param({ "1", "8", "32", "128" })
+	public int robots;
+
+	@Param({ "false", "true" })
+	public boolean parallel;
+
+	private Simulation simulation;
+	private List<Robot> list;
+
+	@Setup
+	public void setUp() throws Exception {
+		simulation = new Simulation(BenchmarkSupport.NULL_VIEW,
+				new BenchmarkSupport.NullWriter(),
+				new BenchmarkSupport.CountingListener());
+		simulation.setParallelStep(parallel);
+		list = BenchmarkSupport.addRobots(simulation, robots, "epuck.obj",
+				BenchmarkSupport.DRIVEN_SCRIPT);
+		for (int i = 0; i < list.size(); i++) {
+			BenchmarkSupport.drive(list.get(i), 60 + i % 20, 40);
+		}
+	}
+
+	@Benchmark
+	public double step() throws Exception {
+		simulation.step(PERIOD);
+		double readings = 0;
+		for (Robot robot : list) {
+			readings += ((LightSensor) robot.robotInterface.S1.getSensor())
+					.getLight();
+			readings += ((CompassSensor) robot.robotInterface.S2.getSensor())
+					.getAngle();
+			readings += ((Accelerometer) robot.robotInterface.S3.getSensor())
+					.getAcceleration().x;
+		}
+		return readings;
+	}
+}
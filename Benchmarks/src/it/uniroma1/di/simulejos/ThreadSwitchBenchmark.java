@@ -0,0 +1,78 @@
+package it.uniroma1.di.simulejos;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the context switches of a tick on platform and on virtual robot
+ * threads: every thread sleeps on the simulated clock for one period at a
+ * time, as robot programs do between readings, and every operation advances
+ * the clock by one period and waits until all the threads have woken up and
+ * gone back to sleep, as the ticker does when fast-forwarding.
+ * Virtual threads require Java 21; on older runtimes both variants run on
+ * platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ThreadSwitchBenchmark {
+	private static final long PERIOD = 16000000;
+
+	@Param({ "1", "8", "64" })
+	public int threads;
+
+	@Param({ "false", "true" })
+	public boolean virtual;
+
+	private final Clock clock = new Clock();
+	private RobotThreadGroup group;
+
+	@Setup
+	public void setUp() {
+		group = new RobotThreadGroup("benchmark", virtual);
+		for (int i = 0; i < threads; i++) {
+			group.start(group.newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							clock.sleep(PERIOD);
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			}));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		group.stopped = true;
+		group.interruptAll();
+	}
+
+	@Benchmark
+	public long tick() throws InterruptedException {
+		clock.advance(PERIOD);
+		clock.awaitSleepers(1000);
+		while (!group.isIdle()) {
+			Thread.yield();
+		}
+		return clock.getTimestamp();
+	}
+}
@@ -0,0 +1,64 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.math.Matrix3;
+import it.uniroma1.di.simulejos.math.Vector3;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a ping of an ultrasonic sensor mounted on the first of a grid of
+ * robots, and a single ray cast against the hierarchy of a model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class UltrasonicBenchmark {
+	@Param({ "2", "8", "32", "128" })
+	public int robots;
+
+	@Param({ "box.obj", "epuck.obj" })
+	public String model;
+
+	private UltrasonicSensor sensor;
+	private BoundingVolumeHierarchy hierarchy;
+	private final int[] distances = new int[8];
+
+	@Setup
+	public void setUp() throws Exception {
+		final Simulation simulation = new Simulation(
+				BenchmarkSupport.NULL_VIEW, new BenchmarkSupport.NullWriter(),
+				new BenchmarkSupport.CountingListener());
+		final List<Robot> list = BenchmarkSupport.addRobots(simulation,
+				robots, model);
+		sensor = new UltrasonicSensor(list.get(0), Vector3.NULL,
+				Matrix3.IDENTITY);
+		hierarchy = ModelData.parseWavefront(BenchmarkSupport.getModel(model),
+				false).getHierarchy();
+	}
+
+	@Benchmark
+	public int ping() {
+		return sensor.ping(distances);
+	}
+
+	@Benchmark
+	public double cast() {
+		return hierarchy.cast(0, 0, -10, 0, 0, 1, 20, false);
+	}
+}
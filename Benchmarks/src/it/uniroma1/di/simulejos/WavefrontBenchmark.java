@@ -0,0 +1,55 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.wavefront.ParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long it takes to load the models of the TestRobots project,
+ * parsing them or reading their binary cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WavefrontBenchmark {
+	@Param({ "box.obj", "epuck.obj", "epuck2.obj" })
+	public String model;
+
+	private File file;
+
+	@Setup
+	public void setUp() {
+		file = BenchmarkSupport.getModel(model);
+	}
+
+	@Benchmark
+	public ModelData parseWavefront() throws IOException, ParseException {
+		return ModelData.parseWavefront(file, false);
+	}
+
+	/**
+	 * Reads the model through its binary cache, which the first invocation
+	 * writes if it is missing.
+	 */
+	@Benchmark
+	public ModelData read() throws IOException, ParseException {
+		return ModelData.read(file, false);
+	}
+}
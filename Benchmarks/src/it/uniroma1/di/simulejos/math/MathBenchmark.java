@@ -0,0 +1,104 @@
+package it.uniroma1.di.simulejos.math;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the basic operations of the math package and compares the
+ * immutable and mutable implementations of the pose update that robots
+ * perform at every tick.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MathBenchmark {
+	private static final double ANGLE = 0.01;
+	private static final double DISTANCE = 0.001;
+
+	private final Vector3 vector = new Vector3(0.3, 0.5, 0.7);
+	private final Vector3 vector2 = new Vector3(-0.2, 0.9, 0.1);
+	private final Matrix3 matrix = Matrix3.createRotation(0, 1, 0, 0.5).by(
+			Matrix3.createScaling(0.5, 0.5, 0.5));
+	private final Matrix3 matrix2 = Matrix3.createRotation(1, 0, 0, 0.3);
+
+	private Vector3 position = Vector3.NULL;
+	private Matrix3 heading = Matrix3.IDENTITY;
+	private Matrix3 inverseHeading = Matrix3.IDENTITY;
+
+	private final MutableVector3 mutablePosition = new MutableVector3();
+	private final MutableMatrix3 mutableHeading = new MutableMatrix3();
+	private final MutableMatrix3 mutableInverseHeading = new MutableMatrix3();
+	private final MutableMatrix3 rotation = new MutableMatrix3();
+	private final MutableVector3 offset = new MutableVector3();
+
+	@Benchmark
+	public Vector3 vectorPlus() {
+		return vector.plus(vector2);
+	}
+
+	@Benchmark
+	public Vector3 vectorCross() {
+		return vector.cross(vector2);
+	}
+
+	@Benchmark
+	public Vector3 vectorNormalize() {
+		return vector.normalize();
+	}
+
+	@Benchmark
+	public Vector3 matrixByVector() {
+		return matrix.by(vector);
+	}
+
+	@Benchmark
+	public Matrix3 matrixByMatrix() {
+		return matrix.by(matrix2);
+	}
+
+	@Benchmark
+	public Matrix3 matrixInvert() {
+		return matrix.invert();
+	}
+
+	@Benchmark
+	public Matrix3 createRotation() {
+		return Matrix3.createRotation(0, 1, 0, ANGLE);
+	}
+
+	/**
+	 * The pose update of a robot that moves forward and turns, as performed
+	 * before the introduction of the mutable types.
+	 */
+	@Benchmark
+	public Matrix3 immutablePoseUpdate() {
+		position = position.plus(heading.by(new Vector3(0, 0, DISTANCE)));
+		heading = Matrix3.createRotation(0, 1, 0, ANGLE).by(heading);
+		inverseHeading = heading.invert();
+		return inverseHeading;
+	}
+
+	/**
+	 * The same pose update as {@link #immutablePoseUpdate()}, performed in
+	 * place.
+	 */
+	@Benchmark
+	public MutableMatrix3 mutablePoseUpdate() {
+		mutablePosition.add(mutableHeading.transform(0, 0, DISTANCE, offset));
+		mutableHeading.multiply(rotation.setRotation(0, 1, 0, ANGLE),
+				mutableHeading);
+		return mutableInverseHeading.invert(mutableHeading);
+	}
+}
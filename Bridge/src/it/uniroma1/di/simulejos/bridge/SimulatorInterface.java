@@ -4,6 +4,7 @@ import it.uniroma1.di.simulejos.math.Vector3;
 
 import java.awt.Frame;
 import java.io.PrintWriter;
+import java.util.concurrent.ThreadFactory;
 
 public interface SimulatorInterface {
 	String getRobotName();
@@ -16,11 +17,66 @@ public interface SimulatorInterface {
 
 	void onResume(Runnable runnable);
 
+	/**
+	 * Registers a handler invoked when the robot is stopped, before its
+	 * threads are interrupted.
+	 * 
+	 * @param runnable
+	 *            The handler.
+	 */
+	void onStop(Runnable runnable);
+
+	/**
+	 * Returns the factory of the threads of the robot. They are platform
+	 * threads of the thread group of the robot or virtual threads, depending
+	 * on how the simulation is configured; in both cases the simulator
+	 * interrupts them when the robot is stopped and takes them into account
+	 * when fast forwarding.
+	 * 
+	 * @return The thread factory of the robot.
+	 */
+	ThreadFactory getThreadFactory();
+
+	/**
+	 * Starts a thread created by the factory of the robot. The threads of the
+	 * factory must be started this way, as virtual threads are tracked by the
+	 * simulator from the moment they are started.
+	 * 
+	 * @param thread
+	 *            The thread to start.
+	 */
+	void startThread(Thread thread);
+
+	/**
+	 * Returns the simulated time, in nanoseconds since the simulation was
+	 * created. The Framework and robot programs must use this clock rather
+	 * than the system one.
+	 * 
+	 * @return The simulated time in nanoseconds.
+	 */
+	long getTime();
+
+	/**
+	 * Blocks the calling thread until the specified amount of simulated time
+	 * has elapsed.
+	 * 
+	 * @param nanoseconds
+	 *            The amount of simulated time to wait for.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	void sleep(long nanoseconds) throws InterruptedException;
+
 	static interface Motor {
 		static enum Mode {
 			FORWARD, BACKWARD, STOP, FLOAT
 		};
 
+		/**
+		 * The speed of a motor at full power, in degrees per second.
+		 */
+		static final double MAX_SPEED = 960;
+
 		Mode getMode();
 
 		void setMode(Mode mode);
@@ -31,6 +87,25 @@ public interface SimulatorInterface {
 
 		void control(int power, Mode mode);
 
+		/**
+		 * Makes the motor follow a velocity profile, replacing any previous
+		 * command. The profile starts at the current simulated time from the
+		 * specified velocity and is made of segments of constant
+		 * acceleration, after which the velocity stays constant. The motor
+		 * follows it exactly, however long the step of the simulation.
+		 * 
+		 * @param velocity
+		 *            The initial velocity, in degrees per second.
+		 * @param accelerations
+		 *            The acceleration of every segment, in degrees per second
+		 *            squared.
+		 * @param durations
+		 *            The duration of every segment, in nanoseconds.
+		 * @return The simulated time at which the profile starts, in
+		 *         nanoseconds.
+		 */
+		long follow(double velocity, double[] accelerations, long[] durations);
+
 		int getCount();
 
 		void resetCount();
@@ -109,8 +184,48 @@ public interface SimulatorInterface {
 		void resetZero();
 	}
 
-	static interface UltrasonicSensor extends Sensor {
-		// TODO
+	/**
+	 * A digital sensor, accessed through the I2C bus of its port like the
+	 * real one.
+	 */
+	static interface I2CSensor extends Sensor {
+		/**
+		 * Performs an I2C transaction: writes the specified bytes to the
+		 * device, the first of which is the address of a register, then reads
+		 * the requested number of bytes starting from that register.
+		 * 
+		 * @param address
+		 *            The I2C address of the device.
+		 * @param writeBuffer
+		 *            The bytes to write.
+		 * @param writeOffset
+		 *            The offset of the first byte to write.
+		 * @param writeLength
+		 *            The number of bytes to write, register address included.
+		 * @param readBuffer
+		 *            Receives the bytes read.
+		 * @param readOffset
+		 *            The offset of the first byte read.
+		 * @param readLength
+		 *            The number of bytes to read.
+		 * @return The number of bytes read, or a negative value if the device
+		 *         does not respond.
+		 */
+		int transaction(int address, byte[] writeBuffer, int writeOffset,
+				int writeLength, byte[] readBuffer, int readOffset,
+				int readLength);
+	}
+
+	static interface UltrasonicSensor extends I2CSensor {
+		/**
+		 * Sends a ping and measures the distances of the echoes.
+		 * 
+		 * @param distances
+		 *            Receives the distances of the echoes in centimeters,
+		 *            nearest first, up to the length of the array.
+		 * @return The number of echoes.
+		 */
+		int ping(int[] distances);
 	}
 
 	static interface Accelerometer extends Sensor {
@@ -127,5 +242,16 @@ public interface SimulatorInterface {
 
 	Sensor getS4();
 
+	/**
+	 * Publishes the contents of the display of the robot every time it is
+	 * refreshed, so that the simulator can record them. The frame is in the
+	 * packed format of the display buffer of <code>LCD</code>, 8 rows per
+	 * byte, and it is only read during the call.
+	 * 
+	 * @param frame
+	 *            The contents of the whole display.
+	 */
+	void updateDisplay(byte[] frame);
+
 	void shutDown();
 }
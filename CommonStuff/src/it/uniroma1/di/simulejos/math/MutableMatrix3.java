@@ -0,0 +1,214 @@
+package it.uniroma1.di.simulejos.math;
+
+/**
+ * A mutable counterpart of {@link Matrix3}, meant to be reused across
+ * computations in hot paths where allocating a new immutable matrix for every
+ * intermediate result would produce too much garbage.
+ * 
+ * Operations store their result in this matrix and return it, so that calls
+ * can be chained. Operands may be this same matrix. Objects of this class are
+ * not thread safe.
+ */
+public final class MutableMatrix3 {
+	private final double[] values = new double[9];
+
+	/**
+	 * Constructs an identity matrix.
+	 */
+	public MutableMatrix3() {
+		values[0] = values[4] = values[8] = 1;
+	}
+
+	public MutableMatrix3(Matrix3 matrix) {
+		set(matrix);
+	}
+
+	@Override
+	public String toString() {
+		return "((" + values[0] + ", " + values[1] + ", " + values[2] + "), ("
+				+ values[3] + ", " + values[4] + ", " + values[5] + "), ("
+				+ values[6] + ", " + values[7] + ", " + values[8] + "))";
+	}
+
+	/**
+	 * Returns an immutable copy of this matrix.
+	 * 
+	 * @return A new {@link Matrix3} object with the same values as this matrix.
+	 */
+	public Matrix3 toMatrix3() {
+		return Matrix3.create(values);
+	}
+
+	/**
+	 * Copies the values of this matrix to the specified array, in row-first
+	 * order, converting them to single precision.
+	 * 
+	 * @param array
+	 *            An array of at least 9 elements.
+	 */
+	public void toArray(float[] array) {
+		for (int i = 0; i < 9; i++) {
+			array[i] = (float) values[i];
+		}
+	}
+
+	/**
+	 * Returns the value at the specified cell coordinates in this matrix.
+	 * 
+	 * @param i
+	 *            The row index.
+	 * @param j
+	 *            The column index.
+	 * @return The real value at the specified coordinates.
+	 */
+	public double getAt(int i, int j) {
+		return values[i * 3 + j];
+	}
+
+	public MutableMatrix3 set(Matrix3 matrix) {
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				values[i * 3 + j] = matrix.getAt(i, j);
+			}
+		}
+		return this;
+	}
+
+	public MutableMatrix3 set(MutableMatrix3 matrix) {
+		System.arraycopy(matrix.values, 0, values, 0, 9);
+		return this;
+	}
+
+	/**
+	 * Turns this matrix into a scaling matrix.
+	 * 
+	 * @see Matrix3#createScaling(double, double, double)
+	 */
+	public MutableMatrix3 setScaling(double x, double y, double z) {
+		values[0] = x;
+		values[1] = 0;
+		values[2] = 0;
+		values[3] = 0;
+		values[4] = y;
+		values[5] = 0;
+		values[6] = 0;
+		values[7] = 0;
+		values[8] = z;
+		return this;
+	}
+
+	/**
+	 * Turns this matrix into a rotation matrix.
+	 * 
+	 * @see Matrix3#createRotation(double, double, double, double)
+	 */
+	public MutableMatrix3 setRotation(double x, double y, double z, double a) {
+		final double s = Math.sin(a);
+		final double c = Math.cos(a);
+		values[0] = c + x * x * (1 - c);
+		values[1] = y * x * (1 - c) + z * s;
+		values[2] = z * x * (1 - c) - y * s;
+		values[3] = x * y * (1 - c) - z * s;
+		values[4] = c + y * y * (1 - c);
+		values[5] = z * y * (1 - c) + x * s;
+		values[6] = x * z * (1 - c) + y * s;
+		values[7] = y * z * (1 - c) - x * s;
+		values[8] = c + z * z * (1 - c);
+		return this;
+	}
+
+	/**
+	 * Stores the product of the two specified matrices in this one.
+	 * 
+	 * @param left
+	 *            The left operand.
+	 * @param right
+	 *            The right operand.
+	 * @return This matrix.
+	 */
+	public MutableMatrix3 multiply(MutableMatrix3 left, MutableMatrix3 right) {
+		final double[] l = left.values;
+		final double[] r = right.values;
+		final double v0 = l[0] * r[0] + l[1] * r[3] + l[2] * r[6];
+		final double v1 = l[0] * r[1] + l[1] * r[4] + l[2] * r[7];
+		final double v2 = l[0] * r[2] + l[1] * r[5] + l[2] * r[8];
+		final double v3 = l[3] * r[0] + l[4] * r[3] + l[5] * r[6];
+		final double v4 = l[3] * r[1] + l[4] * r[4] + l[5] * r[7];
+		final double v5 = l[3] * r[2] + l[4] * r[5] + l[5] * r[8];
+		final double v6 = l[6] * r[0] + l[7] * r[3] + l[8] * r[6];
+		final double v7 = l[6] * r[1] + l[7] * r[4] + l[8] * r[7];
+		final double v8 = l[6] * r[2] + l[7] * r[5] + l[8] * r[8];
+		values[0] = v0;
+		values[1] = v1;
+		values[2] = v2;
+		values[3] = v3;
+		values[4] = v4;
+		values[5] = v5;
+		values[6] = v6;
+		values[7] = v7;
+		values[8] = v8;
+		return this;
+	}
+
+	/**
+	 * Stores the inverse of the specified matrix in this one.
+	 * 
+	 * @param matrix
+	 *            The matrix to invert.
+	 * @return This matrix.
+	 */
+	public MutableMatrix3 invert(MutableMatrix3 matrix) {
+		final double[] m = matrix.values;
+		final double determinant = m[0] * (m[4] * m[8] - m[5] * m[7]) - m[1]
+				* (m[3] * m[8] - m[5] * m[6]) + m[2]
+				* (m[3] * m[7] - m[4] * m[6]);
+		final double v0 = (m[4] * m[8] - m[7] * m[5]) / determinant;
+		final double v1 = (m[2] * m[7] - m[8] * m[1]) / determinant;
+		final double v2 = (m[1] * m[5] - m[4] * m[2]) / determinant;
+		final double v3 = (m[5] * m[6] - m[8] * m[3]) / determinant;
+		final double v4 = (m[0] * m[8] - m[6] * m[2]) / determinant;
+		final double v5 = (m[2] * m[3] - m[5] * m[0]) / determinant;
+		final double v6 = (m[3] * m[7] - m[6] * m[4]) / determinant;
+		final double v7 = (m[1] * m[6] - m[7] * m[0]) / determinant;
+		final double v8 = (m[0] * m[4] - m[3] * m[1]) / determinant;
+		values[0] = v0;
+		values[1] = v1;
+		values[2] = v2;
+		values[3] = v3;
+		values[4] = v4;
+		values[5] = v5;
+		values[6] = v6;
+		values[7] = v7;
+		values[8] = v8;
+		return this;
+	}
+
+	/**
+	 * Multiplies this matrix by the specified column vector and stores the
+	 * product in <code>result</code>.
+	 * 
+	 * @param x
+	 *            The X component of the vector.
+	 * @param y
+	 *            The Y component of the vector.
+	 * @param z
+	 *            The Z component of the vector.
+	 * @param result
+	 *            The vector that receives the product.
+	 * @return <code>result</code>.
+	 */
+	public MutableVector3 transform(double x, double y, double z,
+			MutableVector3 result) {
+		return result.set(values[0] * x + values[1] * y + values[2] * z,
+				values[3] * x + values[4] * y + values[5] * z, values[6] * x
+						+ values[7] * y + values[8] * z);
+	}
+
+	public MutableVector3 transform(Vector3 v, MutableVector3 result) {
+		return transform(v.x, v.y, v.z, result);
+	}
+
+	public MutableVector3 transform(MutableVector3 v, MutableVector3 result) {
+		return transform(v.x, v.y, v.z, result);
+	}
+}
@@ -0,0 +1,102 @@
+package it.uniroma1.di.simulejos.math;
+
+/**
+ * A mutable counterpart of {@link Vector3}, meant to be reused across
+ * computations in hot paths where allocating a new immutable vector for every
+ * intermediate result would produce too much garbage.
+ * 
+ * All operations modify this vector in place and return it, so that calls can
+ * be chained. Objects of this class are not thread safe.
+ */
+public final class MutableVector3 {
+	/**
+	 * The X component of this vector.
+	 */
+	public double x;
+
+	/**
+	 * The Y component of this vector.
+	 */
+	public double y;
+
+	/**
+	 * The Z component of this vector.
+	 */
+	public double z;
+
+	/**
+	 * Constructs a null vector.
+	 */
+	public MutableVector3() {
+	}
+
+	public MutableVector3(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	public MutableVector3(Vector3 v) {
+		this(v.x, v.y, v.z);
+	}
+
+	@Override
+	public String toString() {
+		return "(" + x + ", " + y + ", " + z + ")";
+	}
+
+	/**
+	 * Returns an immutable copy of this vector.
+	 * 
+	 * @return A new {@link Vector3} object with the same components as this
+	 *         vector.
+	 */
+	public Vector3 toVector3() {
+		return new Vector3(x, y, z);
+	}
+
+	public MutableVector3 set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	public MutableVector3 set(Vector3 v) {
+		return set(v.x, v.y, v.z);
+	}
+
+	public MutableVector3 set(MutableVector3 v) {
+		return set(v.x, v.y, v.z);
+	}
+
+	public MutableVector3 add(double x, double y, double z) {
+		this.x += x;
+		this.y += y;
+		this.z += z;
+		return this;
+	}
+
+	public MutableVector3 add(MutableVector3 v) {
+		return add(v.x, v.y, v.z);
+	}
+
+	public MutableVector3 subtract(MutableVector3 v) {
+		return add(-v.x, -v.y, -v.z);
+	}
+
+	public MutableVector3 scale(double f) {
+		x *= f;
+		y *= f;
+		z *= f;
+		return this;
+	}
+
+	public double dot(MutableVector3 v) {
+		return x * v.x + y * v.y + z * v.z;
+	}
+
+	public double length() {
+		return Math.sqrt(x * x + y * y + z * z);
+	}
+}
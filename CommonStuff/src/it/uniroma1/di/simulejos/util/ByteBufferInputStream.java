@@ -0,0 +1,51 @@
+package it.uniroma1.di.simulejos.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of a buffer without copying them. The position of
+ * the buffer is not affected, as the stream reads from a duplicate.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer buffer;
+
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+	}
+
+	@Override
+	public int read() {
+		if (buffer.hasRemaining()) {
+			return buffer.get() & 0xFF;
+		} else {
+			return -1;
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		final int read = Math.min(len, buffer.remaining());
+		buffer.get(b, off, read);
+		return read;
+	}
+
+	@Override
+	public long skip(long n) {
+		final int skipped = (int) Math.max(0,
+				Math.min(n, buffer.remaining()));
+		buffer.position(buffer.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+}
@@ -0,0 +1,65 @@
+package it.uniroma1.di.simulejos.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public class DynamicIntArray implements Serializable {
+	private static final long serialVersionUID = -6051378212634817446L;
+
+	private int count;
+	private int[] array;
+
+	public DynamicIntArray(int initialCapacity) {
+		array = new int[initialCapacity];
+	}
+
+	public DynamicIntArray() {
+		this(100);
+	}
+
+	public int length() {
+		return count;
+	}
+
+	public int get(int index) {
+		if (index >= count) {
+			throw new IndexOutOfBoundsException("index: " + index
+					+ ", length: " + count);
+		}
+		return array[index];
+	}
+
+	public void put(int index, int value) {
+		if (index >= count) {
+			throw new IndexOutOfBoundsException("index: " + index
+					+ ", length: " + count);
+		}
+		array[index] = value;
+	}
+
+	public void get(int srcPos, int[] dest, int destPos, int length) {
+		System.arraycopy(array, srcPos, dest, destPos, length);
+	}
+
+	public void put(int[] src, int srcPos, int destPos, int length) {
+		System.arraycopy(src, srcPos, array, destPos, length);
+	}
+
+	public void setLength(int newLength) {
+		if (newLength > array.length) {
+			array = Arrays.copyOf(array, newLength);
+		}
+		count = newLength;
+	}
+
+	public void append(int value) {
+		if (count >= array.length) {
+			array = Arrays.copyOf(array, array.length * 2);
+		}
+		array[count++] = value;
+	}
+
+	public int[] trim() {
+		return Arrays.copyOf(array, count);
+	}
+}
@@ -5,9 +5,31 @@ public interface BrickInterface {
 
 	void resume();
 
-	void updateDisplay(boolean[] data);
+	/**
+	 * Updates a region of the display. The frame is in the packed format of
+	 * the display buffer of <code>LCD</code>, 8 rows per byte, and it is only
+	 * read during the call, so <code>LCD</code> passes its own buffer.
+	 * 
+	 * @param frame
+	 *            The contents of the whole display.
+	 * @param x
+	 *            The left edge of the region that changed.
+	 * @param y
+	 *            The top edge of the region that changed.
+	 * @param width
+	 *            The width of the region.
+	 * @param height
+	 *            The height of the region.
+	 */
+	void updateDisplay(byte[] frame, int x, int y, int width, int height);
 
-	boolean[] readDisplay();
+	/**
+	 * Returns a copy of the contents of the display, in the same packed
+	 * format as {@link #updateDisplay(byte[], int, int, int, int)}.
+	 * 
+	 * @return The contents of the display.
+	 */
+	byte[] readDisplay();
 
 	static final int ENTER_INDEX = 0;
 	static final int LEFT_INDEX = 1;
@@ -1,5 +1,6 @@
 package it.uniroma1.di.simulejos.bridge;
 
+import java.awt.GraphicsEnvironment;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
@@ -9,9 +10,59 @@ import java.io.Writer;
 import lejos.nxt.LCDOutputStream;
 
 public final class Bridge {
+	private static final int RUNNING = 0;
+	private static final int SUSPENDED = 1;
+	private static final int STOPPED = 2;
+
 	private static volatile SimulatorInterface simulator;
 	private static volatile PrintWriter log;
 	private static volatile BrickInterface brick;
+	private static final Object gate = new Object();
+	private static volatile int state = RUNNING;
+
+	private static void setState(int state) {
+		synchronized (gate) {
+			Bridge.state = state;
+			gate.notifyAll();
+		}
+	}
+
+	/**
+	 * Blocks the calling thread while the robot is suspended and throws a
+	 * {@link RobotStoppedError} once the robot has been stopped. The
+	 * Framework invokes this at its blocking points and in every motor
+	 * command, so that the simulator can suspend and stop the threads of a
+	 * robot without resorting to <code>Thread.suspend</code> and
+	 * <code>Thread.stop</code>; while the robot runs it costs a single volatile
+	 * read.
+	 * 
+	 * The simulator also interrupts the threads of a robot it stops, so that
+	 * those that are waiting reach a checkpoint.
+	 */
+	public static void checkpoint() {
+		if (state != RUNNING) {
+			awaitRunning();
+		}
+	}
+
+	private static void awaitRunning() {
+		boolean interrupted = false;
+		synchronized (gate) {
+			while (state == SUSPENDED) {
+				try {
+					gate.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (state == STOPPED) {
+			throw new RobotStoppedError();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
 
 	public static void initialize(String robotName,
 			final SimulatorInterface simulator) {
@@ -39,19 +90,32 @@ public final class Bridge {
 				closed = true;
 			}
 		});
-		brick = new NXTWindow(simulator.getParentWindow(), robotName);
+		if ((simulator.getParentWindow() != null)
+				&& !GraphicsEnvironment.isHeadless()) {
+			brick = new NXTWindow(simulator.getParentWindow(), robotName);
+		} else {
+			brick = new HeadlessBrick();
+		}
 		simulator.onSuspend(new Runnable() {
 			@Override
 			public void run() {
+				setState(SUSPENDED);
 				brick.suspend();
 			}
 		});
 		simulator.onResume(new Runnable() {
 			@Override
 			public void run() {
+				setState(RUNNING);
 				brick.resume();
 			}
 		});
+		simulator.onStop(new Runnable() {
+			@Override
+			public void run() {
+				setState(STOPPED);
+			}
+		});
 
 		System.setOut(new PrintStream(new LCDOutputStream()));
 		System.setErr(new PrintStream(new OutputStream() {
@@ -60,22 +124,18 @@ public final class Bridge {
 				log.flush();
 			}
 
+			/*
+			 * PrintStream encodes every print into one array, so this decodes
+			 * whole strings rather than single bytes
+			 */
 			@Override
 			public void write(byte[] b, int off, int len) {
-				final byte[] bytes = new byte[len];
-				System.arraycopy(b, off, bytes, 0, len);
-				log.write(new String(bytes).toCharArray());
-			}
-
-			@Override
-			public void write(byte[] b) {
-				log.write(new String(b).toCharArray());
+				log.write(new String(b, off, len));
 			}
 
 			@Override
 			public void write(int b) {
-				final byte[] bytes = new byte[] { (byte) b };
-				log.write(new String(bytes).toCharArray());
+				write(new byte[] { (byte) b }, 0, 1);
 			}
 		}));
 	}
@@ -85,6 +145,37 @@ public final class Bridge {
 		brick.dispose();
 	}
 
+	/**
+	 * Creates a daemon thread for the Framework with the thread factory of the
+	 * robot, so that it runs on a virtual thread if the robot does.
+	 * 
+	 * @param runnable
+	 *            The task of the thread.
+	 * @param name
+	 *            The name of the thread.
+	 * @return The new thread, not yet started; it must be started with
+	 *         {@link #startThread(Thread)}.
+	 */
+	public static Thread newThread(Runnable runnable, String name) {
+		final Thread thread = simulator.getThreadFactory().newThread(runnable);
+		thread.setName(name);
+		if (!thread.isDaemon()) {
+			thread.setDaemon(true);
+		}
+		return thread;
+	}
+
+	/**
+	 * Starts a thread created by {@link #newThread(Runnable, String)}, so
+	 * that the simulator tracks it from now on.
+	 * 
+	 * @param thread
+	 *            The thread to start.
+	 */
+	public static void startThread(Thread thread) {
+		simulator.startThread(thread);
+	}
+
 	public static SimulatorInterface getSimulator() {
 		return simulator;
 	}
@@ -0,0 +1,49 @@
+package it.uniroma1.di.simulejos.bridge;
+
+import it.uniroma1.di.simulejos.bridge.BrickInterface.ButtonListener.Token;
+
+/**
+ * Brick used when the simulator has no window to attach the NXT display to.
+ * The display contents are retained so that they can still be read back, and
+ * buttons are never pressed.
+ */
+final class HeadlessBrick implements BrickInterface {
+	private final PackedDisplay display = new PackedDisplay();
+
+	@Override
+	public void suspend() {
+	}
+
+	@Override
+	public void resume() {
+	}
+
+	@Override
+	public void updateDisplay(byte[] frame, int x, int y, int width,
+			int height) {
+		display.update(frame, x, y, width, height);
+	}
+
+	@Override
+	public byte[] readDisplay() {
+		return display.read();
+	}
+
+	@Override
+	public int readButtons() {
+		return 0;
+	}
+
+	@Override
+	public Token addButtonListener(ButtonListener listener) {
+		return new Token();
+	}
+
+	@Override
+	public void removeButtonListener(Token token) {
+	}
+
+	@Override
+	public void dispose() {
+	}
+}
@@ -10,6 +10,9 @@ import java.awt.Graphics;
 import java.awt.event.ActionEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
 import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -29,29 +32,40 @@ final class NXTWindow extends JDialog implements BrickInterface {
 	private static final String[] ICON_NAMES = { "enter.png", "left.png",
 			"right.png", "escape.png" };
 
-	private static final int DISPLAY_WIDTH = 100;
-	private static final int DISPLAY_HEIGHT = 64;
-	private final boolean[] display = new boolean[DISPLAY_HEIGHT
-			* DISPLAY_WIDTH];
+	private static final int DISPLAY_WIDTH = PackedDisplay.WIDTH;
+	private static final int DISPLAY_HEIGHT = PackedDisplay.HEIGHT;
+	private static final int SCALE = 2;
+	private static final Color BACKGROUND = new Color(150, 220, 150);
+
+	private final PackedDisplay display = new PackedDisplay();
+
+	/*
+	 * The display as drawn, one bit per pixel, guarded by itself.
+	 */
+	private final BufferedImage image = new BufferedImage(DISPLAY_WIDTH,
+			DISPLAY_HEIGHT, BufferedImage.TYPE_BYTE_BINARY, new IndexColorModel(
+					1, 2, new byte[] { (byte) BACKGROUND.getRed(), 0 },
+					new byte[] { (byte) BACKGROUND.getGreen(), 0 },
+					new byte[] { (byte) BACKGROUND.getBlue(), 0 }));
+	private final byte[] pixels = ((DataBufferByte) image.getRaster()
+			.getDataBuffer()).getData();
+	private final int stride = (DISPLAY_WIDTH + 7) / 8;
+
 	private final JPanel canvas = new JPanel() {
 		private static final long serialVersionUID = 6593069734136873830L;
 
 		{
-			setPreferredSize(new Dimension(DISPLAY_WIDTH * 2,
-					DISPLAY_HEIGHT * 2));
-			setBackground(new Color(150, 220, 150));
+			setPreferredSize(new Dimension(DISPLAY_WIDTH * SCALE,
+					DISPLAY_HEIGHT * SCALE));
+			setBackground(BACKGROUND);
 		}
 
 		@Override
 		public void paintComponent(Graphics context) {
 			super.paintComponent(context);
-			context.setColor(Color.BLACK);
-			for (int y = 0; y < DISPLAY_HEIGHT; y++) {
-				for (int x = 0; x < DISPLAY_WIDTH; x++) {
-					if (display[y * DISPLAY_WIDTH + x]) {
-						context.fillRect(x * 2, y * 2, 2, 2);
-					}
-				}
+			synchronized (image) {
+				context.drawImage(image, 0, 0, DISPLAY_WIDTH * SCALE,
+						DISPLAY_HEIGHT * SCALE, null);
 			}
 		}
 	};
@@ -135,16 +149,28 @@ final class NXTWindow extends JDialog implements BrickInterface {
 	}
 
 	@Override
-	public void updateDisplay(boolean[] data) {
-		synchronized (display) {
-			System.arraycopy(data, 0, display, 0, display.length);
+	public void updateDisplay(byte[] frame, int x, int y, int width,
+			int height) {
+		display.update(frame, x, y, width, height);
+		synchronized (image) {
+			for (int row = y; row < y + height; row++) {
+				for (int column = x; column < x + width; column++) {
+					final int index = row * stride + column / 8;
+					final int mask = 0x80 >> (column % 8);
+					if (PackedDisplay.getPixel(frame, column, row)) {
+						pixels[index] |= mask;
+					} else {
+						pixels[index] &= ~mask;
+					}
+				}
+			}
 		}
-		canvas.repaint();
+		canvas.repaint(x * SCALE, y * SCALE, width * SCALE, height * SCALE);
 	}
 
 	@Override
-	public boolean[] readDisplay() {
-		return display.clone();
+	public byte[] readDisplay() {
+		return display.read();
 	}
 
 	@Override
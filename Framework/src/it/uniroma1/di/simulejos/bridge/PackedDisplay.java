@@ -0,0 +1,30 @@
+package it.uniroma1.di.simulejos.bridge;
+
+/**
+ * A copy of the NXT display in the packed format of the display buffer of
+ * <code>LCD</code>: 100 columns by 8 pages of 8 rows, one byte per column of
+ * a page with the top row in the least significant bit. Updates copy only the
+ * bytes covering the changed region.
+ */
+final class PackedDisplay {
+	static final int WIDTH = 100;
+	static final int HEIGHT = 64;
+
+	private final byte[] frame = new byte[WIDTH * HEIGHT / 8];
+
+	static boolean getPixel(byte[] frame, int x, int y) {
+		return ((frame[(y / 8) * WIDTH + x] >> (y % 8)) & 1) != 0;
+	}
+
+	synchronized void update(byte[] source, int x, int y, int width,
+			int height) {
+		for (int page = y / 8; page <= (y + height - 1) / 8; page++) {
+			System.arraycopy(source, page * WIDTH + x, frame,
+					page * WIDTH + x, width);
+		}
+	}
+
+	synchronized byte[] read() {
+		return frame.clone();
+	}
+}
@@ -0,0 +1,16 @@
+package it.uniroma1.di.simulejos.bridge;
+
+/**
+ * Thrown by {@link Bridge#checkpoint()} in every thread of a robot that has
+ * been stopped, so that the threads unwind and release their monitors at a
+ * well-defined point. It is an error rather than an exception so that robot
+ * programs do not catch it by accident; if they do, the next checkpoint
+ * throws it again.
+ */
+public final class RobotStoppedError extends Error {
+	private static final long serialVersionUID = -3904853409586640384L;
+
+	RobotStoppedError() {
+		super("the robot has been stopped");
+	}
+}
@@ -0,0 +1,63 @@
+package it.uniroma1.di.simulejos.bridge;
+
+/**
+ * Replacements for the time related methods of {@link System} and
+ * {@link Thread}. The simulator's class loader redirects every invocation of
+ * <code>System.currentTimeMillis()</code>, <code>System.nanoTime()</code> and
+ * <code>Thread.sleep</code> made by the Framework and by robot programs to the
+ * methods of this class, so that they follow the simulated clock.
+ * 
+ * This class must never be rewritten, as it falls back to the system clock
+ * when no simulator is available. Its methods are also checkpoints of the
+ * robot, see {@link Bridge#checkpoint()}, so that busy loops on the clock
+ * can be suspended and stopped.
+ */
+public final class VirtualClock {
+	public static long currentTimeMillis() {
+		Bridge.checkpoint();
+		final SimulatorInterface simulator = Bridge.getSimulator();
+		if (simulator != null) {
+			return simulator.getTime() / 1000000;
+		} else {
+			return System.currentTimeMillis();
+		}
+	}
+
+	public static long nanoTime() {
+		Bridge.checkpoint();
+		final SimulatorInterface simulator = Bridge.getSimulator();
+		if (simulator != null) {
+			return simulator.getTime();
+		} else {
+			return System.nanoTime();
+		}
+	}
+
+	public static void sleep(long millis) throws InterruptedException {
+		sleep(millis, 0);
+	}
+
+	public static void sleep(long millis, int nanos)
+			throws InterruptedException {
+		if (millis < 0) {
+			throw new IllegalArgumentException("timeout value is negative");
+		}
+		if ((nanos < 0) || (nanos > 999999)) {
+			throw new IllegalArgumentException(
+					"nanosecond timeout value out of range");
+		}
+		Bridge.checkpoint();
+		final SimulatorInterface simulator = Bridge.getSimulator();
+		if (simulator != null) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			simulator.sleep(millis * 1000000 + nanos);
+		} else {
+			Thread.sleep(millis, nanos);
+		}
+	}
+
+	private VirtualClock() {
+	}
+}
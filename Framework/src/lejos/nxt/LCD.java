@@ -68,24 +68,81 @@ public class LCD {
 			/ 8];
 	private static int autoRefreshPeriod = DEFAULT_REFRESH_PERIOD;
 
+	/*
+	 * The region of the buffer changed since the last refresh, empty when
+	 * dirtyLeft >= dirtyRight, and the state of the refresh thread, all
+	 * guarded by lock.
+	 */
+	private static final Object lock = new Object();
+	private static int dirtyLeft = SCREEN_WIDTH;
+	private static int dirtyTop = SCREEN_HEIGHT;
+	private static int dirtyRight = 0;
+	private static int dirtyBottom = 0;
+	private static boolean refreshPending;
+	private static Thread refresher;
+
+	private static void markDirty(int x, int y, int w, int h) {
+		synchronized (lock) {
+			dirtyLeft = Math.max(Math.min(dirtyLeft, x), 0);
+			dirtyTop = Math.max(Math.min(dirtyTop, y), 0);
+			dirtyRight = Math.min(Math.max(dirtyRight, x + w), SCREEN_WIDTH);
+			dirtyBottom = Math.min(Math.max(dirtyBottom, y + h),
+					SCREEN_HEIGHT);
+		}
+	}
+
+	/*
+	 * Passes the buffer to the brick as it is, along with the region that
+	 * changed, which the brick copies before returning.
+	 */
 	private static void doRefresh() {
-		final boolean[] data = new boolean[SCREEN_WIDTH * SCREEN_HEIGHT];
-		for (int y = 0; y < SCREEN_HEIGHT; y++) {
-			for (int x = 0; x < SCREEN_WIDTH; x++) {
-				data[y * SCREEN_WIDTH + x] = getPixel(buffer, SCREEN_WIDTH, x,
-						y);
+		synchronized (lock) {
+			if ((dirtyLeft < dirtyRight) && (dirtyTop < dirtyBottom)) {
+				Bridge.getBrick().updateDisplay(buffer, dirtyLeft, dirtyTop,
+						dirtyRight - dirtyLeft, dirtyBottom - dirtyTop);
+				Bridge.getSimulator().updateDisplay(buffer);
+			}
+			dirtyLeft = SCREEN_WIDTH;
+			dirtyTop = SCREEN_HEIGHT;
+			dirtyRight = 0;
+			dirtyBottom = 0;
+		}
+	}
+
+	/*
+	 * Refreshes the display whenever requested. Requests made while a refresh
+	 * is in progress are served by a single further refresh.
+	 */
+	private static final class Refresher implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					synchronized (lock) {
+						while (!refreshPending) {
+							lock.wait();
+						}
+						refreshPending = false;
+					}
+					doRefresh();
+				}
+			} catch (InterruptedException e) {
+				/* the robot has been stopped */
 			}
 		}
-		Bridge.getBrick().updateDisplay(data);
 	}
 
 	public static void asyncRefresh() {
-		new Thread("display-refresh") {
-			@Override
-			public void run() {
-				doRefresh();
+		synchronized (lock) {
+			refreshPending = true;
+			if ((refresher == null) || !refresher.isAlive()) {
+				refresher = Bridge.newThread(new Refresher(),
+						"display-refresh");
+				Bridge.startThread(refresher);
+			} else {
+				lock.notify();
 			}
-		}.start();
+		}
 	}
 
 	public static void asyncRefreshWait() {
@@ -229,6 +286,7 @@ public class LCD {
 		default:
 			throw new IllegalArgumentException("invalid ROP");
 		}
+		markDirty(dx, dy, w, h);
 	}
 
 	public static void bitBlt(byte[] src, int sw, int sh, int sx, int sy,
@@ -236,7 +294,7 @@ public class LCD {
 		bitBlt(src, sw, sh, sx, sy, buffer, SCREEN_WIDTH, SCREEN_HEIGHT, dx,
 				dy, w, h, rop);
 		if (autoRefreshPeriod != 0) {
-			doRefresh();
+			asyncRefresh();
 		}
 	}
 
@@ -1,14 +1,17 @@
 package lejos.nxt;
 
+import it.uniroma1.di.simulejos.bridge.Bridge;
+
 /**
  * Utility class for dispatching events to button,  and sensor port listeners.
  * Re-worked to use new event mechanism by Andy
  * @author Paul Andrews, Andy
  */
-class ListenerThread extends Thread
+class ListenerThread implements Runnable
 {
 
     static ListenerThread singleton = null;
+    private final Thread thread = Bridge.newThread(this, "listener");
     private NXTEvent[] events = new NXTEvent[0];
     private ListenerCaller[] callers = new ListenerCaller[0];
 
@@ -21,8 +24,7 @@ class ListenerThread extends Thread
         if (singleton == null)
         {
             singleton = new ListenerThread();
-            singleton.setDaemon(true);
-            singleton.setPriority(Thread.MAX_PRIORITY);
+            singleton.thread.setPriority(Thread.MAX_PRIORITY);
         }
         return singleton;
     }
@@ -46,7 +48,7 @@ class ListenerThread extends Thread
         callers = newCallers;
         // Either start the process, or restart it with the new event
         if (events.length == 1)
-            singleton.start();
+            Bridge.startThread(thread);
         else
             events[0].notifyEvent(NXTEvent.TIMEOUT);
     }
@@ -58,11 +60,11 @@ class ListenerThread extends Thread
         try {
             for (;;)
             {
-                setPriority(Thread.MAX_PRIORITY);
+                thread.setPriority(Thread.MAX_PRIORITY);
                 if (NXTEvent.waitEvent(events, NXTEvent.WAIT_FOREVER))
                 {
                     // Run events at normal priority so they can use Thread.yield()
-                    setPriority(Thread.NORM_PRIORITY);
+                    thread.setPriority(Thread.NORM_PRIORITY);
                     for(int i = 0; i < callers.length; i++)
                     {
                         // Check to see if this event was triggered, if so call the
@@ -78,6 +78,7 @@ public class MotorPort implements TachoMotorPort {
 	 * @see BasicMotorPort#STOP
 	 */
 	public void controlMotor(int power, int mode) {
+		Bridge.checkpoint();
 		motor.control(power, MODES[mode - 1]);
 	}
 
@@ -85,6 +86,7 @@ public class MotorPort implements TachoMotorPort {
 	 * returns tachometer count
 	 */
 	public int getTachoCount() {
+		Bridge.checkpoint();
 		return motor.getCount();
 	}
 
@@ -92,9 +94,31 @@ public class MotorPort implements TachoMotorPort {
 	 * resets the tachometer count to 0;
 	 */
 	public void resetTachoCount() {
+		Bridge.checkpoint();
 		motor.resetCount();
 	}
 
+	/**
+	 * Makes the motor follow a velocity profile made of segments of constant
+	 * acceleration. This is how regulated motors are driven in the simulator,
+	 * in place of adjusting the power every few milliseconds.
+	 * 
+	 * @param velocity
+	 *            The initial velocity, in degrees per second.
+	 * @param accelerations
+	 *            The acceleration of every segment, in degrees per second
+	 *            squared.
+	 * @param durations
+	 *            The duration of every segment, in nanoseconds.
+	 * @return The time at which the profile starts, as returned by
+	 *         <code>System.nanoTime()</code>.
+	 */
+	public long follow(double velocity, double[] accelerations,
+			long[] durations) {
+		Bridge.checkpoint();
+		return motor.follow(velocity, accelerations, durations);
+	}
+
 	public int getId() {
 		return id;
 	}
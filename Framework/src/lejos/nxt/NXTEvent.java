@@ -1,5 +1,7 @@
 package lejos.nxt;
 
+import it.uniroma1.di.simulejos.bridge.Bridge;
+
 /**
  * This class allows communication of event data between the leJOS firmware and
  * the leJOS low level classes. It can be used to detect I/O completion, Port
@@ -69,6 +71,12 @@ public class NXTEvent {
 	 */
 	public final static long WAIT_FOREVER = 0x7fffffffffffffffL;
 
+	/*
+	 * Timeouts from this one on, in ms, do not fit the simulated clock, which
+	 * counts nanoseconds, and are waited as WAIT_FOREVER.
+	 */
+	private final static long MAX_SIMULATED_TIMEOUT = WAIT_FOREVER / 1000000;
+
 	/**
 	 * Register this event with the system. Events must be registered before
 	 * they are waited on.
@@ -115,6 +123,7 @@ public class NXTEvent {
 	public synchronized int waitEvent(long timeout) throws InterruptedException {
 		if (timeout <= 0L)
 			return TIMEOUT;
+		Bridge.checkpoint();
 		sync = this;
 		updatePeriodCnt = 0;
 		eventData = userEvents & filter;
@@ -124,7 +133,17 @@ public class NXTEvent {
 			if (eventData != 0)
 				state |= SET;
 			else {
-				wait(timeout);
+				/*
+				 * nothing signals events in the simulator, so waiting ends
+				 * with the timeout, which must follow the simulated clock,
+				 * or with an interrupt when the robot stops. Thread.sleep is
+				 * redirected to the simulated clock, while Object.wait is not
+				 */
+				if (timeout >= MAX_SIMULATED_TIMEOUT)
+					wait();
+				else
+					Thread.sleep(timeout);
+				Bridge.checkpoint();
 				if ((state & SET) == 0)
 					eventData |= TIMEOUT;
 			}
@@ -1,5 +1,7 @@
 package lejos.nxt;
 
+import it.uniroma1.di.simulejos.bridge.Bridge;
+import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
 import lejos.robotics.RegulatedMotor;
 import lejos.robotics.RegulatedMotorListener;
 import lejos.util.Delay;
@@ -24,7 +26,9 @@ import lejos.util.Delay;
  * It will be informed each time the motor starts or stops.
  * <br> <b>Stall detection</b> If a stall is detected or if for some other reason
  * the speed regulation fails, the motor will stop, and
- * <code>isStalled()</code >  returns <b>true</b>.
+ * <code>isStalled()</code >  returns <b>true</b>. The motors of the simulator
+ * carry no load and follow the regulator exactly, so they never stall; speeds
+ * above the speed of a motor at full power are reduced to it.
  * <br>Motors will hold thier position when stopped. If this is not what you require use
  * the flt() method instead of stop().
  * <br>
@@ -59,12 +63,11 @@ public class NXTRegulatedMotor implements RegulatedMotor
     protected int limitAngle = 0;
     protected int stallLimit = 50;
     protected int stallTime = 1000;
+    protected static final long NO_END = Long.MAX_VALUE;
     protected static final Controller cont = new Controller();
 
     static {
         // Start the single controller thread
-        cont.setPriority(Thread.MAX_PRIORITY);
-        cont.setDaemon(true);
         cont.start();
         // Add shutdown handler to stop the motors
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -143,7 +146,11 @@ public class NXTRegulatedMotor implements RegulatedMotor
      */
     public int getPosition()
     {
-        return Math.round(reg.curCnt);
+        synchronized(reg)
+        {
+            reg.update();
+            return Math.round(reg.curCnt);
+        }
     }
 
     /**
@@ -230,7 +237,10 @@ public class NXTRegulatedMotor implements RegulatedMotor
         synchronized(reg)
         {
             while(reg.moving)
+            {
                 try {reg.wait();} catch(InterruptedException e){}
+                Bridge.checkpoint();
+            }
         }
     }
 
@@ -332,6 +342,7 @@ public class NXTRegulatedMotor implements RegulatedMotor
     {
         synchronized(reg)
         {
+            reg.update();
             rotateTo(Math.round(reg.curCnt) + angle, immediateReturn);
         }
     }
@@ -394,7 +405,7 @@ public class NXTRegulatedMotor implements RegulatedMotor
     public void setStallThreshold(int error, int time)
     {
         this.stallLimit = error;
-        this.stallTime = time/Controller.UPDATE_PERIOD;
+        this.stallTime = time;
     }
     /**
      * Return the current velocity.
@@ -402,88 +413,209 @@ public class NXTRegulatedMotor implements RegulatedMotor
      */
     public int getRotationSpeed()
     {
-        return Math.round(reg.curVelocity);
+        synchronized(reg)
+        {
+            reg.update();
+            return Math.round(reg.curVelocity);
+        }
     }
 
 
     /**
      * Inner class to regulate velocity; also stop motor at desired rotation angle.
      * This class uses a very simple movement model based on simple linear
-     * acceleration. This model is used to generate ideal target positions which
-     * are then used to generate error terms between the actual and target position
-     * this error term is then used to drive a PID style motor controller to
-     * regulate the power supplied to the motor.
+     * acceleration. The motors of the simulator are ideal, so instead of
+     * driving a PID controller with the error between the actual and the
+     * target position every few milliseconds, the regulator computes the
+     * velocity profile of every move analytically, from the current velocity,
+     * the speed, the acceleration and the limit angle, and the motor port
+     * follows it exactly.
      *
      * If new command are issued while a move is in progress, the new command
-     * is blended with the current one to provide smooth movement.
-     *
-     * If the requested speed is not possible then the controller will simply
-     * drop move cycles until the motor catches up with the ideal position. If
-     * too many consecutive dropped moves are required then the motor is viewed
-     * to have stalled and the move is terminated.
+     * is blended with the current one to provide smooth movement. Otherwise
+     * the current move is stopped and the new one starts once the motor is at
+     * rest, as part of the same profile.
      *
-     * Once the motor stops, the final position is held using the same PID control
-     * mechanism (with slightly different parameters), as that used for movement.
+     * The position and the velocity of the motor are functions of time, which
+     * are evaluated when they are read. The controller only intervenes when a
+     * move ends, to notify the listener and the waiting threads.
      **/
     protected class Regulator
     {
-        // PID constants for move and for hold
-        // Old values
-        //static final float MOVE_P = 4f;
-        //static final float MOVE_I = 0.04f;
-        //static final float MOVE_D = 32f;
-        // New values
-        //static final float MOVE_P = 7f;
-        static final float MOVE_P = 6f;
-        static final float MOVE_I = 0.04f;
-        static final float MOVE_D = 22f;
-        static final float HOLD_P = 2f;
-        static final float HOLD_I = 0.04f;
-        static final float HOLD_D = 8f;
-        float basePower = 0; //used to calculate power
-        float err1 = 0; // used in smoothing
-        float err2 = 0; // used in smoothing
+        // The acceleration used when none is requested, in degrees/s/s
+        static final double MAX_ACCELERATION = 1000000;
+        static final int MAX_SEGMENTS = 8;
         float curVelocity = 0;
-        float baseVelocity = 0;
-        float baseCnt = 0;
         float curCnt = 0;
         float curAcc = 0;
-        float curStopAcc = 0;
         float curTargetVelocity = 0;
         int curLimit = NO_LIMIT;
         boolean curHold = true;
-        float accCnt = 0;
+        // The profile followed since baseTime: segments of constant
+        // acceleration, after which the velocity is endVelocity
         long baseTime = 0;
-        long now = 0;
-        long accTime = 0;
+        float baseCnt = 0;
+        float baseVelocity = 0;
+        float endVelocity = 0;
+        final double[] accelerations = new double[MAX_SEGMENTS];
+        final long[] durations = new long[MAX_SEGMENTS];
+        int segments = 0;
+        // When the current move, or the stop before a pending one, ends
+        volatile long endTime = NO_END;
         boolean moving = false;
         boolean pending = false;
-        boolean checkLimit = false;
         float newSpeed = 0;
         int newAcceleration = 0;
         int newLimit = 0;
         boolean newHold = true;
-        int tachoCnt;
-        public int power;
-        int mode;
         boolean active = false;
-        int stallCnt = 0;
+
+        /**
+         * Evaluates the position and the velocity of the profile at the
+         * current time.
+         */
+        synchronized void update()
+        {
+            long elapsed = System.nanoTime() - baseTime;
+            double velocity = baseVelocity;
+            double count = baseCnt;
+            int i = 0;
+            for (; i < segments && elapsed > 0; i++)
+            {
+                double time = Math.min(elapsed, durations[i]) / 1e9;
+                count += (velocity + accelerations[i] * time / 2) * time;
+                velocity += accelerations[i] * time;
+                elapsed -= durations[i];
+            }
+            if (i == segments && elapsed >= 0)
+            {
+                velocity = endVelocity;
+                count += velocity * elapsed / 1e9;
+            }
+            curCnt = (float) count;
+            curVelocity = (float) velocity;
+        }
 
         /**
          * Reset the tachometer readings
          */
         synchronized void reset()
         {
-            curCnt = tachoCnt = tachoPort.getTachoCount();
-            now = System.currentTimeMillis();
+            update();
+            float shift = tachoPort.getTachoCount() - curCnt;
+            baseCnt += shift;
+            curCnt += shift;
+        }
+
+        /**
+         * Helper method. Append a segment of constant acceleration to the
+         * profile.
+         * @param acceleration
+         * @param time in seconds
+         */
+        private void addSegment(double acceleration, double time)
+        {
+            if (time > 0)
+            {
+                accelerations[segments] = acceleration;
+                durations[segments] = Math.round(time * 1e9);
+                segments++;
+            }
+        }
+
+        /**
+         * Helper method. Plan a change of velocity.
+         * @return the duration of the change in seconds
+         */
+        private double planVelocity(double velocity, double target, double acc)
+        {
+            double time = Math.abs(target - velocity) / acc;
+            addSegment(target >= velocity ? acc : -acc, time);
+            return time;
+        }
+
+        /**
+         * Helper method. Plan a move that stops at a limit angle: accelerate
+         * or decelerate to the speed, hold it, and decelerate so as to stop at
+         * the limit. Short moves never reach the speed.
+         * @return the duration of the move in seconds
+         */
+        private double planLimit(double cnt, double velocity, int limit, double speed, double acc)
+        {
+            double time = 0;
+            if ((limit - cnt) * velocity < 0)
+            {
+                // moving away from the limit, stop first
+                time = planVelocity(velocity, 0, acc);
+                cnt += velocity * time / 2;
+                velocity = 0;
+            }
+            double dir = limit - cnt >= 0 ? 1 : -1;
+            double dist = Math.abs(limit - cnt);
+            double v = Math.abs(velocity);
+            if (v * v / (2 * acc) >= dist)
+            {
+                // too close to stop at the requested rate, stop at once
+                double stopAcc = dist > 0 ? v * v / (2 * dist) : acc;
+                addSegment(-dir * stopAcc, v / stopAcc);
+                return time + v / stopAcc;
+            }
+            double peak = Math.min(speed, Math.sqrt(acc * dist + v * v / 2));
+            double change = Math.abs(peak - v) / acc;
+            double cruise = Math.max(dist - Math.abs(peak * peak - v * v) / (2 * acc) - peak * peak / (2 * acc), 0) / peak;
+            addSegment(peak >= v ? dir * acc : -dir * acc, change);
+            addSegment(0, cruise);
+            addSegment(-dir * acc, peak / acc);
+            return time + change + cruise + peak / acc;
+        }
+
+        /**
+         * Helper method. Plan a move starting at the given position and
+         * velocity, and set the velocity at its end.
+         * @return the duration of the move in seconds, not including the
+         * time spent at constant velocity afterwards
+         */
+        private double plan(double cnt, double velocity, float speed, float acceleration, int limit)
+        {
+            double acc = acceleration != 0 ? Math.abs(acceleration) : MAX_ACCELERATION;
+            double target = Math.min(Math.abs(speed), SimulatorInterface.Motor.MAX_SPEED);
+            if (Math.abs(limit) != NO_LIMIT && target != 0)
+            {
+                endVelocity = 0;
+                return planLimit(cnt, velocity, limit, target, acc);
+            }
+            endVelocity = (float) (limit >= 0 ? target : -target);
+            return planVelocity(velocity, endVelocity, acc);
+        }
+
+        /**
+         * Helper method. Have the motor follow the profile.
+         */
+        private void follow()
+        {
+            if (tachoPort instanceof MotorPort)
+            {
+                double[] a = new double[segments];
+                long[] d = new long[segments];
+                System.arraycopy(accelerations, 0, a, 0, segments);
+                System.arraycopy(durations, 0, d, 0, segments);
+                baseTime = ((MotorPort) tachoPort).follow(baseVelocity, a, d);
+            }
+            else
+            {
+                // other ports can only be given a constant velocity
+                baseTime = System.nanoTime();
+                int power = (int) Math.round(Math.abs(endVelocity) * 100 / SimulatorInterface.Motor.MAX_SPEED);
+                tachoPort.controlMotor(power, endVelocity > 0 ? TachoMotorPort.FORWARD : endVelocity < 0 ? TachoMotorPort.BACKWARD : TachoMotorPort.STOP);
+            }
         }
 
         /**
          * Helper method. Start a sub move operation. A sub move consists
          * of acceleration/deceleration to a set velocity and then holding that
-         * velocity up to an optional limit point. If a limit point is set this
-         * method will be called again to initiate a controlled deceleration
-         * to that point
+         * velocity up to an optional limit point. If a limit point is set the
+         * profile also includes a controlled deceleration to that point. If a
+         * move is pending it is appended to the profile.
          * @param speed
          * @param acceleration
          * @param limit
@@ -491,20 +623,57 @@ public class NXTRegulatedMotor implements RegulatedMotor
          */
         synchronized private void startSubMove(float speed, float acceleration, int limit, boolean hold)
         {
-            float absAcc = Math.abs(acceleration);
-            checkLimit = Math.abs(limit) != NO_LIMIT;
-            baseTime = now;
-            curTargetVelocity = (limit - curCnt >= 0 ? speed : -speed);
-            curAcc = curTargetVelocity - curVelocity >= 0 ? absAcc : -absAcc;
-            curStopAcc = curTargetVelocity >= 0 ? absAcc : -absAcc;
-            accTime = Math.round(((curTargetVelocity - curVelocity) / curAcc) * 1000);
-            accCnt = (curVelocity + curTargetVelocity) * accTime / (2 * 1000);
-            baseCnt = curCnt;
-            baseVelocity = curVelocity;
+            boolean wasMoving = moving;
+            update();
+            segments = 0;
+            double time = plan(curCnt, curVelocity, speed, acceleration, limit);
+            curAcc = Math.abs(acceleration);
+            curTargetVelocity = Math.abs(limit) != NO_LIMIT ? (limit - curCnt >= 0 ? speed : -speed) : endVelocity;
             curHold = hold;
             curLimit = limit;
             limitAngle = curLimit; // limitAngle is in outer. KPT 5/13/2011 06:42
-            moving = curTargetVelocity != 0 || baseVelocity != 0;
+            baseCnt = curCnt;
+            baseVelocity = curVelocity;
+            if (Math.abs(limit) != NO_LIMIT && curTargetVelocity != 0)
+                moving = true;
+            else
+                moving = endVelocity != 0 || curVelocity != 0;
+            int stopSegments = segments;
+            if (pending)
+                plan(curCnt + curVelocity * time / 2, 0, newSpeed, newAcceleration, newLimit);
+            if (moving && (pending || endVelocity == 0))
+            {
+                follow();
+                long end = baseTime;
+                for (int i = 0; i < stopSegments; i++)
+                    end += durations[i];
+                endTime = end;
+                cont.schedule(endTime);
+            }
+            else
+            {
+                endTime = NO_END;
+                if (moving || curHold)
+                    follow();
+                else
+                    release();
+            }
+            // a move that ended before the controller noticed
+            if (wasMoving && !moving)
+                notifyAll();
+        }
+
+        /**
+         * Helper method. Float the motor and stop regulating it.
+         */
+        private void release()
+        {
+            segments = 0;
+            baseVelocity = endVelocity = 0;
+            tachoPort.controlMotor(0, TachoMotorPort.FLOAT);
+            baseTime = System.nanoTime();
+            active = false;
+            cont.removeMotor(NXTRegulatedMotor.this);
         }
 
         /**
@@ -514,12 +683,15 @@ public class NXTRegulatedMotor implements RegulatedMotor
         private void waitStop()
         {
             if (moving)
+            {
                 try
                 {
                     wait();
                 } catch (Exception e)
                 {
                 }
+                Bridge.checkpoint();
+            }
         }
 
         /**
@@ -539,6 +711,7 @@ public class NXTRegulatedMotor implements RegulatedMotor
                 cont.addMotor(NXTRegulatedMotor.this);
                 active = true;
             }
+            update();
             // ditch any existing pending command
             pending = false;
             // Stop moves always happen now
@@ -609,21 +782,14 @@ public class NXTRegulatedMotor implements RegulatedMotor
         }
 
         /**
-         * The move has completed either by the motor stopping or by it stalling
-         * @param stalled
+         * The move has completed: the motor has stopped, either at the limit
+         * or to reverse direction.
          */
-        synchronized private void endMove(boolean stalled)
+        synchronized private void endMove()
         {
             moving = pending;
-            updateState(0, curHold, stalled);
-            if (stalled)
-            {
-                // stalled try and maintain current position
-                reset();
-                curVelocity = 0;
-                stallCnt = 0;
-                startSubMove(0, 0, NO_LIMIT, curHold);
-            }
+            endTime = NO_END;
+            updateState(0, curHold, false);
             // if we have a new move, go start it
             if (pending)
             {
@@ -631,111 +797,43 @@ public class NXTRegulatedMotor implements RegulatedMotor
                 startSubMove(newSpeed, newAcceleration, newLimit, newHold);
                 updateState(Math.round(curTargetVelocity), curHold, false);
             }
+            else if (!curHold)
+                release();
             notifyAll();
         }
 
         /**
-         * Monitors time and tachoCount to regulate velocity and stop motor rotation at limit angle
-         */
-        synchronized void regulateMotor(long delta)
-        {
-            float error;
-            now += delta;
-            long elapsed = now - baseTime;
-            if (moving)
-            {
-                if (elapsed < accTime)
-                {
-                    // We are still acclerating, calculate new position
-                    curVelocity = baseVelocity + curAcc * elapsed / (1000);
-                    curCnt = baseCnt + (baseVelocity + curVelocity) * elapsed / (2 * 1000);
-                    error = curCnt - tachoCnt;
-                } else
-                {
-                    // no longer acclerating, calculate new psotion
-                    curVelocity = curTargetVelocity;
-                    curCnt = baseCnt + accCnt + curVelocity * (elapsed - accTime) / 1000;
-                    error = curCnt - tachoCnt;
-                    // Check to see if the move is complete
-                    if (curTargetVelocity == 0 && (pending || (Math.abs(error) < 2 && elapsed > accTime + 100) || elapsed > accTime + 500))
-                    {
-                        endMove(false);
-                    }
-                }
-                // check for stall
-                if (Math.abs(error) > stallLimit)
-                {
-                    baseTime += delta;
-                    if (stallCnt++ > stallTime) endMove(true);
-                }
-                else
-                {
-                    stallCnt /= 2;
-                }
-                calcPower(error, MOVE_P, MOVE_I, MOVE_D);
-                // If we have a move limit, check for time to start the deceleration stage
-                if (checkLimit)
-                {
-                    float acc = (curVelocity*curVelocity)/(2*(curLimit - curCnt));
-                    if (curStopAcc/acc < 1.0)
-                        startSubMove(0, acc, NO_LIMIT, curHold);
-                }
-            } else if (curHold)
-            {
-                // not moving, hold position
-                error = curCnt - tachoCnt;
-                calcPower(error, HOLD_P, HOLD_I, HOLD_D);
-            }
-            else
-            {
-                // Allow the motor to move freely
-                curCnt = tachoCnt;
-                power = 0;
-                mode = TachoMotorPort.FLOAT;
-                active = false;
-                cont.removeMotor(NXTRegulatedMotor.this);
-            }
-        }// end run
-
-        /**
-         * helper method for velocity regulation.
-         * calculates power from error using double smoothing and PID like
-         * control
-         * @param error
+         * End the move if it is over.
+         * @param now the current time in nanoseconds
          */
-        private void calcPower(float error, float P, float I, float D)
+        synchronized void checkEnd(long now)
         {
-            // use smoothing to reduce the noise in frequent tacho count readings
-            // New values
-            err1 = 0.375f * err1 + 0.625f * error;  // fast smoothing
-            err2 = 0.75f * err2 + 0.25f * error; // slow smoothing
-            // Original values
-            //err1 = 0.5f * err1 + 0.5f * error;  // fast smoothing
-            //err2 = 0.8f * err2 + 0.2f * error; // slow smoothing
-            float newPower = basePower + P * err1 + D * (err1 - err2);
-            basePower = basePower + I * (newPower - basePower);
-            if (basePower > TachoMotorPort.MAX_POWER)
-                basePower = TachoMotorPort.MAX_POWER;
-            else if (basePower < -TachoMotorPort.MAX_POWER)
-                basePower = -TachoMotorPort.MAX_POWER;
-            power = (newPower > TachoMotorPort.MAX_POWER ? TachoMotorPort.MAX_POWER : newPower < -TachoMotorPort.MAX_POWER ? -TachoMotorPort.MAX_POWER : Math.round(newPower));
-
-            mode = (power == 0 ? TachoMotorPort.STOP : TachoMotorPort.FORWARD);
+            if (endTime <= now)
+                endMove();
         }
     }
 
     /**
-     * This class provides a single thread that drives all of the motor regulation
-     * process. Only active motors will be regulated. To try and keep motors
-     * as closely synchronized as possible tach counts for all motors are gathered
-     * as close as possible to the same time. Similarly new power levels for each
-     * motor are also set at the same time.
+     * This class provides a single thread that ends the moves of all of the
+     * motors. As the motors follow their profiles by themselves, the thread
+     * sleeps on the simulated clock until the earliest end of a move, rather
+     * than waking up every few milliseconds, so moves end in step with the
+     * simulation and idle motors cost nothing.
      */
-    protected static class Controller extends Thread
+    protected static class Controller implements Runnable
     {
-        static final int UPDATE_PERIOD = 4;
         NXTRegulatedMotor [] activeMotors = new NXTRegulatedMotor[0];
         boolean running = false;
+        private Thread thread;
+        private long wakeTime = NO_END;
+        private boolean sleeping = false;
+
+        void start()
+        {
+            thread = Bridge.newThread(this, "motor-controller");
+            thread.setPriority(Thread.MAX_PRIORITY);
+            Bridge.startThread(thread);
+        }
 
         /**
          * Add a motor to the set of active motors.
@@ -763,14 +861,31 @@ public class NXTRegulatedMotor implements RegulatedMotor
                     newMotors[j++] = activeMotors[i];
             activeMotors = newMotors;
         }
-        
+
+        /**
+         * Make sure that the controller wakes up in time for a move that
+         * ends at the specified time.
+         * @param time
+         */
+        synchronized void schedule(long time)
+        {
+            if (time < wakeTime)
+            {
+                wakeTime = time;
+                if (sleeping)
+                    thread.interrupt();
+                else
+                    notifyAll();
+            }
+        }
+
         synchronized void shutdown()
         {
             // Shutdown all of the motors and prevent them from running
             running = false;
             for(NXTRegulatedMotor m : activeMotors)
                 m.tachoPort.controlMotor(0, TachoMotorPort.FLOAT);
-            activeMotors = new NXTRegulatedMotor[0];            
+            activeMotors = new NXTRegulatedMotor[0];
         }
 
 
@@ -778,23 +893,44 @@ public class NXTRegulatedMotor implements RegulatedMotor
         public void run()
         {
             running = true;
-            long now = System.currentTimeMillis();
             while(running)
             {
-                long delta;
+                NXTRegulatedMotor [] motors;
+                long next;
                 synchronized (this)
                 {
-                    delta = System.currentTimeMillis() - now;
-                    NXTRegulatedMotor [] motors = activeMotors;
-                    now += delta;
+                    motors = activeMotors;
+                    wakeTime = NO_END;
                     for(NXTRegulatedMotor m : motors)
-                        m.reg.tachoCnt = m.tachoPort.getTachoCount();
-                    for(NXTRegulatedMotor m : motors)
-                        m.reg.regulateMotor(delta);
-                    for(NXTRegulatedMotor m : motors)
-                        m.tachoPort.controlMotor(m.reg.power, m.reg.mode);
+                        wakeTime = Math.min(wakeTime, m.reg.endTime);
+                    if (wakeTime == NO_END)
+                    {
+                        try {wait();} catch(InterruptedException e){}
+                        Bridge.checkpoint();
+                        continue;
+                    }
+                    sleeping = true;
+                    next = wakeTime;
+                }
+                long delay = next - System.nanoTime();
+                try
+                {
+                    if (delay > 0)
+                        Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                }
+                catch (InterruptedException e)
+                {
+                    // an earlier end has been scheduled
+                }
+                synchronized (this)
+                {
+                    sleeping = false;
+                    Thread.interrupted();
+                    motors = activeMotors;
                 }
-                Delay.msDelay(now + UPDATE_PERIOD - System.currentTimeMillis());
+                long now = System.nanoTime();
+                for(NXTRegulatedMotor m : motors)
+                    m.reg.checkEnd(now);
             }	// end keep going loop
         }
     }
@@ -68,9 +68,17 @@ public class SensorPort implements LegacySensorPort, I2CPort, ListenerCaller {
 
 	private final SimulatorInterface.Sensor sensor;
 
-	/** I2C event filter bits */
-	private static final int I2C_IO_COMPLETE = 1;
-	private static final int I2C_BUS_FREE = 0x100;
+	/*
+	 * The bytes read by the last I2C transaction started on this port, and
+	 * the time, on the simulated clock, when the transaction completes. A
+	 * transaction keeps the bus busy for the time it takes to transfer its
+	 * bytes, address included, at the 9600 Hz clock of the NXT, unless the
+	 * port runs at high speed.
+	 */
+	private final byte[] i2cReadBuffer = new byte[MAX_IO];
+	private int i2cReadLength;
+	private long i2cCompletion;
+	private static final int I2C_BYTE_TIME = 1;
 	private static final int I2C_BUS_FREE_TIMEOUT = 10;
 
 	/**
@@ -1085,7 +1093,28 @@ public class SensorPort implements LegacySensorPort, I2CPort, ListenerCaller {
 	 *         -4: Buffer size error. -5: Bus is busy
 	 */
 	private static int i2cStatusById(int aPortId) {
-		throw new NotImplementedException("SensorPort.i2cStatusById");
+		final SensorPort port = getInstance(aPortId);
+		if (!(port.sensor instanceof SimulatorInterface.I2CSensor)) {
+			return ERR_INVALID_PORT;
+		}
+		return port.i2cBusy() ? ERR_BUSY : 0;
+	}
+
+	private boolean i2cBusy() {
+		return System.currentTimeMillis() < i2cCompletion;
+	}
+
+	/*
+	 * Sleeps on the simulated clock until the current transaction completes,
+	 * or for at most the specified time.
+	 */
+	private void i2cWaitComplete(long timeout) throws InterruptedException {
+		final long start = System.currentTimeMillis();
+		long now;
+		while (((now = System.currentTimeMillis()) < i2cCompletion)
+				&& (now - start < timeout))
+			Thread.sleep(Math.min(i2cCompletion - now, timeout
+					- (now - start)));
 	}
 
 	/**
@@ -1107,7 +1136,31 @@ public class SensorPort implements LegacySensorPort, I2CPort, ListenerCaller {
 	 */
 	private static int i2cStartById(int aPortId, int address,
 			byte[] writeBuffer, int writeOffset, int writeLen, int readLen) {
-		throw new NotImplementedException("SensorPort.i2cStartById");
+		final SensorPort port = getInstance(aPortId);
+		if (!(port.sensor instanceof SimulatorInterface.I2CSensor)) {
+			return ERR_INVALID_PORT;
+		}
+		if ((writeLen > MAX_IO) || (readLen > MAX_IO)) {
+			return ERR_INVALID_LENGTH;
+		}
+		if (port.i2cBusy()) {
+			return ERR_BUS_BUSY;
+		}
+		// The simulated device answers right away, the bus stays busy for
+		// the time of the transfer.
+		final int ret = ((SimulatorInterface.I2CSensor) port.sensor)
+				.transaction(address, writeBuffer, writeOffset, writeLen,
+						port.i2cReadBuffer, 0, readLen);
+		if (ret < 0) {
+			port.i2cReadLength = 0;
+			return ERR_FAULT;
+		}
+		port.i2cReadLength = ret;
+		if (!port.i2cHighSpeed) {
+			port.i2cCompletion = System.currentTimeMillis()
+					+ (1 + writeLen + readLen) * I2C_BYTE_TIME;
+		}
+		return 0;
 	}
 
 	/**
@@ -1125,7 +1178,16 @@ public class SensorPort implements LegacySensorPort, I2CPort, ListenerCaller {
 	 */
 	private static int i2cCompleteById(int aPortId, byte[] readBuffer,
 			int offset, int readLen) {
-		throw new NotImplementedException("SensorPort.i2cCompleteById");
+		final SensorPort port = getInstance(aPortId);
+		if (port.i2cBusy()) {
+			return ERR_BUSY;
+		}
+		final int length = Math.min(readLen, port.i2cReadLength);
+		if (length > 0) {
+			System.arraycopy(port.i2cReadBuffer, 0, readBuffer, offset, length);
+		}
+		port.i2cReadLength = 0;
+		return length;
 	}
 
 	/**
@@ -1166,8 +1228,7 @@ public class SensorPort implements LegacySensorPort, I2CPort, ListenerCaller {
 		// No need to wait for high speed ports
 		if (!i2cHighSpeed)
 			try {
-				i2cEvent.waitEvent(I2C_IO_COMPLETE << iPortId,
-						NXTEvent.WAIT_FOREVER);
+				i2cWaitComplete(NXTEvent.WAIT_FOREVER);
 			} catch (InterruptedException e) {
 				// TODO: Decide if this method should simply throw the exception
 				// preserve state of interrupt flag
@@ -1250,12 +1311,9 @@ public class SensorPort implements LegacySensorPort, I2CPort, ListenerCaller {
 				writeLen, readLen);
 		try {
 			if (ret == ERR_BUS_BUSY) {
-				// The bus is busy (clock and/or data lines not pulled up to 1).
-				// This could be because a sensor (Lego Ultrasonic) is holding
-				// on to the bus, or because no sensor is plugged in. So we wait
-				// for a short while for it to become free and try again.
-				i2cEvent.waitEvent(I2C_BUS_FREE << iPortId,
-						I2C_BUS_FREE_TIMEOUT);
+				// The bus is busy with a transaction started by i2cStart. So
+				// we wait for a short while for it to complete and try again.
+				i2cWaitComplete(I2C_BUS_FREE_TIMEOUT);
 				ret = i2cStartById(iPortId, deviceAddress, writeBuf,
 						writeOffset, writeLen, readLen);
 			}
@@ -1264,8 +1322,7 @@ public class SensorPort implements LegacySensorPort, I2CPort, ListenerCaller {
 
 			// No need to wait for high speed ports
 			if (!i2cHighSpeed)
-				i2cEvent.waitEvent(I2C_IO_COMPLETE << iPortId,
-						NXTEvent.WAIT_FOREVER);
+				i2cWaitComplete(NXTEvent.WAIT_FOREVER);
 		} catch (InterruptedException e) {
 			// TODO: Need to decide if this should simply throw the exception
 			// preserve state of interrupt flag
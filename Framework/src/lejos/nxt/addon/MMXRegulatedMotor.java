@@ -1,5 +1,6 @@
 package lejos.nxt.addon;
 
+import it.uniroma1.di.simulejos.bridge.Bridge;
 import lejos.nxt.addon.NXTMMX;
 
 import lejos.robotics.RegulatedMotor;
@@ -273,6 +274,7 @@ public class MMXRegulatedMotor extends MMXMotor implements RegulatedMotor{
             } catch (InterruptedException e) {
                 ;// do nothing
             }
+            Bridge.checkpoint();
             if (!this.tachoMonitor.isMoving()) break;
         }
     }
@@ -1,5 +1,6 @@
 package lejos.robotics.subsumption;
 
+import it.uniroma1.di.simulejos.bridge.Bridge;
 
 /**
  * Arbitrator controls which Behavior object will become active in
@@ -33,6 +34,7 @@ public class Arbitrator
    * priority.  If higher than the active behavior, it calls active.suppress()
    */
   private Monitor monitor;
+  private Thread monitorThread;
 
   /**
    * Allocates an Arbitrator object and initializes it with an array of
@@ -50,7 +52,7 @@ public class Arbitrator
     _behavior = behaviorList;
     _returnWhenInactive = returnWhenInactive;
     monitor = new Monitor();
-    monitor.setDaemon(true);
+    monitorThread = Bridge.newThread(monitor, "arbitrator");
   }
 
   /**
@@ -71,7 +73,7 @@ public class Arbitrator
    */
   public void start()
   {
-    monitor.start();
+    Bridge.startThread(monitorThread);
     while (_highestPriority == NONE)
     {
       Thread.yield();//wait for some behavior to take contro                    
@@ -104,7 +106,7 @@ public class Arbitrator
    * If this priority is higher than the active behavior, it calls active.suppress().
    * If there is no active behavior, calls suppress() on the most recently acrive behavior.
    */
-  private class Monitor extends Thread
+  private class Monitor implements Runnable
   {
 
     boolean more = true;
@@ -38,39 +38,38 @@ public class Delay {
     /**
      * Wait for the specified number of microseconds.
      * Delays the current thread for the specified period of time. Can not
-     * be interrupted.
+     * be interrupted (but it does preserve the interrupted state).
      * @param period time to wait in us
      */
     public static void usDelay(long period)
     {
-        long end = System.nanoTime() + period*1000;
-        msDelay(period/1000);
-        // To improve accuracy for small time periods we use a spin loop.
-        // Note that we will still have jitter (due to the scheduler, but
-        // this is probably better than nothing).
-        while (System.nanoTime() < end)
-        {
-        	// just spin
-        }
+        nsDelay(period*1000);
     }
 
     /**
      * Wait for the specified number of nanoseconds.
      * Delays the current thread for the specified period of time. Can not
-     * be interrupted.
+     * be interrupted (but it does preserve the interrupted state).
+     * In the simulator the delay is measured on the simulated clock, so
+     * it is exact rather than being approximated by a spin loop.
      * @param period time to wait in ns
      */
     public static void nsDelay(long period)
     {
+        if (period <= 0) return;
         long end = System.nanoTime() + period;
-        msDelay(period/1000000);
-        // To improve accuracy for small time periods we use a spin loop.
-        // Note that we will still have jitter (due to the scheduler, but
-        // this is probably better than nothing).
-        while (System.nanoTime() < end)
-        {
-        	// just spin
-        }
+        boolean interrupted = false;
+        do {
+            try {
+                Thread.sleep(period/1000000, (int)(period%1000000));
+            } catch (InterruptedException ie)
+            {
+                interrupted = true;
+            }
+            period = end - System.nanoTime();
+        } while (period > 0);
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
 }
@@ -0,0 +1,229 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.wavefront.ParseException;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The models and images loaded by a simulation, by the digest of their
+ * contents, so that robots built from the same model file, or from copies of
+ * it, share a single {@link ModelData}. An asset is loaded once even if it is
+ * requested by several threads at the same time; a failed load is forgotten,
+ * so that it can be retried. The digest of a file is only computed again when
+ * its path, modification time or size change.
+ */
+final class AssetCache {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final ConcurrentMap<String, FutureTask<?>> assets =
+			new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, String> digests =
+			new ConcurrentHashMap<>();
+
+	private interface Loader<T> {
+		T load() throws IOException, ParseException;
+	}
+
+	/*
+	 * The SHA-256 digest of the contents of a file, in hexadecimal.
+	 */
+	private static String digest(File file) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		try (FileChannel channel = new FileInputStream(file).getChannel()) {
+			final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		final StringBuilder builder = new StringBuilder();
+		for (byte b : digest.digest()) {
+			builder.append(String.format("%02x", b));
+		}
+		return builder.toString();
+	}
+
+	/*
+	 * The digest of a file, computed only if the file is new or has changed
+	 * since it was last digested.
+	 */
+	private String getDigest(File file) throws IOException {
+		final String key = file.getAbsolutePath() + ":" + file.lastModified()
+				+ ":" + file.length();
+		String digest = digests.get(key);
+		if (digest == null) {
+			digest = digest(file);
+			digests.put(key, digest);
+		}
+		return digest;
+	}
+
+	/**
+	 * Waits for an asset loaded by {@link #loadModel(File, boolean, Executor)}
+	 * or {@link #loadImage(File, Executor)}.
+	 * 
+	 * @param future
+	 *            The pending asset.
+	 * @return The asset.
+	 * @throws IOException
+	 *             If the asset cannot be read, or the calling thread is
+	 *             interrupted.
+	 * @throws ParseException
+	 *             If the asset is malformed.
+	 */
+	static <T> T await(Future<T> future) throws IOException, ParseException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof ParseException) {
+				throw (ParseException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T get(String key, final Loader<T> loader) throws IOException,
+			ParseException {
+		final FutureTask<T> task = new FutureTask<>(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				return loader.load();
+			}
+		});
+		FutureTask<T> existing = (FutureTask<T>) assets.putIfAbsent(key, task);
+		if (existing == null) {
+			existing = task;
+			task.run();
+		}
+		try {
+			return await(existing);
+		} catch (IOException | ParseException | RuntimeException e) {
+			assets.remove(key, existing);
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the model stored in a Wavefront OBJ file, see
+	 * {@link ModelData#read(File, boolean)}.
+	 * 
+	 * @param file
+	 *            The OBJ file.
+	 * @param swapYAndZ
+	 *            Whether the Y and Z axes of the model must be swapped.
+	 * @return The model, shared with all the robots built from the same
+	 *         contents.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws ParseException
+	 *             If the file is malformed.
+	 */
+	ModelData getModel(final File file, final boolean swapYAndZ)
+			throws IOException, ParseException {
+		return get("model:" + swapYAndZ + ":" + getDigest(file),
+				new Loader<ModelData>() {
+					@Override
+					public ModelData load() throws IOException,
+							ParseException {
+						return ModelData.read(file, swapYAndZ);
+					}
+				});
+	}
+
+	/**
+	 * Returns the image stored in a file.
+	 * 
+	 * @param file
+	 *            The image file, in any format supported by
+	 *            {@link ImageIO}.
+	 * @return The image, shared with all the requests for the same contents.
+	 * @throws IOException
+	 *             If the file cannot be read or its format is not supported.
+	 */
+	BufferedImage getImage(final File file) throws IOException {
+		try {
+			return get("image:" + getDigest(file), new Loader<BufferedImage>() {
+				@Override
+				public BufferedImage load() throws IOException {
+					final BufferedImage image = ImageIO.read(file);
+					if (image == null) {
+						throw new IOException("unsupported image format: "
+								+ file.getAbsolutePath());
+					}
+					return image;
+				}
+			});
+		} catch (ParseException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Starts loading a model on the specified executor.
+	 * 
+	 * @see #getModel(File, boolean)
+	 */
+	Future<ModelData> loadModel(final File file, final boolean swapYAndZ,
+			Executor executor) {
+		final FutureTask<ModelData> task = new FutureTask<>(
+				new Callable<ModelData>() {
+					@Override
+					public ModelData call() throws Exception {
+						return getModel(file, swapYAndZ);
+					}
+				});
+		executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Starts loading an image on the specified executor.
+	 * 
+	 * @see #getImage(File)
+	 */
+	Future<BufferedImage> loadImage(final File file, Executor executor) {
+		final FutureTask<BufferedImage> task = new FutureTask<>(
+				new Callable<BufferedImage>() {
+					@Override
+					public BufferedImage call() throws Exception {
+						return getImage(file);
+					}
+				});
+		executor.execute(task);
+		return task;
+	}
+}
@@ -0,0 +1,274 @@
+package it.uniroma1.di.simulejos;
+
+/**
+ * A bounding volume hierarchy over the triangles of a model, used to cast rays
+ * against the model without testing every triangle.
+ * 
+ * The hierarchy is a binary tree of axis-aligned boxes, built top-down by
+ * splitting the triangles of each node at the median of their centroids along
+ * the longest axis. Nodes are stored depth-first in flat arrays, so that the
+ * first child of a node immediately follows it, and the vertices of the
+ * triangles are copied in leaf order to keep each leaf contiguous in memory.
+ * 
+ * Instances are immutable and can be queried by any number of threads.
+ */
+final class BoundingVolumeHierarchy {
+	private static final int LEAF_SIZE = 4;
+	private static final int MAX_DEPTH = 64;
+	private static final double EPSILON = 1e-12;
+
+	/*
+	 * The nine vertex coordinates of each triangle, in leaf order.
+	 */
+	private final float[] triangles;
+
+	/*
+	 * The lower and upper corners of the box of each node.
+	 */
+	private final float[] boxes;
+
+	/*
+	 * For each node, either the index of its second child and 0, or the index
+	 * of its first triangle and the number of its triangles if it is a leaf.
+	 */
+	private final int[] nodes;
+
+	private int nodeCount;
+
+	/**
+	 * Builds the hierarchy of a triangle mesh.
+	 * 
+	 * @param vertices
+	 *            The vertices of the mesh, four coordinates each.
+	 * @param indices
+	 *            The vertex indices of the triangles, three each.
+	 */
+	BoundingVolumeHierarchy(float[] vertices, int[] indices) {
+		final int count = indices.length / 3;
+		final float[] source = new float[count * 9];
+		final double[] centroids = new double[count * 3];
+		final int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			for (int j = 0; j < 3; j++) {
+				final int vertex = indices[i * 3 + j] * 4;
+				for (int k = 0; k < 3; k++) {
+					source[i * 9 + j * 3 + k] = vertices[vertex + k];
+					centroids[i * 3 + k] += vertices[vertex + k] / 3.0;
+				}
+			}
+			order[i] = i;
+		}
+		final int capacity = Math.max(2 * count - 1, 1);
+		boxes = new float[capacity * 6];
+		nodes = new int[capacity * 2];
+		build(source, centroids, order, 0, count, 0);
+		triangles = new float[count * 9];
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(source, order[i] * 9, triangles, i * 9, 9);
+		}
+	}
+
+	/*
+	 * Builds the subtree of the triangles in the specified range of the order
+	 * array, rearranging them so that each leaf gets a contiguous range.
+	 */
+	private void build(float[] source, double[] centroids, int[] order,
+			int start, int end, int depth) {
+		final int node = nodeCount++;
+		final int box = node * 6;
+		for (int k = 0; k < 3; k++) {
+			boxes[box + k] = Float.POSITIVE_INFINITY;
+			boxes[box + 3 + k] = Float.NEGATIVE_INFINITY;
+		}
+		final double[] min = { Double.POSITIVE_INFINITY,
+				Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		final double[] max = { Double.NEGATIVE_INFINITY,
+				Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (int i = start; i < end; i++) {
+			final int triangle = order[i];
+			for (int j = 0; j < 9; j++) {
+				final float value = source[triangle * 9 + j];
+				boxes[box + j % 3] = Math.min(boxes[box + j % 3], value);
+				boxes[box + 3 + j % 3] = Math.max(boxes[box + 3 + j % 3],
+						value);
+			}
+			for (int k = 0; k < 3; k++) {
+				min[k] = Math.min(min[k], centroids[triangle * 3 + k]);
+				max[k] = Math.max(max[k], centroids[triangle * 3 + k]);
+			}
+		}
+		if ((end - start <= LEAF_SIZE) || (depth >= MAX_DEPTH - 1)) {
+			nodes[node * 2] = start;
+			nodes[node * 2 + 1] = end - start;
+			return;
+		}
+		int axis = 0;
+		for (int k = 1; k < 3; k++) {
+			if (max[k] - min[k] > max[axis] - min[axis]) {
+				axis = k;
+			}
+		}
+		final int middle = (start + end) >>> 1;
+		select(centroids, axis, order, start, end - 1, middle);
+		build(source, centroids, order, start, middle, depth + 1);
+		nodes[node * 2] = nodeCount;
+		nodes[node * 2 + 1] = 0;
+		build(source, centroids, order, middle, end, depth + 1);
+	}
+
+	/*
+	 * Partially sorts the specified inclusive range of the order array so
+	 * that the triangle at index n is the one that would be there if the
+	 * range were sorted by centroid along the specified axis.
+	 */
+	private static void select(double[] centroids, int axis, int[] order,
+			int left, int right, int n) {
+		while (left < right) {
+			final double pivot = centroids[order[(left + right) >>> 1] * 3
+					+ axis];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (centroids[order[i] * 3 + axis] < pivot) {
+					i++;
+				}
+				while (centroids[order[j] * 3 + axis] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					final int swap = order[i];
+					order[i++] = order[j];
+					order[j--] = swap;
+				}
+			}
+			if (n <= j) {
+				right = j;
+			} else if (n >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Intersects a ray with the mesh.
+	 * 
+	 * @param ox
+	 *            The X coordinate of the origin of the ray.
+	 * @param oy
+	 *            The Y coordinate of the origin of the ray.
+	 * @param oz
+	 *            The Z coordinate of the origin of the ray.
+	 * @param dx
+	 *            The X component of the direction of the ray.
+	 * @param dy
+	 *            The Y component of the direction of the ray.
+	 * @param dz
+	 *            The Z component of the direction of the ray.
+	 * @param range
+	 *            The maximum distance of a hit, in multiples of the direction
+	 *            vector.
+	 * @param any
+	 *            Whether any hit suffices, in which case the search stops at
+	 *            the first one found rather than the nearest.
+	 * @return The distance of the hit in multiples of the direction vector,
+	 *         or {@link Double#POSITIVE_INFINITY} if the ray does not hit the
+	 *         mesh within the range.
+	 */
+	double cast(double ox, double oy, double oz, double dx, double dy,
+			double dz, double range, boolean any) {
+		if (nodeCount == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		final double ix = 1 / dx;
+		final double iy = 1 / dy;
+		final double iz = 1 / dz;
+		double nearest = Double.POSITIVE_INFINITY;
+		double limit = range;
+		final int[] stack = new int[MAX_DEPTH];
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			final int node = stack[--top];
+			if (!hitsBox(node * 6, ox, oy, oz, ix, iy, iz, limit)) {
+				continue;
+			}
+			final int count = nodes[node * 2 + 1];
+			if (count == 0) {
+				stack[top++] = nodes[node * 2];
+				stack[top++] = node + 1;
+				continue;
+			}
+			final int first = nodes[node * 2];
+			for (int i = first; i < first + count; i++) {
+				final double t = hitTriangle(i * 9, ox, oy, oz, dx, dy, dz);
+				if ((t >= 0) && (t <= limit)) {
+					if (any) {
+						return t;
+					}
+					nearest = limit = t;
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/*
+	 * Tells whether a ray, given with the inverse of its direction, enters a
+	 * box before the specified distance.
+	 */
+	private boolean hitsBox(int box, double ox, double oy, double oz,
+			double ix, double iy, double iz, double limit) {
+		double t1 = (boxes[box] - ox) * ix;
+		double t2 = (boxes[box + 3] - ox) * ix;
+		double near = Math.min(t1, t2);
+		double far = Math.max(t1, t2);
+		t1 = (boxes[box + 1] - oy) * iy;
+		t2 = (boxes[box + 4] - oy) * iy;
+		near = Math.max(near, Math.min(t1, t2));
+		far = Math.min(far, Math.max(t1, t2));
+		t1 = (boxes[box + 2] - oz) * iz;
+		t2 = (boxes[box + 5] - oz) * iz;
+		near = Math.max(near, Math.min(t1, t2));
+		far = Math.min(far, Math.max(t1, t2));
+		return (near <= far) && (far >= 0) && (near <= limit);
+	}
+
+	/*
+	 * Intersects a ray with a triangle using the Moller-Trumbore algorithm
+	 * and returns the distance of the hit, or -1 if there is none.
+	 */
+	private double hitTriangle(int triangle, double ox, double oy, double oz,
+			double dx, double dy, double dz) {
+		final float[] v = triangles;
+		final double e1x = v[triangle + 3] - v[triangle];
+		final double e1y = v[triangle + 4] - v[triangle + 1];
+		final double e1z = v[triangle + 5] - v[triangle + 2];
+		final double e2x = v[triangle + 6] - v[triangle];
+		final double e2y = v[triangle + 7] - v[triangle + 1];
+		final double e2z = v[triangle + 8] - v[triangle + 2];
+		final double px = dy * e2z - dz * e2y;
+		final double py = dz * e2x - dx * e2z;
+		final double pz = dx * e2y - dy * e2x;
+		final double determinant = e1x * px + e1y * py + e1z * pz;
+		if (Math.abs(determinant) < EPSILON) {
+			return -1;
+		}
+		final double sx = ox - v[triangle];
+		final double sy = oy - v[triangle + 1];
+		final double sz = oz - v[triangle + 2];
+		final double u = (sx * px + sy * py + sz * pz) / determinant;
+		if ((u < 0) || (u > 1)) {
+			return -1;
+		}
+		final double qx = sy * e1z - sz * e1y;
+		final double qy = sz * e1x - sx * e1z;
+		final double qz = sx * e1y - sy * e1x;
+		final double w = (dx * qx + dy * qy + dz * qz) / determinant;
+		if ((w < 0) || (u + w > 1)) {
+			return -1;
+		}
+		return (e2x * qx + e2y * qy + e2z * qz) / determinant;
+	}
+}
@@ -0,0 +1,141 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.Robot.RobotInterface;
+
+/**
+ * Parametric kinematics of common drive trains, which move the robot in Java
+ * without going through its script at every tick.
+ * 
+ * As in the sample scripts, the wheels are assumed to be as large as the
+ * robot is high, and a wheel that turns once covers its radius times the
+ * gear ratio.
+ */
+final class BuiltInKinematics {
+	private BuiltInKinematics() {
+	}
+
+	/*
+	 * Moves the robot forward along an arc of the specified length that
+	 * turns by the specified angle about the Y axis.
+	 */
+	private static void arc(RobotInterface robot, double distance,
+			double angle) {
+		if (angle != 0) {
+			final double radius = distance / angle;
+			robot.moveBy(radius * (Math.cos(angle) - 1), 0,
+					radius * Math.sin(angle));
+			robot.rotateBy(0, 1, 0, angle);
+		} else if (distance != 0) {
+			robot.moveBy(0, 0, distance);
+		}
+	}
+
+	/**
+	 * Two wheels driven by motors A and B on either side of the robot, as
+	 * wide apart as the robot.
+	 */
+	static final class DifferentialDrive implements RobotKinematics {
+		private final RobotInterface robot;
+		private final double gearRatio;
+		private final double wheelSpan;
+		private final double wheelRadius;
+
+		DifferentialDrive(RobotInterface robot, double gearRatio) {
+			this.robot = robot;
+			this.gearRatio = gearRatio;
+			this.wheelSpan = robot.boundingBox.size.x;
+			this.wheelRadius = robot.boundingBox.size.y / 2;
+		}
+
+		@Override
+		public void tick(double daa, double dab, double dac) {
+			daa *= gearRatio;
+			dab *= gearRatio;
+			arc(robot, wheelRadius * (daa + dab) / 2, wheelRadius
+					* (dab - daa) / wheelSpan);
+		}
+	}
+
+	/**
+	 * Rear wheels driven by motor A and front wheels steered by motor B, as
+	 * far apart as the robot is long. The steering angle is the rotation of
+	 * motor B since the robot started divided by the steering ratio, up to
+	 * 45 degrees either way.
+	 */
+	static final class Steering implements RobotKinematics {
+		private static final double MAX_STEERING_ANGLE = Math.PI / 4;
+
+		private final RobotInterface robot;
+		private final double gearRatio;
+		private final double steeringRatio;
+		private final double wheelBase;
+		private final double wheelRadius;
+		private double steering;
+
+		Steering(RobotInterface robot, double gearRatio, double steeringRatio) {
+			this.robot = robot;
+			this.gearRatio = gearRatio;
+			this.steeringRatio = steeringRatio;
+			this.wheelBase = robot.boundingBox.size.z;
+			this.wheelRadius = robot.boundingBox.size.y / 2;
+		}
+
+		@Override
+		public void tick(double daa, double dab, double dac) {
+			steering += dab;
+			final double angle = Math.max(-MAX_STEERING_ANGLE, Math.min(
+					steering * 2 * Math.PI / steeringRatio,
+					MAX_STEERING_ANGLE));
+			final double distance = daa * gearRatio * wheelRadius;
+			arc(robot, distance, distance * Math.tan(angle) / wheelBase);
+		}
+	}
+
+	/**
+	 * Three omnidirectional wheels driven by motors A, B and C, 120 degrees
+	 * apart on a circle as large as the robot, starting from the front.
+	 */
+	static final class OmniDrive implements RobotKinematics {
+		private static final double[] SINES = { 0, Math.sin(Math.PI * 2 / 3),
+				Math.sin(Math.PI * 4 / 3) };
+		private static final double[] COSINES = { 1,
+				Math.cos(Math.PI * 2 / 3), Math.cos(Math.PI * 4 / 3) };
+
+		private final RobotInterface robot;
+		private final double gearRatio;
+		private final double wheelRadius;
+		private final double radius;
+
+		OmniDrive(RobotInterface robot, double gearRatio) {
+			this.robot = robot;
+			this.gearRatio = gearRatio;
+			this.wheelRadius = robot.boundingBox.size.y / 2;
+			this.radius = Math.max(robot.boundingBox.size.x,
+					robot.boundingBox.size.z) / 2;
+		}
+
+		/*
+		 * Each wheel rolls along the tangent of the circle, so the motion of
+		 * the robot is the solution of the three rolling distances, which for
+		 * evenly spaced wheels is a weighted sum.
+		 */
+		@Override
+		public void tick(double daa, double dab, double dac) {
+			final double scale = gearRatio * wheelRadius;
+			daa *= scale;
+			dab *= scale;
+			dac *= scale;
+			final double dx = (COSINES[0] * daa + COSINES[1] * dab + COSINES[2]
+					* dac) * 2 / 3;
+			final double dz = -(SINES[0] * daa + SINES[1] * dab + SINES[2]
+					* dac) * 2 / 3;
+			final double angle = (daa + dab + dac) / (3 * radius);
+			if ((dx != 0) || (dz != 0)) {
+				robot.moveBy(dx, 0, dz);
+			}
+			if (angle != 0) {
+				robot.rotateBy(0, 1, 0, angle);
+			}
+		}
+	}
+}
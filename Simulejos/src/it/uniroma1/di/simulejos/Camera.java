@@ -1,60 +1,75 @@
 package it.uniroma1.di.simulejos;
 
 import javax.media.opengl.GL2GL3;
-import javax.media.opengl.awt.GLJPanel;
 
-import it.uniroma1.di.simulejos.math.Matrix3;
+import it.uniroma1.di.simulejos.math.MutableMatrix3;
+import it.uniroma1.di.simulejos.math.MutableVector3;
 import it.uniroma1.di.simulejos.math.Vector2;
 import it.uniroma1.di.simulejos.math.Vector3;
 import it.uniroma1.di.simulejos.opengl.Program;
 
 public class Camera {
-	private volatile Vector3 position = new Vector3(0, 0, -5);
-	private volatile double angleX;
-	private volatile double angleY;
+	private final MutableVector3 position = new MutableVector3(0, 0, -5);
+	private double angleX;
+	private double angleY;
+
+	private final MutableMatrix3 rotationX = new MutableMatrix3();
+	private final MutableMatrix3 rotationY = new MutableMatrix3();
+	private final MutableVector3 unprojected = new MutableVector3();
 
 	private static final double ROTATION_DELTA = 0.1;
 	private static final double MOVING_DELTA = 0.3;
 
-	private volatile GLJPanel canvas;
+	private final View view;
 
-	Camera(GLJPanel canvas) {
-		this.canvas = canvas;
+	Camera(View view) {
+		this.view = view;
 	}
 
-	public void uniform(Program program) {
+	public synchronized void uniform(Program program) {
 		program.uniform("Camera.Position", position);
 		program.uniform2f("Camera.Angle", (float) angleX, (float) angleY);
 	}
 
-	public void uniform(GL2GL3 gl, Program program) {
+	public synchronized void uniform(GL2GL3 gl, Program program) {
 		program.uniform(gl, "Camera.Position", position);
 		program.uniform2f(gl, "Camera.Angle", (float) angleX, (float) angleY);
 	}
 
 	public void move(double dx, double dz) {
-		position = position.plus(new Vector3(dx * Math.cos(angleX) + dz
-				* Math.cos(angleX + Math.PI / 2), dz * Math.sin(angleY), dx
-				* Math.sin(angleX) + dz * Math.sin(angleX + Math.PI / 2))
-				.by(MOVING_DELTA));
-		canvas.repaint();
+		synchronized (this) {
+			position.add(
+					(dx * Math.cos(angleX) + dz * Math.cos(angleX + Math.PI / 2))
+							* MOVING_DELTA,
+					dz * Math.sin(angleY) * MOVING_DELTA,
+					(dx * Math.sin(angleX) + dz
+							* Math.sin(angleX + Math.PI / 2))
+							* MOVING_DELTA);
+		}
+		view.repaint();
 	}
 
 	public void rotate(double dx, double dy) {
-		angleX += dx * ROTATION_DELTA;
-		angleY += dy * ROTATION_DELTA;
-		canvas.repaint();
+		synchronized (this) {
+			angleX += dx * ROTATION_DELTA;
+			angleY += dy * ROTATION_DELTA;
+		}
+		view.repaint();
+	}
+
+	private MutableVector3 unproject(double x, double y, double z) {
+		rotationX.setRotation(0, 1, 0, angleX);
+		rotationY.setRotation(1, 0, 0, angleY);
+		return rotationX.multiply(rotationX, rotationY)
+				.transform(x / z, y / z, 1 / z, unprojected).add(position);
 	}
 
-	public Vector3 unproject(Vector3 v) {
-		return Matrix3.createRotation(0, 1, 0, angleX)
-				.by(Matrix3.createRotation(1, 0, 0, angleY))
-				.by(new Vector3(v.x / v.z, v.y / v.z, 1 / v.z)).plus(position);
+	public synchronized Vector3 unproject(Vector3 v) {
+		return unproject(v.x, v.y, v.z).toVector3();
 	}
 
-	public Vector3 unproject(Vector2 v, double y) {
-		final Vector3 w = unproject(new Vector3(v.x, v.y, 1));
-		return position.plus(w.minus(position).by(
-				(y - position.y) / (w.y - position.y)));
+	public synchronized Vector3 unproject(Vector2 v, double y) {
+		final MutableVector3 w = unproject(v.x, v.y, 1).subtract(position);
+		return w.scale((y - position.y) / w.y).add(position).toVector3();
 	}
 }
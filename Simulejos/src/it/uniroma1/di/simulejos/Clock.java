@@ -1,42 +1,93 @@
 package it.uniroma1.di.simulejos;
 
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulated time. The clock starts at zero and only moves when the ticker
+ * advances it, so the sequence of timestamps observed by the simulation does
+ * not depend on the load of the host.
+ */
 final class Clock {
 	private final Object lock = new Object();
-	private volatile long offset;
-	private volatile boolean suspended;
-	private volatile long suspendTimestamp;
+	private volatile long timestamp;
+	private final Queue<Long> deadlines = new PriorityQueue<Long>();
+	private volatile Thread watcher;
 
+	/**
+	 * Returns the simulated time in nanoseconds.
+	 * 
+	 * @return The simulated time in nanoseconds.
+	 */
 	public long getTimestamp() {
-		synchronized (lock) {
-			if (suspended) {
-				return suspendTimestamp - offset;
-			} else {
-				return System.nanoTime() - offset;
-			}
-		}
+		return timestamp;
 	}
 
-	public void suspend() {
+	public void advance(long nanoseconds) {
 		synchronized (lock) {
-			if (!suspended) {
-				suspended = true;
-				suspendTimestamp = System.nanoTime();
-			}
+			timestamp += nanoseconds;
+			lock.notifyAll();
 		}
 	}
 
-	public void resume() {
+	/**
+	 * Blocks the calling thread until the clock has advanced by at least the
+	 * specified amount of simulated time.
+	 * 
+	 * @param nanoseconds
+	 *            The amount of simulated time to wait for.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	public void sleep(long nanoseconds) throws InterruptedException {
 		synchronized (lock) {
-			if (suspended) {
-				suspended = false;
-				offset += System.nanoTime() - suspendTimestamp;
+			final Long end = timestamp + nanoseconds;
+			deadlines.add(end);
+			final Thread watcher = this.watcher;
+			if (watcher != null) {
+				LockSupport.unpark(watcher);
+			}
+			try {
+				while (timestamp < end) {
+					lock.wait();
+				}
+			} finally {
+				deadlines.remove(end);
+				lock.notifyAll();
 			}
 		}
 	}
 
-	public void advance(int milliseconds) {
+	/**
+	 * Makes {@link #sleep(long)} unpark the specified thread whenever a thread
+	 * starts sleeping, so that it can wait with
+	 * {@link LockSupport#parkNanos(Object, long)} for threads to fall asleep.
+	 * 
+	 * @param watcher
+	 *            The thread to unpark, or <code>null</code> for none.
+	 */
+	public void setWatcher(Thread watcher) {
+		this.watcher = watcher;
+	}
+
+	/**
+	 * Waits until every thread whose sleep has expired has actually woken up,
+	 * or until the specified wall-clock timeout expires.
+	 * 
+	 * @param timeout
+	 *            The maximum time to wait, in milliseconds.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	public void awaitSleepers(long timeout) throws InterruptedException {
+		final long end = System.currentTimeMillis() + timeout;
 		synchronized (lock) {
-			offset -= (long) milliseconds * 1000000;
+			long remaining;
+			while (!deadlines.isEmpty() && (deadlines.peek() <= timestamp)
+					&& ((remaining = end - System.currentTimeMillis()) > 0)) {
+				lock.wait(remaining);
+			}
 		}
 	}
 }
@@ -0,0 +1,190 @@
+package it.uniroma1.di.simulejos;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Redirects the invocations of <code>System.currentTimeMillis()</code>,
+ * <code>System.nanoTime()</code> and <code>Thread.sleep</code> contained in a
+ * class file to the Framework's <code>VirtualClock</code>, so that robot
+ * programs follow the simulated clock.
+ * 
+ * Only the constant pool is modified: a new class entry is appended and the
+ * affected method references are made to point to it. Method bodies, and
+ * therefore stack map frames, are left untouched.
+ */
+final class ClockRedirector {
+	static final String TARGET_CLASS = "it.uniroma1.di.simulejos.bridge.VirtualClock";
+
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_METHOD_TYPE = 16;
+	private static final int CONSTANT_DYNAMIC = 17;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+	private static final int CONSTANT_MODULE = 19;
+	private static final int CONSTANT_PACKAGE = 20;
+
+	private static boolean isRedirected(String className, String name,
+			String descriptor) {
+		switch (className) {
+		case "java/lang/System":
+			return (name.equals("currentTimeMillis") || name
+					.equals("nanoTime")) && descriptor.equals("()J");
+		case "java/lang/Thread":
+			return name.equals("sleep")
+					&& (descriptor.equals("(J)V") || descriptor
+							.equals("(JI)V"));
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Tells whether a class file may be rewritten, and therefore refer to
+	 * {@link #TARGET_CLASS} once rewritten, without parsing its method
+	 * references.
+	 * 
+	 * @param strings
+	 *            The strings of the constant pool of the class file.
+	 * @return <code>false</code> if the class file is certainly left as is.
+	 */
+	static boolean mayRewrite(List<String> strings) {
+		return (strings.contains("java/lang/System") && (strings
+				.contains("currentTimeMillis") || strings.contains("nanoTime")))
+				|| (strings.contains("java/lang/Thread") && strings
+						.contains("sleep"));
+	}
+
+	private static int readUnsignedShort(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+	}
+
+	/**
+	 * Rewrites the specified class file.
+	 * 
+	 * @param bytes
+	 *            The class file.
+	 * @return The rewritten class file, or the original array if the class
+	 *         does not use any of the redirected methods.
+	 * @throws IOException
+	 *             If the class file is malformed.
+	 */
+	public static byte[] rewrite(byte[] bytes) throws IOException {
+		final DataInputStream input = new DataInputStream(
+				new ByteArrayInputStream(bytes));
+		if (input.readInt() != MAGIC) {
+			throw new IOException("not a class file");
+		}
+		input.readInt();
+		final int count = input.readUnsignedShort();
+		final int[] tags = new int[count];
+		final int[] offsets = new int[count];
+		final String[] strings = new String[count];
+		int offset = 10;
+		for (int i = 1; i < count; i++) {
+			tags[i] = bytes[offset];
+			offsets[i] = offset + 1;
+			switch (tags[i]) {
+			case CONSTANT_UTF8:
+				strings[i] = new DataInputStream(new ByteArrayInputStream(
+						bytes, offset + 1, bytes.length - offset - 1))
+						.readUTF();
+				offset += 3 + readUnsignedShort(bytes, offset + 1);
+				break;
+			case CONSTANT_CLASS:
+			case CONSTANT_STRING:
+			case CONSTANT_METHOD_TYPE:
+			case CONSTANT_MODULE:
+			case CONSTANT_PACKAGE:
+				offset += 3;
+				break;
+			case CONSTANT_METHOD_HANDLE:
+				offset += 4;
+				break;
+			case CONSTANT_INTEGER:
+			case CONSTANT_FLOAT:
+			case CONSTANT_FIELDREF:
+			case CONSTANT_METHODREF:
+			case CONSTANT_INTERFACE_METHODREF:
+			case CONSTANT_NAME_AND_TYPE:
+			case CONSTANT_DYNAMIC:
+			case CONSTANT_INVOKE_DYNAMIC:
+				offset += 5;
+				break;
+			case CONSTANT_LONG:
+			case CONSTANT_DOUBLE:
+				offset += 9;
+				i++;
+				break;
+			default:
+				throw new IOException("invalid constant pool tag " + tags[i]);
+			}
+		}
+		final int end = offset;
+
+		boolean found = false;
+		final boolean[] redirected = new boolean[count];
+		for (int i = 1; i < count; i++) {
+			if (tags[i] == CONSTANT_METHODREF) {
+				final int classIndex = readUnsignedShort(bytes, offsets[i]);
+				final int nameAndType = readUnsignedShort(bytes, offsets[i] + 2);
+				final String className = strings[readUnsignedShort(bytes,
+						offsets[classIndex])];
+				final String name = strings[readUnsignedShort(bytes,
+						offsets[nameAndType])];
+				final String descriptor = strings[readUnsignedShort(bytes,
+						offsets[nameAndType] + 2)];
+				if (isRedirected(className, name, descriptor)) {
+					redirected[i] = true;
+					found = true;
+				}
+			}
+		}
+		if (!found) {
+			return bytes;
+		}
+		if (count + 2 > 0xFFFF) {
+			throw new IOException("constant pool too large");
+		}
+
+		final byte[] head = bytes.clone();
+		for (int i = 1; i < count; i++) {
+			if (redirected[i]) {
+				head[offsets[i]] = (byte) ((count + 1) >> 8);
+				head[offsets[i] + 1] = (byte) (count + 1);
+			}
+		}
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+				bytes.length + TARGET_CLASS.length() + 6);
+		final DataOutputStream output = new DataOutputStream(buffer);
+		output.write(head, 0, 8);
+		output.writeShort(count + 2);
+		output.write(head, 10, end - 10);
+		output.writeByte(CONSTANT_UTF8);
+		output.writeUTF(TARGET_CLASS.replace('.', '/'));
+		output.writeByte(CONSTANT_CLASS);
+		output.writeShort(count);
+		output.write(head, end, head.length - end);
+		output.flush();
+		return buffer.toByteArray();
+	}
+
+	private ClockRedirector() {
+	}
+}
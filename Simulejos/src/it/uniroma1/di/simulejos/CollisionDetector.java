@@ -0,0 +1,95 @@
+package it.uniroma1.di.simulejos;
+
+import java.util.Arrays;
+
+/**
+ * Finds colliding robots with a sweep and prune broad phase followed by an
+ * oriented box test.
+ * 
+ * Robots are kept sorted by the lower X bound of their axis-aligned boxes.
+ * Since robots move little between two ticks the order is nearly preserved
+ * and an insertion sort restores it in about linear time. Sweeping the sorted
+ * list then only considers pairs whose X intervals overlap; those that also
+ * overlap on Y and Z are passed to {@link OrientedBox#intersects(OrientedBox)}.
+ * 
+ * The bounding boxes of the robots must be up to date when
+ * {@link #detect(Robot[], Simulation.Listener)} is invoked.
+ */
+final class CollisionDetector {
+	/*
+	 * The indices of the robots in the array passed to detect, sorted by the
+	 * lower X bound of their boxes.
+	 */
+	private int[] sorted = new int[0];
+	private volatile boolean changed = true;
+
+	/*
+	 * The colliding pairs found by the sweep, both orderings of each, encoded
+	 * as first * robots + second so that sorting them restores robot order.
+	 */
+	private long[] pairs = new long[16];
+
+	/**
+	 * Notifies the detector that robots have been added or removed.
+	 */
+	public void reset() {
+		changed = true;
+	}
+
+	private void sort(Robot[] robots) {
+		for (int i = 1; i < sorted.length; i++) {
+			final int index = sorted[i];
+			final double key = robots[index].bounds.min[0];
+			int j = i - 1;
+			while ((j >= 0) && (robots[sorted[j]].bounds.min[0] > key)) {
+				sorted[j + 1] = sorted[j];
+				j--;
+			}
+			sorted[j + 1] = index;
+		}
+	}
+
+	/**
+	 * Reports every pair of colliding robots to the specified listener. As
+	 * with the exhaustive test this detector replaced, each pair is reported
+	 * in both orderings, and the pairs are reported in the order of the
+	 * robots: by the index of the first robot, then by that of the second.
+	 * 
+	 * @param robots
+	 *            The robots of the simulation, in the same order at every
+	 *            invocation until {@link #reset()} is invoked.
+	 * @param listener
+	 *            The listener to notify.
+	 */
+	public void detect(Robot[] robots, Simulation.Listener listener) {
+		if (changed || (sorted.length != robots.length)) {
+			changed = false;
+			sorted = new int[robots.length];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = i;
+			}
+		}
+		sort(robots);
+		final long count = robots.length;
+		int found = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			final OrientedBox box = robots[sorted[i]].bounds;
+			for (int j = i + 1; (j < sorted.length)
+					&& (robots[sorted[j]].bounds.min[0] <= box.max[0]); j++) {
+				final OrientedBox box2 = robots[sorted[j]].bounds;
+				if (box.overlaps(box2) && box.intersects(box2)) {
+					if (found + 2 > pairs.length) {
+						pairs = Arrays.copyOf(pairs, pairs.length * 2);
+					}
+					pairs[found++] = sorted[i] * count + sorted[j];
+					pairs[found++] = sorted[j] * count + sorted[i];
+				}
+			}
+		}
+		Arrays.sort(pairs, 0, found);
+		for (int i = 0; i < found; i++) {
+			listener.collision(robots[(int) (pairs[i] / count)],
+					robots[(int) (pairs[i] % count)]);
+		}
+	}
+}
@@ -1,13 +1,11 @@
 package it.uniroma1.di.simulejos;
 
-import java.nio.FloatBuffer;
-
 import javax.media.opengl.GL2GL3;
-import javax.media.opengl.GLAutoDrawable;
 
 import it.uniroma1.di.simulejos.Robot.GPUSensor;
 import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
 import it.uniroma1.di.simulejos.math.Matrix3;
+import it.uniroma1.di.simulejos.math.MutableMatrix3;
 import it.uniroma1.di.simulejos.math.Vector3;
 import it.uniroma1.di.simulejos.opengl.Program;
 
@@ -16,17 +14,20 @@ import static javax.media.opengl.GL2GL3.*;
 final class ColorSensor extends GPUSensor implements
 		SimulatorInterface.ColorSensor {
 	private final Vector3 position;
+	private final MutableMatrix3 heading;
 	private final Matrix3 inverseHeading;
-	private volatile Program floorProgram;
-	private volatile Program robotProgram;
-
+	private final float[] pixel = new float[4];
 	private volatile int value;
 	private volatile FloodLight floodLight;
-	private volatile Vector3 color;
+	/*
+	 * Red until a flood light is set, like the default of the shaders.
+	 */
+	private volatile Vector3 color = Vector3.RED;
 
 	public ColorSensor(Robot robot, Vector3 position, Matrix3 heading) {
 		robot.super(1, 1);
 		this.position = position;
+		this.heading = new MutableMatrix3(heading);
 		this.inverseHeading = heading.invert();
 	}
 
@@ -50,48 +51,47 @@ final class ColorSensor extends GPUSensor implements
 	}
 
 	@Override
-	public void init(GLAutoDrawable drawable) {
-		final GL2GL3 gl = drawable.getGL().getGL2GL3();
-		floorProgram = new Program(gl, getClass(), "floor_color",
-				new String[] { "in_Vertex" });
-		floor.share(gl);
-		robotProgram = new Program(gl, getClass(), "robot_color",
-				new String[] { "in_Vertex" });
+	void draw(GL2GL3 gl, SensorAtlas atlas) {
 		gl.glClearColor(0, 0, 0, 1);
-		gl.glEnable(GL_DEPTH_TEST);
 		gl.glClearDepth(0);
 		gl.glDepthFunc(GL_GREATER);
-		gl.glEnable(GL_CULL_FACE);
-	}
-
-	@Override
-	public void display(GLAutoDrawable drawable) {
-		final GL2GL3 gl = drawable.getGL().getGL2GL3();
 		gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+		final Program floorProgram = atlas.getProgram(gl, "floor_color");
 		floorProgram.use();
 		floorProgram.uniform("Color", color);
 		floorProgram.uniform("SensorPosition", position);
 		floorProgram.uniform("InverseSensorHeading", inverseHeading);
 		uniform(floorProgram);
 		floor.drawForSensor(gl, floorProgram);
+		final Program robotProgram = atlas.getProgram(gl, "robot_color");
 		robotProgram.use();
 		robotProgram.uniform("Color", color);
 		robotProgram.uniform("SensorPosition", position);
 		robotProgram.uniform("InverseSensorHeading", inverseHeading);
 		uniform(robotProgram);
-		for (Robot robot : robots) {
-			robot.drawForSensor(gl, robotProgram);
+		atlas.drawRobots(gl);
+	}
+
+	@Override
+	boolean sampleDirectly() {
+		final Floor.Surface surface = sampleFloor(position, heading, pixel);
+		if (surface == null) {
+			return false;
+		}
+		if (surface == Floor.Surface.TEXTURED) {
+			final Vector3 color = this.color;
+			pixel[0] *= color.x;
+			pixel[1] *= color.y;
+			pixel[2] *= color.z;
+		} else {
+			pixel[0] = pixel[1] = pixel[2] = 0;
 		}
-		gl.glFinish();
-		final float[] values = new float[1];
-		gl.glReadPixels(0, 0, 1, 1, GL_LUMINANCE, GL_FLOAT,
-				FloatBuffer.wrap(values));
-		value = 1023 - Math.round(values[0] * 1023);
+		sample(pixel);
+		return true;
 	}
 
 	@Override
-	public void dispose(GLAutoDrawable drawable) {
-		floorProgram.delete();
-		robotProgram.delete();
+	void sample(float[] pixels) {
+		value = 1023 - Math.round(SensorAtlas.luminance(pixels, 0) * 1023);
 	}
 }
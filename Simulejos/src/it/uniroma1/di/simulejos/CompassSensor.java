@@ -3,25 +3,27 @@ package it.uniroma1.di.simulejos;
 import it.uniroma1.di.simulejos.Robot.Sensor;
 import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
 import it.uniroma1.di.simulejos.math.Matrix3;
+import it.uniroma1.di.simulejos.math.MutableVector3;
 import it.uniroma1.di.simulejos.math.Vector3;
 
 final class CompassSensor extends Sensor implements
 		SimulatorInterface.CompassSensor {
-	private final Matrix3 heading;
+	private final Vector3 needle;
+	private final MutableVector3 headedNeedle = new MutableVector3();
 	private volatile double zero;
 
 	public CompassSensor(Robot robot, Matrix3 heading) {
 		robot.super();
 		if (heading != null) {
-			this.heading = heading;
+			this.needle = heading.by(Vector3.I);
 		} else {
-			this.heading = Matrix3.IDENTITY;
+			this.needle = Vector3.I;
 		}
 	}
 
-	private double getAbsoluteAngle() {
-		final Vector3 needle = head(heading.by(Vector3.I));
-		return Math.atan2(needle.z, needle.x);
+	private synchronized double getAbsoluteAngle() {
+		head(needle, headedNeedle);
+		return Math.atan2(headedNeedle.z, headedNeedle.x);
 	}
 
 	@Override
@@ -12,6 +12,31 @@ import javax.media.opengl.GL2GL3;
 import static javax.media.opengl.GL2GL3.*;
 
 public final class Floor {
+	/**
+	 * The height of the floor plane in world space.
+	 */
+	static final double Y = -1;
+
+	/**
+	 * What a ray sees of the floor.
+	 */
+	enum Surface {
+		/**
+		 * The ray does not hit the floor.
+		 */
+		NONE,
+
+		/**
+		 * The ray hits the floor, which has no texture.
+		 */
+		PLAIN,
+
+		/**
+		 * The ray hits the textured floor.
+		 */
+		TEXTURED
+	}
+
 	private volatile File textureImageFile;
 	private transient volatile BufferedImage textureImage;
 	private volatile float width = 2;
@@ -20,10 +45,12 @@ public final class Floor {
 	private volatile boolean repeatX;
 	private volatile boolean repeatY;
 	private transient volatile boolean updateTexture;
+	private transient volatile FloorTexture sampler;
 
 	private volatile Program program;
 	private volatile Arrays arrays;
 	private volatile Texture2D texture;
+	private volatile Texture2D sensorTexture;
 
 	public File getTextureImageFile() {
 		return textureImageFile;
@@ -59,28 +86,86 @@ public final class Floor {
 		this.smooth = smooth;
 		this.repeatX = repeatX;
 		this.repeatY = repeatY;
+		if (textureImage != null) {
+			this.sampler = new FloorTexture(textureImage, smooth, repeatX,
+					repeatY);
+		} else {
+			this.sampler = null;
+		}
 		this.updateTexture = true;
 	}
 
+	/**
+	 * Samples the floor texture at the specified point of the floor plane, as
+	 * seen by a sensor pixel. The footprint of the pixel is given by the
+	 * points seen by its right and upper neighbours, and selects the mipmap
+	 * level.
+	 * 
+	 * @param x
+	 *            The X coordinate of the sampled point.
+	 * @param z
+	 *            The Z coordinate of the sampled point.
+	 * @param dxX
+	 *            The X offset of the point seen by the right neighbour.
+	 * @param dxZ
+	 *            The Z offset of the point seen by the right neighbour.
+	 * @param dyX
+	 *            The X offset of the point seen by the upper neighbour.
+	 * @param dyZ
+	 *            The Z offset of the point seen by the upper neighbour.
+	 * @param rgba
+	 *            Receives the color of the texture, if any.
+	 * @return {@link Surface#TEXTURED} if the floor has a texture,
+	 *         {@link Surface#PLAIN} otherwise.
+	 */
+	Surface sample(double x, double z, double dxX, double dxZ, double dyX,
+			double dyZ, float[] rgba) {
+		final FloorTexture sampler = this.sampler;
+		if (sampler == null) {
+			return Surface.PLAIN;
+		}
+		final double scaleS = sampler.getWidth() / width;
+		final double scaleT = sampler.getHeight() / depth;
+		final double footprint = Math.max(
+				Math.hypot(dxX * scaleS, dxZ * scaleT),
+				Math.hypot(dyX * scaleS, dyZ * scaleT));
+		sampler.sample(x / width, -z / depth,
+				Math.log(footprint) / Math.log(2), rgba);
+		return Surface.TEXTURED;
+	}
+
+	private Texture2D createTexture(GL2GL3 gl) {
+		final Texture2D texture = new Texture2D(gl, textureImage);
+		if (!smooth) {
+			texture.parameter(GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+		}
+		if (!repeatX) {
+			texture.parameter(GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER);
+		}
+		if (!repeatY) {
+			texture.parameter(GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
+		}
+		return texture;
+	}
+
 	private void updateTexture(GL2GL3 gl) {
 		if (textureImage != null) {
-			texture = new Texture2D(gl, textureImage);
-			if (!smooth) {
-				texture.parameter(GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-			}
-			if (!repeatX) {
-				texture.parameter(GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER);
-			}
-			if (!repeatY) {
-				texture.parameter(GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
-			}
+			texture = createTexture(gl);
 			if (gl.isExtensionAvailable("GL_EXT_texture_filter_anisotropic")) {
 				final float[] anisotropy = new float[1];
 				gl.glGetFloatv(GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, anisotropy, 0);
 				texture.parameter(GL_TEXTURE_MAX_ANISOTROPY_EXT, anisotropy[0]);
 			}
+			/*
+			 * sensors see a mipmapped copy, filtered like the floor sampled
+			 * without rendering, see FloorTexture
+			 */
+			sensorTexture = createTexture(gl);
+			sensorTexture.generateMipmap();
+			sensorTexture.setMinFilter(GL_LINEAR_MIPMAP_NEAREST);
 		} else {
 			texture = null;
+			sensorTexture = null;
 		}
 	}
 
@@ -115,10 +200,11 @@ public final class Floor {
 	}
 
 	void drawForSensor(GL2GL3 gl, Program program) {
-		if (texture != null) {
+		final Texture2D sensorTexture = this.sensorTexture;
+		if (sensorTexture != null) {
 			program.uniform(gl, "UseTexture", true);
 			program.uniform2f("Size", width, depth);
-			texture.bind(gl);
+			sensorTexture.bind(gl);
 		} else {
 			program.uniform(gl, "UseTexture", false);
 		}
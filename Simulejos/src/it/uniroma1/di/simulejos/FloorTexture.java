@@ -0,0 +1,174 @@
+package it.uniroma1.di.simulejos;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A copy of the floor texture in client memory, used by sensors to sample the
+ * floor without rendering it.
+ * 
+ * The image is converted to a mipmap pyramid of packed ARGB arrays and sampled
+ * like the GL texture sensors see: bilinear filtering of the nearest mipmap
+ * level when minifying, bilinear or nearest filtering of the base level when
+ * magnifying, and either repeated or clamped to a transparent black border
+ * along each direction. Texture coordinate (0, 0) is the top left corner of
+ * the image.
+ */
+final class FloorTexture {
+	/*
+	 * The shifts of the red, green, blue and alpha components of a texel, in
+	 * the order of the components of a sample.
+	 */
+	private static final int[] SHIFTS = { 16, 8, 0, 24 };
+
+	private final int[][] levels;
+	private final int[] widths;
+	private final int[] heights;
+	private final boolean smooth;
+	private final boolean repeatX;
+	private final boolean repeatY;
+
+	public FloorTexture(BufferedImage image, boolean smooth, boolean repeatX,
+			boolean repeatY) {
+		this.smooth = smooth;
+		this.repeatX = repeatX;
+		this.repeatY = repeatY;
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int count = 1;
+		while ((width >> count > 0) || (height >> count > 0)) {
+			count++;
+		}
+		levels = new int[count][];
+		widths = new int[count];
+		heights = new int[count];
+		levels[0] = image.getRGB(0, 0, width, height, null, 0, width);
+		widths[0] = width;
+		heights[0] = height;
+		for (int i = 1; i < count; i++) {
+			widths[i] = Math.max(widths[i - 1] / 2, 1);
+			heights[i] = Math.max(heights[i - 1] / 2, 1);
+			levels[i] = reduce(levels[i - 1], widths[i - 1], heights[i - 1],
+					widths[i], heights[i]);
+		}
+	}
+
+	/*
+	 * Averages each block of 2x2 texels of the previous level, or the texels
+	 * of the block that exist when a dimension is already 1.
+	 */
+	private static int[] reduce(int[] source, int sourceWidth,
+			int sourceHeight, int width, int height) {
+		final int[] result = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			final int y0 = Math.min(y * 2, sourceHeight - 1);
+			final int y1 = Math.min(y * 2 + 1, sourceHeight - 1);
+			for (int x = 0; x < width; x++) {
+				final int x0 = Math.min(x * 2, sourceWidth - 1);
+				final int x1 = Math.min(x * 2 + 1, sourceWidth - 1);
+				final int t00 = source[y0 * sourceWidth + x0];
+				final int t01 = source[y0 * sourceWidth + x1];
+				final int t10 = source[y1 * sourceWidth + x0];
+				final int t11 = source[y1 * sourceWidth + x1];
+				int texel = 0;
+				for (int shift = 0; shift < 32; shift += 8) {
+					final int sum = ((t00 >>> shift) & 0xFF)
+							+ ((t01 >>> shift) & 0xFF)
+							+ ((t10 >>> shift) & 0xFF)
+							+ ((t11 >>> shift) & 0xFF);
+					texel |= ((sum + 2) / 4) << shift;
+				}
+				result[y * width + x] = texel;
+			}
+		}
+		return result;
+	}
+
+	public int getWidth() {
+		return widths[0];
+	}
+
+	public int getHeight() {
+		return heights[0];
+	}
+
+	/*
+	 * Returns the texel at the specified integer coordinates of a level, or 0
+	 * if they fall on the border.
+	 */
+	private int texel(int level, int x, int y) {
+		final int width = widths[level];
+		final int height = heights[level];
+		if (repeatX) {
+			x = ((x % width) + width) % width;
+		} else if ((x < 0) || (x >= width)) {
+			return 0;
+		}
+		if (repeatY) {
+			y = ((y % height) + height) % height;
+		} else if ((y < 0) || (y >= height)) {
+			return 0;
+		}
+		return levels[level][y * width + x];
+	}
+
+	private static void store(int texel, float[] rgba) {
+		rgba[0] = ((texel >>> 16) & 0xFF) / 255f;
+		rgba[1] = ((texel >>> 8) & 0xFF) / 255f;
+		rgba[2] = (texel & 0xFF) / 255f;
+		rgba[3] = (texel >>> 24) / 255f;
+	}
+
+	private void nearest(int level, double s, double t, float[] rgba) {
+		store(texel(level, (int) Math.floor(s * widths[level]),
+				(int) Math.floor(t * heights[level])), rgba);
+	}
+
+	private void bilinear(int level, double s, double t, float[] rgba) {
+		final double u = s * widths[level] - 0.5;
+		final double v = t * heights[level] - 0.5;
+		final int x = (int) Math.floor(u);
+		final int y = (int) Math.floor(v);
+		final double a = u - x;
+		final double b = v - y;
+		final int t00 = texel(level, x, y);
+		final int t01 = texel(level, x + 1, y);
+		final int t10 = texel(level, x, y + 1);
+		final int t11 = texel(level, x + 1, y + 1);
+		for (int i = 0; i < 4; i++) {
+			final int shift = SHIFTS[i];
+			rgba[i] = (float) (((1 - a) * (1 - b) * ((t00 >>> shift) & 0xFF)
+					+ a * (1 - b) * ((t01 >>> shift) & 0xFF) + (1 - a) * b
+					* ((t10 >>> shift) & 0xFF) + a * b
+					* ((t11 >>> shift) & 0xFF)) / 255);
+		}
+	}
+
+	/**
+	 * Samples the texture.
+	 * 
+	 * @param s
+	 *            The horizontal texture coordinate.
+	 * @param t
+	 *            The vertical texture coordinate.
+	 * @param lod
+	 *            The level of detail, that is the base 2 logarithm of the
+	 *            number of texels covered by the sampled pixel along its
+	 *            longest side.
+	 * @param rgba
+	 *            Receives the red, green, blue and alpha components of the
+	 *            sample.
+	 */
+	public void sample(double s, double t, double lod, float[] rgba) {
+		if (lod <= 0) {
+			if (smooth) {
+				bilinear(0, s, t, rgba);
+			} else {
+				nearest(0, s, t, rgba);
+			}
+		} else {
+			final int level = (lod <= 0.5) ? 0 : Math.min(
+					(int) Math.ceil(lod + 0.5) - 1, levels.length - 1);
+			bilinear(level, s, t, rgba);
+		}
+	}
+}
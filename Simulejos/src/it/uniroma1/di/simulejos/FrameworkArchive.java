@@ -0,0 +1,172 @@
+package it.uniroma1.di.simulejos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the entries of the Framework archive straight from its central
+ * directory, without scanning and inflating the whole archive up front.
+ * 
+ * If the archive is a file it is memory-mapped, and the contents of the
+ * entries that are stored without compression, as they are in the archive
+ * shipped with the simulator, are slices of the mapping: they are paged in
+ * only when a class is actually defined or a resource read. Compressed
+ * entries are inflated when the archive is opened.
+ */
+final class FrameworkArchive {
+	private static final int END_SIGNATURE = 0x06054B50;
+	private static final int END_SIZE = 22;
+	private static final int MAX_COMMENT_SIZE = 0xFFFF;
+	private static final int ENTRY_SIGNATURE = 0x02014B50;
+	private static final int ENTRY_SIZE = 46;
+	private static final int LOCAL_SIGNATURE = 0x04034B50;
+	private static final int LOCAL_SIZE = 30;
+
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+
+	private FrameworkArchive() {
+	}
+
+	private static ByteBuffer load(URL url) throws IOException {
+		if (url.getProtocol().equals("file")) {
+			final File file;
+			try {
+				file = new File(url.toURI());
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+			try (FileChannel channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ)) {
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			}
+		}
+		try (InputStream is = url.openStream()) {
+			final byte[] buffer = new byte[0x1000];
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			int read;
+			while ((read = is.read(buffer)) > 0) {
+				baos.write(buffer, 0, read);
+			}
+			return ByteBuffer.wrap(baos.toByteArray());
+		}
+	}
+
+	private static int findEnd(ByteBuffer archive) throws IOException {
+		final int last = archive.limit() - END_SIZE;
+		for (int offset = last; (offset >= 0)
+				&& (offset >= last - MAX_COMMENT_SIZE); offset--) {
+			if (archive.getInt(offset) == END_SIGNATURE) {
+				return offset;
+			}
+		}
+		throw new IOException("not a zip archive");
+	}
+
+	private static ByteBuffer slice(ByteBuffer archive, int offset, int size)
+			throws IOException {
+		if ((offset < 0) || (size < 0) || (offset > archive.limit() - size)) {
+			throw new IOException("truncated zip archive");
+		}
+		final ByteBuffer buffer = archive.duplicate();
+		buffer.limit(offset + size).position(offset);
+		return buffer.slice().asReadOnlyBuffer();
+	}
+
+	private static ByteBuffer inflate(ByteBuffer data, int size)
+			throws IOException {
+		final byte[] input = new byte[data.remaining()];
+		data.get(input);
+		final byte[] output = new byte[size];
+		final Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(input);
+			int length = 0;
+			while ((length < size) && !inflater.finished()) {
+				final int inflated = inflater.inflate(output, length, size
+						- length);
+				if ((inflated == 0) && inflater.needsInput()) {
+					throw new IOException("truncated zip entry");
+				}
+				length += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(output).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Opens an archive and returns the contents of its entries.
+	 * 
+	 * @param url
+	 *            The location of the archive.
+	 * @return The read-only contents of the entries that are not directories,
+	 *         by name.
+	 * @throws IOException
+	 *             If the archive cannot be read or is malformed.
+	 */
+	static Map<String, ByteBuffer> open(URL url) throws IOException {
+		final ByteBuffer archive = load(url).order(ByteOrder.LITTLE_ENDIAN);
+		final int end = findEnd(archive);
+		final int count = archive.getShort(end + 10) & 0xFFFF;
+		int offset = archive.getInt(end + 16);
+		final Map<String, ByteBuffer> entries = new HashMap<>(count * 2);
+		for (int i = 0; i < count; i++) {
+			if ((offset < 0) || (offset > archive.limit() - ENTRY_SIZE)
+					|| (archive.getInt(offset) != ENTRY_SIGNATURE)) {
+				throw new IOException("malformed zip central directory");
+			}
+			final int method = archive.getShort(offset + 10) & 0xFFFF;
+			final int compressedSize = archive.getInt(offset + 20);
+			final int size = archive.getInt(offset + 24);
+			final int nameLength = archive.getShort(offset + 28) & 0xFFFF;
+			final int extraLength = archive.getShort(offset + 30) & 0xFFFF;
+			final int commentLength = archive.getShort(offset + 32) & 0xFFFF;
+			final int local = archive.getInt(offset + 42);
+			final ByteBuffer nameBuffer = slice(archive, offset + ENTRY_SIZE,
+					nameLength);
+			final String name = StandardCharsets.UTF_8.decode(nameBuffer)
+					.toString();
+			offset += ENTRY_SIZE + nameLength + extraLength + commentLength;
+			if (name.endsWith("/")) {
+				continue;
+			}
+			if ((local < 0) || (local > archive.limit() - LOCAL_SIZE)
+					|| (archive.getInt(local) != LOCAL_SIGNATURE)) {
+				throw new IOException("malformed zip entry " + name);
+			}
+			final ByteBuffer data = slice(archive, local + LOCAL_SIZE
+					+ (archive.getShort(local + 26) & 0xFFFF)
+					+ (archive.getShort(local + 28) & 0xFFFF), compressedSize);
+			switch (method) {
+			case METHOD_STORED:
+				entries.put(name, data);
+				break;
+			case METHOD_DEFLATED:
+				entries.put(name, inflate(data, size));
+				break;
+			default:
+				throw new IOException("unsupported compression of zip entry "
+						+ name);
+			}
+		}
+		return entries;
+	}
+}
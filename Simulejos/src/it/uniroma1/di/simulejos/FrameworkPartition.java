@@ -0,0 +1,216 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.util.ByteBufferInputStream;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits the Framework classes into those that can be shared by all robots
+ * and those that every robot must define on its own.
+ * 
+ * A class must be defined per robot if it has static state, that is a static
+ * field that is not final or that refers to an object, as the field could be
+ * written or the object mutated by a robot; or if it refers to a class that
+ * must be defined per robot, because a shared class would resolve it through
+ * the shared class loader; or if it belongs to the same package as a class
+ * that must be defined per robot and that refers to it, as classes defined by
+ * different loaders are in different runtime packages and cannot access each
+ * other's package private members, which nested classes also rely on.
+ * 
+ * References are collected from every string of the constant pool, which
+ * holds the class entries and the type descriptors of everything the JVM may
+ * load when linking and verifying the class. Classes that invoke the system
+ * clock also refer to the virtual clock, as they will once redirected.
+ */
+final class FrameworkPartition {
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private static final int ACC_STATIC = 0x0008;
+	private static final int ACC_FINAL = 0x0010;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+
+	/*
+	 * The size of the entries of the constant pool other than strings, by
+	 * tag, or 0 for invalid tags.
+	 */
+	private static final int[] CONSTANT_SIZES = { 0, 0, 0, 4, 4, 8, 8, 2, 2,
+			4, 4, 4, 4, 0, 0, 3, 2, 4, 4, 2, 2 };
+
+	private FrameworkPartition() {
+	}
+
+	/**
+	 * Returns the names of the classes that must be defined per robot.
+	 * 
+	 * @param classes
+	 *            The bytes of the Framework classes, by binary name.
+	 * @return The names of the classes that cannot be shared.
+	 * @throws IOException
+	 *             If a class file is malformed.
+	 */
+	static Set<String> findRobotClasses(Map<String, ByteBuffer> classes)
+			throws IOException {
+		final Map<String, List<String>> referrers = new HashMap<>();
+		final Map<String, List<String>> packageReferences = new HashMap<>();
+		final Deque<String> pending = new ArrayDeque<>();
+		final Set<String> robotClasses = new HashSet<>();
+		for (Map.Entry<String, ByteBuffer> entry : classes.entrySet()) {
+			final String name = entry.getKey();
+			final Set<String> references = new HashSet<>();
+			if (read(entry.getValue(), references)) {
+				robotClasses.add(name);
+				pending.add(name);
+			}
+			for (String reference : references) {
+				if (reference.equals(name) || !classes.containsKey(reference)) {
+					continue;
+				}
+				add(referrers, reference, name);
+				if (getPackageName(reference).equals(getPackageName(name))) {
+					add(packageReferences, name, reference);
+				}
+			}
+		}
+		while (!pending.isEmpty()) {
+			final String name = pending.remove();
+			addAll(robotClasses, pending, referrers.get(name));
+			addAll(robotClasses, pending, packageReferences.get(name));
+		}
+		return Collections.unmodifiableSet(robotClasses);
+	}
+
+	private static void addAll(Set<String> robotClasses,
+			Deque<String> pending, List<String> names) {
+		if (names != null) {
+			for (String name : names) {
+				if (robotClasses.add(name)) {
+					pending.add(name);
+				}
+			}
+		}
+	}
+
+	private static void add(Map<String, List<String>> map, String key,
+			String value) {
+		List<String> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<>();
+			map.put(key, list);
+		}
+		list.add(value);
+	}
+
+	private static String getPackageName(String name) {
+		final int index = name.lastIndexOf('.');
+		return (index >= 0) ? name.substring(0, index) : "";
+	}
+
+	/*
+	 * Collects the binary names of the classes referenced by a class file and
+	 * tells whether the class has static state.
+	 */
+	private static boolean read(ByteBuffer bytes, Set<String> references)
+			throws IOException {
+		final DataInputStream input = new DataInputStream(
+				new ByteBufferInputStream(bytes));
+		if (input.readInt() != MAGIC) {
+			throw new IOException("not a class file");
+		}
+		input.readInt();
+		final int count = input.readUnsignedShort();
+		final String[] strings = new String[count];
+		for (int i = 1; i < count; i++) {
+			final int tag = input.readUnsignedByte();
+			if (tag == CONSTANT_UTF8) {
+				strings[i] = input.readUTF();
+				addNames(strings[i], references);
+			} else if ((tag < CONSTANT_SIZES.length)
+					&& (CONSTANT_SIZES[tag] > 0)) {
+				input.skipBytes(CONSTANT_SIZES[tag]);
+				if ((tag == CONSTANT_LONG) || (tag == CONSTANT_DOUBLE)) {
+					i++;
+				}
+			} else {
+				throw new IOException("invalid constant pool tag " + tag);
+			}
+		}
+		if (ClockRedirector.mayRewrite(Arrays.asList(strings))) {
+			references.add(ClockRedirector.TARGET_CLASS);
+		}
+		input.readUnsignedShort();
+		input.skipBytes(4);
+		input.skipBytes(input.readUnsignedShort() * 2);
+		boolean state = false;
+		final int fieldCount = input.readUnsignedShort();
+		for (int i = 0; i < fieldCount; i++) {
+			final int flags = input.readUnsignedShort();
+			input.readUnsignedShort();
+			final String descriptor = strings[input.readUnsignedShort()];
+			if (((flags & ACC_STATIC) != 0)
+					&& (((flags & ACC_FINAL) == 0)
+							|| isReference(descriptor))) {
+				state = true;
+			}
+			skipAttributes(input);
+		}
+		return state;
+	}
+
+	private static void skipAttributes(DataInputStream input)
+			throws IOException {
+		final int count = input.readUnsignedShort();
+		for (int i = 0; i < count; i++) {
+			input.readUnsignedShort();
+			input.skipBytes(input.readInt());
+		}
+	}
+
+	private static boolean isReference(String descriptor) {
+		return ((descriptor.charAt(0) == 'L') || (descriptor.charAt(0) == '['))
+				&& !descriptor.equals("Ljava/lang/String;");
+	}
+
+	/*
+	 * Adds the classes named by a constant pool string. Class entries hold
+	 * internal names, possibly of array types, and descriptors and
+	 * signatures hold names between 'L' and ';'. Every string is treated as
+	 * both, which may add spurious names but never misses one. Strings
+	 * without a slash are skipped, as all the Framework classes belong to a
+	 * package.
+	 */
+	private static void addNames(String string, Set<String> references) {
+		if (string.indexOf('/') < 0) {
+			return;
+		}
+		references.add(string.replace('/', '.'));
+		int start = string.indexOf('L');
+		while (start >= 0) {
+			final int end = string.indexOf(';', start);
+			if (end < 0) {
+				break;
+			}
+			final String name = string.substring(start + 1, end);
+			references.add(name.replace('/', '.'));
+			final int generic = name.indexOf('<');
+			if (generic >= 0) {
+				references.add(name.substring(0, generic).replace('/', '.'));
+			}
+			start = string.indexOf('L', start + 1);
+		}
+	}
+}
@@ -1,28 +1,47 @@
 package it.uniroma1.di.simulejos;
 
-import java.io.ByteArrayInputStream;
+import it.uniroma1.di.simulejos.util.ByteBufferInputStream;
+
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.security.CodeSigner;
 import java.security.CodeSource;
 import java.security.PermissionCollection;
+import java.security.SecureClassLoader;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
+/**
+ * Loads the classes of a robot, along with the Framework classes that must be
+ * defined per robot because they hold state. The other Framework classes are
+ * defined once by a class loader shared by all robots, which is the parent of
+ * every robot class loader, so that their bytes are parsed, verified and
+ * compiled only once.
+ * 
+ * The Framework classes are served from the {@link FrameworkArchive}, and the
+ * invocations of the system clock of each class are redirected when the class
+ * is first defined. The redirected bytes of the classes defined per robot are
+ * retained for the following robots.
+ */
 public final class LejosClassLoader extends URLClassLoader {
 	private static final Manifest manifest;
 	private static final Set<String> packages = Collections
 			.synchronizedSet(new HashSet<String>());
-	private static final Map<String, byte[]> classes = new ConcurrentHashMap<String, byte[]>();
-	private static final Map<String, byte[]> resources = new ConcurrentHashMap<String, byte[]>();
+	private static final Map<String, ByteBuffer> classes = new ConcurrentHashMap<String, ByteBuffer>();
+	private static final Map<String, ByteBuffer> resources = new ConcurrentHashMap<String, ByteBuffer>();
+	private static final Map<String, byte[]> redirectedClasses = new ConcurrentHashMap<String, byte[]>();
+	private static final Set<String> robotClasses;
+	private static final CodeSource codeSource = LejosClassLoader.class
+			.getProtectionDomain().getCodeSource();
 
 	private static byte[] readAll(InputStream is) throws IOException {
 		final byte[] buffer = new byte[0x1000];
@@ -37,53 +56,140 @@ public final class LejosClassLoader extends URLClassLoader {
 
 	static {
 		try {
-			final JarInputStream jis = new JarInputStream(
-					LejosClassLoader.class.getResourceAsStream("Framework.jar"));
-			manifest = jis.getManifest();
-			JarEntry entry = jis.getNextJarEntry();
-			while (entry != null) {
-				if (!entry.isDirectory()) {
-					String name = entry.getName();
-					if (name.endsWith(".class")) {
-						name = name.substring(0,
-								name.length() - ".class".length()).replaceAll(
-								"\\/", ".");
-						classes.put(name, readAll(jis));
-					} else {
-						resources.put(name, readAll(jis));
-					}
+			for (Map.Entry<String, ByteBuffer> entry : FrameworkArchive.open(
+					LejosClassLoader.class.getResource("Framework.jar"))
+					.entrySet()) {
+				String name = entry.getKey();
+				if (name.endsWith(".class")) {
+					name = name.substring(0, name.length() - ".class".length())
+							.replace('/', '.');
+					classes.put(name, entry.getValue());
+				} else {
+					resources.put(name, entry.getValue());
 				}
-				entry = jis.getNextJarEntry();
 			}
+			final ByteBuffer manifestBytes = resources
+					.get(JarFile.MANIFEST_NAME);
+			if (manifestBytes != null) {
+				manifest = new Manifest(new ByteBufferInputStream(
+						manifestBytes));
+			} else {
+				manifest = null;
+			}
+			robotClasses = FrameworkPartition.findRobotClasses(classes);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/*
+	 * Defines the Framework classes that can be shared by all robots.
+	 */
+	private static final class SharedClassLoader extends SecureClassLoader {
+		static {
+			registerAsParallelCapable();
+		}
+
+		SharedClassLoader() {
+			super(LejosClassLoader.class.getClassLoader());
+		}
+
+		@Override
+		protected Class<?> findClass(String name)
+				throws ClassNotFoundException {
+			if (robotClasses.contains(name)) {
+				throw new ClassNotFoundException(name);
+			}
+			final byte[] bytes = getFrameworkClass(name);
+			if (bytes == null) {
+				throw new ClassNotFoundException(name);
+			}
+			return defineClass(name, bytes, 0, bytes.length, codeSource);
+		}
+
+		@Override
+		protected PermissionCollection getPermissions(CodeSource codeSource) {
+			return LejosClassLoader.class.getProtectionDomain()
+					.getPermissions();
+		}
+	}
+
+	private static final SharedClassLoader sharedClassLoader = new SharedClassLoader();
+
 	public LejosClassLoader(URL[] urls) {
-		super(urls, LejosClassLoader.class.getClassLoader());
+		super(urls, sharedClassLoader);
 		for (String name : packages) {
 			definePackage(name, manifest, null);
 		}
 	}
 
+	private static byte[] redirect(String name, byte[] bytes)
+			throws IOException {
+		if (name.equals(ClockRedirector.TARGET_CLASS)) {
+			return bytes;
+		}
+		return ClockRedirector.rewrite(bytes);
+	}
+
+	/*
+	 * Returns the redirected bytes of a Framework class, or null if there is
+	 * no such class.
+	 */
+	private static byte[] getFrameworkClass(String name)
+			throws ClassNotFoundException {
+		byte[] bytes = redirectedClasses.get(name);
+		if (bytes != null) {
+			return bytes;
+		}
+		final ByteBuffer buffer = classes.get(name);
+		if (buffer == null) {
+			return null;
+		}
+		bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		try {
+			bytes = redirect(name, bytes);
+		} catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
+		if (robotClasses.contains(name)) {
+			redirectedClasses.put(name, bytes);
+		}
+		return bytes;
+	}
+
 	@Override
 	protected Class<?> findClass(String name) throws ClassNotFoundException {
-		final byte[] bytes = classes.get(name);
+		byte[] bytes = getFrameworkClass(name);
 		if (bytes != null) {
-			return defineClass(name, bytes, 0, bytes.length,
-					LejosClassLoader.class.getProtectionDomain()
-							.getCodeSource());
-		} else {
-			return super.findClass(name);
+			return defineClass(name, bytes, 0, bytes.length, codeSource);
+		}
+		final URL url = findResource(name.replace('.', '/') + ".class");
+		if (url == null) {
+			throw new ClassNotFoundException(name);
+		}
+		try (InputStream is = url.openStream()) {
+			bytes = redirect(name, readAll(is));
+		} catch (IOException e) {
+			throw new ClassNotFoundException(name, e);
+		}
+		final int index = name.lastIndexOf('.');
+		if (index >= 0) {
+			final String packageName = name.substring(0, index);
+			if (getPackage(packageName) == null) {
+				definePackage(packageName, null, null, null, null, null, null,
+						null);
+			}
 		}
+		return defineClass(name, bytes, 0, bytes.length, new CodeSource(url,
+				(CodeSigner[]) null));
 	}
 
 	@Override
 	public InputStream getResourceAsStream(String name) {
-		final byte[] bytes = resources.get(name);
+		final ByteBuffer bytes = resources.get(name);
 		if (bytes != null) {
-			return new ByteArrayInputStream(bytes);
+			return new ByteBufferInputStream(bytes);
 		} else {
 			return super.getResourceAsStream(name);
 		}
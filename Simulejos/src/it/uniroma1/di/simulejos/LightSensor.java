@@ -2,30 +2,28 @@ package it.uniroma1.di.simulejos;
 
 import static javax.media.opengl.GL2GL3.*;
 
-import java.nio.FloatBuffer;
-
 import javax.media.opengl.GL2GL3;
-import javax.media.opengl.GLAutoDrawable;
 
 import it.uniroma1.di.simulejos.Robot.GPUSensor;
 import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
 import it.uniroma1.di.simulejos.math.Matrix3;
+import it.uniroma1.di.simulejos.math.MutableMatrix3;
 import it.uniroma1.di.simulejos.math.Vector3;
 import it.uniroma1.di.simulejos.opengl.Program;
 
 final class LightSensor extends GPUSensor implements
 		SimulatorInterface.LightSensor {
 	private final Vector3 position;
+	private final MutableMatrix3 heading;
 	private final Matrix3 inverseHeading;
-	private volatile Program floorProgram;
-	private volatile Program robotProgram;
-
+	private final float[] pixel = new float[4];
 	private volatile int value;
 	private volatile boolean floodLight = true;
 
 	public LightSensor(Robot robot, Vector3 position, Matrix3 heading) {
 		robot.super(1, 1);
 		this.position = position;
+		this.heading = new MutableMatrix3(heading);
 		this.inverseHeading = heading.invert();
 	}
 
@@ -45,51 +43,53 @@ final class LightSensor extends GPUSensor implements
 	}
 
 	@Override
-	public void init(GLAutoDrawable drawable) {
-		final GL2GL3 gl = drawable.getGL().getGL2GL3();
-		floorProgram = new Program(gl, getClass(), "floor_light",
-				new String[] { "in_Vertex" });
-		floor.share(gl);
-		robotProgram = new Program(gl, getClass(), "robot_light",
-				new String[] { "in_Vertex" });
+	void draw(GL2GL3 gl, SensorAtlas atlas) {
 		gl.glClearColor(0, 0, 0, 1);
-		gl.glEnable(GL_DEPTH_TEST);
 		gl.glClearDepth(0);
 		gl.glDepthFunc(GL_GREATER);
-		gl.glEnable(GL_CULL_FACE);
-	}
-
-	@Override
-	public void display(GLAutoDrawable drawable) {
-		final GL2GL3 gl = drawable.getGL().getGL2GL3();
 		gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+		final Program floorProgram = atlas.getProgram(gl, "floor_light");
 		floorProgram.use();
 		floorProgram.uniform("SensorPosition", position);
 		floorProgram.uniform("InverseSensorHeading", inverseHeading);
 		uniform(floorProgram);
 		floor.drawForSensor(gl, floorProgram);
+		final Program robotProgram = atlas.getProgram(gl, "robot_light");
 		robotProgram.use();
 		robotProgram.uniform("SensorPosition", position);
 		robotProgram.uniform("InverseSensorHeading", inverseHeading);
 		uniform(robotProgram);
-		for (Robot robot : robots) {
-			robot.drawForSensor(gl, robotProgram);
+		atlas.drawRobots(gl);
+	}
+
+	@Override
+	boolean sampleDirectly() {
+		final Floor.Surface surface = sampleFloor(position, heading, pixel);
+		if (surface == null) {
+			return false;
 		}
-		gl.glFinish();
-		final float[] values = new float[1];
-		if (floodLight) {
-			gl.glReadPixels(0, 0, 1, 1, GL_RED, GL_FLOAT,
-					FloatBuffer.wrap(values));
-		} else {
-			gl.glReadPixels(0, 0, 1, 1, GL_LUMINANCE, GL_FLOAT,
-					FloatBuffer.wrap(values));
+		switch (surface) {
+		case NONE:
+			pixel[0] = pixel[1] = pixel[2] = 0;
+			break;
+		case PLAIN:
+			pixel[0] = pixel[1] = pixel[2] = 1;
+			break;
+		case TEXTURED:
+			break;
 		}
-		value = 1023 - Math.round(values[0] * 1023);
+		sample(pixel);
+		return true;
 	}
 
 	@Override
-	public void dispose(GLAutoDrawable drawable) {
-		floorProgram.delete();
-		robotProgram.delete();
+	void sample(float[] pixels) {
+		final float light;
+		if (floodLight) {
+			light = pixels[0];
+		} else {
+			light = SensorAtlas.luminance(pixels, 0);
+		}
+		value = 1023 - Math.round(light * 1023);
 	}
 }
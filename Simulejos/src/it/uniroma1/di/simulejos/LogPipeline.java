@@ -0,0 +1,397 @@
+package it.uniroma1.di.simulejos;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects the log of a simulation. Every robot, and the simulation itself,
+ * writes to its own channel, which assembles lines per thread and publishes
+ * them into a bounded lock-free ring buffer, so that writing a line costs a
+ * single allocation and never waits for a lock or for the user interface. A
+ * single consumer thread drains all channels at a fixed rate and writes each
+ * batch to the sinks at once: the main sink, typically the log window, an
+ * optional log file and the trace being recorded, if any.
+ * 
+ * When the ring buffer of a channel is full, lines are either dropped, and
+ * the number of dropped lines is reported once there is room again, or the
+ * writing thread waits for the consumer, which then drains without waiting
+ * for the end of its period, see {@link Overflow}. The consumer thread is
+ * started when lines are published and terminates after a second without
+ * any.
+ */
+final class LogPipeline {
+	/**
+	 * What a channel does with a line when its ring buffer is full.
+	 */
+	enum Overflow {
+		/**
+		 * The line is discarded. Robots are never slowed down by their log.
+		 */
+		DROP,
+
+		/**
+		 * The writing thread waits until the consumer makes room for the
+		 * line, unless it is interrupted. No line is lost.
+		 */
+		BLOCK
+	}
+
+	static final int DEFAULT_CAPACITY = 1024;
+	static final long DEFAULT_PERIOD = 50;
+	private static final int IDLE_PERIODS = 20;
+
+	private final Writer sink;
+	private final int capacity;
+	private final long period;
+	private volatile Overflow overflow;
+	private volatile Writer file;
+	private volatile Writer trace;
+	private final List<Channel> channels = new CopyOnWriteArrayList<>();
+	private final AtomicBoolean consuming = new AtomicBoolean();
+	private volatile Thread consumer;
+	private final Object drainLock = new Object();
+	private final StringBuilder batch = new StringBuilder();
+
+	/**
+	 * Creates a pipeline.
+	 * 
+	 * @param sink
+	 *            The main sink, written by the consumer thread only.
+	 * @param capacity
+	 *            The number of lines each channel can hold, rounded up to a
+	 *            power of two.
+	 * @param period
+	 *            The period of the consumer, in milliseconds.
+	 * @param overflow
+	 *            What to do when a channel is full.
+	 */
+	LogPipeline(Writer sink, int capacity, long period, Overflow overflow) {
+		this.sink = sink;
+		this.capacity = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+		this.period = period;
+		this.overflow = overflow;
+	}
+
+	Overflow getOverflow() {
+		return overflow;
+	}
+
+	void setOverflow(Overflow overflow) {
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Opens a channel whose lines are prefixed by a name.
+	 * 
+	 * @param name
+	 *            The name of the channel, e.g. the name of a robot.
+	 * @return The writer of the channel.
+	 */
+	Writer openChannel(String name) {
+		final Channel channel = new Channel(name, capacity);
+		channels.add(channel);
+		return channel;
+	}
+
+	/**
+	 * Closes a channel. The lines published to it so far are written to the
+	 * sinks, and those written from now on are discarded.
+	 * 
+	 * @param channel
+	 *            The writer returned by {@link #openChannel(String)}.
+	 */
+	void closeChannel(Writer channel) {
+		synchronized (drainLock) {
+			((Channel) channel).closed = true;
+			try {
+				drain();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			channels.remove(channel);
+		}
+	}
+
+	/**
+	 * Replaces the log file. The lines published so far are written to the
+	 * previous file, if any, which is then closed.
+	 * 
+	 * @param file
+	 *            The new log file, or <code>null</code> for none.
+	 * @throws IOException
+	 *             If the previous file cannot be written or closed.
+	 */
+	void setFile(Writer file) throws IOException {
+		synchronized (drainLock) {
+			drain();
+			final Writer previous = this.file;
+			this.file = file;
+			if (previous != null) {
+				previous.close();
+			}
+		}
+	}
+
+	/**
+	 * Sets the sink of the trace being recorded, which receives the lines
+	 * drained from now on. Unlike the log file, it is not closed here.
+	 * 
+	 * @param trace
+	 *            The sink, or <code>null</code> for none.
+	 */
+	void setTrace(Writer trace) {
+		synchronized (drainLock) {
+			this.trace = trace;
+		}
+	}
+
+	/**
+	 * Writes all the lines published so far to the sinks and flushes them.
+	 */
+	void flush() {
+		synchronized (drainLock) {
+			try {
+				drain();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Must be called with drainLock held. Returns whether anything was
+	 * written.
+	 */
+	private boolean drain() throws IOException {
+		for (Channel channel : channels) {
+			channel.drainTo(batch);
+		}
+		if (batch.length() == 0) {
+			return false;
+		}
+		final String text = batch.toString();
+		batch.setLength(0);
+		sink.write(text);
+		sink.flush();
+		final Writer file = this.file;
+		if (file != null) {
+			file.write(text);
+			file.flush();
+		}
+		final Writer trace = this.trace;
+		if (trace != null) {
+			trace.write(text);
+		}
+		return true;
+	}
+
+	private boolean isEmpty() {
+		for (Channel channel : channels) {
+			if (!channel.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void wakeConsumer() {
+		if (!consuming.get() && consuming.compareAndSet(false, true)) {
+			final Thread thread = new Thread(new Consumer(), "log");
+			thread.setDaemon(true);
+			consumer = thread;
+			thread.start();
+		}
+	}
+
+	private final class Consumer implements Runnable {
+		@Override
+		public void run() {
+			int idle = 0;
+			while (true) {
+				boolean written;
+				synchronized (drainLock) {
+					try {
+						written = drain();
+					} catch (IOException e) {
+						e.printStackTrace();
+						written = false;
+					}
+				}
+				if (written) {
+					idle = 0;
+				} else if (++idle >= IDLE_PERIODS) {
+					/*
+					 * a producer that published after the last drain may
+					 * have seen the consumer running, so check again
+					 */
+					consuming.set(false);
+					if (isEmpty() || !consuming.compareAndSet(false, true)) {
+						return;
+					}
+					idle = 0;
+				}
+				/*
+				 * unparked early by producers waiting for room
+				 */
+				LockSupport.parkNanos(this, period * 1000000);
+			}
+		}
+	}
+
+	/*
+	 * A bounded multiple-producer queue after Dmitry Vyukov's: every slot has
+	 * a sequence number telling whether it is free for the producer at a
+	 * given position or full for the consumer at that position.
+	 */
+	private static final class Ring {
+		private final AtomicReferenceArray<String> lines;
+		private final AtomicLongArray sequences;
+		private final int mask;
+		private final AtomicLong tail = new AtomicLong();
+		private long head;
+
+		Ring(int capacity) {
+			lines = new AtomicReferenceArray<>(capacity);
+			sequences = new AtomicLongArray(capacity);
+			mask = capacity - 1;
+			for (int i = 0; i < capacity; i++) {
+				sequences.set(i, i);
+			}
+		}
+
+		boolean offer(String line) {
+			while (true) {
+				final long position = tail.get();
+				final int index = (int) (position & mask);
+				final long sequence = sequences.get(index);
+				if (sequence == position) {
+					if (tail.compareAndSet(position, position + 1)) {
+						lines.set(index, line);
+						sequences.set(index, position + 1);
+						return true;
+					}
+				} else if (sequence < position) {
+					return false;
+				}
+			}
+		}
+
+		/*
+		 * Only called by one thread at a time.
+		 */
+		String poll() {
+			final int index = (int) (head & mask);
+			if (sequences.get(index) != head + 1) {
+				return null;
+			}
+			final String line = lines.get(index);
+			lines.set(index, null);
+			sequences.set(index, head + mask + 1);
+			head++;
+			return line;
+		}
+
+		boolean isEmpty() {
+			return sequences.get((int) (head & mask)) != head + 1;
+		}
+	}
+
+	private final class Channel extends Writer {
+		private final String prefix;
+		private final Ring ring;
+		private final AtomicLong dropped = new AtomicLong();
+		private volatile boolean closed;
+		private final ThreadLocal<StringBuilder> line =
+				new ThreadLocal<StringBuilder>() {
+					@Override
+					protected StringBuilder initialValue() {
+						return new StringBuilder(prefix);
+					}
+				};
+
+		Channel(String name, int capacity) {
+			this.prefix = name + "> ";
+			this.ring = new Ring(capacity);
+		}
+
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+			final StringBuilder line = this.line.get();
+			final int end = offset + length;
+			int start = offset;
+			for (int i = offset; i < end; i++) {
+				if (buffer[i] == '\n') {
+					line.append(buffer, start, i + 1 - start);
+					publish(line);
+					start = i + 1;
+				}
+			}
+			line.append(buffer, start, end - start);
+		}
+
+		/*
+		 * Flushing publishes the incomplete line of the calling thread, if
+		 * any, so that it shows up even if it is never completed.
+		 */
+		@Override
+		public void flush() {
+			final StringBuilder line = this.line.get();
+			if (line.length() > prefix.length()) {
+				line.append('\n');
+				publish(line);
+			}
+		}
+
+		@Override
+		public void close() {
+			flush();
+		}
+
+		private void publish(StringBuilder line) {
+			final String text = line.toString();
+			line.setLength(prefix.length());
+			if (closed) {
+				return;
+			}
+			if (!ring.offer(text)) {
+				if (overflow == Overflow.DROP) {
+					dropped.incrementAndGet();
+				} else {
+					while (!ring.offer(text)) {
+						wakeConsumer();
+						LockSupport.unpark(consumer);
+						if (Thread.currentThread().isInterrupted()) {
+							dropped.incrementAndGet();
+							break;
+						}
+						LockSupport.parkNanos(this, period * 100000);
+					}
+				}
+			}
+			wakeConsumer();
+		}
+
+		void drainTo(StringBuilder batch) {
+			String text;
+			while ((text = ring.poll()) != null) {
+				batch.append(text);
+			}
+			final long count = dropped.getAndSet(0);
+			if (count > 0) {
+				batch.append(prefix).append(count)
+						.append(" lines dropped\n");
+			}
+		}
+
+		boolean isEmpty() {
+			return ring.isEmpty() && (dropped.get() == 0);
+		}
+	}
+}
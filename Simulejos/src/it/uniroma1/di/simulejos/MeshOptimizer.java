@@ -0,0 +1,263 @@
+package it.uniroma1.di.simulejos;
+
+import java.util.Arrays;
+
+/**
+ * Prepares the triangle mesh of a model for rendering.
+ * 
+ * OBJ exporters often repeat the vertices of each face, so vertices with the
+ * same coordinates are first welded into one. The triangles are then
+ * reordered so that consecutive triangles share vertices, which lets the
+ * post-transform vertex cache of the GPU skip most vertex shader
+ * invocations, using the linear-speed algorithm by Tom Forsyth. Finally the
+ * vertices are renumbered in the order the triangles first use them, so that
+ * vertex fetches walk memory sequentially.
+ * 
+ * The vertices have four coordinates each and the triangles three indices.
+ */
+final class MeshOptimizer {
+	private static final int CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+
+	float[] vertices;
+	int[] indices;
+
+	MeshOptimizer(float[] vertices, int[] indices) {
+		this.vertices = vertices;
+		this.indices = indices;
+	}
+
+	/**
+	 * Runs all the passes.
+	 */
+	MeshOptimizer optimize() {
+		weld();
+		optimizeVertexCache();
+		optimizeVertexFetch();
+		return this;
+	}
+
+	private static int hash(float value) {
+		/* adding zero turns -0 into +0, which compares equal to it */
+		return Float.floatToIntBits(value + 0f);
+	}
+
+	private boolean equal(int a, int b) {
+		for (int k = 0; k < 4; k++) {
+			if (vertices[a * 4 + k] != vertices[b * 4 + k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Merges the vertices that have the same coordinates and drops the
+	 * triangles that become degenerate because two of their corners merged.
+	 * Vertices that no triangle uses are kept, as they still count for the
+	 * bounding box of the model.
+	 */
+	void weld() {
+		final int count = vertices.length / 4;
+		final int capacity = Integer
+				.highestOneBit(Math.max(count * 2 - 1, 1)) << 1;
+		final int[] table = new int[capacity];
+		Arrays.fill(table, -1);
+		final int[] remap = new int[count];
+		final float[] welded = new float[vertices.length];
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			int hash = 1;
+			for (int k = 0; k < 4; k++) {
+				hash = hash * 31 + hash(vertices[i * 4 + k]);
+			}
+			hash ^= hash >>> 16;
+			int slot = hash & (capacity - 1);
+			while ((table[slot] >= 0) && !equal(table[slot], i)) {
+				slot = (slot + 1) & (capacity - 1);
+			}
+			if (table[slot] < 0) {
+				table[slot] = i;
+				System.arraycopy(vertices, i * 4, welded, unique * 4, 4);
+				remap[i] = unique++;
+			} else {
+				remap[i] = remap[table[slot]];
+			}
+		}
+		int length = 0;
+		for (int i = 0; i + 2 < indices.length; i += 3) {
+			final int a = remap[indices[i]];
+			final int b = remap[indices[i + 1]];
+			final int c = remap[indices[i + 2]];
+			if ((a != b) && (b != c) && (a != c)) {
+				indices[length++] = a;
+				indices[length++] = b;
+				indices[length++] = c;
+			}
+		}
+		vertices = Arrays.copyOf(welded, unique * 4);
+		indices = Arrays.copyOf(indices, length);
+	}
+
+	/*
+	 * The score of a vertex depends on its position in the simulated cache,
+	 * favoring the vertices of the last triangle a little less than the next
+	 * most recent ones to avoid strips, and on the number of triangles still
+	 * using it, favoring the vertices that would otherwise be left alone.
+	 */
+	private static float score(int cachePosition, int valence) {
+		if (valence == 0) {
+			return -1;
+		}
+		float score = 0;
+		if (cachePosition >= 3) {
+			score = (float) Math.pow(1 - (cachePosition - 3)
+					/ (float) (CACHE_SIZE - 3), CACHE_DECAY_POWER);
+		} else if (cachePosition >= 0) {
+			score = LAST_TRIANGLE_SCORE;
+		}
+		return score + VALENCE_BOOST_SCALE
+				* (float) Math.pow(valence, -VALENCE_BOOST_POWER);
+	}
+
+	/**
+	 * Reorders the triangles for the post-transform vertex cache. At each
+	 * step the triangle with the highest score among those sharing a vertex
+	 * with the simulated cache is emitted, and only the scores of the
+	 * triangles around the vertices whose cache position changed are updated.
+	 */
+	void optimizeVertexCache() {
+		final int vertexCount = vertices.length / 4;
+		final int triangleCount = indices.length / 3;
+		if (triangleCount == 0) {
+			return;
+		}
+
+		/* the triangles of each vertex, the live ones first */
+		final int[] valence = new int[vertexCount];
+		for (int index : indices) {
+			valence[index]++;
+		}
+		final int[] offsets = new int[vertexCount + 1];
+		for (int v = 0; v < vertexCount; v++) {
+			offsets[v + 1] = offsets[v] + valence[v];
+		}
+		final int[] adjacency = new int[indices.length];
+		final int[] ends = Arrays.copyOf(offsets, vertexCount);
+		for (int i = 0; i < indices.length; i++) {
+			adjacency[ends[indices[i]]++] = i / 3;
+		}
+
+		final int[] cachePositions = new int[vertexCount];
+		Arrays.fill(cachePositions, -1);
+		final float[] vertexScores = new float[vertexCount];
+		for (int v = 0; v < vertexCount; v++) {
+			vertexScores[v] = score(-1, valence[v]);
+		}
+		int best = -1;
+		float bestScore = Float.NEGATIVE_INFINITY;
+		for (int t = 0; t < triangleCount; t++) {
+			final float score = vertexScores[indices[t * 3]]
+					+ vertexScores[indices[t * 3 + 1]]
+					+ vertexScores[indices[t * 3 + 2]];
+			if (score > bestScore) {
+				best = t;
+				bestScore = score;
+			}
+		}
+
+		final boolean[] emitted = new boolean[triangleCount];
+		final int[] result = new int[indices.length];
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] nextCache = new int[CACHE_SIZE + 3];
+		int cacheCount = 0;
+		int cursor = 0;
+		for (int n = 0; n < triangleCount; n++) {
+			if (best < 0) {
+				/* the cache leads nowhere: restart from any triangle left */
+				while (emitted[cursor]) {
+					cursor++;
+				}
+				best = cursor;
+			}
+			emitted[best] = true;
+			int nextCount = 0;
+			for (int j = 0; j < 3; j++) {
+				final int v = indices[best * 3 + j];
+				result[n * 3 + j] = v;
+				nextCache[nextCount++] = v;
+				final int end = offsets[v] + valence[v];
+				for (int k = offsets[v]; k < end; k++) {
+					if (adjacency[k] == best) {
+						adjacency[k] = adjacency[end - 1];
+						adjacency[end - 1] = best;
+						break;
+					}
+				}
+				valence[v]--;
+			}
+			for (int i = 0; i < cacheCount; i++) {
+				final int v = cache[i];
+				if ((v != nextCache[0]) && (v != nextCache[1])
+						&& (v != nextCache[2])) {
+					nextCache[nextCount++] = v;
+				}
+			}
+			for (int i = 0; i < nextCount; i++) {
+				final int v = nextCache[i];
+				cachePositions[v] = (i < CACHE_SIZE) ? i : -1;
+				vertexScores[v] = score(cachePositions[v], valence[v]);
+			}
+			best = -1;
+			bestScore = Float.NEGATIVE_INFINITY;
+			for (int i = 0; i < nextCount; i++) {
+				final int v = nextCache[i];
+				final int end = offsets[v] + valence[v];
+				for (int k = offsets[v]; k < end; k++) {
+					final int t = adjacency[k];
+					final float score = vertexScores[indices[t * 3]]
+							+ vertexScores[indices[t * 3 + 1]]
+							+ vertexScores[indices[t * 3 + 2]];
+					if (score > bestScore) {
+						best = t;
+						bestScore = score;
+					}
+				}
+			}
+			final int[] swap = cache;
+			cache = nextCache;
+			nextCache = swap;
+			cacheCount = Math.min(nextCount, CACHE_SIZE);
+		}
+		indices = result;
+	}
+
+	/**
+	 * Renumbers the vertices in the order the triangles first use them. The
+	 * vertices that no triangle uses go last.
+	 */
+	void optimizeVertexFetch() {
+		final int count = vertices.length / 4;
+		final int[] remap = new int[count];
+		Arrays.fill(remap, -1);
+		int next = 0;
+		for (int i = 0; i < indices.length; i++) {
+			final int v = indices[i];
+			if (remap[v] < 0) {
+				remap[v] = next++;
+			}
+			indices[i] = remap[v];
+		}
+		final float[] reordered = new float[vertices.length];
+		for (int v = 0; v < count; v++) {
+			if (remap[v] < 0) {
+				remap[v] = next++;
+			}
+			System.arraycopy(vertices, v * 4, reordered, remap[v] * 4, 4);
+		}
+		vertices = reordered;
+	}
+}
@@ -0,0 +1,117 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.opengl.Elements;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.media.opengl.GL2GL3;
+
+/**
+ * The meshes of the robots of a simulation in GPU memory, one for every
+ * {@link ModelData}. Robots built from model files with the same contents
+ * share their {@link ModelData}, see {@link AssetCache}, and therefore their
+ * mesh, which is uploaded once and drawn for all of them at once, see
+ * {@link RobotInstances}.
+ * 
+ * Meshes are uploaded by the thread of the view, in its context. The contexts
+ * that share its objects, those of the sensors and of the picker, skip the
+ * robots whose meshes have not been uploaded yet.
+ */
+final class MeshRegistry {
+	/*
+	 * The levels of detail drawn by the view, the picker and the sensors. The
+	 * view draws the full model, while the sensors, which render a single
+	 * pixel, and the picker, which only needs the robot under the cursor,
+	 * draw coarser levels.
+	 */
+	static final int VIEW_LEVEL = 0;
+	static final int PICKER_LEVEL = 1;
+	static final int SENSOR_LEVEL = 2;
+
+	static final class Mesh {
+		final Elements elements;
+
+		/*
+		 * The element array holds the indices of the full model followed by
+		 * those of its levels of detail, starting at these offsets.
+		 */
+		private final int[] levelOffsets;
+
+		private Mesh(GL2GL3 gl, ModelData modelData) {
+			final int[][] levels = modelData.levelsOfDetail;
+			final int[] offsets = new int[levels.length + 2];
+			offsets[1] = modelData.indices.length;
+			for (int i = 0; i < levels.length; i++) {
+				offsets[i + 2] = offsets[i + 1] + levels[i].length;
+			}
+			final int[] indices = Arrays.copyOf(modelData.indices,
+					offsets[levels.length + 1]);
+			for (int i = 0; i < levels.length; i++) {
+				System.arraycopy(levels[i], 0, indices, offsets[i + 1],
+						levels[i].length);
+			}
+			this.levelOffsets = offsets;
+			this.elements = new Elements(gl, indices);
+			this.elements.add(4, modelData.vertices);
+		}
+
+		int getLevelOffset(int level) {
+			return levelOffsets[Math.min(level, levelOffsets.length - 2)];
+		}
+
+		int getLevelCount(int level) {
+			level = Math.min(level, levelOffsets.length - 2);
+			return levelOffsets[level + 1] - levelOffsets[level];
+		}
+	}
+
+	private final Map<ModelData, Mesh> meshes = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the mesh of a model.
+	 * 
+	 * @param modelData
+	 *            The model.
+	 * @return The mesh, or <code>null</code> if it has not been uploaded.
+	 */
+	Mesh get(ModelData modelData) {
+		return meshes.get(modelData);
+	}
+
+	/**
+	 * Uploads the meshes of the specified robots that are not in GPU memory
+	 * yet. Must be invoked by the thread of the view.
+	 * 
+	 * @param gl
+	 *            The context of the view.
+	 * @param robots
+	 *            The robots to draw.
+	 */
+	void upload(GL2GL3 gl, Iterable<Robot> robots) {
+		for (Robot robot : robots) {
+			if (!meshes.containsKey(robot.modelData)) {
+				meshes.put(robot.modelData, new Mesh(gl, robot.modelData));
+			}
+		}
+	}
+
+	/**
+	 * Forgets all the meshes, as when the context of the view has been
+	 * replaced and they are gone with the previous one.
+	 */
+	void clear() {
+		meshes.clear();
+	}
+
+	/**
+	 * Deletes all the meshes. Must be invoked by the thread of the view.
+	 */
+	void delete() {
+		for (Mesh mesh : meshes.values()) {
+			mesh.elements.delete();
+		}
+		meshes.clear();
+	}
+}
@@ -0,0 +1,311 @@
+package it.uniroma1.di.simulejos;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Simplifies the triangle mesh of a model by quadric edge collapse, to build
+ * the coarser levels of detail drawn by the sensor and picker passes.
+ * 
+ * Each vertex accumulates the quadric of the planes of its triangles, whose
+ * value at a point is the sum of the squared distances of the point from the
+ * planes. Collapsing an edge moves one of its vertices onto the other, so
+ * the simplified mesh uses a subset of the original vertices and can share
+ * their buffer; the cost of the collapse is the quadric of both vertices
+ * evaluated at the position that is kept. Vertices on open borders never
+ * move, and collapses that would flip a triangle are rejected.
+ * 
+ * The mesh is simplified in passes: each pass sorts the candidate edges by
+ * cost and collapses as many as possible without touching the same
+ * neighborhood twice, then the indices are remapped and the triangles that
+ * became degenerate are dropped.
+ */
+final class MeshSimplifier {
+	private static final int QUADRIC_SIZE = 10;
+
+	private final double[] positions;
+	private final int vertexCount;
+	private final double[] quadrics;
+	private final boolean[] border;
+	private int[] indices;
+
+	/**
+	 * @param vertices
+	 *            The vertices of the mesh, four coordinates each.
+	 * @param indices
+	 *            The vertex indices of the triangles, three each.
+	 */
+	MeshSimplifier(float[] vertices, int[] indices) {
+		this.vertexCount = vertices.length / 4;
+		this.positions = new double[vertexCount * 3];
+		for (int v = 0; v < vertexCount; v++) {
+			final double w = vertices[v * 4 + 3];
+			for (int k = 0; k < 3; k++) {
+				positions[v * 3 + k] = vertices[v * 4 + k] / w;
+			}
+		}
+		this.indices = indices.clone();
+		this.quadrics = new double[vertexCount * QUADRIC_SIZE];
+		for (int t = 0; t < indices.length; t += 3) {
+			addPlane(t);
+		}
+		this.border = findBorder();
+	}
+
+	/*
+	 * Adds the plane of a triangle to the quadrics of its vertices.
+	 */
+	private void addPlane(int triangle) {
+		final double[] p = positions;
+		final int a = indices[triangle] * 3;
+		final int b = indices[triangle + 1] * 3;
+		final int c = indices[triangle + 2] * 3;
+		double nx = (p[b + 1] - p[a + 1]) * (p[c + 2] - p[a + 2])
+				- (p[b + 2] - p[a + 2]) * (p[c + 1] - p[a + 1]);
+		double ny = (p[b + 2] - p[a + 2]) * (p[c] - p[a]) - (p[b] - p[a])
+				* (p[c + 2] - p[a + 2]);
+		double nz = (p[b] - p[a]) * (p[c + 1] - p[a + 1])
+				- (p[b + 1] - p[a + 1]) * (p[c] - p[a]);
+		final double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length == 0) {
+			return;
+		}
+		nx /= length;
+		ny /= length;
+		nz /= length;
+		final double d = -(nx * p[a] + ny * p[a + 1] + nz * p[a + 2]);
+		for (int j = 0; j < 3; j++) {
+			final int q = indices[triangle + j] * QUADRIC_SIZE;
+			quadrics[q] += nx * nx;
+			quadrics[q + 1] += nx * ny;
+			quadrics[q + 2] += nx * nz;
+			quadrics[q + 3] += nx * d;
+			quadrics[q + 4] += ny * ny;
+			quadrics[q + 5] += ny * nz;
+			quadrics[q + 6] += ny * d;
+			quadrics[q + 7] += nz * nz;
+			quadrics[q + 8] += nz * d;
+			quadrics[q + 9] += d * d;
+		}
+	}
+
+	/*
+	 * Marks the vertices of the edges that belong to a single triangle. An
+	 * edge is identified by its two vertices in either order, so an edge
+	 * belongs to a single triangle if its opposite is not found.
+	 */
+	private boolean[] findBorder() {
+		final long[] edges = new long[indices.length];
+		for (int t = 0; t < indices.length; t += 3) {
+			for (int j = 0; j < 3; j++) {
+				final int a = indices[t + j];
+				final int b = indices[t + (j + 1) % 3];
+				edges[t + j] = ((long) a << 32) | b;
+			}
+		}
+		Arrays.sort(edges);
+		final boolean[] border = new boolean[vertexCount];
+		for (long edge : edges) {
+			final int a = (int) (edge >>> 32);
+			final int b = (int) edge;
+			if (Arrays.binarySearch(edges, ((long) b << 32) | a) < 0) {
+				border[a] = true;
+				border[b] = true;
+			}
+		}
+		return border;
+	}
+
+	/*
+	 * Evaluates the quadric of a vertex at the specified point.
+	 */
+	private double evaluate(int vertex, double x, double y, double z) {
+		final double[] m = quadrics;
+		final int q = vertex * QUADRIC_SIZE;
+		return m[q] * x * x + m[q + 4] * y * y + m[q + 7] * z * z + 2
+				* (m[q + 1] * x * y + m[q + 2] * x * z + m[q + 5] * y * z)
+				+ 2 * (m[q + 3] * x + m[q + 6] * y + m[q + 8] * z) + m[q + 9];
+	}
+
+	/*
+	 * Returns the cost of moving a vertex onto another.
+	 */
+	private double cost(int from, int to) {
+		final double x = positions[to * 3];
+		final double y = positions[to * 3 + 1];
+		final double z = positions[to * 3 + 2];
+		return Math.max(evaluate(from, x, y, z) + evaluate(to, x, y, z), 0);
+	}
+
+	/*
+	 * Returns the normal of the triangle with the specified corners, scaled
+	 * by twice its area, along the specified axis.
+	 */
+	private double normal(int a, int b, int c, int axis) {
+		final double[] p = positions;
+		final int i = (axis + 1) % 3;
+		final int j = (axis + 2) % 3;
+		return (p[b * 3 + i] - p[a * 3 + i]) * (p[c * 3 + j] - p[a * 3 + j])
+				- (p[b * 3 + j] - p[a * 3 + j]) * (p[c * 3 + i] - p[a * 3 + i]);
+	}
+
+	/*
+	 * Tells whether moving a vertex onto another keeps the orientation of
+	 * every triangle around the first that does not contain the second.
+	 */
+	private boolean preservesOrientation(int from, int to, int[] offsets,
+			int[] adjacency) {
+		for (int k = offsets[from]; k < offsets[from + 1]; k++) {
+			final int t = adjacency[k] * 3;
+			int j = 0;
+			while (indices[t + j] != from) {
+				j++;
+			}
+			final int b = indices[t + (j + 1) % 3];
+			final int c = indices[t + (j + 2) % 3];
+			if ((b == to) || (c == to)) {
+				continue;
+			}
+			double dot = 0;
+			for (int axis = 0; axis < 3; axis++) {
+				dot += normal(from, b, c, axis) * normal(to, b, c, axis);
+			}
+			if (dot <= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Collapses edges until the mesh has at most the specified number of
+	 * triangles, or until every remaining collapse would move the surface by
+	 * more than the specified distance.
+	 * 
+	 * @param targetTriangles
+	 *            The number of triangles to reach.
+	 * @param maxError
+	 *            The maximum error, as a distance in model space.
+	 * @return The vertex indices of the simplified triangles.
+	 */
+	int[] simplify(int targetTriangles, double maxError) {
+		final double maxCost = maxError * maxError;
+		while (indices.length / 3 > targetTriangles) {
+			if (!collapse(targetTriangles, maxCost)) {
+				break;
+			}
+		}
+		return indices.clone();
+	}
+
+	/*
+	 * Runs a pass of collapses and tells whether any took place.
+	 */
+	private boolean collapse(int targetTriangles, double maxCost) {
+		final int[] offsets = new int[vertexCount + 1];
+		for (int index : indices) {
+			offsets[index + 1]++;
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			offsets[v + 1] += offsets[v];
+		}
+		final int[] adjacency = new int[indices.length];
+		final int[] ends = Arrays.copyOf(offsets, vertexCount);
+		for (int i = 0; i < indices.length; i++) {
+			adjacency[ends[indices[i]]++] = i / 3;
+		}
+
+		/* the cheapest direction of each edge, sorted by cost */
+		int candidateCount = 0;
+		final int[] from = new int[indices.length];
+		final int[] to = new int[indices.length];
+		final double[] costs = new double[indices.length];
+		for (int t = 0; t < indices.length; t += 3) {
+			for (int j = 0; j < 3; j++) {
+				int a = indices[t + j];
+				int b = indices[t + (j + 1) % 3];
+				if (border[a] && border[b]) {
+					continue;
+				}
+				double cost = border[a] ? Double.POSITIVE_INFINITY : cost(a,
+						b);
+				if (!border[b]) {
+					final double reverse = cost(b, a);
+					if (reverse < cost) {
+						cost = reverse;
+						final int swap = a;
+						a = b;
+						b = swap;
+					}
+				}
+				if (cost <= maxCost) {
+					from[candidateCount] = a;
+					to[candidateCount] = b;
+					costs[candidateCount++] = cost;
+				}
+			}
+		}
+		final Integer[] order = new Integer[candidateCount];
+		for (int i = 0; i < candidateCount; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(costs[a], costs[b]);
+			}
+		});
+
+		final int[] remap = new int[vertexCount];
+		for (int v = 0; v < vertexCount; v++) {
+			remap[v] = v;
+		}
+		final boolean[] touched = new boolean[vertexCount];
+		int triangles = indices.length / 3;
+		boolean collapsed = false;
+		for (int i = 0; i < candidateCount; i++) {
+			if (triangles <= targetTriangles) {
+				break;
+			}
+			final int a = from[order[i]];
+			final int b = to[order[i]];
+			if (touched[a] || touched[b]
+					|| !preservesOrientation(a, b, offsets, adjacency)) {
+				continue;
+			}
+			remap[a] = b;
+			for (int k = 0; k < QUADRIC_SIZE; k++) {
+				quadrics[b * QUADRIC_SIZE + k] += quadrics[a * QUADRIC_SIZE
+						+ k];
+			}
+			/* the triangles of both vertices change until the next pass */
+			for (int k = offsets[a]; k < offsets[a + 1]; k++) {
+				final int t = adjacency[k] * 3;
+				boolean shared = false;
+				for (int j = 0; j < 3; j++) {
+					touched[indices[t + j]] = true;
+					shared |= indices[t + j] == b;
+				}
+				if (shared) {
+					triangles--;
+				}
+			}
+			touched[b] = true;
+			collapsed = true;
+		}
+
+		int length = 0;
+		for (int t = 0; t < indices.length; t += 3) {
+			final int a = remap[indices[t]];
+			final int b = remap[indices[t + 1]];
+			final int c = remap[indices[t + 2]];
+			if ((a != b) && (b != c) && (a != c)) {
+				indices[length++] = a;
+				indices[length++] = b;
+				indices[length++] = c;
+			}
+		}
+		indices = Arrays.copyOf(indices, length);
+		return collapsed;
+	}
+}
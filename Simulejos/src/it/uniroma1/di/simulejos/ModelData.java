@@ -4,33 +4,164 @@ import it.uniroma1.di.simulejos.math.BoundingBox;
 import it.uniroma1.di.simulejos.opengl.Tessellation;
 import it.uniroma1.di.simulejos.opengl.Tessellation.Callback;
 import it.uniroma1.di.simulejos.util.DynamicFloatArray;
-import it.uniroma1.di.simulejos.util.DynamicShortArray;
+import it.uniroma1.di.simulejos.util.DynamicIntArray;
 import it.uniroma1.di.simulejos.wavefront.ParseException;
 import it.uniroma1.di.simulejos.wavefront.WavefrontCommandHandler;
 import it.uniroma1.di.simulejos.wavefront.WavefrontParser;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
 
 public class ModelData implements Serializable {
 	private static final long serialVersionUID = 3141711160723266117L;
 
 	public final float[] vertices;
-	public final short[] indices;
+	public final int[] indices;
+
+	/**
+	 * The vertex indices of the coarser levels of detail of the model, from
+	 * the finest to the coarsest. They refer to the same vertices as
+	 * {@link #indices}, so all levels can share a vertex buffer.
+	 */
+	public final int[][] levelsOfDetail;
+
 	public final BoundingBox boundingBox;
+	private transient volatile BoundingVolumeHierarchy hierarchy;
+
+	/*
+	 * Each level of detail has at most the specified fraction of the
+	 * triangles of the previous one, as long as the surface moves by at most
+	 * the specified fraction of the largest span of the model.
+	 */
+	private static final int[] LEVEL_DIVISORS = { 4, 4 };
+	private static final double[] LEVEL_ERRORS = { 0.005, 0.02 };
+
+	/*
+	 * The header of the binary cache: magic number, version, length and
+	 * modification time of the OBJ file, axis swapping flag, number of vertex
+	 * coordinates, number of indices and number of indices of each level of
+	 * detail.
+	 */
+	private static final int CACHE_MAGIC = 0x444D4A53;
+	private static final int CACHE_VERSION = 3;
+	private static final int CACHE_HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4
+			+ 4 * LEVEL_DIVISORS.length;
+	private static final String CACHE_VERSION_PATTERN =
+			"[0-9a-f]+-[0-9a-f]+(-yz)?\\.cache";
+
+	/**
+	 * Creates a model and simplifies it into its levels of detail.
+	 */
+	public ModelData(float[] vertices, int[] indices) {
+		this.vertices = vertices;
+		this.indices = indices;
+		this.boundingBox = new BoundingBox(vertices);
+		this.levelsOfDetail = new int[LEVEL_DIVISORS.length][];
+		final MeshSimplifier simplifier = new MeshSimplifier(vertices, indices);
+		int triangles = indices.length / 3;
+		for (int i = 0; i < LEVEL_DIVISORS.length; i++) {
+			triangles /= LEVEL_DIVISORS[i];
+			levelsOfDetail[i] = simplifier.simplify(triangles,
+					LEVEL_ERRORS[i] * boundingBox.getMaxSpan());
+		}
+	}
 
-	public ModelData(float[] vertices, short[] indices) {
+	private ModelData(float[] vertices, int[] indices, int[][] levelsOfDetail) {
 		this.vertices = vertices;
 		this.indices = indices;
+		this.levelsOfDetail = levelsOfDetail;
 		this.boundingBox = new BoundingBox(vertices);
 	}
 
+	/**
+	 * Returns the bounding volume hierarchy of the triangles of this model,
+	 * building it the first time.
+	 */
+	BoundingVolumeHierarchy getHierarchy() {
+		BoundingVolumeHierarchy hierarchy = this.hierarchy;
+		if (hierarchy == null) {
+			hierarchy = new BoundingVolumeHierarchy(vertices, indices);
+			this.hierarchy = hierarchy;
+		}
+		return hierarchy;
+	}
+
+	/*
+	 * Tells whether a polygon is convex and simple, in which case it can be
+	 * triangulated as a fan. The polygon is convex if it turns the same way
+	 * around its normal at every corner, and simple if it turns only once.
+	 */
+	private static boolean isConvex(double[] points, int count) {
+		double nx = 0;
+		double ny = 0;
+		double nz = 0;
+		for (int i = 0; i < count; i++) {
+			final int j = (i + 1) % count;
+			nx += (points[i * 3 + 1] - points[j * 3 + 1])
+					* (points[i * 3 + 2] + points[j * 3 + 2]);
+			ny += (points[i * 3 + 2] - points[j * 3 + 2])
+					* (points[i * 3] + points[j * 3]);
+			nz += (points[i * 3] - points[j * 3])
+					* (points[i * 3 + 1] + points[j * 3 + 1]);
+		}
+		double angle = 0;
+		for (int i = 0; i < count; i++) {
+			final int h = (i + count - 1) % count;
+			final int j = (i + 1) % count;
+			final double ax = points[i * 3] - points[h * 3];
+			final double ay = points[i * 3 + 1] - points[h * 3 + 1];
+			final double az = points[i * 3 + 2] - points[h * 3 + 2];
+			final double bx = points[j * 3] - points[i * 3];
+			final double by = points[j * 3 + 1] - points[i * 3 + 1];
+			final double bz = points[j * 3 + 2] - points[i * 3 + 2];
+			final double cx = ay * bz - az * by;
+			final double cy = az * bx - ax * bz;
+			final double cz = ax * by - ay * bx;
+			final double sine = cx * nx + cy * ny + cz * nz;
+			if (sine < 0) {
+				return false;
+			}
+			if (count > 4) {
+				angle += Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz),
+						ax * bx + ay * by + az * bz);
+			}
+		}
+		return (count <= 4) || (angle < Math.PI * 3);
+	}
+
+	/**
+	 * Parses a Wavefront OBJ file. Triangles and convex polygons are
+	 * triangulated as fans, and only concave polygons go through the GLU
+	 * tessellator. The resulting mesh is then welded and reordered for the
+	 * vertex cache by {@link MeshOptimizer}; indices are 32-bit, so models
+	 * can have any number of vertices.
+	 * 
+	 * @param file
+	 *            The OBJ file.
+	 * @param swapYAndZ
+	 *            Whether the Y and Z coordinates must be swapped.
+	 * @return The parsed model.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws ParseException
+	 *             If the file is not a valid OBJ file.
+	 */
 	public static ModelData parseWavefront(File file, boolean swapYAndZ)
 			throws IOException, ParseException {
-		final DynamicFloatArray vertices = new DynamicFloatArray();
-		final DynamicShortArray indices = new DynamicShortArray();
+		final DynamicFloatArray vertices = new DynamicFloatArray(1 << 12);
+		final DynamicIntArray indices = new DynamicIntArray(1 << 12);
 		new WavefrontParser(file, new WavefrontCommandHandler() {
+			private double[] points = new double[48];
+
 			@Override
 			public void vertex(double x, double y, double z, double w) {
 				vertices.append((float) x);
@@ -44,21 +175,230 @@ public class ModelData implements Serializable {
 			}
 
 			@Override
-			public void face(Corner[] corners) {
-				final short[] polygonIndices = new short[corners.length];
-				int i = 0;
-				for (Corner corner : corners) {
-					polygonIndices[i++] = (short) corner.vertexIndex;
+			public void face(final Corner[] corners) {
+				final int count = corners.length;
+				if (points.length < count * 3) {
+					points = new double[count * 3];
+				}
+				for (int i = 0; i < count; i++) {
+					final int index = corners[i].vertexIndex * 4;
+					final double w = vertices.get(index + 3);
+					points[i * 3] = vertices.get(index) / w;
+					points[i * 3 + 1] = vertices.get(index + 1) / w;
+					points[i * 3 + 2] = vertices.get(index + 2) / w;
+				}
+				if ((count == 3) || isConvex(points, count)) {
+					final int first = corners[0].vertexIndex;
+					for (int i = 2; i < count; i++) {
+						indices.append(first);
+						indices.append(corners[i - 1].vertexIndex);
+						indices.append(corners[i].vertexIndex);
+					}
+					return;
 				}
-				new Tessellation(vertices.trim(), polygonIndices,
+				/* the tessellator gets only the vertices of this face */
+				final float[] polygonVertices = new float[count * 4];
+				final int[] polygonIndices = new int[count];
+				for (int i = 0; i < count; i++) {
+					vertices.get(corners[i].vertexIndex * 4, polygonVertices,
+							i * 4, 4);
+					polygonIndices[i] = i;
+				}
+				new Tessellation(polygonVertices, polygonIndices,
 						new Callback() {
 							@Override
-							public void index(short index) {
-								indices.append(index);
+							public void index(int index) {
+								indices.append(corners[index].vertexIndex);
 							}
 						});
 			}
 		}, swapYAndZ).parse();
-		return new ModelData(vertices.trim(), indices.trim());
+		final MeshOptimizer mesh = new MeshOptimizer(vertices.trim(),
+				indices.trim()).optimize();
+		return new ModelData(mesh.vertices, mesh.indices);
+	}
+
+	/*
+	 * The name of the cache tells the version of the OBJ file and the axis
+	 * swapping flag, so a cache is never replaced once written: on Windows a
+	 * file cannot be replaced while it is mapped, and a mapping lasts until
+	 * its buffer is collected.
+	 */
+	static File getCacheFile(File file, boolean swapYAndZ) {
+		return new File(file.getParentFile(), file.getName() + "."
+				+ getVersion(file) + (swapYAndZ ? "-yz" : "") + ".cache");
+	}
+
+	private static String getVersion(File file) {
+		return Long.toHexString(file.lastModified()) + "-"
+				+ Long.toHexString(file.length());
+	}
+
+	/**
+	 * Reads a model from a Wavefront OBJ file, or from its binary cache if
+	 * that is up to date. The cache lives next to the OBJ file and is written
+	 * after parsing, if the directory is writable; it is memory-mapped when
+	 * read, so reloading a model costs little more than copying its arrays.
+	 * Every version of the OBJ file gets a cache of its own, and the caches of
+	 * older versions are deleted when a new one is written. Failures to write
+	 * the cache are reported on the standard error, the model is returned
+	 * anyway.
+	 * 
+	 * @param file
+	 *            The OBJ file.
+	 * @param swapYAndZ
+	 *            Whether the Y and Z coordinates must be swapped.
+	 * @return The model.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 * @throws ParseException
+	 *             If the file is not a valid OBJ file.
+	 */
+	public static ModelData read(File file, boolean swapYAndZ)
+			throws IOException, ParseException {
+		final File cacheFile = getCacheFile(file, swapYAndZ);
+		final ModelData cached = readCache(cacheFile, file, swapYAndZ);
+		if (cached != null) {
+			return cached;
+		}
+		final ModelData model = parseWavefront(file, swapYAndZ);
+		if (cacheFile.getAbsoluteFile().getParentFile().canWrite()) {
+			try {
+				writeCache(cacheFile, file, swapYAndZ, model);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return model;
+	}
+
+	/*
+	 * Returns the cached model, or null if the cache is missing, unreadable or
+	 * out of date.
+	 */
+	private static ModelData readCache(File cacheFile, File file,
+			boolean swapYAndZ) {
+		if (!cacheFile.isFile()) {
+			return null;
+		}
+		try (FileChannel channel = new RandomAccessFile(cacheFile, "r")
+				.getChannel()) {
+			if (channel.size() < CACHE_HEADER_SIZE) {
+				return null;
+			}
+			final ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0,
+					channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			if ((buffer.getInt() != CACHE_MAGIC)
+					|| (buffer.getInt() != CACHE_VERSION)
+					|| (buffer.getLong() != file.length())
+					|| (buffer.getLong() != file.lastModified())
+					|| (buffer.getInt() != (swapYAndZ ? 1 : 0))) {
+				return null;
+			}
+			final int vertexCount = buffer.getInt();
+			final int[] indexCounts = new int[1 + LEVEL_DIVISORS.length];
+			long size = CACHE_HEADER_SIZE + vertexCount * 4L;
+			for (int i = 0; i < indexCounts.length; i++) {
+				indexCounts[i] = buffer.getInt();
+				if (indexCounts[i] < 0) {
+					return null;
+				}
+				size += indexCounts[i] * 4L;
+			}
+			if ((vertexCount < 0) || (channel.size() != size)) {
+				return null;
+			}
+			final float[] vertices = new float[vertexCount];
+			buffer.asFloatBuffer().get(vertices);
+			buffer.position(buffer.position() + vertexCount * 4);
+			final int[][] indices = new int[indexCounts.length][];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = new int[indexCounts[i]];
+				buffer.asIntBuffer().get(indices[i]);
+				buffer.position(buffer.position() + indexCounts[i] * 4);
+			}
+			return new ModelData(vertices, indices[0], Arrays.copyOfRange(
+					indices, 1, indices.length));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * Writes the cache to a temporary file and then renames it, so that
+	 * concurrent readers never see a partial cache. If another process wrote
+	 * the same cache in the meantime, its copy is kept.
+	 */
+	private static void writeCache(File cacheFile, File file,
+			boolean swapYAndZ, ModelData model) throws IOException {
+		final int[][] indices = new int[1 + model.levelsOfDetail.length][];
+		indices[0] = model.indices;
+		System.arraycopy(model.levelsOfDetail, 0, indices, 1,
+				model.levelsOfDetail.length);
+		int size = CACHE_HEADER_SIZE + model.vertices.length * 4;
+		for (int[] level : indices) {
+			size += level.length * 4;
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(size).order(
+				ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(CACHE_MAGIC).putInt(CACHE_VERSION)
+				.putLong(file.length()).putLong(file.lastModified())
+				.putInt(swapYAndZ ? 1 : 0).putInt(model.vertices.length);
+		for (int[] level : indices) {
+			buffer.putInt(level.length);
+		}
+		buffer.asFloatBuffer().put(model.vertices);
+		buffer.position(buffer.position() + model.vertices.length * 4);
+		for (int[] level : indices) {
+			buffer.asIntBuffer().put(level);
+			buffer.position(buffer.position() + level.length * 4);
+		}
+		buffer.clear();
+		final File directory = cacheFile.getAbsoluteFile().getParentFile();
+		final File temporaryFile = File.createTempFile(file.getName(), ".tmp",
+				directory);
+		try {
+			try (FileChannel channel = new FileOutputStream(temporaryFile)
+					.getChannel()) {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+			if (!temporaryFile.renameTo(cacheFile) && !cacheFile.isFile()) {
+				throw new IOException("unable to rename " + temporaryFile
+						+ " to " + cacheFile);
+			}
+		} finally {
+			temporaryFile.delete();
+		}
+		deleteStaleCaches(directory, file.getName(), getVersion(file));
+	}
+
+	/*
+	 * Deletes the caches of other versions of an OBJ file, including the one
+	 * named after the file only by older releases, as far as possible: those
+	 * still mapped cannot be deleted on Windows, and are deleted by a later
+	 * write.
+	 */
+	private static void deleteStaleCaches(File directory, final String name,
+			final String version) {
+		final File[] caches = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File directory, String cache) {
+				if (!cache.startsWith(name + ".")) {
+					return false;
+				}
+				final String suffix = cache.substring(name.length() + 1);
+				return suffix.equals("cache")
+						|| (suffix.matches(CACHE_VERSION_PATTERN)
+								&& !suffix.startsWith(version + ".")
+								&& !suffix.startsWith(version + "-yz."));
+			}
+		});
+		if (caches != null) {
+			for (File cache : caches) {
+				cache.delete();
+			}
+		}
 	}
 }
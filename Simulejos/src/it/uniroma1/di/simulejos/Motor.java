@@ -2,18 +2,120 @@ package it.uniroma1.di.simulejos;
 
 import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
 
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An ideal motor, whose rotation is a function of simulated time. The motor
+ * either turns at a constant velocity proportional to its power or follows a
+ * velocity profile made of segments of constant acceleration; in both cases
+ * its position is integrated analytically from the time of the last command.
+ * 
+ * The state of the motor is an immutable snapshot replaced atomically by
+ * every command, so reading the tachometer or sampling the motor from the
+ * ticker never blocks, while concurrent commands retry until one of them
+ * wins.
+ */
 final class Motor implements SimulatorInterface.Motor {
-	private static final int RPM = 160;
-	private static final long ONE_MINUTE_IN_NANOSECONDS = 60000000000l;
+	private static final double SECONDS_IN_NANOSECONDS = 1e-9;
+	private static final long[] NO_DURATIONS = {};
+	private static final double[] NO_ACCELERATIONS = {};
+
+	/*
+	 * The command in progress: since baseTimestamp the motor has turned from
+	 * baseCount with initial velocity baseVelocity, in revolutions per
+	 * nanosecond, and the accelerations and durations of the segments of the
+	 * profile, if any. The offset is subtracted from the count by resets.
+	 * The mode and the power of a profile follow its current velocity.
+	 */
+	private static final class State {
+		final Mode mode;
+		final int power;
+		final boolean profiled;
+		final double baseCount;
+		final long baseTimestamp;
+		final double baseVelocity;
+		final double[] accelerations;
+		final long[] durations;
+		final double offset;
+
+		State(Mode mode, int power, boolean profiled, double baseCount,
+				long baseTimestamp, double baseVelocity,
+				double[] accelerations, long[] durations, double offset) {
+			this.mode = mode;
+			this.power = power;
+			this.profiled = profiled;
+			this.baseCount = baseCount;
+			this.baseTimestamp = baseTimestamp;
+			this.baseVelocity = baseVelocity;
+			this.accelerations = accelerations;
+			this.durations = durations;
+			this.offset = offset;
+		}
+
+		/*
+		 * The number of revolutions made since baseCount was recorded.
+		 */
+		double position(long timestamp) {
+			long elapsed = timestamp - baseTimestamp;
+			double velocity = baseVelocity;
+			double delta = 0;
+			for (int i = 0; (i < durations.length) && (elapsed > 0); i++) {
+				final long duration = Math.min(elapsed, durations[i]);
+				delta += (velocity + accelerations[i] * duration / 2)
+						* duration;
+				velocity += accelerations[i] * duration;
+				elapsed -= duration;
+			}
+			return baseCount + delta + velocity * Math.max(elapsed, 0);
+		}
+
+		/*
+		 * The velocity at the specified time, in revolutions per nanosecond.
+		 */
+		double velocity(long timestamp) {
+			long elapsed = timestamp - baseTimestamp;
+			double velocity = baseVelocity;
+			for (int i = 0; (i < durations.length) && (elapsed > 0); i++) {
+				final long duration = Math.min(elapsed, durations[i]);
+				velocity += accelerations[i] * duration;
+				elapsed -= duration;
+			}
+			return velocity;
+		}
+
+		Mode mode(long timestamp) {
+			if (!profiled) {
+				return mode;
+			}
+			final double velocity = velocity(timestamp);
+			return (velocity > 0) ? Mode.FORWARD
+					: (velocity < 0) ? Mode.BACKWARD : Mode.STOP;
+		}
+
+		int power(long timestamp) {
+			if (!profiled) {
+				return power;
+			}
+			return toPower(Math.abs(velocity(timestamp)) * 360
+					/ SECONDS_IN_NANOSECONDS);
+		}
+
+		State start(Mode mode, int power, boolean profiled, long timestamp,
+				double velocity, double[] accelerations, long[] durations) {
+			return new State(mode, power, profiled, position(timestamp),
+					timestamp, velocity, accelerations, durations, offset);
+		}
+	}
 
 	private final Clock clock;
-	private volatile Mode mode = Mode.FLOAT;
-	private volatile int power;
-	private volatile double count;
-	private volatile double offset;
-	private volatile long lastTimestamp;
+	private final AtomicReference<State> state = new AtomicReference<>(
+			new State(Mode.FLOAT, 0, false, 0, 0, 0, NO_ACCELERATIONS,
+					NO_DURATIONS, 0));
 
-	private volatile double lastSample;
+	/*
+	 * Only written by the ticker, which is the only thread sampling motors.
+	 */
+	private double lastSample;
 
 	public Motor(Clock clock) {
 		this.clock = clock;
@@ -21,58 +123,113 @@ final class Motor implements SimulatorInterface.Motor {
 
 	@Override
 	public Mode getMode() {
-		return mode;
+		return state.get().mode(clock.getTimestamp());
 	}
 
 	@Override
 	public void setMode(Mode mode) {
-		control(this.power, mode);
+		State current;
+		do {
+			current = state.get();
+		} while (!state.compareAndSet(current, control(current,
+				current.power(clock.getTimestamp()), mode)));
 	}
 
 	@Override
 	public int getPower() {
-		return power;
+		return state.get().power(clock.getTimestamp());
 	}
 
 	@Override
 	public void setPower(int power) {
-		control(power, this.mode);
+		State current;
+		do {
+			current = state.get();
+		} while (!state.compareAndSet(current, control(current, power,
+				current.mode(clock.getTimestamp()))));
+	}
+
+	private static double toRevolutions(double degrees) {
+		return degrees / 360;
+	}
+
+	/*
+	 * The power that turns the motor at the specified speed, in degrees per
+	 * second.
+	 */
+	private static int toPower(double speed) {
+		return (int) Math.min(Math.round(speed * 100 / MAX_SPEED), 100);
 	}
 
-	private double delta(long timestamp) {
+	private State control(State current, int power, Mode mode) {
+		power = Math.max(Math.min(power, 100), 0);
+		final double speed = toRevolutions(power * MAX_SPEED / 100)
+				* SECONDS_IN_NANOSECONDS;
+		final double velocity;
 		if (mode == Mode.FORWARD) {
-			return (timestamp - lastTimestamp) * (power * RPM / 100.0)
-					/ (double) ONE_MINUTE_IN_NANOSECONDS;
+			velocity = speed;
 		} else if (mode == Mode.BACKWARD) {
-			return (lastTimestamp - timestamp) * (power * RPM / 100.0)
-					/ (double) ONE_MINUTE_IN_NANOSECONDS;
+			velocity = -speed;
 		} else {
-			return 0;
+			velocity = 0;
 		}
+		return current.start(mode, power, false, clock.getTimestamp(),
+				velocity, NO_ACCELERATIONS, NO_DURATIONS);
+	}
+
+	@Override
+	public void control(int power, Mode mode) {
+		State current;
+		do {
+			current = state.get();
+		} while (!state.compareAndSet(current, control(current, power, mode)));
 	}
 
 	@Override
-	public synchronized void control(int power, Mode mode) {
-		final long timestamp = clock.getTimestamp();
-		count += delta(timestamp);
-		lastTimestamp = timestamp;
-		this.power = Math.max(Math.min(power, 100), 0);
-		this.mode = mode;
+	public long follow(double velocity, double[] accelerations,
+			long[] durations) {
+		if (accelerations.length != durations.length) {
+			throw new IllegalArgumentException(
+					"the profile needs a duration for every acceleration");
+		}
+		final double[] scaled = new double[accelerations.length];
+		for (int i = 0; i < scaled.length; i++) {
+			scaled[i] = toRevolutions(accelerations[i])
+					* SECONDS_IN_NANOSECONDS * SECONDS_IN_NANOSECONDS;
+		}
+		final long[] copy = durations.clone();
+		State current;
+		long timestamp;
+		do {
+			current = state.get();
+			timestamp = clock.getTimestamp();
+		} while (!state.compareAndSet(current, current.start(null, 0, true,
+				timestamp, toRevolutions(velocity) * SECONDS_IN_NANOSECONDS,
+				scaled, copy)));
+		return timestamp;
 	}
 
 	@Override
-	public synchronized int getCount() {
-		return (int) Math
-				.round((count + delta(clock.getTimestamp()) + offset) * 360);
+	public int getCount() {
+		final State current = state.get();
+		return (int) Math.round((current.position(clock.getTimestamp())
+				- current.offset) * 360);
 	}
 
 	@Override
-	public synchronized void resetCount() {
-		offset = -count - delta(clock.getTimestamp());
+	public void resetCount() {
+		State current;
+		do {
+			current = state.get();
+		} while (!state.compareAndSet(current, new State(current.mode,
+				current.power, current.profiled, current.baseCount,
+				current.baseTimestamp, current.baseVelocity,
+				current.accelerations, current.durations,
+				current.position(clock.getTimestamp()))));
 	}
 
-	public synchronized double sample(long timestamp) {
-		final double sample = count + delta(timestamp);
+	public double sample(long timestamp) {
+		final double sample = state.get().position(timestamp);
 		final double result = sample - lastSample;
 		lastSample = sample;
 		return result;
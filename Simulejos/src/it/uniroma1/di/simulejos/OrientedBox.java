@@ -0,0 +1,203 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.math.BoundingBox;
+import it.uniroma1.di.simulejos.math.MutableMatrix3;
+import it.uniroma1.di.simulejos.math.MutableVector3;
+import it.uniroma1.di.simulejos.math.Vector3;
+
+/**
+ * The bounding box of a robot in world space, oriented like the robot, along
+ * with the axis-aligned box that encloses it.
+ * 
+ * Instances are updated in place at every tick to avoid garbage and are not
+ * thread safe: {@link #intersects(OrientedBox)} uses per-instance scratch
+ * storage.
+ */
+final class OrientedBox {
+	private static final double EPSILON = 1e-9;
+
+	final double[] center = new double[3];
+
+	/**
+	 * The three unit-length axes of the box, one per row.
+	 */
+	final double[] axes = new double[9];
+
+	/**
+	 * The half-sizes of the box along each of its axes.
+	 */
+	final double[] extents = new double[3];
+
+	/**
+	 * The lower corner of the enclosing axis-aligned box.
+	 */
+	final double[] min = new double[3];
+
+	/**
+	 * The upper corner of the enclosing axis-aligned box.
+	 */
+	final double[] max = new double[3];
+
+	private final double[] rotation = new double[9];
+	private final double[] absRotation = new double[9];
+	private final double[] translation = new double[3];
+
+	/**
+	 * Places this box where the specified model-space box ends up when
+	 * transformed by a robot's position and heading.
+	 */
+	void set(MutableVector3 position, MutableMatrix3 heading, BoundingBox box) {
+		final Vector3 c = box.center;
+		center[0] = position.x + heading.getAt(0, 0) * c.x
+				+ heading.getAt(0, 1) * c.y + heading.getAt(0, 2) * c.z;
+		center[1] = position.y + heading.getAt(1, 0) * c.x
+				+ heading.getAt(1, 1) * c.y + heading.getAt(1, 2) * c.z;
+		center[2] = position.z + heading.getAt(2, 0) * c.x
+				+ heading.getAt(2, 1) * c.y + heading.getAt(2, 2) * c.z;
+		for (int j = 0; j < 3; j++) {
+			final double size = (j == 0) ? box.size.x : ((j == 1) ? box.size.y
+					: box.size.z);
+			final double x = heading.getAt(0, j);
+			final double y = heading.getAt(1, j);
+			final double z = heading.getAt(2, j);
+			final double length = Math.sqrt(x * x + y * y + z * z);
+			if (length > 0) {
+				axes[j * 3] = x / length;
+				axes[j * 3 + 1] = y / length;
+				axes[j * 3 + 2] = z / length;
+			} else {
+				axes[j * 3] = axes[j * 3 + 1] = axes[j * 3 + 2] = 0;
+			}
+			extents[j] = size / 2 * length;
+		}
+		for (int i = 0; i < 3; i++) {
+			final double radius = Math.abs(axes[i]) * extents[0]
+					+ Math.abs(axes[3 + i]) * extents[1]
+					+ Math.abs(axes[6 + i]) * extents[2];
+			min[i] = center[i] - radius;
+			max[i] = center[i] + radius;
+		}
+	}
+
+	/**
+	 * Tells whether the axis-aligned boxes enclosing this box and the
+	 * specified one overlap.
+	 */
+	boolean overlaps(OrientedBox box) {
+		return (min[0] <= box.max[0]) && (max[0] >= box.min[0])
+				&& (min[1] <= box.max[1]) && (max[1] >= box.min[1])
+				&& (min[2] <= box.max[2]) && (max[2] >= box.min[2]);
+	}
+
+	/**
+	 * Tells whether the segment between the specified points intersects this
+	 * box, clipping the segment against the three slabs of the box.
+	 */
+	boolean intersects(MutableVector3 from, MutableVector3 to) {
+		return intersects(from.x, from.y, from.z, to.x - from.x, to.y - from.y,
+				to.z - from.z);
+	}
+
+	/**
+	 * Tells whether the segment that starts at the specified point and spans
+	 * the specified vector intersects this box.
+	 */
+	boolean intersects(double x, double y, double z, double dx, double dy,
+			double dz) {
+		final double px = x - center[0];
+		final double py = y - center[1];
+		final double pz = z - center[2];
+		double tMin = 0;
+		double tMax = 1;
+		for (int i = 0; i < 3; i++) {
+			final double p = axes[i * 3] * px + axes[i * 3 + 1] * py
+					+ axes[i * 3 + 2] * pz;
+			final double d = axes[i * 3] * dx + axes[i * 3 + 1] * dy
+					+ axes[i * 3 + 2] * dz;
+			if (Math.abs(d) < EPSILON) {
+				if (Math.abs(p) > extents[i]) {
+					return false;
+				}
+			} else {
+				final double t1 = (-extents[i] - p) / d;
+				final double t2 = (extents[i] - p) / d;
+				tMin = Math.max(tMin, Math.min(t1, t2));
+				tMax = Math.min(tMax, Math.max(t1, t2));
+				if (tMin > tMax) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether this box and the specified one intersect, using the
+	 * separating axis test: the two boxes are disjoint if and only if their
+	 * projections are disjoint on one of the 3 + 3 face axes or on one of the
+	 * 9 cross products of an axis of each box.
+	 */
+	boolean intersects(OrientedBox box) {
+		final double[] r = rotation;
+		final double[] ar = absRotation;
+		final double[] t = translation;
+		final double[] a = extents;
+		final double[] b = box.extents;
+
+		/* express the other box in the frame of this one */
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				r[i * 3 + j] = axes[i * 3] * box.axes[j * 3] + axes[i * 3 + 1]
+						* box.axes[j * 3 + 1] + axes[i * 3 + 2]
+						* box.axes[j * 3 + 2];
+				/* the epsilon avoids false negatives with parallel edges */
+				ar[i * 3 + j] = Math.abs(r[i * 3 + j]) + EPSILON;
+			}
+		}
+		final double dx = box.center[0] - center[0];
+		final double dy = box.center[1] - center[1];
+		final double dz = box.center[2] - center[2];
+		for (int i = 0; i < 3; i++) {
+			t[i] = dx * axes[i * 3] + dy * axes[i * 3 + 1] + dz
+					* axes[i * 3 + 2];
+		}
+
+		/* axes of this box */
+		for (int i = 0; i < 3; i++) {
+			final double rb = b[0] * ar[i * 3] + b[1] * ar[i * 3 + 1] + b[2]
+					* ar[i * 3 + 2];
+			if (Math.abs(t[i]) > a[i] + rb) {
+				return false;
+			}
+		}
+
+		/* axes of the other box */
+		for (int j = 0; j < 3; j++) {
+			final double ra = a[0] * ar[j] + a[1] * ar[3 + j] + a[2]
+					* ar[6 + j];
+			final double d = t[0] * r[j] + t[1] * r[3 + j] + t[2] * r[6 + j];
+			if (Math.abs(d) > ra + b[j]) {
+				return false;
+			}
+		}
+
+		/* cross products */
+		for (int i = 0; i < 3; i++) {
+			final int i1 = (i + 1) % 3;
+			final int i2 = (i + 2) % 3;
+			for (int j = 0; j < 3; j++) {
+				final int j1 = (j + 1) % 3;
+				final int j2 = (j + 2) % 3;
+				final double ra = a[i1] * ar[i2 * 3 + j] + a[i2]
+						* ar[i1 * 3 + j];
+				final double rb = b[j1] * ar[i * 3 + j2] + b[j2]
+						* ar[i * 3 + j1];
+				final double d = t[i2] * r[i1 * 3 + j] - t[i1] * r[i2 * 3 + j];
+				if (Math.abs(d) > ra + rb) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
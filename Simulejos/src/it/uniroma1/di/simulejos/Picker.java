@@ -17,6 +17,7 @@ import static javax.media.opengl.GL2GL3.*;
 public final class Picker {
 	private final Camera camera;
 	private final Iterable<Robot> robots;
+	private final MeshRegistry meshes;
 	private volatile GLAutoDrawable buffer;
 
 	private volatile PickRequest request;
@@ -38,9 +39,10 @@ public final class Picker {
 		public abstract void handle(int index, Vector3 position);
 	}
 
-	Picker(Camera camera, Iterable<Robot> robots) {
+	Picker(Camera camera, Iterable<Robot> robots, MeshRegistry meshes) {
 		this.camera = camera;
 		this.robots = robots;
+		this.meshes = meshes;
 	}
 
 	private void resetBuffer(GLAutoDrawable source) {
@@ -56,6 +58,7 @@ public final class Picker {
 						source.getContext());
 		buffer.addGLEventListener(new GLEventListener() {
 			private volatile Program program;
+			private volatile RobotInstances instances;
 
 			@Override
 			public void init(GLAutoDrawable drawable) {
@@ -65,8 +68,10 @@ public final class Picker {
 				gl.glDepthFunc(GL_GREATER);
 				gl.glEnable(GL_CULL_FACE);
 				program = new Program(gl, Picker.class, "robot_picker",
-						new String[] { "in_Vertex" });
+						RobotInstances.ATTRIBUTES);
 				program.use();
+				instances = new RobotInstances(meshes);
+				instances.init(gl);
 			}
 
 			@Override
@@ -87,9 +92,8 @@ public final class Picker {
 					final GL2GL3 gl = drawable.getGL().getGL2GL3();
 					gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 					camera.uniform(gl, program);
-					for (Robot robot : robots) {
-						robot.drawForPicker(gl, program);
-					}
+					instances.update(gl, robots);
+					instances.draw(gl, MeshRegistry.PICKER_LEVEL);
 					gl.glFinish();
 					final float[] values = new float[4];
 					gl.glReadPixels(request.x,
@@ -105,6 +109,7 @@ public final class Picker {
 			@Override
 			public void dispose(GLAutoDrawable drawable) {
 				program.delete();
+				instances.delete();
 			}
 		});
 	}
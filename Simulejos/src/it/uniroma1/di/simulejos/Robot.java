@@ -3,8 +3,9 @@ package it.uniroma1.di.simulejos;
 import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
 import it.uniroma1.di.simulejos.math.BoundingBox;
 import it.uniroma1.di.simulejos.math.Matrix3;
+import it.uniroma1.di.simulejos.math.MutableMatrix3;
+import it.uniroma1.di.simulejos.math.MutableVector3;
 import it.uniroma1.di.simulejos.math.Vector3;
-import it.uniroma1.di.simulejos.opengl.Elements;
 import it.uniroma1.di.simulejos.opengl.Program;
 
 import java.awt.Frame;
@@ -15,21 +16,21 @@ import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Vector;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
 
 import javax.imageio.ImageIO;
 import javax.media.opengl.GL2GL3;
-import javax.media.opengl.GLAutoDrawable;
-import javax.media.opengl.GLCapabilities;
-import javax.media.opengl.GLDrawableFactory;
-import javax.media.opengl.GLEventListener;
-import javax.media.opengl.GLProfile;
-import javax.media.opengl.awt.GLJPanel;
-
-import static javax.media.opengl.GL2GL3.*;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.Invocable;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
@@ -45,29 +46,72 @@ public final class Robot {
 	public final int index;
 
 	private final Frame parentWindow;
-	private final GLJPanel canvas;
+	private final View view;
+	private final LogPipeline log;
+	private final Writer logChannel;
 	private final PrintWriter logWriter;
 
 	public final File classPath;
 	public final String mainClassName;
+
+	/**
+	 * The source of the script of the robot, or <code>null</code> if it has
+	 * none.
+	 */
 	public final String script;
+
+	/**
+	 * The built-in kinematics of the robot, as named by its scene, such as
+	 * <code>differentialDrive 4</code>, or <code>null</code> if they are not
+	 * specified. See {@link #createBuiltInKinematics()}.
+	 */
+	public final String builtInKinematics;
+	public final File modelFile;
+	public final boolean swapYAndZ;
 	public final ModelData modelData;
 	public final BoundingBox boundingBox;
 	public volatile boolean hilited;
-	private volatile Vector3 position;
-	private volatile Matrix3 heading;
-	private volatile Matrix3 inverseHeading;
-	private volatile Elements elements;
+
+	/*
+	 * The pose of the robot is updated in place to avoid garbage at every
+	 * tick; all accesses to these fields must be synchronized on poseLock.
+	 */
+	private final Object poseLock = new Object();
+	private final MutableVector3 position;
+	private final MutableMatrix3 heading = new MutableMatrix3();
+	private final MutableMatrix3 inverseHeading = new MutableMatrix3();
+	private final MutableMatrix3 rotation = new MutableMatrix3();
+	private final MutableVector3 offset = new MutableVector3();
+
+	/**
+	 * The world-space bounding box of this robot as of the last tick.
+	 */
+	final OrientedBox bounds = new OrientedBox();
 
 	private final Motor motorA;
 	private final Motor motorB;
 	private final Motor motorC;
-	private volatile Invocable invocable;
+
+	/*
+	 * A copy of the display as of its last refresh, replaced as a whole.
+	 */
+	private volatile byte[] display;
+
+	/*
+	 * The script is compiled once and run again in a fresh global scope
+	 * every time the robot starts. Without a script, or without a JavaScript
+	 * engine in the Java runtime, the engine is null.
+	 */
+	private final ScriptEngine scriptEngine;
+	private final CompiledScript compiledScript;
+	private volatile RobotKinematics kinematics;
+	private URLClassLoader kinematicsClassLoader;
 	private volatile boolean initializing;
 	private volatile boolean running;
 	private volatile boolean suspended;
-	private volatile ThreadGroup threads;
+	private volatile RobotThreadGroup threads;
 
+	private final Clock clock;
 	private final Floor floor;
 	private final Iterable<Robot> robots;
 
@@ -76,17 +120,20 @@ public final class Robot {
 		ImageIO.setUseCache(false);
 	}
 
-	Robot(Frame parentWindow, GLJPanel canvas, Writer logWriter, Clock clock,
+	Robot(Frame parentWindow, View view, LogPipeline log, Clock clock,
 			File classPath, String mainClassName, String script,
+			String builtInKinematics, File modelFile, boolean swapYAndZ,
 			ModelData modelData, Floor floor, Iterable<Robot> robots)
 			throws ScriptException {
 		this.index = nextIndex++;
 
 		this.parentWindow = parentWindow;
-		this.canvas = canvas;
-		this.logWriter = new PrintWriter(new PartialWriter("NXT" + index,
-				logWriter));
+		this.view = view;
+		this.log = log;
+		this.logChannel = log.openChannel("NXT" + index);
+		this.logWriter = new PrintWriter(logChannel);
 
+		this.clock = clock;
 		this.motorA = new Motor(clock);
 		this.motorB = new Motor(clock);
 		this.motorC = new Motor(clock);
@@ -94,24 +141,39 @@ public final class Robot {
 		this.classPath = classPath;
 		this.mainClassName = mainClassName;
 		this.script = script;
+		this.builtInKinematics = builtInKinematics;
+		this.modelFile = modelFile;
+		this.swapYAndZ = swapYAndZ;
 		this.modelData = modelData;
 		this.floor = floor;
 		this.robots = robots;
 
-		this.position = new Vector3(-modelData.boundingBox.center.x, -1
+		this.position = new MutableVector3(-modelData.boundingBox.center.x, -1
 				- modelData.boundingBox.min.y, -modelData.boundingBox.center.z);
 
 		final double maxSpan = modelData.boundingBox.getMaxSpan();
-		this.heading = Matrix3.createScaling(2 / maxSpan, 2 / maxSpan,
-				2 / maxSpan);
-		this.inverseHeading = Matrix3.createScaling(maxSpan / 2, maxSpan / 2,
-				maxSpan / 2);
+		this.heading.setScaling(2 / maxSpan, 2 / maxSpan, 2 / maxSpan);
+		this.inverseHeading.setScaling(maxSpan / 2, maxSpan / 2, maxSpan / 2);
 
 		this.boundingBox = new BoundingBox(
 				modelData.boundingBox.min.by(2 / maxSpan),
 				modelData.boundingBox.max.by(2 / maxSpan));
 
 		this.robotInterface = new RobotInterface();
+		/* fails early if the built-in kinematics are malformed */
+		createBuiltInKinematics();
+		if (script != null) {
+			this.scriptEngine = new ScriptEngineManager()
+					.getEngineByMimeType("text/javascript");
+		} else {
+			this.scriptEngine = null;
+		}
+		if (scriptEngine instanceof Compilable) {
+			this.compiledScript = ((Compilable) scriptEngine).compile(script);
+		} else {
+			this.compiledScript = null;
+		}
+		updateBounds();
 	}
 
 	abstract class Sensor implements SimulatorInterface.Sensor {
@@ -119,76 +181,195 @@ public final class Robot {
 		protected final Iterable<Robot> robots = Robot.this.robots;
 
 		protected final Vector3 head(Vector3 v) {
-			return heading.by(v);
+			synchronized (poseLock) {
+				return heading.transform(v, new MutableVector3()).toVector3();
+			}
+		}
+
+		/**
+		 * Rotates the specified vector according to the current heading of
+		 * the robot and stores the result in <code>result</code>, without
+		 * allocating.
+		 */
+		protected final MutableVector3 head(Vector3 v, MutableVector3 result) {
+			synchronized (poseLock) {
+				return heading.transform(v, result);
+			}
 		}
 
 		protected final Vector3 transform(Vector3 v) {
-			return position.plus(heading.by(v));
+			synchronized (poseLock) {
+				return heading.transform(v, new MutableVector3()).add(position)
+						.toVector3();
+			}
+		}
+
+		/**
+		 * Computes the world-space position and orientation of a sensor from
+		 * those relative to the robot, without allocating.
+		 * 
+		 * @param sensorPosition
+		 *            The position of the sensor relative to the robot.
+		 * @param sensorHeading
+		 *            The heading of the sensor relative to the robot.
+		 * @param origin
+		 *            Receives the position of the sensor in world space.
+		 * @param orientation
+		 *            Receives the transformation from sensor space to world
+		 *            space, scaling included.
+		 */
+		protected final void locate(Vector3 sensorPosition,
+				MutableMatrix3 sensorHeading, MutableVector3 origin,
+				MutableMatrix3 orientation) {
+			synchronized (poseLock) {
+				orientation.multiply(heading, sensorHeading);
+				heading.transform(sensorPosition, origin).add(position);
+			}
 		}
 	}
 
-	abstract class GPUSensor extends Sensor implements GLEventListener {
-		private final int width;
-		private final int height;
-		private volatile GLAutoDrawable buffer;
+	/**
+	 * A sensor that samples the scene by rendering it from its own point of
+	 * view. GPU sensors are not rendered individually: the
+	 * {@link SensorAtlas} of the simulation renders all of them into a shared
+	 * framebuffer, each in its own region.
+	 */
+	abstract class GPUSensor extends Sensor {
+		/*
+		 * The focal length of the projection of the sensor shaders.
+		 */
+		private static final double FOCUS = 2;
+
+		/*
+		 * How far a ray that does not hit the floor is tested against robots.
+		 */
+		private static final double FAR = 1000;
+
+		final int width;
+		final int height;
+
+		/**
+		 * Whether the sensor must be rendered by the atlas at this tick.
+		 */
+		volatile boolean rendering = true;
+
+		private final MutableMatrix3 sensorToWorld = new MutableMatrix3();
+		private final MutableVector3 origin = new MutableVector3();
+		private final MutableVector3 direction = new MutableVector3();
+		private final MutableVector3 center = new MutableVector3();
+		private final MutableVector3 right = new MutableVector3();
+		private final MutableVector3 up = new MutableVector3();
+		private final MutableVector3 rightOffset = new MutableVector3();
+		private final MutableVector3 upOffset = new MutableVector3();
+		private final MutableVector3 noOffset = new MutableVector3();
+		private final CastScratch castScratch = new CastScratch();
 
 		protected GPUSensor(int bufferWidth, int bufferHeight) {
 			this.width = bufferWidth;
 			this.height = bufferHeight;
-			gpuSensors.add(this);
-		}
-
-		public final void assertBuffer(GL2GL3 gl) {
-			if (buffer == null) {
-				resetBuffer(gl);
+			synchronized (gpuSensors) {
+				gpuSensors.add(this);
 			}
 		}
 
-		private final void resetBuffer(GL2GL3 gl) {
-			if (buffer != null) {
-				buffer.destroy();
-			}
-			buffer = GLDrawableFactory
-					.getFactory(GLProfile.getDefault())
-					.createOffscreenAutoDrawable(
-							null,
-							new GLCapabilities(GLProfile.get(GLProfile.GL2GL3)),
-							null, width, height, gl.getContext());
-			buffer.addGLEventListener(this);
-		}
-
-		public final void tick() {
-			if (buffer != null) {
-				buffer.display();
+		protected final void uniform(Program program) {
+			synchronized (poseLock) {
+				program.uniform("RobotPosition", position);
+				program.uniform("InverseRobotHeading", inverseHeading);
 			}
 		}
 
-		private final void destroy() {
-			buffer.destroy();
-			buffer = null;
-		}
-
-		protected final void uniform(Program program) {
-			program.uniform("RobotPosition", position);
-			program.uniform("InverseRobotHeading", inverseHeading);
-		}
+		/**
+		 * Renders the view of this sensor. The viewport and the scissor box
+		 * are set to the region of the atlas assigned to this sensor, which
+		 * must be cleared by this method.
+		 * 
+		 * @param gl
+		 *            The GL interface of the atlas.
+		 * @param atlas
+		 *            The atlas, which provides the shader programs.
+		 */
+		abstract void draw(GL2GL3 gl, SensorAtlas atlas);
 
-		@Override
-		public void init(GLAutoDrawable drawable) {
+		/**
+		 * Updates the reading of this sensor without rendering, if possible.
+		 * 
+		 * @return <code>true</code> if the reading has been updated,
+		 *         <code>false</code> if the sensor must be rendered.
+		 */
+		boolean sampleDirectly() {
+			return false;
 		}
 
-		@Override
-		public void reshape(GLAutoDrawable drawable, int x, int y, int width,
-				int height) {
+		/*
+		 * Intersects with the floor plane the ray of a pixel, given as the
+		 * offset of its origin and direction from those of the central ray.
+		 */
+		private boolean hitFloor(MutableVector3 offset, MutableVector3 result) {
+			final double y = origin.y + offset.y;
+			final double dy = direction.y + offset.y;
+			if ((y < Floor.Y) || (dy >= 0)) {
+				return false;
+			}
+			result.set(direction).add(offset).scale((Floor.Y - y) / dy)
+					.add(origin).add(offset);
+			return true;
 		}
 
-		@Override
-		public void display(GLAutoDrawable drawable) {
+		/**
+		 * Computes what the central pixel of this sensor sees of the floor
+		 * without rendering, the way the floor shaders do. This is only
+		 * possible if no robot, including this one, may occlude the floor.
+		 * 
+		 * @param sensorPosition
+		 *            The position of the sensor relative to the robot.
+		 * @param sensorHeading
+		 *            The heading of the sensor relative to the robot.
+		 * @param rgba
+		 *            Receives the color of the floor texture, if the result
+		 *            is {@link Floor.Surface#TEXTURED}.
+		 * @return What the pixel sees, or <code>null</code> if it may see a
+		 *         robot and the sensor must be rendered.
+		 */
+		protected final Floor.Surface sampleFloor(Vector3 sensorPosition,
+				MutableMatrix3 sensorHeading, float[] rgba) {
+			locate(sensorPosition, sensorHeading, origin, sensorToWorld);
+			origin.add(sensorToWorld.transform(0, 0, 2 - 2 * FOCUS, center));
+			sensorToWorld.transform(0, 0, 1, direction);
+			if (origin.y < Floor.Y) {
+				return null;
+			}
+			final boolean hit = hitFloor(noOffset, center);
+			if (!hit) {
+				center.set(direction).scale(FAR).add(origin);
+			}
+			for (Robot robot : robots) {
+				if (robot.intersects(origin, center, castScratch)) {
+					return null;
+				}
+			}
+			if (!hit) {
+				return Floor.Surface.NONE;
+			}
+			sensorToWorld.transform(2 / FOCUS, 0, 0, rightOffset);
+			sensorToWorld.transform(0, 2 / FOCUS, 0, upOffset);
+			final double infinity = Double.POSITIVE_INFINITY;
+			final boolean rightHit = hitFloor(rightOffset, right);
+			final boolean upHit = hitFloor(upOffset, up);
+			return floor.sample(center.x, center.z, rightHit ? right.x
+					- center.x : infinity, rightHit ? right.z - center.z
+					: infinity, upHit ? up.x - center.x : infinity,
+					upHit ? up.z - center.z : infinity, rgba);
 		}
 
-		@Override
-		public void dispose(GLAutoDrawable drawable) {
-		}
+		/**
+		 * Updates the reading of this sensor from the pixels it has rendered.
+		 * 
+		 * @param pixels
+		 *            The RGBA values of the region of this sensor, row by row
+		 *            starting from the bottom.
+		 */
+		abstract void sample(float[] pixels);
 	}
 
 	/**
@@ -378,7 +559,9 @@ public final class Robot {
 		 *            The offset along the Z axis.
 		 */
 		public void moveBy(double dx, double dy, double dz) {
-			position = position.plus(heading.by(new Vector3(dx, dy, dz)));
+			synchronized (poseLock) {
+				position.add(heading.transform(dx, dy, dz, offset));
+			}
 		}
 
 		/**
@@ -402,17 +585,86 @@ public final class Robot {
 		 *            The angular offset.
 		 */
 		public void rotateBy(double x, double y, double z, double da) {
-			heading = Matrix3.createRotation(x, y, z, da).by(heading);
-			inverseHeading = heading.invert();
+			synchronized (poseLock) {
+				heading.multiply(rotation.setRotation(x, y, z, da), heading);
+				inverseHeading.invert(heading);
+			}
+		}
+
+		/**
+		 * Sets the kinematics of the robot, so that the script needs no
+		 * <code>tick</code> function. This method may be invoked only in the
+		 * script's global scope.
+		 * 
+		 * @param kinematics
+		 *            The kinematics, usually one of the built-in ones returned
+		 *            by the other methods of this class.
+		 */
+		public void setKinematics(RobotKinematics kinematics) {
+			if (initializing) {
+				Robot.this.kinematics = kinematics;
+			} else {
+				throw new RuntimeException("NXT" + index
+						+ "'s script tried to set the kinematics after the "
+						+ "initialization stage");
+			}
+		}
+
+		/**
+		 * Creates the kinematics of a robot with two wheels driven by motors
+		 * A and B, on the left and right side of the robot.
+		 * 
+		 * @param gearRatio
+		 *            The number of turns of the wheels per turn of their
+		 *            motor.
+		 * @return The kinematics, to be passed to
+		 *         {@link #setKinematics(RobotKinematics)}.
+		 */
+		public RobotKinematics differentialDrive(double gearRatio) {
+			return new BuiltInKinematics.DifferentialDrive(this, gearRatio);
+		}
+
+		/**
+		 * Creates the kinematics of a car-like robot whose rear wheels are
+		 * driven by motor A and whose front wheels are steered by motor B.
+		 * 
+		 * @param gearRatio
+		 *            The number of turns of the rear wheels per turn of motor
+		 *            A.
+		 * @param steeringRatio
+		 *            The number of turns of motor B per turn of the front
+		 *            wheels.
+		 * @return The kinematics, to be passed to
+		 *         {@link #setKinematics(RobotKinematics)}.
+		 */
+		public RobotKinematics steering(double gearRatio, double steeringRatio) {
+			return new BuiltInKinematics.Steering(this, gearRatio,
+					steeringRatio);
+		}
+
+		/**
+		 * Creates the kinematics of a robot with three omnidirectional wheels
+		 * driven by motors A, B and C, evenly spaced around the robot with
+		 * the one of motor A at the front.
+		 * 
+		 * @param gearRatio
+		 *            The number of turns of the wheels per turn of their
+		 *            motor.
+		 * @return The kinematics, to be passed to
+		 *         {@link #setKinematics(RobotKinematics)}.
+		 */
+		public RobotKinematics omniDrive(double gearRatio) {
+			return new BuiltInKinematics.OmniDrive(this, gearRatio);
 		}
 	}
 
-	private final RobotInterface robotInterface;
+	final RobotInterface robotInterface;
 	private final List<GPUSensor> gpuSensors = new LinkedList<GPUSensor>();
 
 	private class Simulator implements SimulatorInterface {
-		private final List<Runnable> suspendHandlers = new Vector<Runnable>();
-		private final List<Runnable> resumeHandlers = new Vector<Runnable>();
+		private final List<Runnable> suspendHandlers = new CopyOnWriteArrayList<>();
+		private final List<Runnable> resumeHandlers = new CopyOnWriteArrayList<>();
+		private final List<Runnable> stopHandlers = new CopyOnWriteArrayList<>();
 
 		@Override
 		public String getRobotName() {
@@ -439,6 +691,31 @@ public final class Robot {
 			resumeHandlers.add(runnable);
 		}
 
+		@Override
+		public void onStop(Runnable runnable) {
+			stopHandlers.add(runnable);
+		}
+
+		@Override
+		public ThreadFactory getThreadFactory() {
+			return threads;
+		}
+
+		@Override
+		public void startThread(Thread thread) {
+			threads.start(thread);
+		}
+
+		@Override
+		public long getTime() {
+			return clock.getTimestamp();
+		}
+
+		@Override
+		public void sleep(long nanoseconds) throws InterruptedException {
+			clock.sleep(nanoseconds);
+		}
+
 		public void suspend() {
 			for (Runnable runnable : suspendHandlers) {
 				runnable.run();
@@ -451,9 +728,16 @@ public final class Robot {
 			}
 		}
 
+		public void stop() {
+			for (Runnable runnable : stopHandlers) {
+				runnable.run();
+			}
+		}
+
 		public void reset() {
 			suspendHandlers.clear();
 			resumeHandlers.clear();
+			stopHandlers.clear();
 		}
 
 		@Override
@@ -491,6 +775,11 @@ public final class Robot {
 			return robotInterface.S4.getSensor();
 		}
 
+		@Override
+		public void updateDisplay(byte[] frame) {
+			display = frame.clone();
+		}
+
 		@Override
 		public void shutDown() {
 			reset();
@@ -499,21 +788,33 @@ public final class Robot {
 
 	private final Simulator simulator = new Simulator();
 
-	void play() throws ScriptException {
+	/**
+	 * Starts the robot program. A robot without a class path runs no program:
+	 * its script is run and its kinematics and sensors work as usual, but its
+	 * motors are only driven by whoever holds the robot, as the benchmarks
+	 * do.
+	 * 
+	 * @param virtualThreads
+	 *            Whether to run the threads of the robot, including those of
+	 *            the Framework, on virtual threads, if the Java runtime
+	 *            supports them. See {@link RobotThreadGroup}.
+	 * @throws ScriptException
+	 *             If the script of the robot fails.
+	 */
+	void play(boolean virtualThreads) throws ScriptException {
 		if (running) {
 			return;
 		}
-		initializing = true;
-		final ScriptEngine scriptEngine = new ScriptEngineManager()
-				.getEngineByMimeType("text/javascript");
-		scriptEngine.put("robot", robotInterface);
-		scriptEngine.eval(script);
-		invocable = (Invocable) scriptEngine;
-		threads = new ThreadGroup("NXT" + index);
-		initializing = false;
+		kinematics = loadKinematics();
+		final RobotThreadGroup group = new RobotThreadGroup("NXT" + index,
+				virtualThreads);
+		threads = group;
 		running = true;
 		suspended = false;
-		new Thread(threads, new Runnable() {
+		if (classPath == null) {
+			return;
+		}
+		final Thread main = group.newThread(new Runnable() {
 			@Override
 			public void run() {
 				final URL url;
@@ -553,10 +854,16 @@ public final class Robot {
 				try {
 					mainClass = classLoader.loadClass(mainClassName);
 				} catch (ClassNotFoundException e) {
-					JOptionPane.showMessageDialog(parentWindow,
-							"Unable to find the specified main class "
-									+ mainClassName, "Simulejos",
-							JOptionPane.ERROR_MESSAGE);
+					if (parentWindow != null) {
+						JOptionPane.showMessageDialog(parentWindow,
+								"Unable to find the specified main class "
+										+ mainClassName, "Simulejos",
+								JOptionPane.ERROR_MESSAGE);
+					} else {
+						logWriter
+								.println("unable to find the specified main class "
+										+ mainClassName);
+					}
 					try {
 						classLoader.close();
 					} catch (IOException e1) {
@@ -565,14 +872,24 @@ public final class Robot {
 					return;
 				}
 				try {
-					mainClass.getMethod("main", String[].class).invoke(null,
-							(Object) new String[] {});
-					logWriter.println("terminated regularly");
+					/*
+					 * the robot may have been stopped before the Bridge could
+					 * register its handlers
+					 */
+					if (!group.stopped) {
+						mainClass.getMethod("main", String[].class).invoke(
+								null, (Object) new String[] {});
+						logWriter.println("terminated regularly");
+					}
 				} catch (Exception e) {
-					throw new RuntimeException(e);
+					if (!group.stopped) {
+						throw new RuntimeException(e);
+					}
 				} finally {
-					running = false;
-					suspended = false;
+					if (threads == group) {
+						running = false;
+						suspended = false;
+					}
 					try {
 						bridge.getMethod("cleanup").invoke(null);
 					} catch (IllegalAccessException | InvocationTargetException
@@ -586,143 +903,492 @@ public final class Robot {
 					}
 				}
 			}
-		}, "NXT" + index).start();
+		});
+		main.setName("NXT" + index);
+		group.start(main);
 	}
 
-	@SuppressWarnings("deprecation")
+	/**
+	 * Suspends the threads of the robot at their next checkpoint, see
+	 * <code>Bridge.checkpoint()</code>.
+	 */
 	void suspend() {
 		if (running) {
-			simulator.suspend();
-			threads.suspend();
-			running = true;
 			suspended = true;
+			simulator.suspend();
 		}
 	}
 
-	@SuppressWarnings("deprecation")
 	void resume() {
 		if (running && suspended) {
-			running = true;
 			suspended = false;
-			threads.resume();
 			simulator.resume();
 		}
 	}
 
-	@SuppressWarnings("deprecation")
+	/**
+	 * Runs the script in a fresh global scope, where it initializes the
+	 * sensors, and looks up the kinematics of the robot as described in
+	 * {@link RobotKinematics}.
+	 * 
+	 * A robot without a script needs no JavaScript engine. Neither does a
+	 * robot whose kinematics are built in or provided, although its script is
+	 * not run without an engine, so the sensors it initializes are missing.
+	 * 
+	 * @return The kinematics, or <code>null</code> if the robot has none.
+	 * @throws ScriptException
+	 *             If the script fails, or if it is needed for the kinematics
+	 *             and the Java runtime has no JavaScript engine.
+	 */
+	RobotKinematics loadKinematics() throws ScriptException {
+		closeKinematicsClassLoader();
+		kinematics = null;
+		if (scriptEngine != null) {
+			runScript();
+			if (kinematics != null) {
+				return kinematics;
+			}
+		} else if (script != null) {
+			logWriter.println("no JavaScript engine, the script is not run");
+			logWriter.flush();
+		}
+		final RobotKinematics builtIn = createBuiltInKinematics();
+		if (builtIn != null) {
+			return builtIn;
+		}
+		final RobotKinematics provided = createProvidedKinematics();
+		if (provided != null) {
+			return provided;
+		}
+		if (script == null) {
+			return null;
+		}
+		if (scriptEngine == null) {
+			throw new ScriptException("NXT" + index
+					+ " needs its script for its kinematics, but the Java "
+					+ "runtime has no JavaScript engine");
+		}
+		if (scriptEngine instanceof Invocable) {
+			return ((Invocable) scriptEngine)
+					.getInterface(RobotKinematics.class);
+		}
+		return null;
+	}
+
+	private void runScript() throws ScriptException {
+		final Bindings bindings = scriptEngine.createBindings();
+		bindings.put("robot", robotInterface);
+		scriptEngine.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+		initializing = true;
+		try {
+			if (compiledScript != null) {
+				compiledScript.eval();
+			} else {
+				scriptEngine.eval(script);
+			}
+		} finally {
+			initializing = false;
+		}
+	}
+
+	/**
+	 * Creates the built-in kinematics named by {@link #builtInKinematics}:
+	 * the name of a method of {@link RobotInterface} that creates them,
+	 * followed by its arguments, separated by spaces.
+	 * 
+	 * @return The kinematics, or <code>null</code> if they are not specified.
+	 * @throws IllegalArgumentException
+	 *             If the name or the arguments are invalid.
+	 */
+	RobotKinematics createBuiltInKinematics() {
+		if (builtInKinematics == null) {
+			return null;
+		}
+		final String[] fields = builtInKinematics.trim().split("\\s+");
+		final double[] arguments = new double[fields.length - 1];
+		try {
+			for (int i = 0; i < arguments.length; i++) {
+				arguments[i] = Double.parseDouble(fields[i + 1]);
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid kinematics: "
+					+ builtInKinematics, e);
+		}
+		switch (fields[0]) {
+		case "differentialDrive":
+			if (arguments.length == 1) {
+				return robotInterface.differentialDrive(arguments[0]);
+			}
+			break;
+		case "steering":
+			if (arguments.length == 2) {
+				return robotInterface.steering(arguments[0], arguments[1]);
+			}
+			break;
+		case "omniDrive":
+			if (arguments.length == 1) {
+				return robotInterface.omniDrive(arguments[0]);
+			}
+			break;
+		}
+		throw new IllegalArgumentException("invalid kinematics: "
+				+ builtInKinematics);
+	}
+
+	/*
+	 * Looks for a provider of kinematics on the class path of the robot. Its
+	 * class loader is kept open as long as the kinematics are in use.
+	 */
+	private RobotKinematics createProvidedKinematics() {
+		if (classPath == null) {
+			return null;
+		}
+		final URLClassLoader classLoader;
+		try {
+			classLoader = new URLClassLoader(new URL[] { classPath.toURI()
+					.toURL() }, Robot.class.getClassLoader());
+		} catch (MalformedURLException e) {
+			throw new RuntimeException(e);
+		}
+		final Iterator<RobotKinematics.Provider> providers = ServiceLoader
+				.load(RobotKinematics.Provider.class, classLoader).iterator();
+		if (providers.hasNext()) {
+			kinematicsClassLoader = classLoader;
+			return providers.next().create(robotInterface);
+		}
+		try {
+			classLoader.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	private void closeKinematicsClassLoader() {
+		if (kinematicsClassLoader != null) {
+			try {
+				kinematicsClassLoader.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			kinematicsClassLoader = null;
+		}
+	}
+
+	/**
+	 * Stops the threads of the robot: those that are waiting are interrupted,
+	 * and all of them unwind at their next checkpoint, see
+	 * <code>Bridge.checkpoint()</code>.
+	 */
 	void stop() {
 		if (running) {
+			final RobotThreadGroup group = threads;
+			group.stopped = true;
+			simulator.stop();
 			simulator.reset();
-			threads.stop();
+			group.interruptAll();
 			running = false;
 			suspended = false;
+			kinematics = null;
+			closeKinematicsClassLoader();
 			motorA.setMode(Motor.Mode.FLOAT);
 			motorB.setMode(Motor.Mode.FLOAT);
 			motorC.setMode(Motor.Mode.FLOAT);
-			for (GPUSensor sensor : gpuSensors) {
-				sensor.destroy();
+			synchronized (gpuSensors) {
+				gpuSensors.clear();
 			}
-			gpuSensors.clear();
 		}
 	}
 
-	private Vector3 transform(Vector3 v) {
-		return heading.by(v).plus(position);
+	/**
+	 * Closes the log of the robot once it has been removed from the
+	 * simulation. Whatever the robot writes from now on is discarded.
+	 */
+	void closeLog() {
+		log.closeChannel(logChannel);
 	}
 
-	private boolean vertexCollides(Robot robot, double x, double y, double z) {
-		return modelData.boundingBox.contains(inverseHeading.by(robot
-				.transform(new Vector3(x, y, z)).minus(position)));
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Tells whether none of the threads of this robot can make progress before
+	 * the simulated clock advances, that is whether all of them are sleeping,
+	 * waiting or blocked.
+	 * 
+	 * @return <code>true</code> if no thread of this robot is runnable.
+	 */
+	boolean isIdle() {
+		return !running || suspended || threads.isIdle();
+	}
+
+	public Vector3 getPosition() {
+		synchronized (poseLock) {
+			return position.toVector3();
+		}
+	}
+
+	/**
+	 * Updates {@link #bounds} to the current position and heading of the
+	 * robot.
+	 */
+	void updateBounds() {
+		synchronized (poseLock) {
+			bounds.set(position, heading, modelData.boundingBox);
+		}
 	}
 
 	public boolean collidesWith(Robot robot) {
-		final BoundingBox box = modelData.boundingBox;
-		return robot.vertexCollides(this, box.min.x, box.min.y, box.min.z)
-				|| robot.vertexCollides(this, box.min.x, box.min.y, box.max.z)
-				|| robot.vertexCollides(this, box.min.x, box.max.y, box.min.z)
-				|| robot.vertexCollides(this, box.min.x, box.max.y, box.max.z)
-				|| robot.vertexCollides(this, box.max.x, box.min.y, box.min.z)
-				|| robot.vertexCollides(this, box.max.x, box.min.y, box.max.z)
-				|| robot.vertexCollides(this, box.max.x, box.max.y, box.min.z)
-				|| robot.vertexCollides(this, box.max.x, box.max.y, box.max.z);
+		final OrientedBox box = new OrientedBox();
+		final OrientedBox box2 = new OrientedBox();
+		synchronized (poseLock) {
+			box.set(position, heading, modelData.boundingBox);
+		}
+		synchronized (robot.poseLock) {
+			box2.set(robot.position, robot.heading,
+					robot.modelData.boundingBox);
+		}
+		return box.overlaps(box2) && box.intersects(box2);
+	}
+
+	/**
+	 * Writes the pose of this robot to an array without allocating: the
+	 * position followed by the rotation, see {@link #getRotation()}, in
+	 * row-first order.
+	 * 
+	 * @param pose
+	 *            An array of at least 12 elements.
+	 */
+	void getPose(double[] pose) {
+		final double scale = modelData.boundingBox.getMaxSpan() / 2;
+		synchronized (poseLock) {
+			pose[0] = position.x;
+			pose[1] = position.y;
+			pose[2] = position.z;
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j < 3; j++) {
+					pose[3 + i * 3 + j] = heading.getAt(i, j) * scale;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the motor connected to a port.
+	 * 
+	 * @param port
+	 *            0, 1 or 2 for port A, B or C.
+	 * @return The motor.
+	 */
+	Motor getMotor(int port) {
+		switch (port) {
+		case 0:
+			return motorA;
+		case 1:
+			return motorB;
+		case 2:
+			return motorC;
+		default:
+			throw new IllegalArgumentException("no motor port " + port);
+		}
+	}
+
+	/**
+	 * Returns the contents of the display of the robot as of its last refresh,
+	 * in the packed format of the display buffer of the Framework. The array
+	 * is replaced at every refresh and must not be modified.
+	 * 
+	 * @return The contents of the display, or <code>null</code> if the robot
+	 *         has never refreshed it.
+	 */
+	byte[] getDisplay() {
+		return display;
+	}
+
+	/**
+	 * Returns the orientation of the robot, as a rotation matrix.
+	 * 
+	 * @return The rotation that brings the model to its current heading.
+	 */
+	public Matrix3 getRotation() {
+		final double maxSpan = modelData.boundingBox.getMaxSpan();
+		synchronized (poseLock) {
+			return heading.toMatrix3().by(maxSpan / 2);
+		}
+	}
+
+	/**
+	 * Places the robot at the specified position with the specified
+	 * orientation.
+	 * 
+	 * @param position
+	 *            The new position.
+	 * @param rotation
+	 *            The new orientation, see {@link #getRotation()}.
+	 */
+	public void setPose(Vector3 position, Matrix3 rotation) {
+		final double maxSpan = modelData.boundingBox.getMaxSpan();
+		synchronized (poseLock) {
+			this.position.set(position);
+			heading.set(rotation.by(2 / maxSpan));
+			inverseHeading.invert(heading);
+		}
+		updateBounds();
+		view.repaint();
 	}
 
 	public void moveTo(double x, double y, double z) {
-		position = new Vector3(x, y, z);
-		canvas.repaint();
+		synchronized (poseLock) {
+			position.set(x, y, z);
+		}
+		view.repaint();
 	}
 
 	public void moveTo(Vector3 v) {
-		position = v;
-		canvas.repaint();
+		synchronized (poseLock) {
+			position.set(v);
+		}
+		view.repaint();
 	}
 
 	public void moveBy(Vector3 d) {
-		position = position.plus(d);
-		canvas.repaint();
+		synchronized (poseLock) {
+			position.add(d.x, d.y, d.z);
+		}
+		view.repaint();
 	}
 
 	public void rotate(double a) {
-		heading = Matrix3.createRotation(0, 1, 0, a).by(heading);
-		inverseHeading = heading.invert();
-		canvas.repaint();
+		synchronized (poseLock) {
+			heading.multiply(rotation.setRotation(0, 1, 0, a), heading);
+			inverseHeading.invert(heading);
+		}
+		view.repaint();
 	}
 
-	void tick(long timestamp) throws NoSuchMethodException, ScriptException {
+	void tick(long timestamp) {
 		if (running && !suspended) {
-			invocable.invokeFunction("tick", motorA.sample(timestamp),
-					motorB.sample(timestamp), motorC.sample(timestamp));
-			for (GPUSensor sensor : gpuSensors) {
-				sensor.tick();
+			final double daa = motorA.sample(timestamp);
+			final double dab = motorB.sample(timestamp);
+			final double dac = motorC.sample(timestamp);
+			final RobotKinematics kinematics = this.kinematics;
+			if (kinematics != null) {
+				kinematics.tick(daa, dab, dac);
 			}
 		}
 	}
 
-	void init(GL2GL3 gl) {
-		elements = new Elements(gl, modelData.indices);
-		elements.add(4, modelData.vertices);
-		for (GPUSensor sensor : gpuSensors) {
-			sensor.resetBuffer(gl);
+	/**
+	 * Updates the readings of the GPU sensors that can be sampled without
+	 * rendering, and marks the others for rendering.
+	 */
+	void sampleSensors() {
+		if (running && !suspended) {
+			synchronized (gpuSensors) {
+				for (GPUSensor sensor : gpuSensors) {
+					sensor.rendering = !sensor.sampleDirectly();
+				}
+			}
 		}
 	}
 
-	void draw(GL2GL3 gl, Program program) {
-		if (elements == null) {
-			init(gl);
-		}
-		for (GPUSensor sensor : gpuSensors) {
-			sensor.assertBuffer(gl);
-		}
-		program.uniform("Position", position);
-		program.uniform("Heading", heading);
-		gl.glPolygonMode(GL_FRONT_AND_BACK, GL_LINE);
-		program.uniform3f("Color", 0, 0, 0);
-		elements.bindAndDraw(GL_TRIANGLES);
-		gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
-		if (hilited) {
-			program.uniform3f("Color", 1, 0, 0);
-		} else {
-			program.uniform3f("Color", 1, 1, 1);
+	/**
+	 * The scratch vectors of {@link Robot#cast}, so that casting rays
+	 * allocates nothing. Robots are sampled in parallel, so every caller owns
+	 * its own.
+	 */
+	static final class CastScratch {
+		private final MutableVector3 segment = new MutableVector3();
+		private final MutableVector3 origin = new MutableVector3();
+		private final MutableVector3 direction = new MutableVector3();
+	}
+
+	/**
+	 * Tells whether the segment between the specified points crosses the
+	 * surface of this robot.
+	 */
+	boolean intersects(MutableVector3 from, MutableVector3 to,
+			CastScratch scratch) {
+		scratch.segment.set(to).subtract(from);
+		return cast(from, scratch.segment, 1, true, scratch) <= 1;
+	}
+
+	/**
+	 * Casts a ray against the surface of this robot. The ray is tested
+	 * against the bounding box first, then against the bounding volume
+	 * hierarchy of the model.
+	 * 
+	 * @param origin
+	 *            The origin of the ray in world space.
+	 * @param direction
+	 *            The direction of the ray in world space.
+	 * @param range
+	 *            The maximum distance of a hit, in multiples of
+	 *            <code>direction</code>.
+	 * @param any
+	 *            Whether the first hit found suffices rather than the nearest
+	 *            one.
+	 * @param scratch
+	 *            The scratch vectors of the caller.
+	 * @return The distance of the hit in multiples of <code>direction</code>,
+	 *         or {@link Double#POSITIVE_INFINITY} if the ray does not hit this
+	 *         robot within the range.
+	 */
+	double cast(MutableVector3 origin, MutableVector3 direction, double range,
+			boolean any, CastScratch scratch) {
+		final MutableVector3 o = scratch.origin;
+		final MutableVector3 d = scratch.direction;
+		synchronized (poseLock) {
+			if (!bounds.intersects(origin.x, origin.y, origin.z, direction.x
+					* range, direction.y * range, direction.z * range)) {
+				return Double.POSITIVE_INFINITY;
+			}
+			inverseHeading.transform(origin.x - position.x, origin.y
+					- position.y, origin.z - position.z, o);
+			inverseHeading.transform(direction, d);
 		}
-		elements.draw(GL_TRIANGLES);
+		return modelData.getHierarchy().cast(o.x, o.y, o.z, d.x, d.y, d.z,
+				range, any);
 	}
 
-	void drawForSensor(GL2GL3 gl, Program program) {
-		if (elements != null) {
-			program.uniform(gl, "TargetRobotPosition", position);
-			program.uniform(gl, "TargetRobotHeading", heading);
-			elements.share(gl);
-			elements.bindAndDraw(gl, GL_TRIANGLES);
+	/**
+	 * Adds the GPU sensors of this robot to the specified list, unless the
+	 * robot is stopped or suspended.
+	 */
+	void collectGPUSensors(List<GPUSensor> sensors) {
+		if (running && !suspended) {
+			synchronized (gpuSensors) {
+				sensors.addAll(gpuSensors);
+			}
 		}
 	}
 
-	void drawForPicker(GL2GL3 gl, Program program) {
-		if (elements != null) {
-			program.uniform(gl, "Position", position);
-			program.uniform(gl, "Heading", heading);
-			program.uniform1f(gl, "PassThrough", (float) index / 128);
-			elements.share(gl);
-			elements.bindAndDraw(gl, GL_TRIANGLES);
+	/**
+	 * Writes the attributes of this robot for instanced rendering, see
+	 * {@link RobotInstances}: its position, the columns of its heading, its
+	 * color in the view and the value the picker identifies it by.
+	 * 
+	 * @param data
+	 *            The array to write to.
+	 * @param offset
+	 *            The offset of the {@link RobotInstances#SIZE} floats of this
+	 *            robot.
+	 */
+	void getInstance(float[] data, int offset) {
+		synchronized (poseLock) {
+			data[offset] = (float) position.x;
+			data[offset + 1] = (float) position.y;
+			data[offset + 2] = (float) position.z;
+			for (int j = 0; j < 3; j++) {
+				for (int i = 0; i < 3; i++) {
+					data[offset + 3 + j * 3 + i] = (float) heading.getAt(i, j);
+				}
+			}
 		}
+		data[offset + 12] = 1;
+		data[offset + 13] = hilited ? 0 : 1;
+		data[offset + 14] = hilited ? 0 : 1;
+		data[offset + 15] = (float) index / 128;
 	}
 }
@@ -0,0 +1,198 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.MeshRegistry.Mesh;
+import it.uniroma1.di.simulejos.opengl.ArrayBuffer;
+import it.uniroma1.di.simulejos.opengl.Buffer.Usage;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.opengl.GL2GL3;
+import javax.media.opengl.GL3;
+
+import static javax.media.opengl.GL2GL3.*;
+
+/**
+ * The robots drawn by a rendering pass, grouped by mesh so that all the robots
+ * sharing a mesh are drawn by a single instanced draw call. The view, the
+ * picker and the sensor atlas run on different threads, so each of them has
+ * its own instances.
+ * 
+ * The attributes of every instance are the position of the robot, the
+ * columns of its heading, its color in the view and the value the picker
+ * identifies it by; the programs that draw robots bind them with
+ * {@link #ATTRIBUTES}. They are uploaded to an array buffer with a divisor of
+ * one or, where instanced drawing is not supported, set as constant
+ * attributes before drawing each robot on its own. Instanced drawing needs a
+ * compatibility context of version 3.3 or later, since the bindings of JOGL
+ * expose the divisor through {@link GL3} only and draw instanced elements
+ * from client-side indices only.
+ */
+final class RobotInstances {
+	/**
+	 * The names of the attributes of the programs that draw robots: the
+	 * vertex of the mesh followed by the attributes of the instance.
+	 */
+	static final String[] ATTRIBUTES = { "in_Vertex", "in_Position",
+			"in_Heading0", "in_Heading1", "in_Heading2", "in_Color",
+			"in_PassThrough" };
+
+	/**
+	 * The number of floats taken by the attributes of an instance, see
+	 * {@link Robot#getInstance(float[], int)}.
+	 */
+	static final int SIZE = 16;
+
+	/*
+	 * The number of components and the offset of every attribute of an
+	 * instance, starting at index 1.
+	 */
+	private static final int[] COMPONENTS = { 3, 3, 3, 3, 3, 1 };
+	private static final int[] OFFSETS = { 0, 3, 6, 9, 12, 15 };
+
+	private static final class Group {
+		final Mesh mesh;
+		final List<Robot> robots = new ArrayList<Robot>();
+		int first;
+
+		Group(Mesh mesh) {
+			this.mesh = mesh;
+		}
+	}
+
+	private final MeshRegistry meshes;
+	private final Map<Mesh, Group> groups = new LinkedHashMap<Mesh, Group>();
+	private float[] data = new float[SIZE];
+	private boolean instanced;
+	private ArrayBuffer buffer;
+
+	RobotInstances(MeshRegistry meshes) {
+		this.meshes = meshes;
+	}
+
+	/**
+	 * Creates the instance buffer in the current context.
+	 */
+	void init(GL2GL3 gl) {
+		instanced = gl.isGL3bc()
+				&& gl.isFunctionAvailable("glVertexAttribDivisor")
+				&& gl.isFunctionAvailable("glDrawElementsInstanced");
+		if (instanced) {
+			buffer = new ArrayBuffer(gl, Usage.STREAM_DRAW);
+			buffer.unbind(gl);
+		}
+	}
+
+	/**
+	 * Collects the attributes of the specified robots and uploads them.
+	 * Robots whose meshes have not been uploaded are skipped.
+	 * 
+	 * @param gl
+	 *            The current context.
+	 * @param robots
+	 *            The robots to draw.
+	 */
+	void update(GL2GL3 gl, Iterable<Robot> robots) {
+		for (Group group : groups.values()) {
+			group.robots.clear();
+		}
+		int count = 0;
+		for (Robot robot : robots) {
+			final Mesh mesh = meshes.get(robot.modelData);
+			if (mesh != null) {
+				Group group = groups.get(mesh);
+				if (group == null) {
+					group = new Group(mesh);
+					groups.put(mesh, group);
+				}
+				group.robots.add(robot);
+				count++;
+			}
+		}
+		if (data.length < count * SIZE) {
+			data = new float[Math.max(count, data.length / SIZE * 2) * SIZE];
+		}
+		int first = 0;
+		for (Iterator<Group> i = groups.values().iterator(); i.hasNext();) {
+			final Group group = i.next();
+			if (group.robots.isEmpty()) {
+				i.remove();
+				continue;
+			}
+			group.first = first;
+			for (Robot robot : group.robots) {
+				robot.getInstance(data, first++ * SIZE);
+			}
+		}
+		if (instanced && (count > 0)) {
+			buffer.bind(gl);
+			buffer.data(gl, FloatBuffer.wrap(data, 0, count * SIZE));
+			buffer.unbind(gl);
+		}
+	}
+
+	/**
+	 * Draws the robots collected by the last invocation of
+	 * {@link #update(GL2GL3, Iterable)} with the program in use.
+	 * 
+	 * @param gl
+	 *            The current context.
+	 * @param level
+	 *            The level of detail of the meshes.
+	 */
+	void draw(GL2GL3 gl, int level) {
+		for (Group group : groups.values()) {
+			final Mesh mesh = group.mesh;
+			final int first = mesh.getLevelOffset(level);
+			final int count = mesh.getLevelCount(level);
+			mesh.elements.share(gl);
+			mesh.elements.bind(gl);
+			if (instanced) {
+				final GL3 gl3 = gl.getGL3();
+				buffer.bind(gl);
+				for (int i = 0; i < COMPONENTS.length; i++) {
+					final int offset = group.first * SIZE + OFFSETS[i];
+					gl.glEnableVertexAttribArray(i + 1);
+					gl.glVertexAttribPointer(i + 1, COMPONENTS[i], GL_FLOAT,
+							false, SIZE * 4, offset * 4);
+					gl3.glVertexAttribDivisor(i + 1, 1);
+				}
+				mesh.elements.drawInstanced(gl3, GL_TRIANGLES, first, count,
+						group.robots.size());
+				for (int i = 0; i < COMPONENTS.length; i++) {
+					gl3.glVertexAttribDivisor(i + 1, 0);
+					gl.glDisableVertexAttribArray(i + 1);
+				}
+			} else {
+				for (int j = 0; j < group.robots.size(); j++) {
+					final int offset = (group.first + j) * SIZE;
+					for (int i = 0; i < COMPONENTS.length; i++) {
+						final int k = offset + OFFSETS[i];
+						if (COMPONENTS[i] == 3) {
+							gl.glVertexAttrib3f(i + 1, data[k], data[k + 1],
+									data[k + 2]);
+						} else {
+							gl.glVertexAttrib1f(i + 1, data[k]);
+						}
+					}
+					mesh.elements.draw(gl, GL_TRIANGLES, first, count);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the instance buffer.
+	 */
+	void delete() {
+		if (buffer != null) {
+			buffer.delete();
+			buffer = null;
+		}
+		groups.clear();
+	}
+}
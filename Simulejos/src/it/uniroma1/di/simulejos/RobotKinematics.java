@@ -0,0 +1,45 @@
+package it.uniroma1.di.simulejos;
+
+/**
+ * Moves a robot according to the rotations of its motors.
+ * 
+ * The kinematics of a robot are looked up when the robot starts, in this
+ * order: those set by its script through
+ * {@link Robot.RobotInterface#setKinematics(RobotKinematics)}, for example
+ * one of the built-in ones; the built-in ones named by its scene, see
+ * {@link Robot#createBuiltInKinematics()}; those created by a
+ * {@link Provider} found on the class path of the robot through
+ * {@link java.util.ServiceLoader}; and the <code>tick</code> function
+ * defined by the script, if any. Only the first and the last need a
+ * JavaScript engine.
+ */
+public interface RobotKinematics {
+	/**
+	 * Moves the robot, invoked at every tick of the simulation.
+	 * 
+	 * @param daa
+	 *            The rotation of motor A since the last tick, in turns.
+	 * @param dab
+	 *            The rotation of motor B since the last tick, in turns.
+	 * @param dac
+	 *            The rotation of motor C since the last tick, in turns.
+	 */
+	void tick(double daa, double dab, double dac);
+
+	/**
+	 * Creates the kinematics of robots. Implementations are registered in
+	 * <code>META-INF/services/it.uniroma1.di.simulejos.RobotKinematics$Provider</code>
+	 * on the class path of the robot and must have a public constructor
+	 * without arguments.
+	 */
+	public static interface Provider {
+		/**
+		 * Creates the kinematics of a robot.
+		 * 
+		 * @param robot
+		 *            The interface used to move the robot.
+		 * @return The kinematics of the robot.
+		 */
+		RobotKinematics create(Robot.RobotInterface robot);
+	}
+}
@@ -0,0 +1,162 @@
+package it.uniroma1.di.simulejos;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The threads of a run of a robot. They are suspended and stopped
+ * cooperatively, at the checkpoints of the Framework: once the robot is
+ * stopped they unwind with an error that is not worth reporting.
+ * 
+ * The threads created by the group are platform threads of the group or, if
+ * requested and supported by the Java runtime, virtual threads. Virtual
+ * threads cannot belong to a thread group, so the group tracks them on its
+ * own, from the moment they are started by {@link #start(Thread)} until they
+ * terminate; it does not know about the platform threads that robot programs
+ * create with <code>new Thread</code> from a virtual thread, which the runtime
+ * places in a group shared by all virtual threads. All the threads created by
+ * the Framework itself go through the group, see
+ * <code>Bridge.newThread</code> and <code>Bridge.startThread</code>.
+ * 
+ * Virtual threads share the carrier threads of the Java runtime, so a swarm of
+ * robots needs a handful of operating system threads instead of a few for
+ * every robot. Until Java 24, however, a virtual thread that waits inside a
+ * synchronized block, as the Framework often does, pins its carrier.
+ */
+final class RobotThreadGroup extends ThreadGroup implements ThreadFactory {
+	private static final ThreadFactory VIRTUAL_THREAD_FACTORY =
+			createVirtualThreadFactory();
+
+	volatile boolean stopped;
+
+	private final boolean virtual;
+	private final Set<Thread> virtualThreads = Collections
+			.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+	/*
+	 * Thread.ofVirtual() is looked up reflectively as the simulator is built
+	 * for older Java versions.
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			final Object builder = Thread.class.getMethod("ofVirtual").invoke(
+					null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Tells whether the Java runtime supports virtual threads, that is whether
+	 * it is Java 21 or later.
+	 * 
+	 * @return <code>true</code> if virtual threads are available.
+	 */
+	static boolean isVirtualThreadSupported() {
+		return VIRTUAL_THREAD_FACTORY != null;
+	}
+
+	/**
+	 * Creates a group of robot threads.
+	 * 
+	 * @param name
+	 *            The name of the group.
+	 * @param virtual
+	 *            Whether to create virtual threads. Ignored if they are not
+	 *            supported.
+	 */
+	public RobotThreadGroup(String name, boolean virtual) {
+		super(name);
+		this.virtual = virtual && isVirtualThreadSupported();
+	}
+
+	@Override
+	public Thread newThread(final Runnable runnable) {
+		if (!virtual) {
+			return new Thread(this, runnable);
+		}
+		final Thread thread = VIRTUAL_THREAD_FACTORY.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runnable.run();
+				} finally {
+					virtualThreads.remove(Thread.currentThread());
+				}
+			}
+		});
+		thread.setUncaughtExceptionHandler(this);
+		return thread;
+	}
+
+	/**
+	 * Starts a thread created by this group. A virtual thread is tracked
+	 * before it is started, so that it is never runnable without the group
+	 * knowing, as platform threads join their group when they are started.
+	 * 
+	 * @param thread
+	 *            The thread to start.
+	 * @throws IllegalThreadStateException
+	 *             If the thread has already been started.
+	 */
+	void start(Thread thread) {
+		if (virtual) {
+			if (thread.getState() != Thread.State.NEW) {
+				throw new IllegalThreadStateException();
+			}
+			virtualThreads.add(thread);
+		}
+		thread.start();
+	}
+
+	@Override
+	public void uncaughtException(Thread thread, Throwable throwable) {
+		if (!stopped) {
+			super.uncaughtException(thread, throwable);
+		}
+	}
+
+	/**
+	 * Interrupts all the threads of the group, including the virtual ones.
+	 */
+	void interruptAll() {
+		interrupt();
+		for (Thread thread : virtualThreads) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Tells whether none of the threads of the group can make progress before
+	 * the simulated clock advances, that is whether all of them are sleeping,
+	 * waiting or blocked.
+	 * 
+	 * @return <code>true</code> if no thread of the group is runnable.
+	 */
+	boolean isIdle() {
+		Thread[] list = new Thread[activeCount() + 1];
+		int count;
+		while ((count = enumerate(list)) == list.length) {
+			list = new Thread[list.length * 2];
+		}
+		for (int i = 0; i < count; i++) {
+			switch (list[i].getState()) {
+			case NEW:
+			case RUNNABLE:
+				return false;
+			default:
+				break;
+			}
+		}
+		for (Thread thread : virtualThreads) {
+			if (thread.getState() == Thread.State.RUNNABLE) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
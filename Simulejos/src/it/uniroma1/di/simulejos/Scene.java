@@ -0,0 +1,605 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.math.Matrix3;
+import it.uniroma1.di.simulejos.math.Vector3;
+import it.uniroma1.di.simulejos.util.FullReader;
+import it.uniroma1.di.simulejos.wavefront.ParseException;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.script.ScriptException;
+
+/**
+ * Describes a world that can be loaded into a {@link Simulation}: the floor
+ * configuration, the list of robots with their poses and the settings of the
+ * simulation.
+ * 
+ * Scenes are stored as property files. Relative paths are resolved against the
+ * directory containing the scene file. Example:
+ * 
+ * <pre>
+ * version = 2
+ * duration = 60
+ * floor.texture = track.png
+ * floor.width = 2
+ * floor.depth = 2
+ * simulation.parallelStep = true
+ * robot.1.classPath = ../TestRobots/bin
+ * robot.1.mainClass = it.uniroma1.di.simulejos.test.robots.LineFollower
+ * robot.1.script = ../TestRobots/scripts/LineFollower.js
+ * robot.1.model = ../TestRobots/models/epuck.obj
+ * robot.1.swapYAndZ = false
+ * robot.1.position = 0.5 -0.8 0
+ * robot.1.rotation = 0 0 1 0 1 0 -1 0 0
+ * </pre>
+ * 
+ * Robots are numbered starting from 1 and must be numbered contiguously. The
+ * class path and the main class are omitted for robots that run no program,
+ * such as those of the benchmarks. The script of a robot is either read from
+ * the file named by <code>script</code> or specified inline by
+ * <code>source</code>, as in the scenes written by {@link #write(File)}, and
+ * may be omitted along with the JavaScript engine it needs: then
+ * <code>kinematics</code> names built-in kinematics, such as
+ * <code>differentialDrive 4</code>, unless a provider of kinematics is on the
+ * class path of the robot, see {@link RobotKinematics}. The position and the
+ * rotation, a 3x3 matrix in row-first order, are optional, and so are the
+ * settings of the simulation:
+ * <code>simulation.parallelStep</code>,
+ * <code>simulation.virtualThreads</code> and
+ * <code>simulation.logBlocking</code>. Scenes without a version are version 1,
+ * which has no poses, inline scripts or settings.
+ */
+public final class Scene {
+	/**
+	 * The version of the format written by {@link #write(File)}. Scenes of
+	 * later versions are rejected.
+	 */
+	public static final int VERSION = 2;
+
+	public static final class RobotDescriptor {
+		public final File classPath;
+		public final String mainClassName;
+
+		/**
+		 * The file containing the script, or <code>null</code> if the script
+		 * is specified inline or the robot has none.
+		 */
+		public final File scriptFile;
+
+		/**
+		 * The source of the script, or <code>null</code> if it is read from
+		 * {@link #scriptFile} or the robot has none.
+		 */
+		public final String script;
+
+		/**
+		 * The built-in kinematics of the robot, or <code>null</code> if they
+		 * are not specified, see {@link Robot#builtInKinematics}.
+		 */
+		public final String builtInKinematics;
+
+		public final File modelFile;
+		public final boolean swapYAndZ;
+
+		/**
+		 * The initial position of the robot, or <code>null</code> to place it
+		 * at the center of the floor.
+		 */
+		public final Vector3 position;
+
+		/**
+		 * The initial orientation of the robot, or <code>null</code> to leave
+		 * the model as it is.
+		 */
+		public final Matrix3 rotation;
+
+		public RobotDescriptor(File classPath, String mainClassName,
+				File scriptFile, File modelFile, boolean swapYAndZ) {
+			this(classPath, mainClassName, scriptFile, null, modelFile,
+					swapYAndZ, null, null);
+		}
+
+		public RobotDescriptor(File classPath, String mainClassName,
+				File scriptFile, String script, File modelFile,
+				boolean swapYAndZ, Vector3 position, Matrix3 rotation) {
+			this(classPath, mainClassName, scriptFile, script, null,
+					modelFile, swapYAndZ, position, rotation);
+		}
+
+		public RobotDescriptor(File classPath, String mainClassName,
+				File scriptFile, String script, String builtInKinematics,
+				File modelFile, boolean swapYAndZ, Vector3 position,
+				Matrix3 rotation) {
+			this.classPath = classPath;
+			this.mainClassName = mainClassName;
+			this.scriptFile = scriptFile;
+			this.script = script;
+			this.builtInKinematics = builtInKinematics;
+			this.modelFile = modelFile;
+			this.swapYAndZ = swapYAndZ;
+			this.position = position;
+			this.rotation = rotation;
+		}
+
+		private String readScript() throws IOException {
+			if ((script != null) || (scriptFile == null)) {
+				return script;
+			}
+			try (FullReader reader = new FullReader(new FileReader(
+					scriptFile))) {
+				return reader.readAll();
+			}
+		}
+	}
+
+	public final File floorTextureFile;
+	public final float floorWidth;
+	public final float floorDepth;
+	public final boolean floorSmooth;
+	public final boolean floorRepeatX;
+	public final boolean floorRepeatY;
+	public final List<RobotDescriptor> robots;
+
+	/**
+	 * The simulated duration of the scene, in seconds, or 0 if the scene does
+	 * not specify one.
+	 */
+	public final double duration;
+
+	/*
+	 * The settings of the simulation, or null where the scene does not
+	 * specify them.
+	 */
+	private final Boolean parallelStep;
+	private final Boolean virtualThreads;
+	private final Boolean logBlocking;
+
+	public static class FormatException extends IOException {
+		private static final long serialVersionUID = -4310944281452180764L;
+
+		FormatException(File file, String message) {
+			super(file.getAbsolutePath() + ": " + message);
+		}
+	}
+
+	private static String getRequired(File file, Properties properties,
+			String key) throws FormatException {
+		final String value = properties.getProperty(key);
+		if (value == null) {
+			throw new FormatException(file, "missing property " + key);
+		}
+		return value.trim();
+	}
+
+	private static Boolean getBoolean(Properties properties, String key) {
+		final String value = properties.getProperty(key);
+		return (value != null) ? Boolean.valueOf(value.trim()) : null;
+	}
+
+	private static double[] getNumbers(File file, Properties properties,
+			String key, int count) throws FormatException {
+		final String value = properties.getProperty(key);
+		if (value == null) {
+			return null;
+		}
+		final String[] fields = value.trim().split("\\s+");
+		if (fields.length != count) {
+			throw new FormatException(file, key + " must have " + count
+					+ " components");
+		}
+		final double[] numbers = new double[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				numbers[i] = Double.parseDouble(fields[i]);
+			}
+		} catch (NumberFormatException e) {
+			throw new FormatException(file, e.getMessage());
+		}
+		return numbers;
+	}
+
+	private static File resolve(File base, String path) {
+		final File file = new File(path);
+		if (file.isAbsolute()) {
+			return file;
+		} else {
+			return new File(base, path);
+		}
+	}
+
+	private Scene(File floorTextureFile, float floorWidth, float floorDepth,
+			boolean floorSmooth, boolean floorRepeatX, boolean floorRepeatY,
+			List<RobotDescriptor> robots, double duration,
+			Boolean parallelStep, Boolean virtualThreads, Boolean logBlocking) {
+		this.floorTextureFile = floorTextureFile;
+		this.floorWidth = floorWidth;
+		this.floorDepth = floorDepth;
+		this.floorSmooth = floorSmooth;
+		this.floorRepeatX = floorRepeatX;
+		this.floorRepeatY = floorRepeatY;
+		this.robots = Collections.unmodifiableList(robots);
+		this.duration = duration;
+		this.parallelStep = parallelStep;
+		this.virtualThreads = virtualThreads;
+		this.logBlocking = logBlocking;
+	}
+
+	private Scene(File file, Properties properties) throws FormatException {
+		final File base = file.getAbsoluteFile().getParentFile();
+		final String texture = properties.getProperty("floor.texture");
+		if (texture != null) {
+			this.floorTextureFile = resolve(base, texture.trim());
+		} else {
+			this.floorTextureFile = null;
+		}
+		try {
+			final int version = Integer.parseInt(properties.getProperty(
+					"version", "1").trim());
+			if ((version < 1) || (version > VERSION)) {
+				throw new FormatException(file, "unsupported version "
+						+ version);
+			}
+			this.floorWidth = Float.parseFloat(properties.getProperty(
+					"floor.width", "2"));
+			this.floorDepth = Float.parseFloat(properties.getProperty(
+					"floor.depth", "2"));
+			this.duration = Double.parseDouble(properties.getProperty(
+					"duration", "0"));
+		} catch (NumberFormatException e) {
+			throw new FormatException(file, e.getMessage());
+		}
+		this.floorSmooth = Boolean.parseBoolean(properties.getProperty(
+				"floor.smooth", "false"));
+		this.floorRepeatX = Boolean.parseBoolean(properties.getProperty(
+				"floor.repeatX", "false"));
+		this.floorRepeatY = Boolean.parseBoolean(properties.getProperty(
+				"floor.repeatY", "false"));
+		this.parallelStep = getBoolean(properties, "simulation.parallelStep");
+		this.virtualThreads = getBoolean(properties,
+				"simulation.virtualThreads");
+		this.logBlocking = getBoolean(properties, "simulation.logBlocking");
+		final List<RobotDescriptor> robots = new ArrayList<RobotDescriptor>();
+		for (int i = 1; properties.getProperty("robot." + i + ".model") != null; i++) {
+			final String prefix = "robot." + i + ".";
+			final String source = properties.getProperty(prefix + "source");
+			final String scriptFile = properties.getProperty(prefix
+					+ "script");
+			final String kinematics = properties.getProperty(prefix
+					+ "kinematics");
+			final String mainClass = properties.getProperty(prefix
+					+ "mainClass");
+			final double[] position = getNumbers(file, properties, prefix
+					+ "position", 3);
+			final double[] rotation = getNumbers(file, properties, prefix
+					+ "rotation", 9);
+			robots.add(new RobotDescriptor((mainClass != null) ? resolve(
+					base, getRequired(file, properties, prefix + "classPath"))
+					: null, (mainClass != null) ? mainClass.trim() : null,
+					((source == null) && (scriptFile != null)) ? resolve(
+							base, scriptFile.trim()) : null, source,
+					(kinematics != null) ? kinematics.trim() : null,
+					resolve(base,
+							getRequired(file, properties, prefix + "model")),
+					Boolean.parseBoolean(properties.getProperty(prefix
+							+ "swapYAndZ", "false")),
+					(position != null) ? new Vector3(position[0],
+							position[1], position[2]) : null,
+					(rotation != null) ? Matrix3.create(rotation) : null));
+		}
+		this.robots = Collections.unmodifiableList(robots);
+	}
+
+	/**
+	 * Reads a scene from the specified file. Referenced files are not read
+	 * until the scene is loaded into a simulation.
+	 * 
+	 * @param file
+	 *            The scene file.
+	 * @return The parsed scene.
+	 * @throws IOException
+	 *             If the file cannot be read or is malformed.
+	 */
+	public static Scene read(File file) throws IOException {
+		try (InputStream input = new FileInputStream(file)) {
+			return read(input, file);
+		}
+	}
+
+	/**
+	 * Reads a scene from a stream, such as the header of a trace.
+	 * 
+	 * @param input
+	 *            The stream, read to its end.
+	 * @param file
+	 *            The file the stream belongs to, against whose directory
+	 *            relative paths are resolved.
+	 * @return The parsed scene.
+	 * @throws IOException
+	 *             If the stream cannot be read or the scene is malformed.
+	 */
+	static Scene read(InputStream input, File file) throws IOException {
+		final Properties properties = new Properties();
+		properties.load(input);
+		return new Scene(file, properties);
+	}
+
+	/**
+	 * Captures the current state of a simulation: the floor, the robots at
+	 * their current poses and the settings. The scripts of the robots are
+	 * captured inline.
+	 * 
+	 * @param simulation
+	 *            The simulation to capture.
+	 * @param duration
+	 *            The simulated duration of the scene, in seconds, or 0 for
+	 *            none.
+	 * @return The scene.
+	 */
+	public static Scene capture(Simulation simulation, double duration) {
+		final List<RobotDescriptor> robots = new ArrayList<RobotDescriptor>();
+		for (Robot robot : simulation.robots) {
+			robots.add(new RobotDescriptor(robot.classPath,
+					robot.mainClassName, null, robot.script,
+					robot.builtInKinematics, robot.modelFile, robot.swapYAndZ,
+					robot.getPosition(), robot.getRotation()));
+		}
+		final Floor floor = simulation.floor;
+		return new Scene(floor.getTextureImageFile(), floor.getWidth(),
+				floor.getDepth(), floor.isSmooth(), floor.isRepeatX(),
+				floor.isRepeatY(), robots, duration,
+				simulation.isParallelStep(), simulation.isVirtualThreads(),
+				simulation.isLogBlocking());
+	}
+
+	/*
+	 * Makes a path relative to the directory of the scene where possible,
+	 * with forward slashes, so that scenes can be moved along with the files
+	 * they refer to and across platforms. Without a directory the path is
+	 * made absolute.
+	 */
+	private static String relativize(File base, File file) {
+		if (base == null) {
+			return file.getAbsolutePath();
+		}
+		try {
+			return base.toPath().relativize(file.getAbsoluteFile().toPath())
+					.toString().replace(File.separatorChar, '/');
+		} catch (IllegalArgumentException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	/*
+	 * Escapes a property value as Properties.load expects it in an ISO 8859-1
+	 * stream.
+	 */
+	private static void writeProperty(Writer writer, String key, Object value)
+			throws IOException {
+		final String string = value.toString();
+		final StringBuilder builder = new StringBuilder(key).append(" = ");
+		for (int i = 0; i < string.length(); i++) {
+			final char c = string.charAt(i);
+			switch (c) {
+			case '\\':
+				builder.append("\\\\");
+				break;
+			case '\n':
+				builder.append("\\n");
+				break;
+			case '\r':
+				builder.append("\\r");
+				break;
+			case '\t':
+				builder.append("\\t");
+				break;
+			case '\f':
+				builder.append("\\f");
+				break;
+			default:
+				if (((i == 0) && (c == ' ')) || (c < 0x20) || (c > 0x7e)) {
+					builder.append(String.format("\\u%04x", (int) c));
+				} else {
+					builder.append(c);
+				}
+			}
+		}
+		writer.write(builder.append('\n').toString());
+	}
+
+	private static String join(double... numbers) {
+		final StringBuilder builder = new StringBuilder();
+		for (double number : numbers) {
+			if (builder.length() > 0) {
+				builder.append(' ');
+			}
+			builder.append(number);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Writes this scene to the specified file, in the current version of the
+	 * format. Paths are written relative to the directory of the file where
+	 * possible.
+	 * 
+	 * @param file
+	 *            The scene file, overwritten if it exists.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public void write(File file) throws IOException {
+		try (OutputStream output = new FileOutputStream(file)) {
+			write(output, file.getAbsoluteFile().getParentFile());
+		}
+	}
+
+	/**
+	 * Writes this scene to a stream, such as the header of a trace, in the
+	 * current version of the format. The stream is flushed but not closed.
+	 * 
+	 * @param output
+	 *            The stream.
+	 * @param base
+	 *            The directory paths are written relative to where possible,
+	 *            or <code>null</code> to write absolute paths.
+	 * @throws IOException
+	 *             If the stream cannot be written.
+	 */
+	void write(OutputStream output, File base) throws IOException {
+		final Writer writer = new OutputStreamWriter(output,
+				StandardCharsets.ISO_8859_1);
+		writeProperty(writer, "version", VERSION);
+		if (duration > 0) {
+			writeProperty(writer, "duration", duration);
+		}
+		if (floorTextureFile != null) {
+			writeProperty(writer, "floor.texture",
+					relativize(base, floorTextureFile));
+		}
+		writeProperty(writer, "floor.width", floorWidth);
+		writeProperty(writer, "floor.depth", floorDepth);
+		writeProperty(writer, "floor.smooth", floorSmooth);
+		writeProperty(writer, "floor.repeatX", floorRepeatX);
+		writeProperty(writer, "floor.repeatY", floorRepeatY);
+		if (parallelStep != null) {
+			writeProperty(writer, "simulation.parallelStep", parallelStep);
+		}
+		if (virtualThreads != null) {
+			writeProperty(writer, "simulation.virtualThreads",
+					virtualThreads);
+		}
+		if (logBlocking != null) {
+			writeProperty(writer, "simulation.logBlocking", logBlocking);
+		}
+		for (int i = 0; i < robots.size(); i++) {
+			final RobotDescriptor robot = robots.get(i);
+			final String prefix = "robot." + (i + 1) + ".";
+			if (robot.classPath != null) {
+				writeProperty(writer, prefix + "classPath",
+						relativize(base, robot.classPath));
+			}
+			if (robot.mainClassName != null) {
+				writeProperty(writer, prefix + "mainClass",
+						robot.mainClassName);
+			}
+			if (robot.script != null) {
+				writeProperty(writer, prefix + "source", robot.script);
+			} else if (robot.scriptFile != null) {
+				writeProperty(writer, prefix + "script",
+						relativize(base, robot.scriptFile));
+			}
+			if (robot.builtInKinematics != null) {
+				writeProperty(writer, prefix + "kinematics",
+						robot.builtInKinematics);
+			}
+			writeProperty(writer, prefix + "model",
+					relativize(base, robot.modelFile));
+			writeProperty(writer, prefix + "swapYAndZ", robot.swapYAndZ);
+			if (robot.position != null) {
+				writeProperty(writer, prefix + "position",
+						join(robot.position.x, robot.position.y,
+								robot.position.z));
+			}
+			if (robot.rotation != null) {
+				writeProperty(writer, prefix + "rotation",
+						join(robot.rotation.toArray()));
+			}
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Configures the floor of the specified simulation and adds all the robots
+	 * of this scene to it, at their poses, then applies the settings of the
+	 * scene.
+	 * 
+	 * The floor texture and the models are loaded in parallel, each distinct
+	 * file once, while the robots are created in order; robots whose models
+	 * have the same contents share them, and so do robots added later to the
+	 * same simulation.
+	 * 
+	 * @param simulation
+	 *            The target simulation.
+	 */
+	public void loadInto(Simulation simulation) throws IOException,
+			ParseException, ScriptException {
+		final ExecutorService executor = Executors.newFixedThreadPool(Runtime
+				.getRuntime().availableProcessors(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, "scene-loader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			final Future<BufferedImage> texture;
+			if (floorTextureFile != null) {
+				texture = simulation.assets.loadImage(floorTextureFile,
+						executor);
+			} else {
+				texture = null;
+			}
+			final Map<List<Object>, Future<ModelData>> models = new HashMap<>();
+			for (RobotDescriptor robot : robots) {
+				final List<Object> key = Arrays.<Object> asList(
+						robot.modelFile.getAbsoluteFile(), robot.swapYAndZ);
+				if (!models.containsKey(key)) {
+					models.put(key, simulation.assets.loadModel(
+							robot.modelFile, robot.swapYAndZ, executor));
+				}
+			}
+			simulation.floor.configure(floorTextureFile,
+					(texture != null) ? AssetCache.await(texture) : null,
+					floorWidth, floorDepth, floorSmooth, floorRepeatX,
+					floorRepeatY);
+			for (RobotDescriptor robot : robots) {
+				final Robot added = simulation.addRobot(robot.classPath,
+						robot.mainClassName, robot.readScript(),
+						robot.builtInKinematics, robot.modelFile,
+						robot.swapYAndZ, AssetCache.await(models.get(Arrays
+								.<Object> asList(
+										robot.modelFile.getAbsoluteFile(),
+										robot.swapYAndZ))));
+				if ((robot.position != null) || (robot.rotation != null)) {
+					added.setPose((robot.position != null) ? robot.position
+							: added.getPosition(),
+							(robot.rotation != null) ? robot.rotation : added
+									.getRotation());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		if (parallelStep != null) {
+			simulation.setParallelStep(parallelStep);
+		}
+		if (virtualThreads != null) {
+			simulation.setVirtualThreads(virtualThreads);
+		}
+		if (logBlocking != null) {
+			simulation.setLogBlocking(logBlocking);
+		}
+	}
+}
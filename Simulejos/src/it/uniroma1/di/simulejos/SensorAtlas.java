@@ -0,0 +1,297 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.Robot.GPUSensor;
+import it.uniroma1.di.simulejos.opengl.Buffer.Usage;
+import it.uniroma1.di.simulejos.opengl.PixelPack;
+import it.uniroma1.di.simulejos.opengl.Program;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.opengl.GL2GL3;
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLContext;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLEventListener;
+import javax.media.opengl.GLProfile;
+
+import static javax.media.opengl.GL2GL3.*;
+
+/**
+ * Renders the views of all GPU sensors into a single offscreen framebuffer.
+ * 
+ * Every sensor is assigned a cell of the atlas and the whole atlas is drawn
+ * in one pass at every tick. Its pixels are then read into one of two pixel
+ * pack buffers without waiting for the GPU, while the buffer filled at the
+ * previous tick is mapped to update the sensors. Sensor readings therefore lag
+ * one tick behind the scene, but the ticker never stalls on the pipeline.
+ * 
+ * Sensors that can currently be sampled without rendering keep their cell but
+ * are not drawn, and the atlas is not rendered at all when none of them needs
+ * it. The attributes of the robots are uploaded once per tick and shared by
+ * all the sensors, which draw all the robots with the same mesh at once.
+ * 
+ * All methods must be invoked by the ticker thread, except
+ * {@link #setSharedContext(GLContext)}.
+ */
+final class SensorAtlas implements GLEventListener {
+	private static final class Cell {
+		final GPUSensor sensor;
+		final int x;
+		final int y;
+		final float[] pixels;
+
+		Cell(GPUSensor sensor, int x, int y) {
+			this.sensor = sensor;
+			this.x = x;
+			this.y = y;
+			this.pixels = new float[sensor.width * sensor.height * 4];
+		}
+	}
+
+	/**
+	 * Computes the luminance of a pixel the way <code>glReadPixels</code> does
+	 * when reading in <code>GL_LUMINANCE</code> format.
+	 * 
+	 * @param pixels
+	 *            RGBA values.
+	 * @param offset
+	 *            The offset of the pixel in <code>pixels</code>.
+	 * @return The sum of the red, green and blue components, clamped to 1.
+	 */
+	static float luminance(float[] pixels, int offset) {
+		return Math.min(pixels[offset] + pixels[offset + 1]
+				+ pixels[offset + 2], 1);
+	}
+
+	private final Floor floor;
+	private final MeshRegistry meshes;
+	private RobotInstances instances;
+	private Robot[] robots = new Robot[0];
+	private volatile GLContext sharedContext;
+	private volatile GLAutoDrawable drawable;
+	private int width;
+	private int height;
+
+	private List<GPUSensor> sensors = new ArrayList<GPUSensor>();
+	private final List<GPUSensor> collected = new ArrayList<GPUSensor>();
+	private Cell[] cells = new Cell[0];
+	private final List<Cell> rendered = new ArrayList<Cell>();
+
+	private final Map<String, Program> programs = new HashMap<String, Program>();
+	private final PixelPack[] pixelPacks = new PixelPack[2];
+
+	/*
+	 * The cells whose pixels are contained in each pixel pack buffer, or null
+	 * if the buffer has not been filled.
+	 */
+	private final Cell[][] packedCells = new Cell[2][];
+	private int current;
+
+	SensorAtlas(Floor floor, MeshRegistry meshes) {
+		this.floor = floor;
+		this.meshes = meshes;
+	}
+
+	/**
+	 * Sets the context of the view, which the atlas shares its textures and
+	 * buffers with. Nothing is rendered until a context is set.
+	 */
+	void setSharedContext(GLContext context) {
+		this.sharedContext = context;
+	}
+
+	/**
+	 * Returns a program whose shaders are the resources with the specified
+	 * name, linking it the first time. The attributes are bound as in the
+	 * programs that draw robots.
+	 */
+	Program getProgram(GL2GL3 gl, String name) {
+		Program program = programs.get(name);
+		if (program == null) {
+			program = new Program(gl, SensorAtlas.class, name,
+					RobotInstances.ATTRIBUTES);
+			programs.put(name, program);
+		}
+		return program;
+	}
+
+	/**
+	 * Draws all the robots at the level of detail of the sensors with the
+	 * program in use.
+	 */
+	void drawRobots(GL2GL3 gl) {
+		instances.draw(gl, MeshRegistry.SENSOR_LEVEL);
+	}
+
+	/*
+	 * Assigns a cell to every sensor, placing them on a grid that is as close
+	 * as possible to a square, and recreates the framebuffer if its size has
+	 * changed.
+	 */
+	private void layout() {
+		int cellWidth = 1;
+		int cellHeight = 1;
+		for (GPUSensor sensor : sensors) {
+			cellWidth = Math.max(cellWidth, sensor.width);
+			cellHeight = Math.max(cellHeight, sensor.height);
+		}
+		final int columns = (int) Math.ceil(Math.sqrt(sensors.size()));
+		final int rows = (columns > 0) ? (sensors.size() + columns - 1)
+				/ columns : 0;
+		cells = new Cell[sensors.size()];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = new Cell(sensors.get(i), (i % columns) * cellWidth,
+					(i / columns) * cellHeight);
+		}
+		if ((drawable == null) || (columns * cellWidth != width)
+				|| (rows * cellHeight != height)) {
+			destroyDrawable();
+			width = columns * cellWidth;
+			height = rows * cellHeight;
+			if (cells.length > 0) {
+				final GLCapabilities capabilities = new GLCapabilities(
+						GLProfile.get(GLProfile.GL2GL3));
+				drawable = GLDrawableFactory.getFactory(GLProfile.getDefault())
+						.createOffscreenAutoDrawable(null, capabilities, null,
+								width, height, sharedContext);
+				drawable.addGLEventListener(this);
+			}
+		}
+	}
+
+	/**
+	 * Renders the views of the GPU sensors of the specified robots and updates
+	 * the sensors with the readings of the previous invocation.
+	 * 
+	 * @param robots
+	 *            The robots of the simulation.
+	 */
+	void sample(Robot[] robots) {
+		if (sharedContext == null) {
+			return;
+		}
+		this.robots = robots;
+		collected.clear();
+		for (Robot robot : robots) {
+			robot.collectGPUSensors(collected);
+		}
+		if (!collected.equals(sensors)) {
+			sensors = new ArrayList<GPUSensor>(collected);
+			layout();
+		}
+		if (drawable == null) {
+			return;
+		}
+		rendered.clear();
+		for (Cell cell : cells) {
+			if (cell.sensor.rendering) {
+				rendered.add(cell);
+			}
+		}
+		if (!rendered.isEmpty() || (packedCells[current ^ 1] != null)) {
+			drawable.display();
+		}
+	}
+
+	/**
+	 * Releases the offscreen framebuffer. It is created again at the next
+	 * invocation of {@link #sample(Robot[])} that finds running GPU sensors.
+	 */
+	void destroy() {
+		destroyDrawable();
+		sensors = new ArrayList<GPUSensor>();
+		cells = new Cell[0];
+	}
+
+	private void destroyDrawable() {
+		if (drawable != null) {
+			drawable.destroy();
+			drawable = null;
+		}
+	}
+
+	@Override
+	public void init(GLAutoDrawable drawable) {
+		final GL2GL3 gl = drawable.getGL().getGL2GL3();
+		gl.glEnable(GL_DEPTH_TEST);
+		gl.glEnable(GL_CULL_FACE);
+		floor.share(gl);
+		instances = new RobotInstances(meshes);
+		instances.init(gl);
+		for (int i = 0; i < pixelPacks.length; i++) {
+			pixelPacks[i] = new PixelPack(gl, Usage.STREAM_READ);
+			pixelPacks[i].allocate(gl, width * height * 16);
+			pixelPacks[i].unbind(gl);
+			packedCells[i] = null;
+		}
+	}
+
+	@Override
+	public void reshape(GLAutoDrawable drawable, int x, int y, int width,
+			int height) {
+	}
+
+	@Override
+	public void display(GLAutoDrawable drawable) {
+		final GL2GL3 gl = drawable.getGL().getGL2GL3();
+		if (!rendered.isEmpty()) {
+			instances.update(gl, Arrays.asList(robots));
+			gl.glEnable(GL_SCISSOR_TEST);
+			for (Cell cell : rendered) {
+				final GPUSensor sensor = cell.sensor;
+				gl.glViewport(cell.x, cell.y, sensor.width, sensor.height);
+				gl.glScissor(cell.x, cell.y, sensor.width, sensor.height);
+				sensor.draw(gl, this);
+			}
+			gl.glDisable(GL_SCISSOR_TEST);
+
+			pixelPacks[current].bind(gl);
+			gl.glReadPixels(0, 0, width, height, GL_RGBA, GL_FLOAT, 0);
+			packedCells[current] = rendered.toArray(new Cell[rendered.size()]);
+		}
+		current ^= 1;
+
+		final Cell[] previousCells = packedCells[current];
+		pixelPacks[current].bind(gl);
+		if (previousCells != null) {
+			final FloatBuffer pixels = pixelPacks[current].map(gl,
+					GL_READ_ONLY).asFloatBuffer();
+			for (Cell cell : previousCells) {
+				if (!cell.sensor.rendering) {
+					/* sampled directly at this tick, with a fresher view */
+					continue;
+				}
+				final int rowLength = cell.sensor.width * 4;
+				for (int row = 0; row < cell.sensor.height; row++) {
+					pixels.position(((cell.y + row) * width + cell.x) * 4);
+					pixels.get(cell.pixels, row * rowLength, rowLength);
+				}
+				cell.sensor.sample(cell.pixels);
+			}
+			pixelPacks[current].unmap(gl);
+			packedCells[current] = null;
+		}
+		pixelPacks[current].unbind(gl);
+	}
+
+	@Override
+	public void dispose(GLAutoDrawable drawable) {
+		for (Program program : programs.values()) {
+			program.delete();
+		}
+		programs.clear();
+		instances.delete();
+		instances = null;
+		for (int i = 0; i < pixelPacks.length; i++) {
+			pixelPacks[i].delete();
+			pixelPacks[i] = null;
+			packedCells[i] = null;
+		}
+	}
+}
@@ -4,12 +4,19 @@ import it.uniroma1.di.simulejos.opengl.Program;
 import it.uniroma1.di.simulejos.wavefront.ParseException;
 
 import java.awt.Frame;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.LockSupport;
 import java.util.prefs.Preferences;
 
 import javax.media.opengl.DebugGL2GL3;
@@ -30,24 +37,107 @@ public final class Simulation {
 		Simulation.debugMode = debug;
 	}
 
+	/**
+	 * Receives the events of a simulation that must be reported to the user or
+	 * to the process driving the simulation. Methods are invoked by the ticker
+	 * thread.
+	 */
+	public interface Listener {
+		void collision(Robot robot, Robot robot2);
+
+		void error(Exception exception);
+	}
+
+	private static final ForkJoinPool stepPool = new ForkJoinPool();
+
+	/*
+	 * The first and the longest pause of the ticker, in nanoseconds, while it
+	 * waits for the robots in fast forward mode.
+	 */
+	private static final long MIN_SYNCHRONIZE_PAUSE = 10000;
+	private static final long MAX_SYNCHRONIZE_PAUSE = 1000000;
+
+	/**
+	 * One phase of a simulation step, applied to every robot independently.
+	 */
+	private interface Phase {
+		void run(int index) throws Exception;
+	}
+
+	private static final class PhaseTask extends RecursiveAction {
+		private static final long serialVersionUID = 4625385010843571219L;
+
+		private final Phase phase;
+		private final Exception[] errors;
+		private final int from;
+		private final int to;
+
+		public PhaseTask(Phase phase, Exception[] errors, int from, int to) {
+			this.phase = phase;
+			this.errors = errors;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new PhaseTask(phase, errors, from, middle),
+						new PhaseTask(phase, errors, middle, to));
+			} else {
+				try {
+					phase.run(from);
+				} catch (Exception e) {
+					errors[from] = e;
+				}
+			}
+		}
+	}
+
 	public final Camera camera;
 	public final Floor floor = new Floor();
+
+	/*
+	 * The meshes of the robots, shared by the view, the picker and the
+	 * sensors.
+	 */
+	private final MeshRegistry meshes = new MeshRegistry();
+	private final SensorAtlas sensorAtlas = new SensorAtlas(floor, meshes);
 	private final Clock clock = new Clock();
 	private final List<Robot> robotList = new LinkedList<>();
 	public final Iterable<Robot> robots = robotList;
 	public final Picker picker;
+	private final CollisionDetector collisionDetector = new CollisionDetector();
+
+	/*
+	 * The models and images loaded so far, shared by all the robots and
+	 * scenes of this simulation.
+	 */
+	final AssetCache assets = new AssetCache();
 	private volatile boolean dirty;
 
 	private final Frame parentWindow;
-	private final GLJPanel canvas;
-	private final Writer logWriter;
+	private final View view;
+	private final LogPipeline log;
+	private final Listener listener;
 
-	private volatile Thread ticker;
+	private volatile Ticker ticker;
 	private volatile PrintWriter simulationLogWriter;
+	private volatile File traceFile;
+	private volatile TraceRecorder recorder;
 
 	private volatile Program robotProgram;
+	private volatile RobotInstances robotInstances;
 
+	private volatile boolean parallelStep = Preferences.userNodeForPackage(
+			Simulation.class).getBoolean("parallelStep", false);
+	private volatile boolean virtualThreads = Preferences.userNodeForPackage(
+			Simulation.class).getBoolean("virtualThreads", false);
 	private volatile boolean fastForward;
+	private volatile long fastForwardStart;
+	private volatile long fastForwardWallStart;
+	private volatile double speedUp;
 
 	private static GL2GL3 getGL(GLAutoDrawable drawable) {
 		final GL2GL3 gl = drawable.getGL().getGL2GL3();
@@ -58,15 +148,71 @@ public final class Simulation {
 		}
 	}
 
-	public Simulation(Frame parentWindow, GLJPanel canvas, Writer logWriter) {
+	public Simulation(final Frame parentWindow, final GLJPanel canvas,
+			Writer logWriter) {
+		this(parentWindow, new View() {
+			@Override
+			public void addGLEventListener(GLEventListener listener) {
+				canvas.addGLEventListener(listener);
+			}
+
+			@Override
+			public void repaint() {
+				canvas.repaint();
+			}
+		}, logWriter, null);
+	}
+
+	public Simulation(View view, Writer logWriter, Listener listener) {
+		this(null, view, logWriter, listener);
+	}
+
+	private Simulation(final Frame parentWindow, View view, Writer logWriter,
+			Listener listener) {
 		this.parentWindow = parentWindow;
-		this.logWriter = logWriter;
-		this.simulationLogWriter = new PrintWriter(new PartialWriter(
-				"Simulation", logWriter));
-		this.canvas = canvas;
-		this.camera = new Camera(canvas);
-		this.picker = new Picker(camera, robots);
-		canvas.addGLEventListener(new GLEventListener() {
+		final boolean logBlocking = Preferences.userNodeForPackage(
+				Simulation.class).getBoolean("logBlocking", true);
+		this.log = new LogPipeline(logWriter, LogPipeline.DEFAULT_CAPACITY,
+				LogPipeline.DEFAULT_PERIOD,
+				logBlocking ? LogPipeline.Overflow.BLOCK
+						: LogPipeline.Overflow.DROP);
+		this.simulationLogWriter = new PrintWriter(
+				log.openChannel("Simulation"));
+		this.view = view;
+		if (listener != null) {
+			this.listener = listener;
+		} else {
+			this.listener = new Listener() {
+				@Override
+				public void collision(Robot robot, Robot robot2) {
+					final String message = "NXT" + robot.index
+							+ " collided with NXT" + robot2.index;
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							Simulation.this.stop();
+							JOptionPane.showMessageDialog(parentWindow,
+									message, "Simulejos",
+									JOptionPane.ERROR_MESSAGE);
+						}
+					});
+				}
+
+				@Override
+				public void error(Exception exception) {
+					exception.printStackTrace();
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							Simulation.this.stop();
+						}
+					});
+				}
+			};
+		}
+		this.camera = new Camera(view);
+		this.picker = new Picker(camera, robots, meshes);
+		view.addGLEventListener(new GLEventListener() {
 			@Override
 			public void init(GLAutoDrawable drawable) {
 				final GL2GL3 gl = getGL(drawable);
@@ -75,11 +221,13 @@ public final class Simulation {
 				gl.glDepthFunc(GL_GREATER);
 				gl.glEnable(GL_CULL_FACE);
 				robotProgram = new Program(gl, Robot.class, "robot",
-						new String[] { "in_Vertex" });
+						RobotInstances.ATTRIBUTES);
 				floor.init(gl);
-				for (Robot robot : robots) {
-					robot.init(gl);
-				}
+				meshes.clear();
+				meshes.upload(gl, robots);
+				robotInstances = new RobotInstances(meshes);
+				robotInstances.init(gl);
+				sensorAtlas.setSharedContext(drawable.getContext());
 			}
 
 			@Override
@@ -99,20 +247,27 @@ public final class Simulation {
 				gl.glClear(GL2GL3.GL_COLOR_BUFFER_BIT
 						| GL2GL3.GL_DEPTH_BUFFER_BIT);
 				floor.draw(gl, camera);
+				meshes.upload(gl, robots);
+				robotInstances.update(gl, robots);
 				robotProgram.use();
 				camera.uniform(robotProgram);
-				for (Robot robot : robots) {
-					robot.draw(gl, robotProgram);
-				}
+				gl.glPolygonMode(GL_FRONT_AND_BACK, GL_LINE);
+				robotProgram.uniform3f("Color", 0, 0, 0);
+				robotInstances.draw(gl, MeshRegistry.VIEW_LEVEL);
+				gl.glPolygonMode(GL_FRONT_AND_BACK, GL_FILL);
+				robotProgram.uniform3f("Color", 1, 1, 1);
+				robotInstances.draw(gl, MeshRegistry.VIEW_LEVEL);
 				gl.glFlush();
 			}
 
 			@Override
 			public void dispose(GLAutoDrawable drawable) {
 				robotProgram.delete();
+				robotInstances.delete();
+				meshes.delete();
 			}
 		});
-		canvas.addGLEventListener(picker.new CanvasHandler());
+		view.addGLEventListener(picker.new CanvasHandler());
 	}
 
 	public boolean isDirty() {
@@ -126,19 +281,202 @@ public final class Simulation {
 	public Robot addRobot(File classPath, String mainClassName, String script,
 			File modelFile, boolean swapYAndZ) throws IOException,
 			ParseException, ScriptException {
+		return addRobot(classPath, mainClassName, script, null, modelFile,
+				swapYAndZ, assets.getModel(modelFile, swapYAndZ));
+	}
+
+	Robot addRobot(File classPath, String mainClassName, String script,
+			String builtInKinematics, File modelFile, boolean swapYAndZ,
+			ModelData modelData) throws ScriptException {
 		dirty = true;
-		final Robot robot = new Robot(parentWindow, canvas, logWriter, clock,
-				classPath, mainClassName, script, ModelData.parseWavefront(
-						modelFile, swapYAndZ), floor, robots);
+		final Robot robot = new Robot(parentWindow, view, log, clock,
+				classPath, mainClassName, script, builtInKinematics,
+				modelFile, swapYAndZ, modelData, floor, robots);
 		robotList.add(robot);
-		canvas.repaint();
+		collisionDetector.reset();
+		view.repaint();
 		return robot;
 	}
 
 	public void removeRobot(Robot robot) {
 		dirty = true;
 		robotList.remove(robot);
-		canvas.repaint();
+		robot.closeLog();
+		collisionDetector.reset();
+		view.repaint();
+	}
+
+	/**
+	 * Returns the current simulated time, in nanoseconds since the simulation
+	 * was created. The time advances by exactly one period at every tick and
+	 * does not advance while the simulation is suspended or stopped.
+	 * 
+	 * @return The current simulated time.
+	 */
+	public long getTime() {
+		return clock.getTimestamp();
+	}
+
+	public boolean isParallelStep() {
+		return parallelStep;
+	}
+
+	/**
+	 * Enables or disables parallel stepping. When enabled, the robots are
+	 * moved and their sensors sampled concurrently on a fork-join pool. Each
+	 * phase of a step starts once every robot has completed the previous one,
+	 * so the outcome is the same in both modes.
+	 * 
+	 * @param parallelStep
+	 *            <code>true</code> to step robots in parallel.
+	 */
+	public void setParallelStep(boolean parallelStep) {
+		this.parallelStep = parallelStep;
+	}
+
+	/**
+	 * Tells whether the Java runtime supports virtual threads, see
+	 * {@link #setVirtualThreads(boolean)}.
+	 * 
+	 * @return <code>true</code> on Java 21 or later.
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return RobotThreadGroup.isVirtualThreadSupported();
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Runs robot programs, and the threads of the Framework that serve them,
+	 * on virtual threads rather than on platform threads. This lets large
+	 * numbers of robots run on a few operating system threads. The setting
+	 * applies to the robots started afterwards and is ignored if the Java
+	 * runtime does not support virtual threads.
+	 * 
+	 * @param virtualThreads
+	 *            <code>true</code> to run robots on virtual threads.
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	public boolean isLogBlocking() {
+		return log.getOverflow() == LogPipeline.Overflow.BLOCK;
+	}
+
+	/**
+	 * Chooses what happens when a robot writes to its log faster than the log
+	 * is displayed and more than a thousand lines are pending: either the
+	 * robot waits, which is the default, or the lines in excess are dropped.
+	 * 
+	 * @param logBlocking
+	 *            <code>true</code> to make robots wait rather than lose lines.
+	 */
+	public void setLogBlocking(boolean logBlocking) {
+		log.setOverflow(logBlocking ? LogPipeline.Overflow.BLOCK
+				: LogPipeline.Overflow.DROP);
+	}
+
+	/**
+	 * Writes the log to a file as well, from now on. The file is closed when
+	 * it is replaced, or when <code>null</code> is specified.
+	 * 
+	 * @param file
+	 *            The log file, overwritten if it exists, or <code>null</code>
+	 *            to stop writing the log to a file.
+	 * @throws IOException
+	 *             If the file cannot be opened, or the previous one cannot be
+	 *             written or closed.
+	 */
+	public void setLogFile(File file) throws IOException {
+		log.setFile((file != null) ? new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), StandardCharsets.UTF_8)) : null);
+	}
+
+	public File getTraceFile() {
+		return traceFile;
+	}
+
+	/**
+	 * Records a trace of every run of the simulation to a file, from the time
+	 * it is started to the time it is stopped, so that the run can be
+	 * inspected afterwards with a {@link TracePlayer}. Every run overwrites
+	 * the trace of the previous one. The setting applies to the runs started
+	 * afterwards.
+	 * 
+	 * @param file
+	 *            The trace file, or <code>null</code> to stop recording.
+	 */
+	public void setTraceFile(File file) {
+		this.traceFile = file;
+	}
+
+	/**
+	 * Writes out the log lines that have not been displayed yet. The log is
+	 * otherwise written out in batches, a few times per second.
+	 */
+	public void flushLog() {
+		log.flush();
+	}
+
+	private void runPhase(int count, Phase phase) throws Exception {
+		final Exception[] errors = new Exception[count];
+		if (parallelStep && (count > 1)) {
+			stepPool.invoke(new PhaseTask(phase, errors, 0, count));
+		} else {
+			for (int i = 0; i < count; i++) {
+				try {
+					phase.run(i);
+				} catch (Exception e) {
+					errors[i] = e;
+				}
+			}
+		}
+		for (Exception e : errors) {
+			if (e != null) {
+				throw e;
+			}
+		}
+	}
+
+	private double measureSpeedUp() {
+		final long wallElapsed = System.nanoTime() - fastForwardWallStart;
+		if (wallElapsed > 0) {
+			return (double) (clock.getTimestamp() - fastForwardStart)
+					/ wallElapsed;
+		} else {
+			return 0;
+		}
+	}
+
+	private void setFastForward(boolean fastForward) {
+		if (fastForward && !this.fastForward) {
+			fastForwardStart = clock.getTimestamp();
+			fastForwardWallStart = System.nanoTime();
+		} else if (!fastForward && this.fastForward) {
+			speedUp = measureSpeedUp();
+			simulationLogWriter.println(String.format(
+					"fast forward speed-up: %.1fx", speedUp));
+		}
+		this.fastForward = fastForward;
+	}
+
+	/**
+	 * Returns the speed-up achieved in fast forward mode, in simulated seconds
+	 * per wall-clock second. While the simulation is in fast forward mode the
+	 * value refers to the current run, otherwise to the last one.
+	 * 
+	 * @return The fast forward speed-up factor, or 0 if the simulation was
+	 *         never fast forwarded.
+	 */
+	public double getSpeedUp() {
+		if (fastForward) {
+			return measureSpeedUp();
+		} else {
+			return speedUp;
+		}
 	}
 
 	private interface State {
@@ -151,6 +489,231 @@ public final class Simulation {
 		State stop();
 	};
 
+	/**
+	 * Advances the simulation by one period: moves the robots, detects
+	 * collisions, samples the sensors and renders the views of the GPU sensors
+	 * that cannot be sampled directly. This is normally invoked by the ticker
+	 * thread only.
+	 * 
+	 * @param period
+	 *            The period, in milliseconds of simulated time.
+	 * @throws Exception
+	 *             The first exception thrown by a robot, in robot order.
+	 */
+	void step(int period) throws Exception {
+		clock.advance(period * 1000000L);
+		final long timestamp = clock.getTimestamp();
+		final Robot[] robots = robotList.toArray(new Robot[robotList.size()]);
+		runPhase(robots.length, new Phase() {
+			@Override
+			public void run(int index) throws Exception {
+				robots[index].tick(timestamp);
+				robots[index].updateBounds();
+			}
+		});
+		collisionDetector.detect(robots, listener);
+		runPhase(robots.length, new Phase() {
+			@Override
+			public void run(int index) {
+				robots[index].sampleSensors();
+			}
+		});
+		sensorAtlas.sample(robots);
+		final TraceRecorder recorder = this.recorder;
+		if (recorder != null) {
+			recorder.record(timestamp);
+		}
+	}
+
+	/*
+	 * Invoked by the ticker before the first step, once the previous ticker,
+	 * which may be recording to the same file, has terminated.
+	 */
+	private void startRecording() {
+		final File file = traceFile;
+		if (file == null) {
+			return;
+		}
+		final TraceRecorder recorder;
+		try {
+			recorder = new TraceRecorder(file, Scene.capture(this, 0),
+					robotList.toArray(new Robot[robotList.size()]));
+		} catch (IOException | RuntimeException e) {
+			simulationLogWriter.println("unable to record trace: " + e);
+			return;
+		}
+		this.recorder = recorder;
+		log.setTrace(recorder.log);
+		simulationLogWriter.println("recording trace to " + file);
+	}
+
+	private void stopRecording() {
+		final TraceRecorder recorder = this.recorder;
+		if (recorder == null) {
+			return;
+		}
+		log.flush();
+		log.setTrace(null);
+		this.recorder = null;
+		try {
+			recorder.close();
+		} catch (IOException e) {
+			simulationLogWriter.println("unable to record trace: "
+					+ e.getMessage());
+		}
+	}
+
+	/*
+	 * Advances the simulation periodically. The ticker is paused and stopped
+	 * between steps, so it never stops while holding a lock, and releases the
+	 * offscreen framebuffer of the GPU sensors when it stops. A new ticker
+	 * waits for the previous one to finish its last step. The ticker also
+	 * records the trace of its run, if requested.
+	 */
+	private final class Ticker extends Thread {
+		private final Ticker previous;
+		private final Object blocker = new Object();
+		private volatile long lastTimestamp;
+		private volatile boolean paused;
+		private volatile boolean stopped;
+
+		public Ticker(Ticker previous) {
+			super("ticker");
+			this.previous = previous;
+		}
+
+		public void pause() {
+			paused = true;
+		}
+
+		public void unpause() {
+			synchronized (blocker) {
+				paused = false;
+				blocker.notifyAll();
+			}
+		}
+
+		/**
+		 * Stops the ticker after the current step, if any. Unless invoked by
+		 * the ticker itself or by the event dispatch thread, which the step
+		 * may be waiting for, this also waits for the ticker to terminate.
+		 */
+		public void finish() {
+			synchronized (blocker) {
+				stopped = true;
+				blocker.notifyAll();
+			}
+			if ((Thread.currentThread() != this)
+					&& !SwingUtilities.isEventDispatchThread()) {
+				awaitTermination(this);
+			}
+		}
+
+		private void awaitTermination(Thread thread) {
+			boolean interrupted = false;
+			while (thread.isAlive()) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void awaitUnpaused() throws InterruptedException {
+			synchronized (blocker) {
+				while (paused && !stopped) {
+					blocker.wait();
+				}
+			}
+		}
+
+		private void waitTo(int period) throws InterruptedException {
+			long elapsed;
+			synchronized (blocker) {
+				while (!stopped
+						&& ((elapsed = System.currentTimeMillis()
+								- lastTimestamp) < period)) {
+					blocker.wait(period - elapsed);
+				}
+				lastTimestamp = System.currentTimeMillis();
+			}
+		}
+
+		private boolean robotsIdle() {
+			for (Robot robot : robots) {
+				if (!robot.isIdle()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/*
+		 * Waits until no robot thread can make progress without the clock
+		 * advancing. Robots that keep running without ever sleeping, for
+		 * example busy-waiting on the clock, are given at most one period of
+		 * wall-clock time, so fast forward is never slower than normal speed.
+		 * The ticker parks between checks rather than taking a core from the
+		 * robots. It is unparked as soon as a robot sleeps on the clock, which
+		 * is how robots usually become idle, and otherwise checks again after
+		 * longer and longer pauses.
+		 */
+		private void synchronize(int period) throws InterruptedException {
+			final long deadline = System.nanoTime() + period * 1000000L;
+			clock.awaitSleepers(period);
+			clock.setWatcher(this);
+			try {
+				long pause = MIN_SYNCHRONIZE_PAUSE;
+				while (!robotsIdle() && (System.nanoTime() - deadline < 0)) {
+					LockSupport.parkNanos(this, pause);
+					pause = Math.min(pause * 2, MAX_SYNCHRONIZE_PAUSE);
+				}
+			} finally {
+				clock.setWatcher(null);
+			}
+		}
+
+		@Override
+		public void run() {
+			if (previous != null) {
+				awaitTermination(previous);
+			}
+			startRecording();
+			final int rate = Preferences.userNodeForPackage(Simulation.class)
+					.getInt("rate", 60);
+			final int period = (int) Math.round(1000.0 / rate);
+			lastTimestamp = System.currentTimeMillis();
+			try {
+				while (!stopped) {
+					try {
+						awaitUnpaused();
+						if (fastForward) {
+							synchronize(period);
+						} else {
+							waitTo(period);
+						}
+						if (paused || stopped) {
+							continue;
+						}
+						step(period);
+					} catch (Exception e) {
+						listener.error(e);
+					}
+					if (!fastForward) {
+						view.repaint();
+					}
+				}
+			} finally {
+				sensorAtlas.destroy();
+				stopRecording();
+			}
+		}
+	}
+
 	private final State runningState = new State() {
 		@Override
 		public State play() {
@@ -159,16 +722,14 @@ public final class Simulation {
 
 		@Override
 		public State fastForward() {
-			fastForward = true;
+			setFastForward(true);
 			simulationLogWriter.println("fast forward");
 			return fastForwardState;
 		}
 
-		@SuppressWarnings("deprecation")
 		@Override
 		public State suspend() {
-			ticker.suspend();
-			clock.suspend();
+			ticker.pause();
 			for (Robot robot : robots) {
 				robot.suspend();
 			}
@@ -176,13 +737,12 @@ public final class Simulation {
 			return suspendedState;
 		}
 
-		@SuppressWarnings("deprecation")
 		@Override
 		public State stop() {
-			ticker.stop();
 			for (Robot robot : robots) {
 				robot.stop();
 			}
+			ticker.finish();
 			simulationLogWriter.println("stopped");
 			return stoppedState;
 		}
@@ -191,7 +751,7 @@ public final class Simulation {
 	private final State fastForwardState = new State() {
 		@Override
 		public State play() {
-			fastForward = false;
+			setFastForward(false);
 			simulationLogWriter.println("normal speed");
 			return runningState;
 		}
@@ -201,57 +761,51 @@ public final class Simulation {
 			return this;
 		}
 
-		@SuppressWarnings("deprecation")
 		@Override
 		public State suspend() {
-			ticker.suspend();
-			clock.suspend();
+			ticker.pause();
 			for (Robot robot : robots) {
 				robot.suspend();
 			}
+			setFastForward(false);
 			simulationLogWriter.println("suspended");
-			canvas.repaint();
+			view.repaint();
 			return suspendedState;
 		}
 
-		@SuppressWarnings("deprecation")
 		@Override
 		public State stop() {
-			ticker.stop();
 			for (Robot robot : robots) {
 				robot.stop();
 			}
-			fastForward = false;
-			canvas.repaint();
+			ticker.finish();
+			setFastForward(false);
+			view.repaint();
 			simulationLogWriter.println("stopped");
 			return stoppedState;
 		}
 	};
 
 	private final State suspendedState = new State() {
-		@SuppressWarnings("deprecation")
 		@Override
 		public State play() {
-			fastForward = false;
+			setFastForward(false);
 			simulationLogWriter.println("resumed");
 			for (Robot robot : robots) {
 				robot.resume();
 			}
-			clock.resume();
-			ticker.resume();
+			ticker.unpause();
 			return runningState;
 		}
 
-		@SuppressWarnings("deprecation")
 		@Override
 		public State fastForward() {
-			fastForward = true;
+			setFastForward(true);
 			simulationLogWriter.println("resumed in fast forward");
 			for (Robot robot : robots) {
 				robot.resume();
 			}
-			clock.resume();
-			ticker.resume();
+			ticker.unpause();
 			return fastForwardState;
 		}
 
@@ -260,108 +814,26 @@ public final class Simulation {
 			return this;
 		}
 
-		@SuppressWarnings("deprecation")
 		@Override
 		public State stop() {
-			ticker.stop();
 			for (Robot robot : robots) {
 				robot.stop();
 			}
+			ticker.finish();
 			simulationLogWriter.println("stopped");
 			return stoppedState;
 		}
 	};
 
 	private final State stoppedState = new State() {
-		final class Ticker extends Thread {
-			private final Object blocker = new Object();
-			private volatile long lastTimestamp;
-
-			public Ticker() {
-				super("ticker");
-			}
-
-			private void advanceTo(int period) throws InterruptedException {
-				long elapsed;
-				synchronized (blocker) {
-					if ((elapsed = System.currentTimeMillis() - lastTimestamp) < period) {
-						clock.advance(period - (int) elapsed);
-					}
-					lastTimestamp = System.currentTimeMillis();
-				}
-			}
-
-			private void waitTo(int period) throws InterruptedException {
-				long elapsed;
-				synchronized (blocker) {
-					while ((elapsed = System.currentTimeMillis()
-							- lastTimestamp) < period) {
-						blocker.wait(period - elapsed);
-					}
-					lastTimestamp = System.currentTimeMillis();
-				}
-			}
-
-			private void step() throws Exception {
-				final long timestamp = clock.getTimestamp();
-				for (Robot robot : robots) {
-					robot.tick(timestamp);
-					for (Robot robot2 : robots) {
-						if ((robot != robot2) && robot.collidesWith(robot2)) {
-							final String message = "NXT" + robot.index
-									+ " collided with NXT" + robot2.index;
-							SwingUtilities.invokeLater(new Runnable() {
-								@Override
-								public void run() {
-									Simulation.this.stop();
-									JOptionPane.showMessageDialog(parentWindow,
-											message, "Simulejos",
-											JOptionPane.ERROR_MESSAGE);
-								}
-							});
-						}
-					}
-				}
-			}
-
-			@Override
-			public void run() {
-				final int rate = Preferences.userNodeForPackage(
-						Simulation.class).getInt("rate", 60);
-				final int period = (int) Math.round(1000.0 / rate);
-				lastTimestamp = System.currentTimeMillis();
-				while (true) {
-					try {
-						if (fastForward) {
-							advanceTo(period);
-						} else {
-							waitTo(period);
-						}
-						step();
-					} catch (Exception e) {
-						e.printStackTrace();
-						SwingUtilities.invokeLater(new Runnable() {
-							@Override
-							public void run() {
-								Simulation.this.stop();
-							}
-						});
-					}
-					if (!fastForward) {
-						canvas.repaint();
-					}
-				}
-			}
-		}
-
 		@Override
 		public State play() throws ScriptException {
 			simulationLogWriter.println("started");
-			ticker = new Ticker();
+			ticker = new Ticker(ticker);
 			for (Robot robot : robots) {
-				robot.play();
+				robot.play(virtualThreads);
 			}
-			fastForward = false;
+			setFastForward(false);
 			ticker.start();
 			return runningState;
 		}
@@ -369,11 +841,11 @@ public final class Simulation {
 		@Override
 		public State fastForward() throws ScriptException {
 			simulationLogWriter.println("fast forward");
-			ticker = new Ticker();
+			ticker = new Ticker(ticker);
 			for (Robot robot : robots) {
-				robot.play();
+				robot.play(virtualThreads);
 			}
-			fastForward = true;
+			setFastForward(true);
 			ticker.start();
 			return fastForwardState;
 		}
@@ -1,9 +1,6 @@
 package it.uniroma1.di.simulejos;
 
-import java.nio.FloatBuffer;
-
 import javax.media.opengl.GL2GL3;
-import javax.media.opengl.GLAutoDrawable;
 
 import it.uniroma1.di.simulejos.Robot.GPUSensor;
 import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
@@ -19,9 +16,6 @@ final class TouchSensor extends GPUSensor implements
 	private final Matrix3 inverseHeading;
 	private final float size;
 
-	private volatile Program floorProgram;
-	private volatile Program robotProgram;
-
 	private volatile boolean pressed;
 
 	public TouchSensor(Robot robot, Vector3 position, Matrix3 heading,
@@ -37,47 +31,38 @@ final class TouchSensor extends GPUSensor implements
 		return pressed;
 	}
 
+	/*
+	 * The shaders write the depth of each fragment to its color, so that the
+	 * depth of the nearest surface can be read along with the color of the
+	 * other sensors. A channel of the atlas only holds 8 bits, so the depth is
+	 * spread over the red, green and blue channels, 8 bits each.
+	 */
 	@Override
-	public void init(GLAutoDrawable drawable) {
-		final GL2GL3 gl = drawable.getGL().getGL2GL3();
-		floorProgram = new Program(gl, getClass(), "floor_touch",
-				new String[] { "in_Vertex" });
-		robotProgram = new Program(gl, getClass(), "robot_touch",
-				new String[] { "in_Vertex" });
-		gl.glEnable(GL_DEPTH_TEST);
+	void draw(GL2GL3 gl, SensorAtlas atlas) {
+		gl.glClearColor(1, 1, 1, 1);
 		gl.glClearDepth(1);
 		gl.glDepthFunc(GL_LESS);
-		gl.glEnable(GL_CULL_FACE);
-	}
-
-	@Override
-	public void display(GLAutoDrawable drawable) {
-		final GL2GL3 gl = drawable.getGL().getGL2GL3();
-		gl.glClear(GL_DEPTH_BUFFER_BIT);
+		gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+		final Program floorProgram = atlas.getProgram(gl, "floor_touch");
 		floorProgram.use();
 		floorProgram.uniform1f("Size", size);
 		floorProgram.uniform("SensorPosition", position);
 		floorProgram.uniform("InverseSensorHeading", inverseHeading);
 		uniform(floorProgram);
 		floor.drawForSensor(gl, floorProgram);
+		final Program robotProgram = atlas.getProgram(gl, "robot_touch");
 		robotProgram.use();
 		robotProgram.uniform1f("Size", size);
 		robotProgram.uniform("SensorPosition", position);
 		robotProgram.uniform("InverseSensorHeading", inverseHeading);
 		uniform(robotProgram);
-		for (Robot robot : robots) {
-			robot.drawForSensor(gl, robotProgram);
-		}
-		gl.glFinish();
-		final float[] values = new float[1];
-		gl.glReadPixels(0, 0, 1, 1, GL_DEPTH_COMPONENT, GL_FLOAT,
-				FloatBuffer.wrap(values));
-		pressed = values[0] < 0.99;
+		atlas.drawRobots(gl);
 	}
 
 	@Override
-	public void dispose(GLAutoDrawable drawable) {
-		floorProgram.delete();
-		robotProgram.delete();
+	void sample(float[] pixels) {
+		final double depth = pixels[0] + pixels[1] / 255 + pixels[2]
+				/ (255 * 255);
+		pressed = depth < 0.99;
 	}
 }
@@ -0,0 +1,212 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
+import it.uniroma1.di.simulejos.math.Vector3;
+
+import java.util.Arrays;
+
+/**
+ * The format of the traces written by {@link TraceRecorder} and read by
+ * {@link TracePlayer}.
+ * 
+ * A trace starts with a header: {@link #MAGIC}, {@link #VERSION}, the number
+ * of robots and the length and text of the scene the simulation started from,
+ * with absolute paths. Chunks of frames follow, one frame per tick, then the
+ * index of the chunks and the trailer. All numbers outside chunks are written
+ * as by <code>DataOutput</code>.
+ * 
+ * The state of every robot is a fixed set of {@link #FIELDS} integers: its
+ * position and rotation, quantized, the mode, power and tachometer count of
+ * every motor and up to three readings per sensor port, see
+ * {@link #sample(Robot, double[], int[])}. A frame holds the simulated time
+ * elapsed since the previous frame, then, for every robot in the order of the
+ * scene, a mask of the fields that changed followed by their differences,
+ * zigzag encoded as variable-length integers, and the contents of the display
+ * XORed with the previous ones if the robot refreshed it. The frame ends with
+ * the log text drained during the tick, in UTF-8.
+ * 
+ * A chunk is made of its start time, the number of its frames, its length
+ * and its compressed length, followed by its frames compressed with
+ * <code>Deflater</code>. Every chunk is encoded from a blank state, so that
+ * its first frame holds the whole state of the robots and replay can start
+ * at any chunk. The index lists the start time and the offset of every chunk
+ * and the trailer holds the time of the last frame, the offset of the index
+ * and {@link #MAGIC} again.
+ */
+final class Trace {
+	static final int MAGIC = 0x534a5452;
+	static final int VERSION = 1;
+
+	/*
+	 * The offsets of the fields of a robot: three for the position, nine for
+	 * the rotation in row-first order, three per motor port and three per
+	 * sensor port.
+	 */
+	static final int POSITION = 0;
+	static final int ROTATION = 3;
+	static final int MOTORS = 12;
+	static final int SENSORS = 21;
+	static final int FIELDS = 33;
+
+	/**
+	 * The bit of the mask of a robot telling that its display changed.
+	 */
+	static final long DISPLAY = 1L << FIELDS;
+
+	/**
+	 * The size of the display in the packed format of the Framework.
+	 */
+	static final int DISPLAY_SIZE = 100 * 64 / 8;
+
+	/*
+	 * The resolution of positions is about 15 micrometers, taking a unit to
+	 * be 10 centimeters, and that of rotations is 2^-24; compass angles are
+	 * recorded in hundredths of a degree.
+	 */
+	static final double POSITION_SCALE = 1 << 16;
+	static final double ROTATION_SCALE = 1 << 24;
+	static final double ANGLE_SCALE = 18000 / Math.PI;
+
+	private static int quantize(double value, double scale) {
+		return (int) Math.max(Math.min(Math.round(value * scale),
+				Integer.MAX_VALUE), Integer.MIN_VALUE);
+	}
+
+	private static void sample(SimulatorInterface.Sensor sensor, int[] fields,
+			int offset) {
+		Arrays.fill(fields, offset, offset + 3, 0);
+		if (sensor instanceof TouchSensor) {
+			fields[offset] = ((TouchSensor) sensor).isPressed() ? 1 : 0;
+		} else if (sensor instanceof ColorSensor) {
+			fields[offset] = ((ColorSensor) sensor).getColor();
+		} else if (sensor instanceof LightSensor) {
+			fields[offset] = ((LightSensor) sensor).getLight();
+		} else if (sensor instanceof CompassSensor) {
+			fields[offset] = quantize(((CompassSensor) sensor).getAngle(),
+					ANGLE_SCALE);
+		} else if (sensor instanceof UltrasonicSensor) {
+			fields[offset] = ((UltrasonicSensor) sensor).getDistance();
+		} else if (sensor instanceof Accelerometer) {
+			final Vector3 acceleration = ((Accelerometer) sensor)
+					.getAcceleration();
+			fields[offset] = Float.floatToIntBits((float) acceleration.x);
+			fields[offset + 1] = Float.floatToIntBits((float) acceleration.y);
+			fields[offset + 2] = Float.floatToIntBits((float) acceleration.z);
+		}
+	}
+
+	/**
+	 * Samples the state of a robot without allocating. The readings of a
+	 * sensor port are, depending on the sensor, whether the touch sensor is
+	 * pressed, the color or the light value, the compass angle, the distance
+	 * of the nearest ultrasonic echo or the bits of the components of the
+	 * acceleration as floats; ports without a sensor read zero.
+	 * 
+	 * @param robot
+	 *            The robot.
+	 * @param pose
+	 *            An array of 12 elements for the pose, see
+	 *            {@link Robot#getPose(double[])}.
+	 * @param fields
+	 *            Receives the {@link #FIELDS} fields.
+	 */
+	static void sample(Robot robot, double[] pose, int[] fields) {
+		robot.getPose(pose);
+		for (int i = 0; i < 3; i++) {
+			fields[POSITION + i] = quantize(pose[i], POSITION_SCALE);
+		}
+		for (int i = 0; i < 9; i++) {
+			fields[ROTATION + i] = quantize(pose[3 + i], ROTATION_SCALE);
+		}
+		for (int i = 0; i < 3; i++) {
+			final Motor motor = robot.getMotor(i);
+			fields[MOTORS + i * 3] = motor.getMode().ordinal();
+			fields[MOTORS + i * 3 + 1] = motor.getPower();
+			fields[MOTORS + i * 3 + 2] = motor.getCount();
+		}
+		final Robot.RobotInterface ports = robot.robotInterface;
+		sample(ports.S1.getSensor(), fields, SENSORS);
+		sample(ports.S2.getSensor(), fields, SENSORS + 3);
+		sample(ports.S3.getSensor(), fields, SENSORS + 6);
+		sample(ports.S4.getSensor(), fields, SENSORS + 9);
+	}
+
+	/**
+	 * A growable buffer the frames of a chunk are encoded into.
+	 */
+	static final class Output {
+		byte[] data = new byte[1 << 12];
+		int length;
+
+		private void ensure(int count) {
+			if (length + count > data.length) {
+				data = Arrays.copyOf(data,
+						Math.max(data.length * 2, length + count));
+			}
+		}
+
+		void write(int b) {
+			ensure(1);
+			data[length++] = (byte) b;
+		}
+
+		void write(byte[] bytes, int offset, int count) {
+			ensure(count);
+			System.arraycopy(bytes, offset, data, length, count);
+			length += count;
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7fL) != 0) {
+				data[length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			data[length++] = (byte) value;
+		}
+
+		void writeZigZag(int value) {
+			writeVarLong(((value << 1) ^ (value >> 31)) & 0xffffffffL);
+		}
+	}
+
+	/**
+	 * Decodes the frames of a chunk.
+	 */
+	static final class Input {
+		final byte[] data;
+		int position;
+
+		Input(byte[] data) {
+			this.data = data;
+		}
+
+		boolean hasMore() {
+			return position < data.length;
+		}
+
+		int read() {
+			return data[position++] & 0xff;
+		}
+
+		long readVarLong() {
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = read();
+				value |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		int readZigZag() {
+			final int value = (int) readVarLong();
+			return (value >>> 1) ^ -(value & 1);
+		}
+	}
+
+	private Trace() {
+	}
+}
@@ -0,0 +1,467 @@
+package it.uniroma1.di.simulejos;
+
+import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
+import it.uniroma1.di.simulejos.math.Matrix3;
+import it.uniroma1.di.simulejos.math.Vector3;
+import it.uniroma1.di.simulejos.wavefront.ParseException;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.script.ScriptException;
+
+/**
+ * Replays a trace recorded by a {@link Simulation}, see
+ * {@link Simulation#setTraceFile(File)}. The scene stored in the trace is
+ * loaded into a simulation, whose robots are then moved to the poses recorded
+ * at every tick without running their programs, while the other recorded
+ * state, that is motors, sensors, displays and log, can be queried or
+ * inspected.
+ * 
+ * The trace is read one chunk at a time. Seeking to a time reads the chunk
+ * that contains it, found through the index of the trace, and decodes its
+ * frames up to that time, so its cost does not depend on the length of the
+ * trace. All methods are thread safe.
+ */
+public final class TracePlayer implements Closeable {
+	private final File file;
+	private final RandomAccessFile input;
+	private final Robot[] robots;
+	private final Writer logWriter;
+	private final long[] chunkTimes;
+	private final long[] chunkOffsets;
+	private final long endTime;
+	private final Inflater inflater = new Inflater();
+
+	/*
+	 * The state of the decoder: the chunk being decoded and the state of the
+	 * robots as of the last frame decoded.
+	 */
+	private int chunkIndex = -1;
+	private Trace.Input chunk;
+	private long time;
+	private final int[][] fields;
+	private final byte[][] displays;
+
+	/*
+	 * The thread replaying the trace in real time, if any, and the times it
+	 * paces the frames against.
+	 */
+	private Thread playback;
+	private long playbackTime;
+	private long playbackWallTime;
+
+	private TracePlayer(File file, RandomAccessFile input, Robot[] robots,
+			Writer logWriter, long[] chunkTimes, long[] chunkOffsets,
+			long endTime) {
+		this.file = file;
+		this.input = input;
+		this.robots = robots;
+		this.logWriter = logWriter;
+		this.chunkTimes = chunkTimes;
+		this.chunkOffsets = chunkOffsets;
+		this.endTime = endTime;
+		this.fields = new int[robots.length][Trace.FIELDS];
+		this.displays = new byte[robots.length][Trace.DISPLAY_SIZE];
+	}
+
+	/**
+	 * Opens a trace, loads its scene into a simulation and moves the robots
+	 * to their poses at the beginning of the trace.
+	 * 
+	 * @param file
+	 *            The trace file.
+	 * @param simulation
+	 *            A simulation without robots, which must not be started while
+	 *            the trace is replayed.
+	 * @param logWriter
+	 *            Receives the log lines of the frames replayed by
+	 *            {@link #step()} and {@link #play()}, or <code>null</code>.
+	 * @return The player.
+	 * @throws IOException
+	 *             If the trace or the files of its scene cannot be read or
+	 *             are malformed.
+	 * @throws ParseException
+	 *             If a model of the scene is malformed.
+	 * @throws ScriptException
+	 *             If a script of the scene does not compile.
+	 */
+	public static TracePlayer open(File file, Simulation simulation,
+			Writer logWriter) throws IOException, ParseException,
+			ScriptException {
+		final RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			if ((input.readInt() != Trace.MAGIC)
+					|| (input.readInt() != Trace.VERSION)) {
+				throw new Scene.FormatException(file,
+						"not a trace of a supported version");
+			}
+			final int robotCount = input.readInt();
+			final byte[] text = new byte[input.readInt()];
+			input.readFully(text);
+			final Scene scene = Scene.read(new ByteArrayInputStream(text),
+					file);
+			if (scene.robots.size() != robotCount) {
+				throw new Scene.FormatException(file, "expected "
+						+ robotCount + " robots");
+			}
+			input.seek(input.length() - 20);
+			final long endTime = input.readLong();
+			final long indexOffset = input.readLong();
+			if (input.readInt() != Trace.MAGIC) {
+				throw new Scene.FormatException(file, "truncated trace");
+			}
+			input.seek(indexOffset);
+			final int chunkCount = input.readInt();
+			if (chunkCount < 1) {
+				throw new Scene.FormatException(file, "empty trace");
+			}
+			final long[] chunkTimes = new long[chunkCount];
+			final long[] chunkOffsets = new long[chunkCount];
+			for (int i = 0; i < chunkCount; i++) {
+				chunkTimes[i] = input.readLong();
+				chunkOffsets[i] = input.readLong();
+			}
+			scene.loadInto(simulation);
+			final Robot[] robots = new Robot[robotCount];
+			int i = 0;
+			for (Robot robot : simulation.robots) {
+				if (i < robotCount) {
+					robots[i++] = robot;
+				}
+			}
+			final TracePlayer player = new TracePlayer(file, input, robots,
+					logWriter, chunkTimes, chunkOffsets, endTime);
+			player.seek(chunkTimes[0]);
+			return player;
+		} catch (IOException | ParseException | ScriptException
+				| RuntimeException e) {
+			input.close();
+			throw e;
+		}
+	}
+
+	public long getStartTime() {
+		return chunkTimes[0];
+	}
+
+	public long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * Returns the simulated time of the current frame.
+	 * 
+	 * @return The time, in nanoseconds since the recorded simulation was
+	 *         created.
+	 */
+	public synchronized long getTime() {
+		return time;
+	}
+
+	private void readChunk(int index) throws IOException {
+		input.seek(chunkOffsets[index]);
+		final long chunkTime = input.readLong();
+		input.readInt();
+		final byte[] data = new byte[input.readInt()];
+		final byte[] compressed = new byte[input.readInt()];
+		input.readFully(compressed);
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			if ((inflater.inflate(data) != data.length)
+					|| !inflater.finished()) {
+				throw new Scene.FormatException(file, "corrupted chunk");
+			}
+		} catch (DataFormatException e) {
+			throw new Scene.FormatException(file, e.getMessage());
+		}
+		chunkIndex = index;
+		chunk = new Trace.Input(data);
+		time = chunkTime;
+		for (int i = 0; i < robots.length; i++) {
+			Arrays.fill(fields[i], 0);
+			Arrays.fill(displays[i], (byte) 0);
+		}
+	}
+
+	/*
+	 * Decodes the next frame unless it is later than the specified time.
+	 * Returns whether a frame was decoded.
+	 */
+	private boolean readFrame(long limit, boolean replayLog)
+			throws IOException {
+		if (!chunk.hasMore()) {
+			if ((chunkIndex + 1 >= chunkTimes.length)
+					|| (chunkTimes[chunkIndex + 1] > limit)) {
+				return false;
+			}
+			readChunk(chunkIndex + 1);
+		}
+		try {
+			final int start = chunk.position;
+			final long frameTime = time + chunk.readVarLong();
+			if (frameTime > limit) {
+				chunk.position = start;
+				return false;
+			}
+			time = frameTime;
+			for (int i = 0; i < robots.length; i++) {
+				final long mask = chunk.readVarLong();
+				for (int j = 0; j < Trace.FIELDS; j++) {
+					if ((mask & (1L << j)) != 0) {
+						fields[i][j] += chunk.readZigZag();
+					}
+				}
+				if ((mask & Trace.DISPLAY) != 0) {
+					for (int j = 0; j < Trace.DISPLAY_SIZE; j++) {
+						displays[i][j] ^= chunk.read();
+					}
+				}
+			}
+			final int length = (int) chunk.readVarLong();
+			if ((length > 0) && replayLog && (logWriter != null)) {
+				logWriter.write(new String(chunk.data, chunk.position,
+						length, StandardCharsets.UTF_8));
+				logWriter.flush();
+			}
+			chunk.position += length;
+			return true;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new Scene.FormatException(file, "corrupted chunk");
+		}
+	}
+
+	/*
+	 * Moves the robots to their poses in the current frame.
+	 */
+	private void apply() {
+		final double[] rotation = new double[9];
+		for (int i = 0; i < robots.length; i++) {
+			final int[] state = fields[i];
+			for (int j = 0; j < 9; j++) {
+				rotation[j] = state[Trace.ROTATION + j] / Trace.ROTATION_SCALE;
+			}
+			robots[i].setPose(new Vector3(state[Trace.POSITION]
+					/ Trace.POSITION_SCALE, state[Trace.POSITION + 1]
+					/ Trace.POSITION_SCALE, state[Trace.POSITION + 2]
+					/ Trace.POSITION_SCALE), Matrix3.create(rotation));
+		}
+	}
+
+	/**
+	 * Moves to the last frame recorded at or before the specified time, or to
+	 * the first frame if the time precedes it. The log of the frames skipped
+	 * is not replayed.
+	 * 
+	 * @param time
+	 *            The simulated time to move to.
+	 * @throws IOException
+	 *             If the trace cannot be read or is malformed.
+	 */
+	public synchronized void seek(long time) throws IOException {
+		time = Math.max(time, chunkTimes[0]);
+		int index = Arrays.binarySearch(chunkTimes, time);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		/*
+		 * several chunks may start at the same time if the log outgrew them
+		 */
+		while ((index > 0) && (chunkTimes[index - 1] == time)) {
+			index--;
+		}
+		if ((index != chunkIndex) || (this.time > time)) {
+			readChunk(index);
+		}
+		while (readFrame(time, false)) {
+		}
+		playbackTime = this.time;
+		playbackWallTime = System.nanoTime();
+		apply();
+	}
+
+	/**
+	 * Moves to the next frame and replays its log.
+	 * 
+	 * @return <code>false</code> if the current frame is the last one.
+	 * @throws IOException
+	 *             If the trace cannot be read or is malformed.
+	 */
+	public synchronized boolean step() throws IOException {
+		if (readFrame(Long.MAX_VALUE, true)) {
+			apply();
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	/*
+	 * Steps through the trace at the pace it was recorded at, as long as it
+	 * is the playback thread of the player.
+	 */
+	private final class Playback implements Runnable {
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final long delay;
+					synchronized (TracePlayer.this) {
+						if (playback != Thread.currentThread()) {
+							return;
+						}
+						if (!step()) {
+							playback = null;
+							return;
+						}
+						delay = (time - playbackTime)
+								- (System.nanoTime() - playbackWallTime);
+					}
+					if (delay > 0) {
+						Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+					}
+				}
+			} catch (InterruptedException e) {
+				/* paused */
+			} catch (IOException e) {
+				e.printStackTrace();
+				synchronized (TracePlayer.this) {
+					if (playback == Thread.currentThread()) {
+						playback = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts replaying the trace from the current frame in real time, on a
+	 * thread of its own, until the end of the trace or until {@link #pause()}
+	 * is invoked.
+	 */
+	public synchronized void play() {
+		if (playback == null) {
+			playbackTime = time;
+			playbackWallTime = System.nanoTime();
+			playback = new Thread(new Playback(), "replay");
+			playback.setDaemon(true);
+			playback.start();
+		}
+	}
+
+	/**
+	 * Stops replaying the trace in real time.
+	 */
+	public synchronized void pause() {
+		if (playback != null) {
+			playback.interrupt();
+			playback = null;
+		}
+	}
+
+	public synchronized boolean isPlaying() {
+		return playback != null;
+	}
+
+	public int getRobotCount() {
+		return robots.length;
+	}
+
+	/**
+	 * Returns a robot of the replayed scene.
+	 * 
+	 * @param robot
+	 *            The index of the robot in the scene, starting from 0.
+	 * @return The robot.
+	 */
+	public Robot getRobot(int robot) {
+		return robots[robot];
+	}
+
+	/**
+	 * Returns the recorded mode of a motor in the current frame.
+	 * 
+	 * @param robot
+	 *            The index of the robot in the scene, starting from 0.
+	 * @param port
+	 *            0, 1 or 2 for port A, B or C.
+	 * @return The mode of the motor.
+	 */
+	public synchronized SimulatorInterface.Motor.Mode getMotorMode(int robot,
+			int port) {
+		return SimulatorInterface.Motor.Mode.values()[fields[robot][Trace.MOTORS
+				+ port * 3]];
+	}
+
+	/**
+	 * Returns the recorded power of a motor in the current frame.
+	 * 
+	 * @see #getMotorMode(int, int)
+	 */
+	public synchronized int getMotorPower(int robot, int port) {
+		return fields[robot][Trace.MOTORS + port * 3 + 1];
+	}
+
+	/**
+	 * Returns the recorded tachometer count of a motor in the current frame,
+	 * in degrees.
+	 * 
+	 * @see #getMotorMode(int, int)
+	 */
+	public synchronized int getTachoCount(int robot, int port) {
+		return fields[robot][Trace.MOTORS + port * 3 + 2];
+	}
+
+	/**
+	 * Returns the recorded readings of the sensor connected to a port in the
+	 * current frame: 1 if a touch sensor is pressed and 0 otherwise, the RGB
+	 * color read by a color sensor, the value read by a light sensor, the
+	 * angle of a compass in hundredths of a degree, the distance of the
+	 * nearest echo of an ultrasonic sensor in centimeters or the components
+	 * of the acceleration measured by an accelerometer, as the bits of
+	 * floats. Only accelerometers have more than one reading; ports without
+	 * a sensor read zero.
+	 * 
+	 * @param robot
+	 *            The index of the robot in the scene, starting from 0.
+	 * @param port
+	 *            0, 1, 2 or 3 for port S1, S2, S3 or S4.
+	 * @return The three readings of the port.
+	 */
+	public synchronized int[] getSensorReadings(int robot, int port) {
+		final int offset = Trace.SENSORS + port * 3;
+		return Arrays.copyOfRange(fields[robot], offset, offset + 3);
+	}
+
+	/**
+	 * Returns the recorded contents of the display of a robot in the current
+	 * frame, in the packed format of the display buffer of the Framework: 8
+	 * rows per byte, 100 bytes per row of bytes.
+	 * 
+	 * @param robot
+	 *            The index of the robot in the scene, starting from 0.
+	 * @return A copy of the contents of the display, blank if the robot had
+	 *         not refreshed it yet.
+	 */
+	public synchronized byte[] getDisplay(int robot) {
+		return displays[robot].clone();
+	}
+
+	@Override
+	public void close() throws IOException {
+		pause();
+		synchronized (this) {
+			inflater.end();
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,356 @@
+package it.uniroma1.di.simulejos;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Records a trace of a simulation, in the format described by {@link Trace}.
+ * 
+ * The ticker encodes a frame at the end of every step, which only reads the
+ * state of the robots and appends a few bytes to the current chunk. Full
+ * chunks are handed over to a writer thread that compresses them and writes
+ * them to the file, so the ticker never waits for the disk unless the writer
+ * falls behind by several chunks. The robots recorded are those of the
+ * simulation when recording starts.
+ */
+final class TraceRecorder {
+	/*
+	 * A chunk ends after ten seconds of simulated time at the default rate,
+	 * or earlier if it grows large, so that seeking decodes little.
+	 */
+	private static final int CHUNK_FRAMES = 600;
+	private static final int CHUNK_SIZE = 1 << 18;
+	private static final int QUEUE_CAPACITY = 8;
+
+	private static final class Chunk {
+		final long time;
+		final long endTime;
+		final int frames;
+		final byte[] data;
+		final int length;
+
+		Chunk(long time, long endTime, int frames, byte[] data, int length) {
+			this.time = time;
+			this.endTime = endTime;
+			this.frames = frames;
+			this.data = data;
+			this.length = length;
+		}
+	}
+
+	/*
+	 * Tells the writer thread to write the index and close the file.
+	 */
+	private static final Chunk END = new Chunk(0, 0, 0, null, 0);
+
+	private final Robot[] robots;
+	private final DataOutputStream output;
+	private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(
+			QUEUE_CAPACITY);
+	private final Thread writer;
+	private volatile IOException error;
+
+	/*
+	 * The state of the encoder, accessed by the ticker only: the chunk being
+	 * encoded and the state of the robots as of its last frame.
+	 */
+	private Trace.Output chunk = new Trace.Output();
+	private boolean started;
+	private int frames;
+	private long chunkTime;
+	private long lastTime;
+	private final double[] pose = new double[12];
+	private final int[] fields = new int[Trace.FIELDS];
+	private final int[][] lastFields;
+	private final byte[][] lastDisplays;
+	private final byte[][] lastDisplayBuffers;
+
+	private final StringBuilder pendingLog = new StringBuilder();
+
+	/**
+	 * Receives the log of the simulation while recording, see
+	 * {@link LogPipeline#setTrace(Writer)}. The text is recorded with the
+	 * next frame.
+	 */
+	final Writer log = new Writer() {
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+			synchronized (pendingLog) {
+				pendingLog.append(buffer, offset, length);
+			}
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	/**
+	 * Creates the trace file, writes its header and starts the writer
+	 * thread.
+	 * 
+	 * @param file
+	 *            The trace file, overwritten if it exists.
+	 * @param scene
+	 *            The scene the simulation starts from, see
+	 *            {@link Scene#capture(Simulation, double)}.
+	 * @param robots
+	 *            The robots to record, in the order of the scene.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	TraceRecorder(File file, Scene scene, Robot[] robots) throws IOException {
+		this.robots = robots.clone();
+		this.lastFields = new int[robots.length][Trace.FIELDS];
+		this.lastDisplays = new byte[robots.length][];
+		this.lastDisplayBuffers = new byte[robots.length][Trace.DISPLAY_SIZE];
+		final ByteArrayOutputStream text = new ByteArrayOutputStream();
+		scene.write(text, null);
+		this.output = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			output.writeInt(Trace.MAGIC);
+			output.writeInt(Trace.VERSION);
+			output.writeInt(robots.length);
+			output.writeInt(text.size());
+			text.writeTo(output);
+		} catch (IOException e) {
+			output.close();
+			throw e;
+		}
+		this.writer = new Thread(new Compressor(16 + text.size()),
+				"trace-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/*
+	 * Starts a new chunk from a blank state.
+	 */
+	private void startChunk(long timestamp) {
+		chunkTime = timestamp;
+		lastTime = timestamp;
+		frames = 0;
+		for (int i = 0; i < robots.length; i++) {
+			Arrays.fill(lastFields[i], 0);
+			Arrays.fill(lastDisplayBuffers[i], (byte) 0);
+			lastDisplays[i] = null;
+		}
+	}
+
+	private void endChunk() {
+		if (frames > 0) {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					queue.put(new Chunk(chunkTime, lastTime, frames,
+							chunk.data, chunk.length));
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			chunk = new Trace.Output();
+			frames = 0;
+		}
+	}
+
+	/**
+	 * Records a frame. Invoked by the ticker at the end of every step.
+	 * 
+	 * @param timestamp
+	 *            The simulated time of the step.
+	 */
+	void record(long timestamp) {
+		if (error != null) {
+			return;
+		}
+		if (frames == 0) {
+			startChunk(timestamp);
+		}
+		chunk.writeVarLong(timestamp - lastTime);
+		lastTime = timestamp;
+		for (int i = 0; i < robots.length; i++) {
+			Trace.sample(robots[i], pose, fields);
+			final int[] last = lastFields[i];
+			long mask = 0;
+			for (int j = 0; j < Trace.FIELDS; j++) {
+				if (fields[j] != last[j]) {
+					mask |= 1L << j;
+				}
+			}
+			final byte[] display = robots[i].getDisplay();
+			if ((display != null) && (display != lastDisplays[i])) {
+				mask |= Trace.DISPLAY;
+			}
+			chunk.writeVarLong(mask);
+			for (int j = 0; j < Trace.FIELDS; j++) {
+				if ((mask & (1L << j)) != 0) {
+					chunk.writeZigZag(fields[j] - last[j]);
+					last[j] = fields[j];
+				}
+			}
+			if ((mask & Trace.DISPLAY) != 0) {
+				final byte[] buffer = lastDisplayBuffers[i];
+				for (int j = 0; j < Trace.DISPLAY_SIZE; j++) {
+					chunk.write(display[j] ^ buffer[j]);
+				}
+				System.arraycopy(display, 0, buffer, 0, Trace.DISPLAY_SIZE);
+				lastDisplays[i] = display;
+			}
+		}
+		String text = null;
+		synchronized (pendingLog) {
+			if (pendingLog.length() > 0) {
+				text = pendingLog.toString();
+				pendingLog.setLength(0);
+			}
+		}
+		if (text != null) {
+			final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			chunk.writeVarLong(bytes.length);
+			chunk.write(bytes, 0, bytes.length);
+		} else {
+			chunk.write(0);
+		}
+		started = true;
+		if ((++frames >= CHUNK_FRAMES) || (chunk.length >= CHUNK_SIZE)) {
+			endChunk();
+		}
+	}
+
+	/**
+	 * Records the log text received after the last frame, writes the last
+	 * chunk and the index and closes the file. Invoked by the ticker when it
+	 * stops; waits for the writer thread to terminate.
+	 * 
+	 * @throws IOException
+	 *             If the trace could not be written.
+	 */
+	void close() throws IOException {
+		final boolean pending;
+		synchronized (pendingLog) {
+			pending = pendingLog.length() > 0;
+		}
+		if (pending && started && (error == null)) {
+			record(lastTime);
+		}
+		endChunk();
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				queue.put(END);
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/*
+	 * Compresses and writes chunks as they come, then the index and the
+	 * trailer, and closes the file.
+	 */
+	private final class Compressor implements Runnable {
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final List<long[]> index = new ArrayList<>();
+		private byte[] compressed = new byte[CHUNK_SIZE];
+		private long offset;
+		private long endTime;
+
+		Compressor(long offset) {
+			this.offset = offset;
+		}
+
+		private void write(Chunk chunk) throws IOException {
+			deflater.reset();
+			deflater.setInput(chunk.data, 0, chunk.length);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == compressed.length) {
+					compressed = Arrays.copyOf(compressed, length * 2);
+				}
+				length += deflater.deflate(compressed, length,
+						compressed.length - length);
+			}
+			index.add(new long[] { chunk.time, offset });
+			output.writeLong(chunk.time);
+			output.writeInt(chunk.frames);
+			output.writeInt(chunk.length);
+			output.writeInt(length);
+			output.write(compressed, 0, length);
+			offset += 20 + length;
+			endTime = chunk.endTime;
+		}
+
+		private void writeIndex() throws IOException {
+			output.writeInt(index.size());
+			for (long[] entry : index) {
+				output.writeLong(entry[0]);
+				output.writeLong(entry[1]);
+			}
+			output.writeLong(endTime);
+			output.writeLong(offset);
+			output.writeInt(Trace.MAGIC);
+			output.flush();
+		}
+
+		@Override
+		public void run() {
+			try {
+				Chunk chunk;
+				while ((chunk = queue.take()) != END) {
+					if (error == null) {
+						try {
+							write(chunk);
+						} catch (IOException e) {
+							error = e;
+						}
+					}
+				}
+				if (error == null) {
+					writeIndex();
+				}
+			} catch (InterruptedException e) {
+				/* nobody interrupts the writer */
+			} catch (IOException e) {
+				error = e;
+			} finally {
+				deflater.end();
+				try {
+					output.close();
+				} catch (IOException e) {
+					if (error == null) {
+						error = e;
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,21 +1,235 @@
 package it.uniroma1.di.simulejos;
 
-import javax.media.opengl.GLAutoDrawable;
-
-import it.uniroma1.di.simulejos.Robot.GPUSensor;
+import it.uniroma1.di.simulejos.Robot.CastScratch;
+import it.uniroma1.di.simulejos.Robot.Sensor;
 import it.uniroma1.di.simulejos.bridge.SimulatorInterface;
 import it.uniroma1.di.simulejos.math.Matrix3;
+import it.uniroma1.di.simulejos.math.MutableMatrix3;
+import it.uniroma1.di.simulejos.math.MutableVector3;
 import it.uniroma1.di.simulejos.math.Vector3;
 
-final class UltrasonicSensor extends GPUSensor implements
+import java.util.Arrays;
+
+/**
+ * A sonar that measures the distance of the robots and walls in front of it.
+ * 
+ * Each ping casts a cone of rays along the Z axis of the sensor against every
+ * other robot and keeps the nearest hit of each as an echo. The simulator has
+ * no static geometry besides the floor, which the sensor ignores: walls are
+ * models, such as those made by the WallGenerator project, placed in the
+ * scene as robots without a program, so they echo like any other robot. The
+ * sensor is accessed through the registers of the LEGO ultrasonic sensor, so
+ * that the leJOS class works unchanged on top of the I2C interface of its
+ * port, whose transactions keep the bus busy for the time of the transfer.
+ */
+final class UltrasonicSensor extends Sensor implements
 		SimulatorInterface.UltrasonicSensor {
+	/*
+	 * Robot models are scaled to span 2 units, about the size of an NXT
+	 * robot, so a unit is taken to be 10 centimeters.
+	 */
+	private static final double CENTIMETERS_PER_UNIT = 10;
+	private static final int NO_ECHO = 255;
+	private static final int MAX_ECHOES = 8;
+
+	/*
+	 * Half the aperture of the cone and the number of rays of each ring of
+	 * the cone, besides the central one.
+	 */
+	private static final double APERTURE = Math.toRadians(15);
+	private static final int[] RINGS = { 6, 12 };
+
+	private static final int ADDRESS = 0x02;
+	private static final int REG_VERSION = 0x00;
+	private static final int REG_VENDOR_ID = 0x08;
+	private static final int REG_PRODUCT_ID = 0x10;
+	private static final int REG_FACTORY_DATA = 0x11;
+	private static final int REG_UNITS = 0x14;
+	private static final int REG_MODE = 0x41;
+	private static final int REG_DISTANCE = 0x42;
+
+	private static final int MODE_OFF = 0x00;
+	private static final int MODE_PING = 0x01;
+	private static final int MODE_CONTINUOUS = 0x02;
+	private static final int MODE_RESET = 0x04;
+
+	private final Robot robot;
+	private final Vector3 position;
+	private final MutableMatrix3 heading;
+	private final Vector3[] rays;
+
+	private final MutableVector3 origin = new MutableVector3();
+	private final MutableMatrix3 orientation = new MutableMatrix3();
+	private final MutableVector3[] directions;
+	private final CastScratch castScratch = new CastScratch();
+	private final int[] echoes = new int[MAX_ECHOES];
+	private final byte[] registers = new byte[0x100];
+
 	UltrasonicSensor(Robot robot, Vector3 position, Matrix3 heading) {
-		robot.super(1, 1);
+		robot.super();
+		this.robot = robot;
+		this.position = position;
+		this.heading = new MutableMatrix3(heading);
+		int count = 1;
+		for (int ring : RINGS) {
+			count += ring;
+		}
+		this.rays = new Vector3[count];
+		this.directions = new MutableVector3[count];
+		rays[0] = Vector3.K;
+		int i = 1;
+		for (int ring = 0; ring < RINGS.length; ring++) {
+			final double angle = APERTURE * (ring + 1) / RINGS.length;
+			for (int j = 0; j < RINGS[ring]; j++) {
+				final double phi = Math.PI * 2 * j / RINGS[ring];
+				rays[i++] = new Vector3(Math.sin(angle) * Math.cos(phi),
+						Math.sin(angle) * Math.sin(phi), Math.cos(angle));
+			}
+		}
+		for (int j = 0; j < count; j++) {
+			directions[j] = new MutableVector3();
+		}
+		reset();
+	}
+
+	private void reset() {
+		Arrays.fill(registers, (byte) 0);
+		registers[REG_FACTORY_DATA + 1] = 1;
+		registers[REG_FACTORY_DATA + 2] = 14;
+		Arrays.fill(registers, REG_DISTANCE, REG_DISTANCE + MAX_ECHOES,
+				(byte) NO_ECHO);
+	}
+
+	@Override
+	public synchronized int ping(int[] distances) {
+		locate(position, heading, origin, orientation);
+		for (int i = 0; i < rays.length; i++) {
+			final MutableVector3 direction = orientation.transform(rays[i],
+					directions[i]);
+			direction.scale(1 / direction.length());
+		}
+		final double range = NO_ECHO / CENTIMETERS_PER_UNIT;
+		int count = 0;
+		for (Robot other : robots) {
+			if (other == robot) {
+				continue;
+			}
+			double nearest = Double.POSITIVE_INFINITY;
+			for (MutableVector3 direction : directions) {
+				nearest = Math.min(nearest,
+						other.cast(origin, direction, range, false,
+								castScratch));
+			}
+			if (nearest < range) {
+				final int echo = (int) Math.round(nearest
+						* CENTIMETERS_PER_UNIT);
+				int i = Math.min(count, MAX_ECHOES - 1);
+				if ((count < MAX_ECHOES) || (echo < echoes[i])) {
+					while ((i > 0) && (echoes[i - 1] > echo)) {
+						echoes[i] = echoes[i - 1];
+						i--;
+					}
+					echoes[i] = echo;
+					count = Math.min(count + 1, MAX_ECHOES);
+				}
+			}
+		}
+		final int length = Math.min(count, distances.length);
+		System.arraycopy(echoes, 0, distances, 0, length);
+		return length;
+	}
+
+	/**
+	 * Returns the distance of the nearest echo of the last measurement made
+	 * through the registers, as the robot program reads it, without pinging.
+	 * 
+	 * @return The distance in centimeters, 255 if there was no echo.
+	 */
+	int getDistance() {
+		return registers[REG_DISTANCE] & 0xFF;
+	}
+
+	/*
+	 * Pings and stores the echoes in the distance registers.
+	 */
+	private void measure() {
+		final int count = ping(echoes);
+		for (int i = 0; i < MAX_ECHOES; i++) {
+			registers[REG_DISTANCE + i] = (byte) ((i < count) ? echoes[i]
+					: NO_ECHO);
+		}
 	}
 
 	@Override
-	public void display(GLAutoDrawable drawable) {
-		// TODO Auto-generated method stub
+	public synchronized int transaction(int address, byte[] writeBuffer,
+			int writeOffset, int writeLength, byte[] readBuffer,
+			int readOffset, int readLength) {
+		if ((address != ADDRESS) || (writeLength < 1)) {
+			return -1;
+		}
+		final int register = writeBuffer[writeOffset] & 0xFF;
+		for (int i = 1; i < writeLength; i++) {
+			write((register + i - 1) & 0xFF, writeBuffer[writeOffset + i]);
+		}
+		if (readLength > 0) {
+			if ((register == REG_DISTANCE)
+					&& (registers[REG_MODE] == MODE_CONTINUOUS)) {
+				measure();
+			}
+			for (int i = 0; i < readLength; i++) {
+				readBuffer[readOffset + i] = read(register, i);
+			}
+		}
+		return readLength;
+	}
+
+	private void write(int register, byte value) {
+		if (register != REG_MODE) {
+			registers[register] = value;
+			return;
+		}
+		switch (value) {
+		case MODE_RESET:
+			reset();
+			break;
+		case MODE_PING:
+			registers[REG_MODE] = value;
+			measure();
+			break;
+		case MODE_OFF:
+		case MODE_CONTINUOUS:
+			registers[REG_MODE] = value;
+			break;
+		default:
+			/* capture mode: no other sonar is simulated */
+			registers[REG_MODE] = value;
+			Arrays.fill(registers, REG_DISTANCE, REG_DISTANCE + MAX_ECHOES,
+					(byte) NO_ECHO);
+			break;
+		}
+	}
+
+	/*
+	 * The identification strings overlap each other and the factory data in
+	 * the register space, so they are returned only by reads that start at
+	 * their own register.
+	 */
+	private byte read(int register, int offset) {
+		switch (register) {
+		case REG_VERSION:
+			return character("V1.0", offset);
+		case REG_VENDOR_ID:
+			return character("LEGO", offset);
+		case REG_PRODUCT_ID:
+			return character("Sonar", offset);
+		case REG_UNITS:
+			return character("10E-2m", offset);
+		default:
+			return registers[(register + offset) & 0xFF];
+		}
+	}
 
+	private static byte character(String string, int index) {
+		return (byte) ((index < string.length()) ? string.charAt(index) : 0);
 	}
 }
@@ -0,0 +1,24 @@
+package it.uniroma1.di.simulejos;
+
+import javax.media.opengl.GLEventListener;
+
+/**
+ * Abstracts the surface a {@link Simulation} renders to. The Swing user
+ * interface adapts its <code>GLJPanel</code> to this interface, while headless
+ * runs use an offscreen drawable or no drawable at all.
+ */
+public interface View {
+	/**
+	 * Registers a listener that receives the GL events of this view.
+	 * 
+	 * @param listener
+	 *            The listener to register.
+	 */
+	void addGLEventListener(GLEventListener listener);
+
+	/**
+	 * Asynchronously requests the view to be redrawn. Views that are never
+	 * shown to the user may ignore this request.
+	 */
+	void repaint();
+}
@@ -1,5 +1,6 @@
 #version 120
 
 void main() {
-	gl_FragColor = vec4(1);
+	vec3 depth = fract(gl_FragCoord.z * vec3(1, 255, 65025));
+	gl_FragColor = vec4(depth - depth.yzz * vec3(1.0 / 255, 1.0 / 255, 0), 1);
 }
@@ -29,5 +29,5 @@ void main() {
 		0, 1, 0, 0,
 		0, 0, 1, 0,
 		0, -1, 0, 1
-	) vec4(in_Vertex, 1);
+	) * vec4(in_Vertex, 1);
 }
@@ -0,0 +1,344 @@
+package it.uniroma1.di.simulejos.headless;
+
+import it.uniroma1.di.simulejos.Robot;
+import it.uniroma1.di.simulejos.Scene;
+import it.uniroma1.di.simulejos.Simulation;
+import it.uniroma1.di.simulejos.TracePlayer;
+import it.uniroma1.di.simulejos.math.Vector3;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Runs a {@link Scene} without any user interface, as fast as possible, and
+ * prints a JSON summary of the outcome to the standard output. The process
+ * exit status is {@link #EXIT_COMPLETED} if the scene ran to completion,
+ * {@link #EXIT_COLLISION} if two robots collided, {@link #EXIT_ERROR} if the
+ * simulation failed and {@link #EXIT_USAGE} if the command line is invalid.
+ * 
+ * Usage: <code>HeadlessSimulejos [options] scene [duration]</code>, where
+ * <code>duration</code> is in simulated seconds and overrides the one
+ * specified by the scene. Without a duration the simulation runs until all
+ * robot programs terminate. The options are <code>--debug</code>,
+ * <code>--parallel</code>, which steps robots in parallel,
+ * <code>--virtual-threads</code>, which runs robot programs on virtual
+ * threads, <code>--log-file file</code>, which writes the log to a file as
+ * well as to the standard error, <code>--log-drop</code>, which makes
+ * robots drop lines rather than wait for the log when they write too fast,
+ * <code>--trace file</code>, which records a trace of the run to a file, see
+ * {@link TracePlayer}, and <code>--heap</code>, which collects garbage at the
+ * end of the run to report the heap in use. The options override the
+ * settings of the scene.
+ * 
+ * Besides the outcome, the summary reports the cold start time, from the
+ * start of the JVM to the simulation being ready, with the scene loaded and
+ * the robot programs started. It also reports the peak number of platform
+ * threads and, with <code>--heap</code>, the heap in use at the end of the
+ * run, so that runs with a growing number of robots, on platform or virtual
+ * threads, can be compared. The stacks of platform threads are not allocated
+ * on the heap, while those of virtual threads are. The collection is not
+ * counted in the wall time of the run.
+ */
+public final class HeadlessSimulejos {
+	public static final int EXIT_COMPLETED = 0;
+	public static final int EXIT_COLLISION = 1;
+	public static final int EXIT_ERROR = 2;
+	public static final int EXIT_USAGE = 64;
+
+	private static final int BUFFER_SIZE = 256;
+	private static final long POLL_PERIOD = 10;
+
+	private enum Status {
+		COMPLETED, TERMINATED, COLLISION, ERROR
+	}
+
+	private final PrintStream out;
+	private final PrintStream err;
+	private final Object lock = new Object();
+	private volatile Status status;
+	private volatile Robot collider;
+	private volatile Robot collidee;
+	private volatile Exception error;
+
+	private HeadlessSimulejos(PrintStream out, PrintStream err) {
+		this.out = out;
+		this.err = err;
+	}
+
+	private void finish(Status status) {
+		synchronized (lock) {
+			if (this.status == null) {
+				this.status = status;
+			}
+			lock.notifyAll();
+		}
+	}
+
+	private static boolean allTerminated(Simulation simulation) {
+		for (Robot robot : simulation.robots) {
+			if (robot.isRunning()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String quote(String string) {
+		final StringBuilder builder = new StringBuilder("\"");
+		for (int i = 0; i < string.length(); i++) {
+			final char c = string.charAt(i);
+			switch (c) {
+			case '"':
+				builder.append("\\\"");
+				break;
+			case '\\':
+				builder.append("\\\\");
+				break;
+			case '\n':
+				builder.append("\\n");
+				break;
+			case '\r':
+				builder.append("\\r");
+				break;
+			case '\t':
+				builder.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					builder.append(String.format("\\u%04x", (int) c));
+				} else {
+					builder.append(c);
+				}
+			}
+		}
+		return builder.append('"').toString();
+	}
+
+	private int run(Scene scene, double duration, boolean parallel,
+			boolean virtualThreads, File logFile, boolean logBlocking,
+			File traceFile, boolean measureHeap) throws Exception {
+		final HeadlessView view = new HeadlessView(BUFFER_SIZE, BUFFER_SIZE);
+		if (!view.hasDrawable()) {
+			err.println("OpenGL is not available, GPU sensors will not work");
+		}
+		final Simulation simulation = new Simulation(view, new Writer() {
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+				err.print(new String(cbuf, off, len));
+			}
+
+			@Override
+			public void flush() {
+				err.flush();
+			}
+
+			@Override
+			public void close() {
+			}
+		}, new Simulation.Listener() {
+			@Override
+			public void collision(Robot robot, Robot robot2) {
+				synchronized (lock) {
+					if (status == null) {
+						collider = robot;
+						collidee = robot2;
+					}
+				}
+				finish(Status.COLLISION);
+			}
+
+			@Override
+			public void error(Exception exception) {
+				synchronized (lock) {
+					if (status == null) {
+						error = exception;
+					}
+				}
+				finish(Status.ERROR);
+			}
+		});
+		simulation.setLogFile(logFile);
+		/*
+		 * batch runs do not depend on the preferences of the user interface:
+		 * every setting is the one of the command line, or its default, unless
+		 * the scene specifies it
+		 */
+		simulation.setParallelStep(parallel);
+		simulation.setVirtualThreads(virtualThreads);
+		simulation.setLogBlocking(logBlocking);
+		scene.loadInto(simulation);
+		/*
+		 * the options on the command line take precedence over the settings of
+		 * the scene
+		 */
+		if (parallel) {
+			simulation.setParallelStep(true);
+		}
+		if (virtualThreads) {
+			simulation.setVirtualThreads(true);
+			if (!Simulation.isVirtualThreadSupported()) {
+				err.println("virtual threads are not available, "
+						+ "using platform threads");
+			}
+		}
+		if (!logBlocking) {
+			simulation.setLogBlocking(false);
+		}
+		simulation.setTraceFile(traceFile);
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		threadBean.resetPeakThreadCount();
+
+		final long wallStart = System.nanoTime();
+		final long start = simulation.getTime();
+		final long end = start + (long) (duration * 1000000000);
+		simulation.fastForward();
+		final long startUpTime = ManagementFactory.getRuntimeMXBean()
+				.getUptime();
+		view.display();
+		synchronized (lock) {
+			while (status == null) {
+				if ((duration > 0) && (simulation.getTime() >= end)) {
+					status = Status.COMPLETED;
+				} else if (allTerminated(simulation)) {
+					status = Status.TERMINATED;
+				} else {
+					lock.wait(POLL_PERIOD);
+				}
+			}
+		}
+		final long elapsed = simulation.getTime() - start;
+		final int peakThreads = threadBean.getPeakThreadCount();
+		final long gcStart = System.nanoTime();
+		long heapUsed = -1;
+		if (measureHeap) {
+			System.gc();
+			heapUsed = ManagementFactory.getMemoryMXBean()
+					.getHeapMemoryUsage().getUsed();
+		}
+		final long gcElapsed = System.nanoTime() - gcStart;
+		simulation.stop();
+		final long wallElapsed = System.nanoTime() - wallStart - gcElapsed;
+		view.destroy();
+		simulation.setLogFile(null);
+
+		final StringBuilder json = new StringBuilder("{");
+		json.append("\"status\":")
+				.append(quote(status.name().toLowerCase()));
+		json.append(",\"simulatedTime\":").append(elapsed / 1e9);
+		json.append(",\"wallTime\":").append(wallElapsed / 1e9);
+		json.append(",\"speedUp\":").append(simulation.getSpeedUp());
+		json.append(",\"peakThreads\":").append(peakThreads);
+		if (heapUsed >= 0) {
+			json.append(",\"heapUsed\":").append(heapUsed);
+		}
+		json.append(",\"startUpTime\":").append(startUpTime / 1e3);
+		if (status == Status.COLLISION) {
+			json.append(",\"collision\":[")
+					.append(quote("NXT" + collider.index)).append(',')
+					.append(quote("NXT" + collidee.index)).append(']');
+		}
+		if (status == Status.ERROR) {
+			json.append(",\"error\":").append(quote(error.toString()));
+		}
+		json.append(",\"robots\":[");
+		boolean first = true;
+		for (Robot robot : simulation.robots) {
+			final Vector3 position = robot.getPosition();
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+			json.append("{\"name\":").append(quote("NXT" + robot.index))
+					.append(",\"position\":[").append(position.x).append(',')
+					.append(position.y).append(',').append(position.z)
+					.append("]}");
+		}
+		json.append("]}");
+		out.println(json);
+		out.flush();
+
+		switch (status) {
+		case COLLISION:
+			return EXIT_COLLISION;
+		case ERROR:
+			return EXIT_ERROR;
+		default:
+			return EXIT_COMPLETED;
+		}
+	}
+
+	private static void usage(PrintStream err) {
+		err.println("usage: HeadlessSimulejos [--debug] [--parallel] [--virtual-threads] [--log-file file] [--log-drop] [--trace file] [--heap] scene [duration]");
+		System.exit(EXIT_USAGE);
+	}
+
+	public static void main(String[] arguments) {
+		/*
+		 * robots replace the standard streams with their own when they start,
+		 * so the original ones must be retained here
+		 */
+		final PrintStream out = System.out;
+		final PrintStream err = System.err;
+		int index = 0;
+		boolean parallel = false;
+		boolean virtualThreads = false;
+		File logFile = null;
+		boolean logBlocking = true;
+		File traceFile = null;
+		boolean measureHeap = false;
+		for (; (index < arguments.length)
+				&& arguments[index].startsWith("--"); index++) {
+			if (arguments[index].equals("--debug")) {
+				Simulation.setDebugMode(true);
+			} else if (arguments[index].equals("--parallel")) {
+				parallel = true;
+			} else if (arguments[index].equals("--virtual-threads")) {
+				virtualThreads = true;
+			} else if (arguments[index].equals("--log-file")
+					&& (index + 1 < arguments.length)) {
+				logFile = new File(arguments[++index]);
+			} else if (arguments[index].equals("--log-drop")) {
+				logBlocking = false;
+			} else if (arguments[index].equals("--trace")
+					&& (index + 1 < arguments.length)) {
+				traceFile = new File(arguments[++index]);
+			} else if (arguments[index].equals("--heap")) {
+				measureHeap = true;
+			} else {
+				usage(err);
+			}
+		}
+		if ((arguments.length - index < 1) || (arguments.length - index > 2)) {
+			usage(err);
+		}
+		final Scene scene;
+		try {
+			scene = Scene.read(new File(arguments[index]));
+		} catch (Exception e) {
+			err.println(e.getMessage());
+			System.exit(EXIT_USAGE);
+			return;
+		}
+		double duration = scene.duration;
+		if (arguments.length - index > 1) {
+			try {
+				duration = Double.parseDouble(arguments[index + 1]);
+			} catch (NumberFormatException e) {
+				usage(err);
+			}
+		}
+		int exitCode;
+		try {
+			exitCode = new HeadlessSimulejos(out, err).run(scene, duration,
+					parallel, virtualThreads, logFile, logBlocking,
+					traceFile, measureHeap);
+		} catch (Exception e) {
+			e.printStackTrace(err);
+			exitCode = EXIT_ERROR;
+		}
+		System.exit(exitCode);
+	}
+}
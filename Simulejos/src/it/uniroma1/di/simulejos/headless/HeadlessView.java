@@ -0,0 +1,64 @@
+package it.uniroma1.di.simulejos.headless;
+
+import it.uniroma1.di.simulejos.View;
+
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLEventListener;
+import javax.media.opengl.GLException;
+import javax.media.opengl.GLProfile;
+
+/**
+ * A {@link View} backed by an offscreen drawable. Nothing is ever shown, the
+ * drawable only exists to provide a GL context to GPU sensors. If no GL
+ * implementation is available the view has no drawable at all and GPU sensors
+ * never produce samples.
+ */
+final class HeadlessView implements View {
+	private final GLAutoDrawable drawable;
+
+	public HeadlessView(int width, int height) {
+		GLAutoDrawable drawable;
+		try {
+			drawable = GLDrawableFactory.getFactory(GLProfile.getDefault())
+					.createOffscreenAutoDrawable(null,
+							new GLCapabilities(GLProfile.get(GLProfile.GL2GL3)),
+							null, width, height, null);
+		} catch (GLException e) {
+			drawable = null;
+		}
+		this.drawable = drawable;
+	}
+
+	public boolean hasDrawable() {
+		return drawable != null;
+	}
+
+	@Override
+	public void addGLEventListener(GLEventListener listener) {
+		if (drawable != null) {
+			drawable.addGLEventListener(listener);
+		}
+	}
+
+	@Override
+	public void repaint() {
+	}
+
+	/**
+	 * Synchronously renders the scene once. This provides the context that
+	 * the framebuffer of the GPU sensors is shared with.
+	 */
+	public void display() {
+		if (drawable != null) {
+			drawable.display();
+		}
+	}
+
+	public void destroy() {
+		if (drawable != null) {
+			drawable.destroy();
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package it.uniroma1.di.simulejos.opengl;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
@@ -129,6 +130,20 @@ public class Buffer extends GLObject {
 		gl.glBindBuffer(target, 0);
 	}
 
+	/**
+	 * Allocates the storage of this buffer without initializing it.
+	 * 
+	 * @param size
+	 *            The size of the buffer, in bytes.
+	 */
+	public void allocate(GL2GL3 gl, long size) {
+		gl.glBufferData(target, size, null, usage);
+	}
+
+	public void allocate(long size) {
+		gl.glBufferData(target, size, null, usage);
+	}
+
 	public void data(GL2GL3 gl, byte[] data) {
 		gl.glBufferData(target, data.length, ByteBuffer.wrap(data), usage);
 	}
@@ -343,6 +358,31 @@ public class Buffer extends GLObject {
 		return buffer;
 	}
 
+	/**
+	 * Maps the storage of this buffer into client memory. The buffer must be
+	 * bound, and must be unmapped before being used by GL again.
+	 * 
+	 * @param access
+	 *            One of <code>GL_READ_ONLY</code>, <code>GL_WRITE_ONLY</code>
+	 *            and <code>GL_READ_WRITE</code>.
+	 * @return The mapped storage, in native byte order.
+	 */
+	public ByteBuffer map(GL2GL3 gl, int access) {
+		return gl.glMapBuffer(target, access).order(ByteOrder.nativeOrder());
+	}
+
+	public ByteBuffer map(int access) {
+		return gl.glMapBuffer(target, access).order(ByteOrder.nativeOrder());
+	}
+
+	public boolean unmap(GL2GL3 gl) {
+		return gl.glUnmapBuffer(target);
+	}
+
+	public boolean unmap() {
+		return gl.glUnmapBuffer(target);
+	}
+
 	public int getSize(GL2GL3 gl) {
 		final int[] result = new int[1];
 		gl.glGetBufferParameteriv(target, GL_BUFFER_SIZE, result, 0);
@@ -1,5 +1,6 @@
 package it.uniroma1.di.simulejos.opengl;
 
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 
 import javax.media.opengl.GL2GL3;
@@ -24,4 +25,24 @@ public class ElementArrayBuffer extends Buffer {
 		super(gl, Target.ELEMENT_ARRAY, usage);
 		data(indices);
 	}
+
+	public ElementArrayBuffer(GL2GL3 gl, int[] indices) {
+		super(gl, Target.ELEMENT_ARRAY, Usage.STATIC_DRAW);
+		data(indices);
+	}
+
+	public ElementArrayBuffer(GL2GL3 gl, IntBuffer indices) {
+		super(gl, Target.ELEMENT_ARRAY, Usage.STATIC_DRAW);
+		data(indices);
+	}
+
+	public ElementArrayBuffer(GL2GL3 gl, int[] indices, Usage usage) {
+		super(gl, Target.ELEMENT_ARRAY, usage);
+		data(indices);
+	}
+
+	public ElementArrayBuffer(GL2GL3 gl, IntBuffer indices, Usage usage) {
+		super(gl, Target.ELEMENT_ARRAY, usage);
+		data(indices);
+	}
 }
@@ -1,5 +1,6 @@
 package it.uniroma1.di.simulejos.opengl;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
@@ -10,26 +11,79 @@ import java.util.LinkedList;
 import java.util.List;
 
 import javax.media.opengl.GL2GL3;
+import javax.media.opengl.GL3;
 import static javax.media.opengl.GL2GL3.*;
 
 public class Elements {
 	private volatile int nextIndex;
 	private final GL2GL3 gl;
 	private final int count;
+	private final int type;
 	private final ElementArrayBuffer elementArray;
+
+	/*
+	 * The indices on the client side, sourced by instanced draws: the
+	 * bindings of this version of JOGL have no instanced draw taking an
+	 * offset into the element array buffer.
+	 */
+	private final Buffer indices;
 	private final List<VertexArray> arrays = Collections
 			.synchronizedList(new LinkedList<VertexArray>());
 
 	public Elements(GL2GL3 gl, short[] indices) {
 		this.gl = gl;
 		this.count = indices.length;
+		this.type = GL_UNSIGNED_SHORT;
 		this.elementArray = new ElementArrayBuffer(gl, indices);
+		this.indices = ShortBuffer.wrap(indices);
 	}
 
 	public Elements(GL2GL3 gl, ShortBuffer indices) {
 		this.gl = gl;
 		this.count = indices.limit();
+		this.type = GL_UNSIGNED_SHORT;
+		this.elementArray = new ElementArrayBuffer(gl, indices);
+		this.indices = indices.duplicate();
+	}
+
+	/**
+	 * Creates elements with 32-bit indices. If no index exceeds 32767, that is
+	 * if they all fit in a Java short without wrapping, they are uploaded as
+	 * shorts instead, halving the size of the element array and the bandwidth
+	 * it takes to draw it.
+	 */
+	public Elements(GL2GL3 gl, int[] indices) {
+		this.gl = gl;
+		this.count = indices.length;
+		if (max(indices) <= Short.MAX_VALUE) {
+			final short[] shortIndices = new short[indices.length];
+			for (int i = 0; i < indices.length; i++) {
+				shortIndices[i] = (short) indices[i];
+			}
+			this.type = GL_UNSIGNED_SHORT;
+			this.elementArray = new ElementArrayBuffer(gl, shortIndices);
+			this.indices = ShortBuffer.wrap(shortIndices);
+		} else {
+			this.type = GL_UNSIGNED_INT;
+			this.elementArray = new ElementArrayBuffer(gl, indices);
+			this.indices = IntBuffer.wrap(indices);
+		}
+	}
+
+	public Elements(GL2GL3 gl, IntBuffer indices) {
+		this.gl = gl;
+		this.count = indices.limit();
+		this.type = GL_UNSIGNED_INT;
 		this.elementArray = new ElementArrayBuffer(gl, indices);
+		this.indices = indices.duplicate();
+	}
+
+	private static int max(int[] indices) {
+		int max = 0;
+		for (int index : indices) {
+			max = Math.max(max, index);
+		}
+		return max;
 	}
 
 	public void add(int components, byte[] data) {
@@ -93,11 +147,11 @@ public class Elements {
 	}
 
 	public void draw(GL2GL3 gl, int mode) {
-		gl.glDrawElements(mode, count, GL_UNSIGNED_SHORT, 0);
+		gl.glDrawElements(mode, count, type, 0);
 	}
 
 	public void draw(int mode) {
-		gl.glDrawElements(mode, count, GL_UNSIGNED_SHORT, 0);
+		gl.glDrawElements(mode, count, type, 0);
 	}
 
 	public void bindAndDraw(GL2GL3 gl, int mode) {
@@ -105,7 +159,7 @@ public class Elements {
 		for (VertexArray array : arrays) {
 			array.bind(gl);
 		}
-		gl.glDrawElements(mode, count, GL_UNSIGNED_SHORT, 0);
+		gl.glDrawElements(mode, count, type, 0);
 	}
 
 	public void bindAndDraw(int mode) {
@@ -113,7 +167,75 @@ public class Elements {
 		for (VertexArray array : arrays) {
 			array.bind();
 		}
-		gl.glDrawElements(mode, count, GL_UNSIGNED_SHORT, 0);
+		gl.glDrawElements(mode, count, type, 0);
+	}
+
+	/**
+	 * Draws a range of the elements, as when several index lists share the
+	 * element array and the vertex arrays.
+	 * 
+	 * @param first
+	 *            The index of the first element to draw.
+	 * @param count
+	 *            The number of elements to draw.
+	 */
+	public void draw(GL2GL3 gl, int mode, int first, int count) {
+		gl.glDrawElements(mode, count, type, first * getIndexSize());
+	}
+
+	public void draw(int mode, int first, int count) {
+		gl.glDrawElements(mode, count, type, first * getIndexSize());
+	}
+
+	public void bindAndDraw(GL2GL3 gl, int mode, int first, int count) {
+		elementArray.bind(gl);
+		for (VertexArray array : arrays) {
+			array.bind(gl);
+		}
+		gl.glDrawElements(mode, count, type, first * getIndexSize());
+	}
+
+	public void bindAndDraw(int mode, int first, int count) {
+		elementArray.bind();
+		for (VertexArray array : arrays) {
+			array.bind();
+		}
+		gl.glDrawElements(mode, count, type, first * getIndexSize());
+	}
+
+	/**
+	 * Draws a range of the elements once for every instance, as when the
+	 * vertex arrays are shared by several objects whose own attributes are
+	 * sourced from arrays with a divisor. The indices are sourced from the
+	 * client side, which needs a compatibility profile, and the element array
+	 * buffer is left unbound.
+	 * 
+	 * @param first
+	 *            The index of the first element to draw.
+	 * @param count
+	 *            The number of elements to draw.
+	 * @param instances
+	 *            The number of instances to draw.
+	 */
+	public void drawInstanced(GL3 gl, int mode, int first, int count,
+			int instances) {
+		final Buffer range;
+		if (type == GL_UNSIGNED_SHORT) {
+			range = ((ShortBuffer) indices).duplicate();
+		} else {
+			range = ((IntBuffer) indices).duplicate();
+		}
+		range.position(first);
+		gl.glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+		gl.glDrawElementsInstanced(mode, count, type, range, instances);
+	}
+
+	public void drawInstanced(int mode, int first, int count, int instances) {
+		drawInstanced(gl.getGL3(), mode, first, count, instances);
+	}
+
+	private int getIndexSize() {
+		return (type == GL_UNSIGNED_SHORT) ? 2 : 4;
 	}
 
 	public void delete() {
@@ -2,6 +2,8 @@ package it.uniroma1.di.simulejos.opengl;
 
 import it.uniroma1.di.simulejos.math.Matrix3;
 import it.uniroma1.di.simulejos.math.Matrix4;
+import it.uniroma1.di.simulejos.math.MutableMatrix3;
+import it.uniroma1.di.simulejos.math.MutableVector3;
 import it.uniroma1.di.simulejos.math.Vector2;
 import it.uniroma1.di.simulejos.math.Vector3;
 import it.uniroma1.di.simulejos.math.Vector4;
@@ -14,7 +16,17 @@ import java.util.Map;
 import javax.media.opengl.GL2GL3;
 import static javax.media.opengl.GL2GL3.*;
 
+/**
+ * A shader program. A program must only be used by the thread its context is
+ * current on, typically the GL thread of its view: the uniforms of mutable
+ * matrices are converted through a scratch array owned by the program, which
+ * is not synchronized.
+ */
 public class Program extends GLObject {
+	/*
+	 * confined to the thread of the context, like the program itself
+	 */
+	private final float[] matrixBuffer = new float[9];
 	private final Map<String, Integer> uniformLocationCache = Collections
 			.synchronizedMap(new HashMap<String, Integer>());
 
@@ -327,6 +339,14 @@ public class Program extends GLObject {
 		uniform3f(name, (float) v.x, (float) v.y, (float) v.z);
 	}
 
+	public void uniform(GL2GL3 gl, String name, MutableVector3 v) {
+		uniform3f(gl, name, (float) v.x, (float) v.y, (float) v.z);
+	}
+
+	public void uniform(String name, MutableVector3 v) {
+		uniform3f(name, (float) v.x, (float) v.y, (float) v.z);
+	}
+
 	public void uniform(GL2GL3 gl, String name, Vector4 v) {
 		uniform4f(gl, name, (float) v.x, (float) v.y, (float) v.z, (float) v.w);
 	}
@@ -376,6 +396,18 @@ public class Program extends GLObject {
 				floatValues, 0);
 	}
 
+	public void uniform(GL2GL3 gl, String name, MutableMatrix3 matrix) {
+		matrix.toArray(matrixBuffer);
+		gl.glUniformMatrix3fv(getUniformLocation(gl, name), 1, true,
+				matrixBuffer, 0);
+	}
+
+	public void uniform(String name, MutableMatrix3 matrix) {
+		matrix.toArray(matrixBuffer);
+		gl.glUniformMatrix3fv(getUniformLocation(gl, name), 1, true,
+				matrixBuffer, 0);
+	}
+
 	public void uniform(GL2GL3 gl, String name, Matrix4 matrix,
 			boolean transpose) {
 		final double[] values = matrix.toArray();
@@ -8,19 +8,19 @@ import javax.media.opengl.glu.GLUtessellatorCallbackAdapter;
 
 public class Tessellation {
 	public static interface Callback {
-		void index(short index);
+		void index(int index);
 	}
 
 	private final Callback callback;
 	private final GLUtessellator tessellator = GLU.gluNewTess();
 
 	private static interface Handler {
-		void index(short index);
+		void index(int index);
 	}
 
 	private final class TriangleHandler implements Handler {
 		@Override
-		public void index(short index) {
+		public void index(int index) {
 			callback.index(index);
 		}
 	}
@@ -30,11 +30,11 @@ public class Tessellation {
 	private final class TriangleStripHandler implements Handler {
 		private boolean first;
 		private boolean second;
-		private short index1;
-		private short index2;
+		private int index1;
+		private int index2;
 
 		@Override
-		public void index(short index) {
+		public void index(int index) {
 			if (!first) {
 				index1 = index;
 				first = true;
@@ -56,11 +56,11 @@ public class Tessellation {
 	private final class TriangleFanHandler implements Handler {
 		private boolean first;
 		private boolean second;
-		private short firstIndex;
-		private short lastIndex;
+		private int firstIndex;
+		private int lastIndex;
 
 		@Override
-		public void index(short index) {
+		public void index(int index) {
 			if (!first) {
 				firstIndex = index;
 				first = true;
@@ -99,17 +99,17 @@ public class Tessellation {
 
 			@Override
 			public void vertex(Object index) {
-				handler.index((short) index);
+				handler.index((Integer) index);
 			}
 		};
 		GLU.gluTessCallback(tessellator, GLU.GLU_TESS_BEGIN, callback);
 		GLU.gluTessCallback(tessellator, GLU.GLU_TESS_VERTEX, callback);
 	}
 
-	public Tessellation(float[] vertices, short[] indices, Callback callback) {
+	public Tessellation(float[] vertices, int[] indices, Callback callback) {
 		this.callback = callback;
 		GLU.gluBeginPolygon(tessellator);
-		for (short index : indices) {
+		for (int index : indices) {
 			double w = vertices[index * 4 + 3];
 			GLU.gluTessVertex(tessellator, new double[] {
 					vertices[index * 4] / w, vertices[index * 4 + 1] / w,
@@ -273,6 +273,14 @@ public class Texture2D extends GLObject {
 		gl.glCopyTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, x, y, width, height, 0);
 	}
 
+	public void generateMipmap(GL2GL3 gl) {
+		gl.glGenerateMipmap(GL_TEXTURE_2D);
+	}
+
+	public void generateMipmap() {
+		gl.glGenerateMipmap(GL_TEXTURE_2D);
+	}
+
 	public void delete() {
 		gl.glDeleteTextures(1, new int[] { id }, 0);
 	}
@@ -1,7 +1,8 @@
 #version 120
 
 uniform vec3 Color;
+varying vec3 ex_Color;
 
 void main() {
-	gl_FragColor = vec4(Color, 1);
+	gl_FragColor = vec4(Color * ex_Color, 1);
 }
@@ -5,10 +5,7 @@ uniform struct {
 	vec3 Position;
 } Camera;
 
-uniform vec3 Position;
-uniform mat3 Heading;
-
-mat4 ModelViewProjection = mat4(
+mat4 ViewProjection = mat4(
 	1, 0, 0, 0,
 	0, 1, 0, 0,
 	0, 0, 0, 1,
@@ -28,15 +25,22 @@ mat4 ModelViewProjection = mat4(
 	0, 1, 0, 0,
 	0, 0, 1, 0,
 	-Camera.Position, 1
-) * mat4(
-	1, 0, 0, 0,
-	0, 1, 0, 0,
-	0, 0, 1, 0,
-	Position, 1
-) * mat4(Heading);
+);
 
 attribute vec4 in_Vertex;
+attribute vec3 in_Position;
+attribute vec3 in_Heading0;
+attribute vec3 in_Heading1;
+attribute vec3 in_Heading2;
+attribute vec3 in_Color;
+varying vec3 ex_Color;
 
 void main() {
-	gl_Position = ModelViewProjection * in_Vertex;
+	gl_Position = ViewProjection * mat4(
+		1, 0, 0, 0,
+		0, 1, 0, 0,
+		0, 0, 1, 0,
+		in_Position, 1
+	) * mat4(mat3(in_Heading0, in_Heading1, in_Heading2)) * in_Vertex;
+	ex_Color = in_Color;
 }
@@ -5,10 +5,12 @@ uniform vec3 RobotPosition;
 uniform mat3 InverseRobotHeading;
 uniform vec3 SensorPosition;
 uniform mat3 InverseSensorHeading;
-uniform vec3 TargetRobotPosition;
-uniform mat3 TargetRobotHeading;
 
 attribute vec3 in_Vertex;
+attribute vec3 in_Position;
+attribute vec3 in_Heading0;
+attribute vec3 in_Heading1;
+attribute vec3 in_Heading2;
 varying vec4 ex_Vertex;
 
 void main() {
@@ -31,7 +33,7 @@ void main() {
 		1, 0, 0, 0,
 		0, 1, 0, 0,
 		0, 0, 1, 0,
-		TargetRobotPosition, 1
-	) * mat4(TargetRobotHeading) * vec4(in_Vertex, 1);
+		in_Position, 1
+	) * mat4(mat3(in_Heading0, in_Heading1, in_Heading2)) * vec4(in_Vertex, 1);
 	gl_Position = ex_Vertex;
 }
@@ -4,9 +4,16 @@ import java.awt.Font;
 import java.io.Writer;
 
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 
+/**
+ * Displays the log of a simulation. The log is written in batches by the
+ * consumer of the log pipeline, and every batch is appended at once on the
+ * event dispatch thread. Only the most recent part of the log is kept.
+ */
 final class LogWindow extends JTextArea {
 	private static final long serialVersionUID = -928033214250978702L;
+	private static final int MAX_LENGTH = 1 << 20;
 
 	{
 		setEditable(false);
@@ -14,24 +21,37 @@ final class LogWindow extends JTextArea {
 		setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
 	}
 
+	private void appendBatch(String text) {
+		append(text);
+		final int excess = getDocument().getLength() - MAX_LENGTH;
+		if (excess > 0) {
+			replaceRange(null, 0, excess);
+		}
+	}
+
 	public Writer getWriter() {
 		return new Writer() {
-			private boolean closed;
+			private volatile boolean closed;
 
 			@Override
-			public synchronized void write(char[] buffer, int offset, int length) {
+			public void write(char[] buffer, int offset, int length) {
 				if (!closed) {
-					LogWindow.this.append(new String(buffer).substring(offset,
-							offset + length));
+					final String text = new String(buffer, offset, length);
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							appendBatch(text);
+						}
+					});
 				}
 			}
 
 			@Override
-			public synchronized void flush() {
+			public void flush() {
 			}
 
 			@Override
-			public synchronized void close() {
+			public void close() {
 				closed = true;
 			}
 		};
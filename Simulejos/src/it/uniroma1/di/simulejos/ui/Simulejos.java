@@ -1,9 +1,12 @@
 package it.uniroma1.di.simulejos.ui;
 
 import it.uniroma1.di.simulejos.Robot;
+import it.uniroma1.di.simulejos.Scene;
 import it.uniroma1.di.simulejos.Simulation;
+import it.uniroma1.di.simulejos.TracePlayer;
 import it.uniroma1.di.simulejos.math.Vector2;
 import it.uniroma1.di.simulejos.math.Vector3;
+import it.uniroma1.di.simulejos.wavefront.ParseException;
 
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
@@ -14,6 +17,7 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowStateListener;
+import java.io.File;
 import java.io.IOException;
 import java.util.prefs.Preferences;
 
@@ -26,6 +30,7 @@ import javax.swing.Action;
 import javax.swing.ButtonGroup;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
@@ -37,6 +42,7 @@ import javax.swing.JToggleButton;
 import javax.swing.JToolBar;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.filechooser.FileNameExtensionFilter;
 
 public final class Simulejos extends JFrame {
 	private static final long serialVersionUID = 1344391485057572344L;
@@ -277,6 +283,36 @@ public final class Simulejos extends JFrame {
 	private volatile Simulation simulation = new Simulation(this, canvas,
 			logWindow.getWriter());
 
+	private final JFileChooser sceneChooser = new JFileChooser();
+	{
+		sceneChooser.setFileFilter(new FileNameExtensionFilter(
+				"Simulejos Scene (*.properties)", "properties"));
+		sceneChooser.setAcceptAllFileFilterUsed(true);
+		final String path = Preferences.userNodeForPackage(Simulejos.class)
+				.get("lastSceneDirectory", null);
+		if (path != null) {
+			sceneChooser.setCurrentDirectory(new File(path));
+		}
+	}
+
+	private final JFileChooser traceChooser = new JFileChooser();
+	{
+		traceChooser.setFileFilter(new FileNameExtensionFilter(
+				"Simulejos Trace (*.trace)", "trace"));
+		traceChooser.setAcceptAllFileFilterUsed(true);
+	}
+
+	/*
+	 * The trace being replayed, if any.
+	 */
+	private volatile TracePlayer player;
+
+	private void storeLastSceneDirectory() {
+		Preferences.userNodeForPackage(Simulejos.class).put(
+				"lastSceneDirectory",
+				sceneChooser.getCurrentDirectory().getAbsolutePath());
+	}
+
 	private boolean canDiscard() {
 		return !simulation.isDirty()
 				|| (JOptionPane.showConfirmDialog(this,
@@ -308,18 +344,69 @@ public final class Simulejos extends JFrame {
 		@Override
 		public void actionPerformed(ActionEvent e) {
 			if (canDiscard()) {
-				simulation.stop();
-				final GLAutoDrawable oldCanvas = canvas;
-				canvas = new Canvas(keyboardHandler, mouseHandler);
-				simulation = new Simulation(Simulejos.this, canvas,
-						logWindow.getWriter());
-				splitPane.setLeftComponent(canvas);
-				oldCanvas.destroy();
-				logWindow.setText("");
+				reset();
 				canvas.repaint();
 			}
 		}
 	};
+	public final Action OPEN_SCENE_ACTION = new AbstractAction(
+			"Open scene...") {
+		private static final long serialVersionUID = 3360846012985473186L;
+
+		@Override
+		public void actionPerformed(ActionEvent event) {
+			if (canDiscard()) {
+				if (sceneChooser.showOpenDialog(Simulejos.this) == JFileChooser.APPROVE_OPTION) {
+					storeLastSceneDirectory();
+					loadScene(sceneChooser.getSelectedFile());
+				}
+			}
+		}
+	};
+	public final Action SAVE_SCENE_ACTION = new AbstractAction(
+			"Save scene...") {
+		private static final long serialVersionUID = -5468290361537326164L;
+
+		@Override
+		public void actionPerformed(ActionEvent event) {
+			if (sceneChooser.showSaveDialog(Simulejos.this) == JFileChooser.APPROVE_OPTION) {
+				storeLastSceneDirectory();
+				try {
+					Scene.capture(simulation, 0).write(
+							sceneChooser.getSelectedFile());
+					simulation.clearDirty();
+				} catch (IOException e) {
+					JOptionPane.showMessageDialog(Simulejos.this,
+							e.getMessage(), "Simulejos",
+							JOptionPane.ERROR_MESSAGE);
+				}
+			}
+		}
+	};
+	public final Action RECORD_TRACE_ACTION = new AbstractAction(
+			"Record trace...") {
+		private static final long serialVersionUID = 6121457360127436418L;
+
+		@Override
+		public void actionPerformed(ActionEvent event) {
+			if (traceChooser.showSaveDialog(Simulejos.this) == JFileChooser.APPROVE_OPTION) {
+				simulation.setTraceFile(traceChooser.getSelectedFile());
+			}
+		}
+	};
+	public final Action REPLAY_TRACE_ACTION = new AbstractAction(
+			"Replay trace...") {
+		private static final long serialVersionUID = -3080532715472952763L;
+
+		@Override
+		public void actionPerformed(ActionEvent event) {
+			if (canDiscard()) {
+				if (traceChooser.showOpenDialog(Simulejos.this) == JFileChooser.APPROVE_OPTION) {
+					replayTrace(traceChooser.getSelectedFile());
+				}
+			}
+		}
+	};
 	public final Action EXIT_ACTION = new AbstractAction("Exit") {
 		private static final long serialVersionUID = -1289143153929543605L;
 
@@ -461,6 +548,11 @@ public final class Simulejos extends JFrame {
 		setJMenuBar(menuBar);
 		final JMenu fileMenu = new JMenu("Simulejos");
 		fileMenu.add(RESET_ACTION);
+		fileMenu.add(OPEN_SCENE_ACTION);
+		fileMenu.add(SAVE_SCENE_ACTION);
+		fileMenu.addSeparator();
+		fileMenu.add(RECORD_TRACE_ACTION);
+		fileMenu.add(REPLAY_TRACE_ACTION);
 		fileMenu.addSeparator();
 		fileMenu.add(EXIT_ACTION);
 		menuBar.add(fileMenu);
@@ -545,6 +637,78 @@ public final class Simulejos extends JFrame {
 		setVisible(true);
 	}
 
+	private void setEditable(boolean editable) {
+		ADD_ROBOT_ACTION.setEnabled(editable);
+		NAVIGATE_ACTION.setEnabled(editable);
+		MOVE_ACTION.setEnabled(editable);
+		ROTATE_ACTION.setEnabled(editable);
+		DELETE_ACTION.setEnabled(editable);
+		PLAY_ACTION.setEnabled(editable);
+		FAST_FORWARD_ACTION.setEnabled(editable);
+		SUSPEND_ACTION.setEnabled(editable);
+		STOP_ACTION.setEnabled(editable);
+		RECORD_TRACE_ACTION.setEnabled(editable);
+		SAVE_SCENE_ACTION.setEnabled(editable);
+	}
+
+	private void reset() {
+		if (player != null) {
+			try {
+				player.close();
+			} catch (IOException e) {
+				/* nothing else to release */
+			}
+			player = null;
+			setEditable(true);
+		}
+		simulation.stop();
+		final GLAutoDrawable oldCanvas = canvas;
+		canvas = new Canvas(keyboardHandler, mouseHandler);
+		simulation = new Simulation(this, canvas, logWindow.getWriter());
+		splitPane.setLeftComponent(canvas);
+		oldCanvas.destroy();
+		logWindow.setText("");
+	}
+
+	/*
+	 * Replaces the current simulation with a new one loaded from a scene.
+	 */
+	private void loadScene(File file) {
+		reset();
+		try {
+			Scene.read(file).loadInto(simulation);
+		} catch (IOException | ParseException | ScriptException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage(), "Simulejos",
+					JOptionPane.ERROR_MESSAGE);
+		}
+		simulation.clearDirty();
+		canvas.repaint();
+	}
+
+	/*
+	 * Replaces the current simulation with the replay of a trace, which
+	 * starts right away. Robot code does not run, so the simulation cannot be
+	 * edited or played until it is reset.
+	 */
+	private void replayTrace(File file) {
+		reset();
+		NAVIGATE_ACTION.putValue(Action.SELECTED_KEY, true);
+		cursorState = navigateCursorState;
+		try {
+			player = TracePlayer.open(file, simulation, logWindow.getWriter());
+		} catch (IOException | ParseException | ScriptException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage(), "Simulejos",
+					JOptionPane.ERROR_MESSAGE);
+			reset();
+			canvas.repaint();
+			return;
+		}
+		setEditable(false);
+		simulation.clearDirty();
+		player.play();
+		canvas.repaint();
+	}
+
 	public static class CommandLineException extends RuntimeException {
 		private static final long serialVersionUID = 2806285902459793394L;
 
@@ -553,21 +717,35 @@ public final class Simulejos extends JFrame {
 		}
 	}
 
+	/**
+	 * Usage: <code>Simulejos [--debug] [scene]</code>, where
+	 * <code>scene</code> is a {@link Scene} to open at startup.
+	 */
 	public static void main(String[] arguments) {
-		if (arguments.length > 1) {
-			throw new CommandLineException();
-		}
-		if (arguments.length > 0) {
-			if (arguments[0].equals("--debug")) {
-				Simulation.setDebugMode(true);
-			} else {
+		int index = 0;
+		if ((index < arguments.length) && arguments[index].equals("--debug")) {
+			Simulation.setDebugMode(true);
+			index++;
+		}
+		final File sceneFile;
+		if (index < arguments.length) {
+			if (arguments[index].startsWith("--")) {
 				throw new CommandLineException();
 			}
+			sceneFile = new File(arguments[index++]);
+		} else {
+			sceneFile = null;
+		}
+		if (index < arguments.length) {
+			throw new CommandLineException();
 		}
 		SwingUtilities.invokeLater(new Runnable() {
 			@Override
 			public void run() {
-				new Simulejos();
+				final Simulejos simulejos = new Simulejos();
+				if (sceneFile != null) {
+					simulejos.loadScene(sceneFile);
+				}
 			}
 		});
 	}
@@ -3,174 +3,361 @@ package it.uniroma1.di.simulejos.wavefront;
 import it.uniroma1.di.simulejos.wavefront.WavefrontCommandHandler.Corner;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.StreamTokenizer;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
+/**
+ * A streaming parser of Wavefront OBJ files. The file is read in blocks
+ * through a channel and tokenized byte by byte, without building strings for
+ * keywords and numbers, so that loading time is linear in the size of the
+ * file.
+ */
 public class WavefrontParser {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int EOF = -1;
+
+	private static final int OTHER = 0;
+	private static final int VERTEX = 1;
+	private static final int NORMAL = 2;
+	private static final int FACE = 3;
+	private static final int TEXTURE = 4;
+
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
 	private final boolean swapYAndZ;
 	private final File sourceFile;
 	private final WavefrontCommandHandler handler;
-	private final StreamTokenizer tokenizer;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private final byte[] bytes = buffer.array();
+	private int position;
+	private int limit;
+	private int lineNumber;
 
 	private int vertexCount;
+	private int normalCount;
+	private int textureCount;
+	private Corner[] corners = new Corner[16];
 
 	public WavefrontParser(File file, WavefrontCommandHandler handler,
 			boolean swapYAndZ) throws FileNotFoundException {
 		this.swapYAndZ = swapYAndZ;
 		this.sourceFile = file;
 		this.handler = handler;
-		this.tokenizer = new StreamTokenizer(new FileReader(file));
-		this.tokenizer.eolIsSignificant(true);
-		this.tokenizer.lowerCaseMode(false);
-		this.tokenizer.slashSlashComments(false);
-		this.tokenizer.slashStarComments(false);
-		this.tokenizer.ordinaryChar('/');
-		this.tokenizer.commentChar('#');
+		this.channel = new FileInputStream(file).getChannel();
 	}
 
-	private String readKeyword() throws IOException, ParseException {
-		int token;
-		do {
-			token = tokenizer.nextToken();
-		} while (token == StreamTokenizer.TT_EOL);
-		switch (token) {
-		case StreamTokenizer.TT_EOF:
-			return null;
-		case StreamTokenizer.TT_WORD:
-			return tokenizer.sval;
-		default:
-			throw new ParseException(sourceFile, tokenizer.lineno(),
-					"keyword expected");
+	private int peek() throws IOException {
+		if (position >= limit) {
+			buffer.clear();
+			int count;
+			do {
+				count = channel.read(buffer);
+			} while (count == 0);
+			if (count < 0) {
+				return EOF;
+			}
+			position = 0;
+			limit = count;
 		}
+		return bytes[position] & 0xFF;
+	}
+
+	private int next() throws IOException {
+		final int c = peek();
+		if (c != EOF) {
+			position++;
+			if (c == '\n') {
+				lineNumber++;
+			}
+		}
+		return c;
+	}
+
+	private static boolean isBlank(int c) {
+		return (c == ' ') || (c == '\t') || (c == '\r') || (c == '\f');
+	}
+
+	private static boolean isSeparator(int c) {
+		return isBlank(c) || (c == '\n') || (c == '#') || (c == EOF);
+	}
+
+	private static boolean isDigit(int c) {
+		return (c >= '0') && (c <= '9');
+	}
+
+	private void skipBlanks() throws IOException {
+		while (isBlank(peek())) {
+			next();
+		}
+	}
+
+	private ParseException error(String message) {
+		return new ParseException(sourceFile, lineNumber + 1, message);
+	}
+
+	/*
+	 * Skips empty lines and comments and reads the next keyword, returning
+	 * one of the keyword constants or EOF.
+	 */
+	private int readKeyword() throws IOException {
+		int c;
+		while (true) {
+			c = peek();
+			if (isBlank(c) || (c == '\n')) {
+				next();
+			} else if (c == '#') {
+				skipLine();
+			} else {
+				break;
+			}
+		}
+		if (c == EOF) {
+			return EOF;
+		}
+		final int first = next();
+		if (isSeparator(peek())) {
+			return (first == 'v') ? VERTEX : ((first == 'f') ? FACE : OTHER);
+		}
+		final int second = next();
+		if ((first == 'v') && isSeparator(peek())) {
+			if (second == 'n') {
+				return NORMAL;
+			} else if (second == 't') {
+				return TEXTURE;
+			}
+		}
+		while (!isSeparator(peek())) {
+			next();
+		}
+		return OTHER;
 	}
 
 	private void skipLine() throws IOException {
-		int token;
+		int c;
 		do {
-			token = tokenizer.nextToken();
-		} while ((token != StreamTokenizer.TT_EOL)
-				&& (token != StreamTokenizer.TT_EOF));
+			c = next();
+		} while ((c != '\n') && (c != EOF));
 	}
 
 	private boolean isEol() throws IOException {
-		final int token = tokenizer.nextToken();
-		tokenizer.pushBack();
-		if ((token != StreamTokenizer.TT_EOL)
-				&& (token != StreamTokenizer.TT_EOF)) {
-			return false;
-		} else {
-			return true;
-		}
+		skipBlanks();
+		final int c = peek();
+		return (c == '\n') || (c == '#') || (c == EOF);
 	}
 
 	private void skipEol() throws IOException, ParseException {
-		final int token = tokenizer.nextToken();
-		if ((token != StreamTokenizer.TT_EOL)
-				&& (token != StreamTokenizer.TT_EOF)) {
-			throw new ParseException(sourceFile, tokenizer.lineno(),
-					"end of line expected");
+		if (!isEol()) {
+			throw error("end of line expected");
 		}
+		skipLine();
 	}
 
 	private double readDouble() throws IOException, ParseException {
-		if (tokenizer.nextToken() != StreamTokenizer.TT_NUMBER) {
-			throw new ParseException(sourceFile, tokenizer.lineno(),
-					"number expected");
+		skipBlanks();
+		boolean negative = false;
+		int c = peek();
+		if ((c == '-') || (c == '+')) {
+			negative = (c == '-');
+			next();
+			c = peek();
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean valid = false;
+		while (isDigit(c)) {
+			if (digits < 18) {
+				mantissa = mantissa * 10 + (c - '0');
+				if (mantissa != 0) {
+					digits++;
+				}
+			} else {
+				exponent++;
+			}
+			valid = true;
+			next();
+			c = peek();
+		}
+		if (c == '.') {
+			next();
+			c = peek();
+			while (isDigit(c)) {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0) {
+						digits++;
+					}
+					exponent--;
+				}
+				valid = true;
+				next();
+				c = peek();
+			}
+		}
+		if (!valid) {
+			throw error("number expected");
+		}
+		if ((c == 'e') || (c == 'E')) {
+			next();
+			exponent += readInt();
+			c = peek();
 		}
-		return tokenizer.nval;
+		if (!isSeparator(c)) {
+			throw error("number expected");
+		}
+		double value;
+		if ((exponent >= -POWERS_OF_TEN.length + 1) && (exponent < 0)) {
+			value = mantissa / POWERS_OF_TEN[-exponent];
+		} else if ((exponent >= 0) && (exponent < POWERS_OF_TEN.length)) {
+			value = mantissa * POWERS_OF_TEN[exponent];
+		} else {
+			value = mantissa * Math.pow(10, exponent);
+		}
+		return negative ? -value : value;
+	}
+
+	private boolean hasDouble() throws IOException {
+		skipBlanks();
+		final int c = peek();
+		return isDigit(c) || (c == '-') || (c == '+') || (c == '.');
 	}
 
-	private Double readOptionalDouble() throws IOException {
-		if (tokenizer.nextToken() != StreamTokenizer.TT_NUMBER) {
-			tokenizer.pushBack();
-			return null;
+	private int readInt() throws IOException, ParseException {
+		boolean negative = false;
+		int c = peek();
+		if ((c == '-') || (c == '+')) {
+			negative = (c == '-');
+			next();
+			c = peek();
+		}
+		if (!isDigit(c)) {
+			throw error("number expected");
+		}
+		int value = 0;
+		while (isDigit(c)) {
+			value = value * 10 + (c - '0');
+			next();
+			c = peek();
 		}
-		return tokenizer.nval;
+		return negative ? -value : value;
 	}
 
-	private int readShort() throws IOException, ParseException {
-		if (tokenizer.nextToken() != StreamTokenizer.TT_NUMBER) {
-			throw new ParseException(sourceFile, tokenizer.lineno(),
-					"number expected");
+	/*
+	 * Resolves a one-based index, or a negative one relative to the end of
+	 * the elements read so far, to a zero-based one.
+	 */
+	private int resolve(int index, int count) throws ParseException {
+		if ((index > count) || (index == 0) || (index < -count)) {
+			throw error("invalid index");
 		}
-		return (int) tokenizer.nval;
+		return (index > 0) ? index - 1 : count + index;
 	}
 
 	private Corner readCorner() throws IOException, ParseException {
-		int index = readShort();
-		if (index > vertexCount) {
-			throw new ParseException(sourceFile, tokenizer.lineno(),
-					"invalid index");
-		}
-		if (tokenizer.nextToken() != '/') {
-			tokenizer.pushBack();
-		} else {
-			int token = tokenizer.nextToken();
-			if (token == StreamTokenizer.TT_NUMBER) {
-				token = tokenizer.nextToken();
+		skipBlanks();
+		final int vertexIndex = resolve(readInt(), vertexCount);
+		int textureIndex = -1;
+		int normalIndex = -1;
+		if (peek() == '/') {
+			next();
+			if (peek() != '/') {
+				textureIndex = resolve(readInt(), textureCount);
 			}
-			if (token != '/') {
-				throw new ParseException(sourceFile, tokenizer.lineno(),
-						"/ expected");
+			if (peek() == '/') {
+				next();
+				normalIndex = resolve(readInt(), normalCount);
 			}
-			readShort();
 		}
-		return new Corner(index - 1, 0, 0); // FIXME
+		if (!isSeparator(peek())) {
+			throw error("/ expected");
+		}
+		return new Corner(vertexIndex, normalIndex, textureIndex);
 	}
 
 	public void parse() throws IOException, ParseException {
 		vertexCount = 0;
-		String keyword;
-		while ((keyword = readKeyword()) != null) {
-			if (keyword.equals("v")) {
-				final double x = readDouble();
-				final double y = readDouble();
-				final double z = readDouble();
-				final Double d = readOptionalDouble();
-				final double w;
-				if (d != null) {
-					w = d;
-				} else {
-					w = 1;
-				}
-				if (swapYAndZ) {
-					handler.vertex(x, z, y, w);
-				} else {
-					handler.vertex(x, y, z, w);
+		normalCount = 0;
+		textureCount = 0;
+		lineNumber = 0;
+		try {
+			int keyword;
+			while ((keyword = readKeyword()) != EOF) {
+				switch (keyword) {
+				case VERTEX:
+					parseVertex();
+					break;
+				case NORMAL:
+					parseNormal();
+					break;
+				case FACE:
+					parseFace();
+					break;
+				case TEXTURE:
+					textureCount++;
+					skipLine();
+					break;
+				default:
+					skipLine();
+					break;
 				}
-				vertexCount++;
-				skipEol();
-			} else if (keyword.equals("vn")) {
-				final double x = readDouble();
-				final double y = readDouble();
-				final double z = readDouble();
-				if (swapYAndZ) {
-					handler.normal(x, z, y);
-				} else {
-					handler.normal(x, y, z);
-				}
-				skipEol();
-			} else if (keyword.equals("f")) {
-				final List<Corner> corners = new LinkedList<Corner>();
-				corners.add(readCorner());
-				corners.add(readCorner());
-				corners.add(readCorner());
-				while (!isEol()) {
-					corners.add(readCorner());
-				}
-				if (!swapYAndZ) {
-					Collections.reverse(corners);
-				}
-				handler.face(corners.toArray(new Corner[corners.size()]));
-				skipEol();
-			} else {
-				skipLine();
 			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void parseVertex() throws IOException, ParseException {
+		final double x = readDouble();
+		final double y = readDouble();
+		final double z = readDouble();
+		final double w = hasDouble() ? readDouble() : 1;
+		if (swapYAndZ) {
+			handler.vertex(x, z, y, w);
+		} else {
+			handler.vertex(x, y, z, w);
+		}
+		vertexCount++;
+		skipEol();
+	}
+
+	private void parseNormal() throws IOException, ParseException {
+		final double x = readDouble();
+		final double y = readDouble();
+		final double z = readDouble();
+		if (swapYAndZ) {
+			handler.normal(x, z, y);
+		} else {
+			handler.normal(x, y, z);
+		}
+		normalCount++;
+		skipEol();
+	}
+
+	private void parseFace() throws IOException, ParseException {
+		int count = 0;
+		while ((count < 3) || !isEol()) {
+			if (count == corners.length) {
+				corners = Arrays.copyOf(corners, count * 2);
+			}
+			corners[count++] = readCorner();
+		}
+		final Corner[] face = new Corner[count];
+		for (int i = 0; i < count; i++) {
+			face[i] = corners[swapYAndZ ? i : count - 1 - i];
 		}
+		handler.face(face);
+		skipEol();
 	}
 }